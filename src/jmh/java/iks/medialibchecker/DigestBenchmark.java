@@ -0,0 +1,48 @@
+package iks.medialibchecker;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of every {@link Digest} over a read chunk. Compared with {@link HashChunkBenchmark}, it tells how many
+ * digest workers keep up with a single hash worker.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class DigestBenchmark {
+	@Param( { Xxh64Digest.NAME, Murmur3Digest.NAME, Sha256Digest.NAME } )
+	String digestName;
+
+	@Param( { "heap", "direct" } )
+	String bufferKind;
+
+	@Param( { "65536", "4194304" } )
+	int chunkSize;
+
+	private Digest digest;
+	private ByteBuffer buffer;
+	private final byte[] mirrorBuffer = new byte[ HashPipeline.MIRROR_BUFFER_SIZE ];
+
+	@Setup
+	public void fillBuffer() {
+		digest = Digest.create( digestName );
+		byte[] content = new byte[ chunkSize ];
+		new Random( 42 ).nextBytes( content );
+		buffer = "direct".equals( bufferKind ) ? ByteBuffer.allocateDirect( chunkSize ) : ByteBuffer.allocate( chunkSize );
+		buffer.put( content ).flip();
+	}
+
+	@Benchmark
+	public byte[] digestChunk() {
+		Digest.Computation computation = digest.start();
+		computation.update( buffer, mirrorBuffer );
+		return computation.getValue();
+	}
+}
@@ -0,0 +1,75 @@
+package iks.medialibchecker;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ExtentIndex} usage patterns of the device scan: directory traversal inserting children while taking
+ * the entry nearest to the head, and the file extent pass over the whole index.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( value = 1, jvmArgs = { "-Xmx2g" } )
+public class ExtentIndexBenchmark {
+	/** Directories found per directory read */
+	private static final int CHILDREN_PER_DIRECTORY = 8;
+
+	@Param( { "100000", "1000000" } )
+	int extentCount;
+
+	/** Physical offsets in the order they are reported by the extent provider */
+	private long[] keys;
+	private final Object owner = new Object();
+
+	@Setup
+	public void generateKeys() {
+		Random random = new Random( 42 );
+		keys = new long[ extentCount ];
+		for ( int i = 0; i < extentCount; ++ i ) {
+			// a 4 TiB disk of 4 KiB blocks
+			keys[ i ] = random.nextLong() & ( ( 1L << 30 ) - 1 );
+		}
+	}
+
+	/** Mirrors DirectoryScanner.gatherFilesAndExtents: read the nearest directory, queue its subdirectories */
+	@Benchmark
+	public long nearestKeyTraversal() {
+		ExtentIndex< Object > index = new ExtentIndex<>();
+		int added = 0;
+		long currentBlock = 0;
+		index.put( keys[ added ++ ], owner );
+		while ( ! index.isEmpty() ) {
+			long greater = index.ceilingKey( currentBlock );
+			long less = index.floorKey( currentBlock );
+			long nextKey = ( greater == ExtentIndex.NO_KEY ) ? less : ( less == ExtentIndex.NO_KEY ) ? greater :
+					( Math.abs( currentBlock - less ) > Math.abs( currentBlock - greater ) ) ? greater : less;
+			index.remove( nextKey );
+			for ( int i = 0; i < CHILDREN_PER_DIRECTORY && added < extentCount; ++ i ) {
+				index.put( keys[ added ++ ], owner );
+			}
+			currentBlock = nextKey;
+		}
+		return currentBlock;
+	}
+
+	/** Mirrors a DirectoryScanner.calcFileHashes pass: populate, then go through the extents in physical order */
+	@Benchmark
+	public long populateAndScan() {
+		ExtentIndex< Object > index = new ExtentIndex<>();
+		for ( long key : keys ) {
+			index.put( key, owner );
+		}
+		long checksum = 0;
+		ExtentIndex< Object >.Cursor cursor = index.cursor();
+		while ( cursor.next() ) {
+			checksum += cursor.key();
+			cursor.remove();
+		}
+		return checksum;
+	}
+}
@@ -0,0 +1,71 @@
+package iks.medialibchecker;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Compares files-mapped-per-second of the available extent providers on a real directory tree,
+ * mapping directory by directory and in batches the way the extent map scanner does.
+ * Usage: ExtentProviderBenchmark &lt;directory&gt; [rounds]
+ */
+public class ExtentProviderBenchmark {
+	private static final int BATCH_SIZE = 256;
+
+	private ExtentProviderBenchmark() {}
+
+	public static void main( String[] args ) throws IOException {
+		if ( args.length < 1 ) {
+			System.err.println( "Usage: ExtentProviderBenchmark <directory> [rounds]" );
+			System.exit( 1 );
+		}
+		int rounds = args.length > 1 ? Integer.parseInt( args[1] ) : 3;
+		ArrayList< DirectoryInfo > directories = new ArrayList<>();
+		ArrayDeque< DirectoryInfo > toBeRead = new ArrayDeque<>();
+		toBeRead.add( new DirectoryInfo( null, args[0] ) );
+		int totalFiles = 0;
+		while ( ! toBeRead.isEmpty() ) {
+			DirectoryInfo directory = toBeRead.poll();
+			directory.readContent( null );
+			if ( directory.containingFiles == null ) {
+				continue;
+			}
+			directories.add( directory );
+			totalFiles += directory.containingFiles.size();
+			for ( FileInfo fileInfo : directory.containingFiles ) {
+				if ( fileInfo instanceof DirectoryInfo ) {
+					toBeRead.add( (DirectoryInfo) fileInfo );
+				}
+			}
+		}
+		System.out.printf( "%d directories with %d files%n", directories.size(), totalFiles );
+
+		ArrayList< ExtentProvider > providers = new ArrayList<>();
+		providers.add( new FilefragExtentProvider() );
+		if ( FiemapExtentProvider.isAvailable() ) {
+			providers.add( new FiemapExtentProvider( new FilefragExtentProvider() ) );
+		}
+		for ( ExtentProvider provider : providers ) {
+			for ( int batchSize : new int[] { 1, BATCH_SIZE } ) {
+				// the first round warms up the code and the directory cache
+				for ( int round = 0; round <= rounds; ++ round ) {
+					int[] mappedFiles = new int[1];
+					long startTime = System.nanoTime();
+					for ( int i = 0; i < directories.size(); i += batchSize ) {
+						provider.mapExtents(
+								directories.subList( i, Math.min( directories.size(), i + batchSize ) ),
+								( fileInfo, blockSize, segments ) -> ++ mappedFiles[0]
+						);
+					}
+					long elapsed = System.nanoTime() - startTime;
+					if ( round > 0 ) {
+						System.out.printf(
+								"%-10s batch %3d round %d: %d files mapped in %s (%.1f files/sec)%n",
+								provider.getName(), batchSize, round, mappedFiles[0], Utils.asHumanReadableInterval( elapsed ),
+								mappedFiles[0] * 1e9 / ( elapsed + 1 )
+						);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package iks.medialibchecker;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Measures heap footprint of the scanned file table on synthetic media libraries: the compact layout
+ * ({@link FileInfo} with {@link SegmentTable}) versus the former one (java.io.File and list of segment objects
+ * per file along with the scan state fields).
+ * Usage: FileTableFootprintBenchmark [file count...]. Run 10M files with -Xmx8g or so.
+ */
+public class FileTableFootprintBenchmark {
+	private static final int FILES_PER_DIRECTORY = 12;
+	private static final int DIRECTORIES_PER_ARTIST = 8;
+	private static final int BLOCK_SIZE = 4096;
+	/** Every n-th file is fragmented into two extents */
+	private static final int FRAGMENTED_FILE_PERIOD = 10;
+
+	private FileTableFootprintBenchmark() {}
+
+	/** Per file structure as it was before the compact layout */
+	@SuppressWarnings( "unused" )
+	private static class LegacyFileInfo {
+		File file;
+		int blockSize;
+		Object hash64;
+		List< FileSegment > segments;
+		long device;
+		long inode;
+		long size;
+		long modifiedTime;
+		Object scanChannel;
+		int nextExtentIndex;
+		long bytesRemains;
+		long hash;
+		boolean hashReady;
+		byte[] mirrorBuffer;
+		Object treeHash;
+		BitSet hashedSegments;
+		ArrayList< LegacyFileInfo > containingFiles;
+	}
+
+	public static void main( String[] args ) {
+		long[] counts = args.length == 0 ? new long[] { 1_000_000, 10_000_000 } : new long[ args.length ];
+		for ( int i = 0; i < args.length; ++ i ) {
+			counts[ i ] = Long.parseLong( args[ i ] );
+		}
+		System.out.printf( "Max heap %s%n", Utils.getFileSizeNice( Runtime.getRuntime().maxMemory() ) );
+		for ( long count : counts ) {
+			measure( "compact", (int) count, FileTableFootprintBenchmark::buildCompact );
+			measure( "legacy", (int) count, FileTableFootprintBenchmark::buildLegacy );
+		}
+	}
+
+	private interface Builder {
+		Object build( int fileCount );
+	}
+
+	private static void measure( String layout, int fileCount, Builder builder ) {
+		long before = usedMemory();
+		long startTime = System.nanoTime();
+		Object table;
+		try {
+			table = builder.build( fileCount );
+		} catch ( OutOfMemoryError oome ) {
+			System.out.printf( "%-8s %,12d files: out of memory, increase -Xmx%n", layout, fileCount );
+			return;
+		}
+		long elapsed = System.nanoTime() - startTime;
+		long used = usedMemory() - before;
+		System.out.printf(
+				"%-8s %,12d files: %s heap, %.1f bytes per file, built in %s%n",
+				layout, fileCount, Utils.getFileSizeNice( used ), (double) used / fileCount,
+				Utils.asHumanReadableInterval( elapsed )
+		);
+		// keep the table reachable until it's measured
+		if ( table.hashCode() == System.nanoTime() ) {
+			System.out.println();
+		}
+	}
+
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		// a few collections to let the heap settle
+		for ( int i = 0; i < 5; ++ i ) {
+			System.gc();
+			used = Math.min( used, runtime.totalMemory() - runtime.freeMemory() );
+		}
+		return used;
+	}
+
+	private static String artistName( int directory ) {
+		return "Artist " + ( directory / DIRECTORIES_PER_ARTIST );
+	}
+
+	private static String albumName( int directory ) {
+		return "Album " + ( directory % DIRECTORIES_PER_ARTIST ) + " (" + ( 1970 + directory % 50 ) + ")";
+	}
+
+	private static String trackName( int file ) {
+		return String.format( "%02d - Track title number %d.flac", file % FILES_PER_DIRECTORY + 1, file );
+	}
+
+	private static List< FileSegment > segments( int file ) {
+		long physical = (long) file * 8192;
+		if ( file % FRAGMENTED_FILE_PERIOD == 0 ) {
+			return Arrays.asList( new FileSegment( 0, physical, 4096 ), new FileSegment( 4096, physical + 1_000_000, 4096 ) );
+		}
+		return Collections.singletonList( new FileSegment( 0, physical, 8192 ) );
+	}
+
+	private static Object buildCompact( int fileCount ) {
+		DirectoryInfo root = new DirectoryInfo( null, "/media/library" );
+		root.containingFiles = new ArrayList<>();
+		SegmentTable segmentTable = new SegmentTable();
+		ExtentIndex< FileInfo > fileExtentMap = new ExtentIndex<>();
+		DirectoryInfo artist = null;
+		DirectoryInfo album = null;
+		for ( int file = 0; file < fileCount; ++ file ) {
+			int directory = file / FILES_PER_DIRECTORY;
+			if ( file % FILES_PER_DIRECTORY == 0 ) {
+				if ( directory % DIRECTORIES_PER_ARTIST == 0 ) {
+					artist = new DirectoryInfo( root, artistName( directory ) );
+					artist.containingFiles = new ArrayList<>( DIRECTORIES_PER_ARTIST );
+					root.containingFiles.add( artist );
+				}
+				album = new DirectoryInfo( artist, albumName( directory ) );
+				album.containingFiles = new ArrayList<>( FILES_PER_DIRECTORY );
+				artist.containingFiles.add( album );
+			}
+			FileInfo fileInfo = new FileInfo( album, trackName( file ) );
+			List< FileSegment > segments = segments( file );
+			fileInfo.setExtentMap( BLOCK_SIZE, segmentTable.add( segments ), segments.size() );
+			for ( FileSegment segment : segments ) {
+				fileExtentMap.put( segment.physicalOffset, fileInfo );
+			}
+			album.containingFiles.add( fileInfo );
+		}
+		return new Object[] { root, segmentTable, fileExtentMap };
+	}
+
+	private static Object buildLegacy( int fileCount ) {
+		LegacyFileInfo root = new LegacyFileInfo();
+		root.file = new File( "/media/library" );
+		root.containingFiles = new ArrayList<>();
+		ExtentIndex< LegacyFileInfo > fileExtentMap = new ExtentIndex<>();
+		LegacyFileInfo artist = null;
+		LegacyFileInfo album = null;
+		for ( int file = 0; file < fileCount; ++ file ) {
+			int directory = file / FILES_PER_DIRECTORY;
+			if ( file % FILES_PER_DIRECTORY == 0 ) {
+				if ( directory % DIRECTORIES_PER_ARTIST == 0 ) {
+					artist = new LegacyFileInfo();
+					artist.file = new File( root.file, artistName( directory ) );
+					artist.containingFiles = new ArrayList<>( DIRECTORIES_PER_ARTIST );
+					root.containingFiles.add( artist );
+				}
+				album = new LegacyFileInfo();
+				album.file = new File( artist.file, albumName( directory ) );
+				album.containingFiles = new ArrayList<>( FILES_PER_DIRECTORY );
+				artist.containingFiles.add( album );
+			}
+			LegacyFileInfo fileInfo = new LegacyFileInfo();
+			fileInfo.file = new File( album.file, trackName( file ) );
+			fileInfo.blockSize = BLOCK_SIZE;
+			fileInfo.segments = new ArrayList<>( 4 );
+			for ( FileSegment segment : segments( file ) ) {
+				fileInfo.segments.add( new FileSegment( segment.logicalOffset, segment.physicalOffset, segment.blockCount ) );
+				fileExtentMap.put( segment.physicalOffset, fileInfo );
+			}
+			album.containingFiles.add( fileInfo );
+		}
+		return new Object[] { root, fileExtentMap };
+	}
+}
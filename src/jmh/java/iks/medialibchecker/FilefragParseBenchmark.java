@@ -0,0 +1,82 @@
+package iks.medialibchecker;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/** Parsing of synthetic 'filefrag -e' output of a batch of files */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class FilefragParseBenchmark {
+	private static final int BLOCK_SIZE = 4096;
+
+	@Param( { "100", "2000" } )
+	int fileCount;
+
+	@Param( { "1", "16" } )
+	int extentsPerFile;
+
+	private byte[] output;
+	private final ArrayList< FileInfo > files = new ArrayList<>();
+	private final ArrayList< byte[] > paths = new ArrayList<>();
+	private final FilefragOutputParser parser = new FilefragOutputParser();
+
+	@Setup
+	public void generateOutput() {
+		Random random = new Random( 42 );
+		DirectoryInfo directory = new DirectoryInfo( null, "/media/library/artist/album" );
+		StringBuilder text = new StringBuilder( "Filesystem type is: ef53\n" );
+		long physicalBlock = 1 << 20;
+		for ( int i = 0; i < fileCount; ++ i ) {
+			FileInfo fileInfo = new FileInfo( directory, String.format( "%02d - Track number %d.flac", i % 100, i ) );
+			String name = fileInfo.getPath();
+			files.add( fileInfo );
+			paths.add( name.getBytes( StandardCharsets.UTF_8 ) );
+			int[] lengths = new int[ extentsPerFile ];
+			long blocks = 0;
+			for ( int e = 0; e < extentsPerFile; ++ e ) {
+				lengths[ e ] = 1 + random.nextInt( 8192 );
+				blocks += lengths[ e ];
+			}
+			text.append( String.format(
+					"File size of %s is %d (%d blocks of %d bytes)\n",
+					name, blocks * BLOCK_SIZE - random.nextInt( BLOCK_SIZE ), blocks, BLOCK_SIZE
+			) );
+			text.append( " ext:     logical_offset:        physical_offset: length:   expected: flags:\n" );
+			long logicalBlock = 0;
+			for ( int e = 0; e < extentsPerFile; ++ e ) {
+				long expected = physicalBlock;
+				if ( e > 0 ) {
+					physicalBlock += random.nextInt( 1 << 16 );
+				}
+				text.append( String.format(
+						"%4d: %8d..%8d: %10d..%10d: %6d: %10s %s\n",
+						e, logicalBlock, logicalBlock + lengths[ e ] - 1, physicalBlock, physicalBlock + lengths[ e ] - 1,
+						lengths[ e ], e > 0 ? expected + ":" : "", e == extentsPerFile - 1 ? "last,eof" : ""
+				) );
+				logicalBlock += lengths[ e ];
+				physicalBlock += lengths[ e ];
+			}
+			text.append( String.format(
+					"%s: %d extent%s found\n", name, extentsPerFile, extentsPerFile == 1 ? "" : "s"
+			) );
+		}
+		output = text.toString().getBytes( StandardCharsets.UTF_8 );
+	}
+
+	@Benchmark
+	public void parse( Blackhole blackhole ) throws IOException {
+		parser.parse(
+				new ByteArrayInputStream( output ), files, paths,
+				( fileInfo, blockSize, segments ) -> blackhole.consume( segments.get( 0 ).physicalOffset )
+		);
+	}
+}
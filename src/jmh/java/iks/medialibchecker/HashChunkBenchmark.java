@@ -0,0 +1,51 @@
+package iks.medialibchecker;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing of a read chunk by {@link FileInfo#hashChunk}. Heap buffers are hashed right from their arrays,
+ * direct (pooled) buffers go through the worker's mirror buffer in stream mode.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class HashChunkBenchmark {
+	@Param( { "stream", "tree" } )
+	String hashModeName;
+
+	@Param( { "heap", "direct" } )
+	String bufferKind;
+
+	@Param( { "65536", "4194304" } )
+	int chunkSize;
+
+	private HashMode hashMode;
+	private ByteBuffer buffer;
+	private final byte[] mirrorBuffer = new byte[ HashPipeline.MIRROR_BUFFER_SIZE ];
+	private final FileInfo fileInfo = new FileInfo( null, "/media/library/chunk.flac" );
+
+	@Setup
+	public void fillBuffer() {
+		hashMode = HashMode.parse( hashModeName );
+		byte[] content = new byte[ chunkSize ];
+		new Random( 42 ).nextBytes( content );
+		buffer = "direct".equals( bufferKind ) ? ByteBuffer.allocateDirect( chunkSize ) : ByteBuffer.allocate( chunkSize );
+		buffer.put( content ).flip();
+	}
+
+	/** The whole file fits the chunk, so the hash is finished every time as well */
+	@Benchmark
+	public long hashChunk() throws IOException {
+		FileInfo.HashState state = fileInfo.startHashing( hashMode, Collections.emptyList(), chunkSize, 0 );
+		fileInfo.hashChunk( state, 0, buffer.duplicate(), mirrorBuffer );
+		return fileInfo.getHash();
+	}
+}
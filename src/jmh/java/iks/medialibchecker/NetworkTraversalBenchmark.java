@@ -0,0 +1,118 @@
+package iks.medialibchecker;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Network filesystem traversal of {@link ParallelScanner} against the sequential one of the device scanner. The tree
+ * is a generated library in the temporary directory, and every listing and stat call is delayed by the round trip
+ * latency, so the calls kept in flight are measured rather than the local filesystem.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class NetworkTraversalBenchmark {
+	private static final int ARTIST_COUNT = 10;
+	private static final int ALBUMS_PER_ARTIST = 5;
+	private static final int FILES_PER_ALBUM = 12;
+	private static final int FILE_SIZE = 4096;
+
+	@Param( { "200", "1000" } )
+	int latencyMicros;
+
+	@Param( { "1", "8", "64" } )
+	int concurrency;
+
+	private Path root;
+	private MetadataSource remote;
+	private ReadEngine readEngine;
+	private Metrics metrics;
+	private DeviceMetrics deviceMetrics;
+
+	@Setup
+	public void generateTree() throws IOException {
+		root = Files.createTempDirectory( "medialibchecker-jmh" );
+		byte[] content = new byte[ FILE_SIZE ];
+		for ( int artist = 0; artist < ARTIST_COUNT; ++ artist ) {
+			for ( int album = 0; album < ALBUMS_PER_ARTIST; ++ album ) {
+				Path albumPath = Files.createDirectories( root.resolve( "Artist " + artist ).resolve( "Album " + album ) );
+				for ( int track = 0; track < FILES_PER_ALBUM; ++ track ) {
+					Files.write( albumPath.resolve( String.format( "%02d - Track %d.flac", track, track ) ), content );
+				}
+			}
+		}
+		long latencyNanos = TimeUnit.MICROSECONDS.toNanos( latencyMicros );
+		remote = new MetadataSource() {
+			@Override
+			public List< DirectoryLister.Entry > list( Path directory ) throws IOException {
+				LockSupport.parkNanos( latencyNanos );
+				return MetadataSource.LOCAL.list( directory );
+			}
+
+			@Override
+			public Map< String, Object > readAttributes( Path path ) throws IOException {
+				LockSupport.parkNanos( latencyNanos );
+				return MetadataSource.LOCAL.readAttributes( path );
+			}
+		};
+		readEngine = new PreadReadEngine();
+		metrics = new Metrics();
+		deviceMetrics = metrics.addDevice( "jmh" );
+	}
+
+	@TearDown
+	public void deleteTree() throws IOException {
+		Files.walkFileTree( root, new SimpleFileVisitor< Path >() {
+			@Override
+			public FileVisitResult visitFile( Path file, BasicFileAttributes attrs ) throws IOException {
+				Files.delete( file );
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory( Path dir, IOException exc ) throws IOException {
+				Files.delete( dir );
+				return FileVisitResult.CONTINUE;
+			}
+		} );
+	}
+
+	/** Lists and stats the tree directory by directory, one call at a time like the device scanner */
+	@Benchmark
+	public int sequential() {
+		List< Path > rootPaths = Collections.singletonList( root );
+		ArrayDeque< DirectoryInfo > toBeRead = new ArrayDeque<>();
+		toBeRead.add( new DirectoryInfo( null, root.toString() ) );
+		int fileCount = 0;
+		while ( ! toBeRead.isEmpty() ) {
+			DirectoryInfo directory = toBeRead.poll();
+			directory.readContent( rootPaths, remote, true );
+			for ( FileInfo fileInfo : directory.containingFiles ) {
+				if ( fileInfo instanceof DirectoryInfo ) {
+					toBeRead.add( (DirectoryInfo) fileInfo );
+				} else {
+					++ fileCount;
+				}
+			}
+		}
+		return fileCount;
+	}
+
+	/** Lists, stats and hashes the tree by the network mode tasks */
+	@Benchmark
+	public void parallel() {
+		new ParallelScanner(
+				"jmh", Collections.singletonList( root ), readEngine, ExtentReader.DEFAULT_READ_SIZE, HashMode.STREAM,
+				Collections.emptyList(), concurrency, true, remote, null, null, metrics, deviceMetrics, null
+		).run();
+	}
+}
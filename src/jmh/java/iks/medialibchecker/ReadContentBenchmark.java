@@ -0,0 +1,83 @@
+package iks.medialibchecker;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link DirectoryInfo#readContent} over a generated library tree (artist/album/tracks) of empty files
+ * in the temporary directory. The directory entries are cached after the first read, so the listing itself
+ * is measured rather than the device.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ReadContentBenchmark {
+	private static final int ALBUMS_PER_ARTIST = 5;
+
+	@Param( { "20", "200" } )
+	int artistCount;
+
+	@Param( { "12", "100" } )
+	int filesPerAlbum;
+
+	private Path root;
+
+	@Setup
+	public void generateTree() throws IOException {
+		root = Files.createTempDirectory( "medialibchecker-jmh" );
+		for ( int artist = 0; artist < artistCount; ++ artist ) {
+			for ( int album = 0; album < ALBUMS_PER_ARTIST; ++ album ) {
+				Path albumPath = Files.createDirectories( root.resolve( "Artist " + artist ).resolve( "Album " + album ) );
+				for ( int track = 0; track < filesPerAlbum; ++ track ) {
+					Files.createFile( albumPath.resolve( String.format( "%02d - Track %d.flac", track, track ) ) );
+				}
+			}
+		}
+	}
+
+	@TearDown
+	public void deleteTree() throws IOException {
+		Files.walkFileTree( root, new SimpleFileVisitor< Path >() {
+			@Override
+			public FileVisitResult visitFile( Path file, BasicFileAttributes attrs ) throws IOException {
+				Files.delete( file );
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory( Path dir, IOException exc ) throws IOException {
+				Files.delete( dir );
+				return FileVisitResult.CONTINUE;
+			}
+		} );
+	}
+
+	/** Reads the whole tree the way the device scanner does, directory by directory */
+	@Benchmark
+	public int readTree() {
+		List< Path > rootPaths = Collections.singletonList( root );
+		ArrayDeque< DirectoryInfo > toBeRead = new ArrayDeque<>();
+		toBeRead.add( new DirectoryInfo( null, root.toString() ) );
+		int fileCount = 0;
+		while ( ! toBeRead.isEmpty() ) {
+			DirectoryInfo directory = toBeRead.poll();
+			directory.readContent( rootPaths );
+			for ( FileInfo fileInfo : directory.containingFiles ) {
+				if ( fileInfo instanceof DirectoryInfo ) {
+					toBeRead.add( (DirectoryInfo) fileInfo );
+				} else {
+					++ fileCount;
+				}
+			}
+		}
+		return fileCount;
+	}
+}
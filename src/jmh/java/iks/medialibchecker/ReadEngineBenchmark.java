@@ -0,0 +1,84 @@
+package iks.medialibchecker;
+
+import com.sun.jna.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Compares sequential read throughput of the read engines on a local file.
+ * Cached pages of the file are dropped before every round, so the reads go to the device (except for the pages
+ * the kernel refuses to drop). Usage: ReadEngineBenchmark &lt;file&gt; [read size MiB] [rounds]
+ */
+public class ReadEngineBenchmark {
+	private static final int O_RDONLY = 0;
+	private static final int POSIX_FADV_DONTNEED = 4;
+
+	interface CLibrary extends Library {
+		int open( String path, int flags ) throws LastErrorException;
+		int close( int fd ) throws LastErrorException;
+		int posix_fadvise64( int fd, long offset, long length, int advice );
+	}
+
+	/** Keeps the touched content alive for the JIT */
+	private static volatile long checksum;
+
+	private ReadEngineBenchmark() {}
+
+	public static void main( String[] args ) throws IOException {
+		if ( args.length < 1 ) {
+			System.err.println( "Usage: ReadEngineBenchmark <file> [read size MiB] [rounds]" );
+			System.exit( 1 );
+		}
+		Path path = Paths.get( args[0] );
+		int readSize = ( args.length > 1 ? Integer.parseInt( args[1] ) : 4 ) << 20;
+		int rounds = args.length > 2 ? Integer.parseInt( args[2] ) : 3;
+		ArrayList< ReadEngine > engines = new ArrayList<>();
+		engines.add( new PreadReadEngine() );
+		engines.add( new MmapReadEngine() );
+		if ( DirectReadEngine.isAvailable() ) {
+			engines.add( new DirectReadEngine() );
+		}
+		System.out.printf( "%s of %s by %s reads%n", path, Utils.getFileSizeNice( Files.size( path ) ), Utils.getFileSizeNice( readSize ) );
+		CLibrary libc = Platform.isLinux() ? (CLibrary) Native.loadLibrary( "c", CLibrary.class ) : null;
+		if ( libc == null ) {
+			System.out.println( "Cached pages can't be dropped on this platform, the later rounds read the cache" );
+		}
+		for ( ReadEngine engine : engines ) {
+			ByteBuffer buffer = engine.allocateBuffer( readSize );
+			for ( int round = 1; round <= rounds; ++ round ) {
+				if ( libc != null ) {
+					dropCache( libc, path );
+				}
+				long startTime = System.nanoTime();
+				long size;
+				try ( ReadEngine.ReadFile file = engine.open( path ) ) {
+					size = file.size();
+					for ( long position = 0; position < size; position += readSize ) {
+						ByteBuffer content = file.read( position, (int) Math.min( readSize, size - position ), buffer );
+						// touch the content, so no engine gets away without reading
+						checksum += content.get( content.position() );
+					}
+				}
+				long elapsed = System.nanoTime() - startTime;
+				System.out.printf(
+						"%-7s round %d: %s in %s (%.1f MB/s)%n",
+						engine.getName(), round, Utils.getFileSizeNice( size ), Utils.asHumanReadableInterval( elapsed ),
+						size * 1e3 / ( elapsed + 1 )
+				);
+			}
+		}
+	}
+
+	/** Drops cached pages of the file, so the next read goes to the device */
+	private static void dropCache( CLibrary libc, Path path ) {
+		int fd = libc.open( path.toString(), O_RDONLY );
+		try {
+			libc.posix_fadvise64( fd, 0, 0, POSIX_FADV_DONTNEED );
+		} finally {
+			libc.close( fd );
+		}
+	}
+}
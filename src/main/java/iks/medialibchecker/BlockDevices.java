@@ -0,0 +1,240 @@
+package iks.medialibchecker;
+
+import org.slf4j.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Block device info taken from sysfs.
+ * The sysfs root is configurable to be able to use a fake tree instead of the real one.
+ */
+class BlockDevices {
+	private static final Logger log = LoggerFactory.getLogger( BlockDevices.class );
+	static final String DEFAULT_SYSFS_ROOT = "/sys";
+	private static final int READ_SECTORS_FIELD = 2;
+	private static final int WRITE_SECTORS_FIELD = 6;
+	/** Range of a volume which size is unknown on the disk scale of {@link VolumeLayout}. Larger than any disk */
+	private static final long UNKNOWN_VOLUME_SIZE = 1L << 50;
+	/** Filesystem types (as /proc/mounts tells them) served over the network */
+	private static final Set< String > NETWORK_FILESYSTEMS = new HashSet<>( Arrays.asList(
+			"nfs", "nfs4", "cifs", "smb3", "smbfs", "9p", "afs", "ceph", "glusterfs", "fuse.glusterfs", "lustre",
+			"fuse.sshfs", "fuse.rclone", "davfs", "fuse.s3fs", "beegfs", "gpfs"
+	) );
+
+	private final Path sysfsRoot;
+
+	BlockDevices( Path sysfsRoot ) {
+		this.sysfsRoot = sysfsRoot;
+	}
+
+	static long getDeviceId( Path path ) throws IOException {
+		return (Long) Files.getAttribute( path, "unix:dev" );
+	}
+
+	/** Major number of st_dev encoded by glibc's makedev */
+	static int major( long deviceId ) {
+		return (int) ( ( ( deviceId >>> 8 ) & 0xfff ) | ( ( deviceId >>> 32 ) & ~0xfff ) );
+	}
+
+	/** Minor number of st_dev encoded by glibc's makedev */
+	static int minor( long deviceId ) {
+		return (int) ( ( deviceId & 0xff ) | ( ( deviceId >>> 12 ) & ~0xff ) );
+	}
+
+	/**
+	 * Finds block device node of the filesystem device.
+	 * /dev/block links are made by udev, without it the node name is taken from sysfs.
+	 */
+	Path getDeviceNode( long deviceId ) throws IOException {
+		String majorMinor = major( deviceId ) + ":" + minor( deviceId );
+		Path link = Paths.get( "/dev/block", majorMinor );
+		if ( Files.exists( link ) ) {
+			return link;
+		}
+		Path uevent = sysfsRoot.resolve( "dev/block" ).resolve( majorMinor ).resolve( "uevent" );
+		if ( Files.exists( uevent ) ) {
+			for ( String line : Files.readAllLines( uevent, StandardCharsets.UTF_8 ) ) {
+				if ( line.startsWith( "DEVNAME=" ) ) {
+					return Paths.get( "/dev", line.substring( "DEVNAME=".length() ) );
+				}
+			}
+		}
+		throw new NoSuchFileException( link.toString(), null, "No block device node for " + majorMinor );
+	}
+
+	/**
+	 * Tells whether the disk has seek penalty by its queue/rotational flag.
+	 * @param diskName name returned by {@link #getDiskName}
+	 * @return true if the disk is rotational or the flag is unknown
+	 */
+	boolean isRotational( String diskName ) {
+		Path flag = sysfsRoot.resolve( "block" ).resolve( diskName ).resolve( "queue/rotational" );
+		try {
+			return ! "0".equals( new String( Files.readAllBytes( flag ), StandardCharsets.US_ASCII ).trim() );
+		} catch ( IOException ioe ) {
+			log.debug( "Can't read rotational flag of {}: {}. Treating it as rotational", diskName, ioe.toString() );
+			return true;
+		}
+	}
+
+	/** Network filesystems have no block device, so they are told by the filesystem type */
+	static boolean isNetworkFileSystem( Path path ) throws IOException {
+		return NETWORK_FILESYSTEMS.contains( Files.getFileStore( path ).type() );
+	}
+
+	/** @return stat file of the disk or null if sysfs doesn't know the disk */
+	Path getStatPath( String diskName ) {
+		Path stat = sysfsRoot.resolve( "block" ).resolve( diskName ).resolve( "stat" );
+		return Files.exists( stat ) ? stat : null;
+	}
+
+	/**
+	 * Reads the sectors read and written from the disk stat file (3rd and 7th fields).
+	 * @return the sector count or -1 if it can't be read
+	 */
+	static long readTransferredSectors( Path statPath ) {
+		try {
+			String[] fields = new String( Files.readAllBytes( statPath ), StandardCharsets.US_ASCII ).trim().split( "\\s+" );
+			return fields.length > WRITE_SECTORS_FIELD
+					? Long.parseLong( fields[ READ_SECTORS_FIELD ] ) + Long.parseLong( fields[ WRITE_SECTORS_FIELD ] )
+					: -1;
+		} catch ( IOException | NumberFormatException e ) {
+			log.trace( "Can't read {}: {}", statPath, e.toString() );
+			return -1;
+		}
+	}
+
+	/**
+	 * Finds the whole disk the path is placed on, so all the partitions of the same disk get the same name.
+	 * Device-mapper (LVM, dm-crypt) and md volumes are followed through their slaves down to the disk, so the volumes of
+	 * the same disk are scanned together too. A volume spanning several disks keeps its own name.
+	 * @return disk name like "sda", volume name like "dm-0" or "dev-MAJOR:MINOR" if sysfs doesn't know the device
+	 */
+	String getDiskName( Path path ) throws IOException {
+		long deviceId = getDeviceId( path );
+		String majorMinor = major( deviceId ) + ":" + minor( deviceId );
+		Path devicePath = sysfsRoot.resolve( "dev/block" ).resolve( majorMinor );
+		if ( ! Files.exists( devicePath ) ) {
+			log.debug( "Device {} of '{}' is unknown to sysfs", majorMinor, path );
+			return "dev-" + majorMinor;
+		}
+		devicePath = devicePath.toRealPath();
+		String deviceName = devicePath.getFileName().toString();
+		TreeSet< String > disks = new TreeSet<>();
+		try {
+			collectDisks( devicePath, disks );
+		} catch ( IOException ioe ) {
+			log.warn( "Can't find the disks under device {} of '{}': {}. Scanning it on its own", deviceName, path, ioe.toString() );
+			return deviceName;
+		}
+		if ( disks.size() > 1 ) {
+			log.warn(
+					"Device {} of '{}' spans disks {}. Scanning it on its own, so its reads may seek against the scans of "
+							+ "the other volumes of these disks", deviceName, path, disks
+			);
+			return deviceName;
+		}
+		return disks.first();
+	}
+
+	/**
+	 * Places the filesystems of the roots on the scale of their disk, see {@link VolumeLayout}.
+	 * @param diskName name returned by {@link #getDiskName} for all the roots
+	 */
+	VolumeLayout getVolumeLayout( String diskName, List< Path > roots ) throws IOException {
+		LinkedHashMap< Path, Long > rootDevices = new LinkedHashMap<>();
+		for ( Path root : roots ) {
+			rootDevices.put( root, getDeviceId( root ) );
+		}
+		return getVolumeLayout( diskName, rootDevices );
+	}
+
+	/** @param rootDevices roots with their filesystem devices */
+	VolumeLayout getVolumeLayout( String diskName, Map< Path, Long > rootDevices ) {
+		TreeMap< String, Long > volumes = new TreeMap<>();
+		for ( long deviceId : rootDevices.values() ) {
+			volumes.put( major( deviceId ) + ":" + minor( deviceId ), deviceId );
+		}
+		if ( volumes.size() < 2 ) {
+			return VolumeLayout.NONE;
+		}
+		HashMap< Long, Long > starts = new HashMap<>();
+		// stacked volumes to their sysfs paths
+		LinkedHashMap< Long, Path > stackedVolumes = new LinkedHashMap<>();
+		for ( Map.Entry< String, Long > volume : volumes.entrySet() ) {
+			Path devicePath = sysfsRoot.resolve( "dev/block" ).resolve( volume.getKey() );
+			try {
+				devicePath = devicePath.toRealPath();
+				if ( Files.exists( devicePath.resolve( "partition" ) ) ) {
+					starts.put( volume.getValue(), readSectors( devicePath.resolve( "start" ) ) );
+				} else if ( devicePath.getFileName().toString().equals( diskName ) ) {
+					starts.put( volume.getValue(), 0L );
+				} else {
+					stackedVolumes.put( volume.getValue(), devicePath );
+				}
+			} catch ( IOException ioe ) {
+				log.warn(
+						"Can't find where device {} starts on disk {}: {}. Sweeping it on its own",
+						volume.getKey(), diskName, ioe.toString()
+				);
+				stackedVolumes.put( volume.getValue(), devicePath );
+			}
+		}
+		long nextStart = readSize( sysfsRoot.resolve( "block" ).resolve( diskName ) );
+		for ( Map.Entry< Long, Path > volume : stackedVolumes.entrySet() ) {
+			log.info( "Volume {} is swept after the partitions of disk {}", volume.getValue().getFileName(), diskName );
+			starts.put( volume.getKey(), nextStart );
+			nextStart += readSize( volume.getValue() );
+		}
+		HashMap< String, Long > rootStarts = new HashMap<>();
+		for ( Map.Entry< Path, Long > root : rootDevices.entrySet() ) {
+			rootStarts.put( root.getKey().toString(), starts.get( root.getValue() ) );
+		}
+		return new VolumeLayout( rootStarts );
+	}
+
+	/** @return size of the device in bytes or {@link #UNKNOWN_VOLUME_SIZE} if sysfs doesn't tell it */
+	private static long readSize( Path devicePath ) {
+		try {
+			return readSectors( devicePath.resolve( "size" ) );
+		} catch ( IOException ioe ) {
+			log.debug( "Can't read size of device {}: {}", devicePath.getFileName(), ioe.toString() );
+			return UNKNOWN_VOLUME_SIZE;
+		}
+	}
+
+	/** @return bytes of the 512 byte sector count sysfs keeps in the file */
+	private static long readSectors( Path path ) throws IOException {
+		try {
+			return Long.parseLong( new String( Files.readAllBytes( path ), StandardCharsets.US_ASCII ).trim() ) * 512;
+		} catch ( NumberFormatException nfe ) {
+			throw new IOException( "Unexpected content of " + path, nfe );
+		}
+	}
+
+	/** Adds the disk of the device: the parent of a partition or the disks under the slaves of a stacked device */
+	private static void collectDisks( Path devicePath, Set< String > disks ) throws IOException {
+		if ( Files.exists( devicePath.resolve( "partition" ) ) ) {
+			devicePath = devicePath.getParent();
+		}
+		ArrayList< Path > slaves = new ArrayList<>();
+		Path slavesPath = devicePath.resolve( "slaves" );
+		if ( Files.isDirectory( slavesPath ) ) {
+			try ( DirectoryStream< Path > stream = Files.newDirectoryStream( slavesPath ) ) {
+				for ( Path slave : stream ) {
+					slaves.add( slave.toRealPath() );
+				}
+			}
+		}
+		if ( slaves.isEmpty() ) {
+			disks.add( devicePath.getFileName().toString() );
+			return;
+		}
+		for ( Path slave : slaves ) {
+			collectDisks( slave, disks );
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package iks.medialibchecker;
+
+import org.slf4j.*;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Verifies file hashes against the hash catalog.
+ * New and changed (by size or modification time) files are hashed and stored to the catalog.
+ * Unchanged files are hashed and compared with the stored hash unless only new files are requested.
+ * Hash mismatch of unchanged file means the content was damaged silently (bit rot).
+ * Tree hash chunk hashes are stored along with the file hash for {@link SamplingVerifier}.
+ * The outcomes go to {@link ScanCheckpoint} too, so the files completed by the interrupted run are skipped, and to
+ * {@link ResultSink} if the results are streamed.
+ */
+class CatalogVerifier implements HashPipeline.Listener {
+	private static final Logger log = LoggerFactory.getLogger( CatalogVerifier.class );
+
+	private final HashCatalog catalog;
+	private final boolean newOnly;
+	/** Null if the scan isn't checkpointed */
+	private final ScanCheckpoint checkpoint;
+	/** Null if the results aren't streamed */
+	private final ResultSink sink;
+
+	private final AtomicInteger newFiles = new AtomicInteger();
+	private final AtomicInteger changedFiles = new AtomicInteger();
+	private final AtomicInteger skippedFiles = new AtomicInteger();
+	private final AtomicInteger verifiedFiles = new AtomicInteger();
+	private final AtomicInteger mismatchedFiles = new AtomicInteger();
+	private final AtomicInteger resumedFiles = new AtomicInteger();
+
+	/**
+	 * @param checkpoint checkpoint of the scan or null
+	 * @param sink per-file results output or null
+	 */
+	CatalogVerifier( HashCatalog catalog, boolean newOnly, ScanCheckpoint checkpoint, ResultSink sink ) {
+		this.catalog = catalog;
+		this.newOnly = newOnly;
+		this.checkpoint = checkpoint;
+		this.sink = sink;
+	}
+
+	/** @return true if the file is to be hashed */
+	boolean isToBeHashed( FileInfo fileInfo ) {
+		try {
+			fileInfo.readAttributes();
+			if ( checkpoint != null && isCompleted( fileInfo ) ) {
+				return false;
+			}
+			HashCatalog.Entry entry = catalog.lookup( fileInfo.device, fileInfo.inode );
+			if ( entry == null ) {
+				newFiles.incrementAndGet();
+			} else if ( ! entry.isSameContentVersion( fileInfo.size, fileInfo.modifiedTime ) ) {
+				changedFiles.incrementAndGet();
+			} else if ( newOnly ) {
+				if ( log.isTraceEnabled() ) {
+					log.trace( "Skipping unchanged file '{}'", fileInfo.getPath() );
+				}
+				skippedFiles.incrementAndGet();
+				if ( sink != null ) {
+					sink.fileDone( fileInfo, null, ResultSink.Status.SKIPPED );
+				}
+				return false;
+			}
+		} catch ( IOException ioe ) {
+			log.error( String.format( "Can't check '%s' against hash catalog", fileInfo.getPath() ), ioe );
+		}
+		return true;
+	}
+
+	/** Counts the outcome of the file completed by the interrupted run if the file is unchanged since then */
+	private boolean isCompleted( FileInfo fileInfo ) {
+		byte outcome = checkpoint.getCompletedOutcome( fileInfo );
+		ResultSink.Status status;
+		switch ( outcome ) {
+			case ScanCheckpoint.NEW:
+				newFiles.incrementAndGet();
+				status = ResultSink.Status.NEW;
+				break;
+			case ScanCheckpoint.CHANGED:
+				changedFiles.incrementAndGet();
+				status = ResultSink.Status.CHANGED;
+				break;
+			case ScanCheckpoint.MISMATCHED:
+				mismatchedFiles.incrementAndGet();
+				verifiedFiles.incrementAndGet();
+				log.error( "Hash mismatch (bit rot?) of unchanged file '{}' found by the interrupted run", fileInfo.getPath() );
+				status = ResultSink.Status.MISMATCHED;
+				break;
+			case ScanCheckpoint.VERIFIED:
+				verifiedFiles.incrementAndGet();
+				status = ResultSink.Status.VERIFIED;
+				break;
+			default:
+				return false;
+		}
+		resumedFiles.incrementAndGet();
+		if ( sink != null ) {
+			// the hash isn't kept by the checkpoint
+			sink.fileDone( fileInfo, null, status );
+		}
+		return true;
+	}
+
+	@Override
+	public void fileHashed( FileInfo fileInfo, FileInfo.HashState state ) {
+		try {
+			HashCatalog.Entry entry = catalog.lookup( fileInfo.device, fileInfo.inode );
+			long[] chunkHashes = state.getChunkHashes();
+			byte outcome;
+			ResultSink.Status status;
+			if ( entry != null && entry.isSameContentVersion( fileInfo.size, fileInfo.modifiedTime ) ) {
+				verifiedFiles.incrementAndGet();
+				if ( entry.hash != fileInfo.getHash() ) {
+					mismatchedFiles.incrementAndGet();
+					log.error(
+							"Hash mismatch (bit rot?) of unchanged file '{}': stored {}, actual {}",
+							fileInfo.getPath(), Long.toHexString( entry.hash ), Long.toHexString( fileInfo.getHash() )
+					);
+					outcome = ScanCheckpoint.MISMATCHED;
+					status = ResultSink.Status.MISMATCHED;
+				} else {
+					if ( chunkHashes != null && entry.chunkCount == 0 ) {
+						// verified entry stored before the chunk hashes were kept
+						catalog.store( newEntry( fileInfo, chunkHashes ) );
+					}
+					outcome = ScanCheckpoint.VERIFIED;
+					status = ResultSink.Status.VERIFIED;
+				}
+			} else {
+				catalog.store( newEntry( fileInfo, chunkHashes ) );
+				outcome = entry == null ? ScanCheckpoint.NEW : ScanCheckpoint.CHANGED;
+				status = entry == null ? ResultSink.Status.NEW : ResultSink.Status.CHANGED;
+			}
+			if ( checkpoint != null ) {
+				checkpoint( fileInfo, outcome );
+			}
+			if ( sink != null ) {
+				sink.fileDone( fileInfo, state, status );
+			}
+		} catch ( IOException ioe ) {
+			log.error( String.format( "Can't store hash of '%s' to hash catalog", fileInfo.getPath() ), ioe );
+		}
+	}
+
+	@Override
+	public void fileFailed( FileInfo fileInfo, FileInfo.HashState state ) {
+		if ( sink != null ) {
+			sink.fileFailed( fileInfo, state );
+		}
+	}
+
+	/** The catalog entries are made durable before the checkpoint which refers to them */
+	private synchronized void checkpoint( FileInfo fileInfo, byte outcome ) throws IOException {
+		checkpoint.fileCompleted( fileInfo, outcome );
+		if ( checkpoint.isFlushDue() ) {
+			catalog.flush();
+			checkpoint.flush();
+		}
+	}
+
+	private static HashCatalog.Entry newEntry( FileInfo fileInfo, long[] chunkHashes ) {
+		return new HashCatalog.Entry(
+				fileInfo.device, fileInfo.inode, fileInfo.size, fileInfo.modifiedTime, fileInfo.getHash(),
+				fileInfo.getPath(), chunkHashes
+		);
+	}
+
+	void reportStats() {
+		log.info(
+				"Hash catalog: {} new, {} changed, {} unchanged skipped, {} verified, {} mismatched",
+				newFiles.get(), changedFiles.get(), skippedFiles.get(), verifiedFiles.get(), mismatchedFiles.get()
+		);
+		if ( resumedFiles.get() > 0 ) {
+			log.info( "{} of the files were completed by the interrupted run", resumedFiles.get() );
+		}
+	}
+}
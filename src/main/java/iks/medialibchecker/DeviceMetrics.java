@@ -0,0 +1,194 @@
+package iks.medialibchecker;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scan metrics of a single device.
+ * Reads and seeks are recorded by the device scanner thread only (any thread of {@link ParallelScanner}), extent maps by
+ * its extent map thread. The values are
+ * read by JMX and the progress reporter, so they are atomic, but nothing is allocated on the recording paths.
+ */
+class DeviceMetrics implements DeviceMetricsMXBean {
+	private static final long NANOS_PER_MICRO = 1000;
+
+	private final String deviceName;
+	private volatile String phase = "listing";
+	private final AtomicLong directoriesListed = new AtomicLong();
+	private final AtomicLong filesFound = new AtomicLong();
+	private final AtomicLong bytesPlanned = new AtomicLong();
+	private final AtomicLong bytesDone = new AtomicLong();
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong extentsRead = new AtomicLong();
+	private final AtomicLong seekDistance = new AtomicLong();
+	/** Device position the last read has ended at or -1 before the first read. Scanner thread only */
+	private long headPosition = -1;
+	private volatile long hashingStartTime;
+	final LatencyHistogram readLatency = new LatencyHistogram();
+	final LatencyHistogram extentMapLatency = new LatencyHistogram();
+	final LatencyHistogram listingLatency = new LatencyHistogram();
+
+	DeviceMetrics( String deviceName ) {
+		this.deviceName = deviceName;
+	}
+
+	String getDeviceName() {
+		return deviceName;
+	}
+
+	void directoryListed( int fileCount, long nanos ) {
+		directoriesListed.incrementAndGet();
+		filesFound.addAndGet( fileCount );
+		listingLatency.record( nanos );
+	}
+
+	/** Extents of the file to be hashed were placed in the extent map */
+	void extentsPlaced( long bytes ) {
+		bytesPlanned.addAndGet( bytes );
+	}
+
+	void hashingPassStarted( int passNumber ) {
+		if ( hashingStartTime == 0 ) {
+			hashingStartTime = System.nanoTime();
+		}
+		phase = "hashing pass #" + passNumber;
+	}
+
+	/** The mapped files are hashed while the rest of the directories are read */
+	void streamingStarted() {
+		hashingStartTime = System.nanoTime();
+		phase = "listing and hashing";
+	}
+
+	/** Non-rotational device is listed and hashed at once */
+	void parallelHashingStarted() {
+		hashingStartTime = System.nanoTime();
+		phase = "parallel hashing";
+	}
+
+	void finished() {
+		phase = "done";
+	}
+
+	/** The placed extent has been processed (read or skipped) */
+	void extentDone( long bytes ) {
+		bytesDone.addAndGet( bytes );
+	}
+
+	/** @param devicePosition physical position of the read. Distance from the previous read end is the seek */
+	void recordRead( long devicePosition, long length, long nanos ) {
+		if ( headPosition >= 0 ) {
+			seekDistance.addAndGet( Math.abs( devicePosition - headPosition ) );
+		}
+		headPosition = devicePosition + length;
+		bytesRead.addAndGet( length );
+		extentsRead.incrementAndGet();
+		readLatency.record( nanos );
+	}
+
+	/** Read of the parallel scan. Any thread may record it and there is no head to seek */
+	void recordParallelRead( long length, long nanos ) {
+		bytesRead.addAndGet( length );
+		extentsRead.incrementAndGet();
+		readLatency.record( nanos );
+	}
+
+	@Override
+	public String getPhase() {
+		return phase;
+	}
+
+	@Override
+	public long getDirectoriesListed() {
+		return directoriesListed.get();
+	}
+
+	@Override
+	public long getFilesFound() {
+		return filesFound.get();
+	}
+
+	@Override
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	@Override
+	public long getExtentsRead() {
+		return extentsRead.get();
+	}
+
+	@Override
+	public long getBytesRemaining() {
+		return Math.max( 0, bytesPlanned.get() - bytesDone.get() );
+	}
+
+	@Override
+	public double getReadMegabytesPerSecond() {
+		long startTime = hashingStartTime;
+		return startTime == 0 ? 0 : bytesRead.get() * 1e3 / ( System.nanoTime() - startTime + 1 );
+	}
+
+	@Override
+	public long getSeekDistance() {
+		return seekDistance.get();
+	}
+
+	/** Remaining bytes at the average rate of the hashing passes so far */
+	@Override
+	public long getEtaSeconds() {
+		long startTime = hashingStartTime;
+		long done = bytesDone.get();
+		if ( startTime == 0 || done == 0 ) {
+			return -1;
+		}
+		return (long) ( ( System.nanoTime() - startTime ) / 1e9 * getBytesRemaining() / done );
+	}
+
+	@Override
+	public long getReadLatencyP50() {
+		return readLatency.getPercentile( 50 ) / NANOS_PER_MICRO;
+	}
+
+	@Override
+	public long getReadLatencyP99() {
+		return readLatency.getPercentile( 99 ) / NANOS_PER_MICRO;
+	}
+
+	@Override
+	public long getReadLatencyMax() {
+		return readLatency.getMax() / NANOS_PER_MICRO;
+	}
+
+	@Override
+	public long getExtentMapLatencyP50() {
+		return extentMapLatency.getPercentile( 50 ) / NANOS_PER_MICRO;
+	}
+
+	@Override
+	public long getExtentMapLatencyP99() {
+		return extentMapLatency.getPercentile( 99 ) / NANOS_PER_MICRO;
+	}
+
+	@Override
+	public long getListingLatencyP50() {
+		return listingLatency.getPercentile( 50 ) / NANOS_PER_MICRO;
+	}
+
+	@Override
+	public long getListingLatencyP99() {
+		return listingLatency.getPercentile( 99 ) / NANOS_PER_MICRO;
+	}
+
+	/** Compact state for the progress line */
+	String describe() {
+		long eta = getEtaSeconds();
+		return String.format(
+				"%s %s: %d dirs, %d files, %s read at %.1f MB/s, %s left%s, seek %s, read %s, map %s, list %s",
+				deviceName, phase, getDirectoriesListed(), getFilesFound(), Utils.getFileSizeNice( getBytesRead() ),
+				getReadMegabytesPerSecond(), Utils.getFileSizeNice( getBytesRemaining() ),
+				eta < 0 ? "" : String.format( " (ETA %d:%02d:%02d)", eta / 3600, eta / 60 % 60, eta % 60 ),
+				Utils.getFileSizeNice( getSeekDistance() ), readLatency.describe(), extentMapLatency.describe(),
+				listingLatency.describe()
+		);
+	}
+}
@@ -0,0 +1,38 @@
+package iks.medialibchecker;
+
+/** JMX view of {@link DeviceMetrics}. Latencies are in microseconds, distances and sizes in bytes */
+public interface DeviceMetricsMXBean {
+	String getPhase();
+
+	long getDirectoriesListed();
+
+	long getFilesFound();
+
+	long getBytesRead();
+
+	long getExtentsRead();
+
+	/** Content bytes of the placed extents which are not read yet */
+	long getBytesRemaining();
+
+	double getReadMegabytesPerSecond();
+
+	long getSeekDistance();
+
+	/** -1 until the hashing pass starts */
+	long getEtaSeconds();
+
+	long getReadLatencyP50();
+
+	long getReadLatencyP99();
+
+	long getReadLatencyMax();
+
+	long getExtentMapLatencyP50();
+
+	long getExtentMapLatencyP99();
+
+	long getListingLatencyP50();
+
+	long getListingLatencyP99();
+}
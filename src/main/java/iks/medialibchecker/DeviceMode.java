@@ -0,0 +1,21 @@
+package iks.medialibchecker;
+
+/** The way a device is scanned */
+enum DeviceMode {
+	/** Taken from the filesystem type and the device rotational flag */
+	AUTO,
+	/** {@link DirectoryScanner}: extent maps and physical order sweeps minimizing head movement */
+	ROTATIONAL,
+	/** {@link ParallelScanner}: parallel hashing without extent maps for devices without seek penalty */
+	SSD,
+	/** {@link ParallelScanner} which stats the files concurrently too, as metadata calls are round trips */
+	NETWORK;
+
+	static DeviceMode parse( String name ) {
+		try {
+			return valueOf( name.toUpperCase() );
+		} catch ( IllegalArgumentException iae ) {
+			throw new IllegalArgumentException( "Unknown device mode '" + name + "'" );
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package iks.medialibchecker;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Content digest computed along with the file hash, e.g. SHA-256 for external manifests.
+ * Every enabled digest is fed from the buffers of the same reads by its own {@link HashPipeline} workers, so a digest
+ * adds CPU work on other cores but no I/O. Digests see the content in logical order, so they need the stream hash mode.
+ */
+abstract class Digest {
+	/** Digest of a single file. Fed by a single worker at a time */
+	interface Computation {
+		/** Digests the content from the buffer position to its limit. The buffer position is kept */
+		void update( ByteBuffer buffer, byte[] mirrorBuffer );
+
+		byte[] getValue();
+	}
+
+	private final LongAdder bytesDigested = new LongAdder();
+	private final LongAdder digestNanos = new LongAdder();
+
+	/** Short digest name for logs, command line and results */
+	abstract String getName();
+
+	abstract Computation start();
+
+	void recordThroughput( long bytes, long nanos ) {
+		bytesDigested.add( bytes );
+		digestNanos.add( nanos );
+	}
+
+	long getBytesDigested() {
+		return bytesDigested.sum();
+	}
+
+	/** @return time spent digesting summed over the workers */
+	long getDigestNanos() {
+		return digestNanos.sum();
+	}
+
+	static Digest create( String name ) {
+		switch ( name ) {
+			case Xxh64Digest.NAME:
+				return new Xxh64Digest();
+			case Sha256Digest.NAME:
+				return new Sha256Digest();
+			case Murmur3Digest.NAME:
+				return new Murmur3Digest();
+			default:
+				throw new IllegalArgumentException( "Unknown digest '" + name + "'" );
+		}
+	}
+
+	/** @param names comma separated digest names */
+	static List< Digest > createAll( String names ) {
+		ArrayList< Digest > digests = new ArrayList<>();
+		HashSet< String > uniqueNames = new HashSet<>();
+		for ( String name : names.split( "," ) ) {
+			name = name.trim();
+			if ( ! name.isEmpty() && uniqueNames.add( name ) ) {
+				digests.add( create( name ) );
+			}
+		}
+		return digests;
+	}
+}
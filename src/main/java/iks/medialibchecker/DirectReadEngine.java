@@ -0,0 +1,172 @@
+package iks.medialibchecker;
+
+import com.sun.jna.*;
+import org.slf4j.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/**
+ * Positional reads bypassing the page cache (O_DIRECT) into aligned pooled buffers.
+ * Hashed content isn't read again, so caching it just evicts useful pages. Files of filesystems not supporting
+ * O_DIRECT are read through the page cache.
+ */
+class DirectReadEngine implements ReadEngine {
+	private static final Logger log = LoggerFactory.getLogger( DirectReadEngine.class );
+	static final String NAME = "direct";
+
+	/** Buffer address, file position and read size have to be aligned to the device logical block */
+	static final int ALIGNMENT = 4096;
+	private static final int O_RDONLY = 0;
+	private static final int EINVAL = 22;
+	private static final int O_DIRECT = getDirectFlag();
+
+	interface CLibrary extends Library {
+		int open( String path, int flags ) throws LastErrorException;
+		int close( int fd ) throws LastErrorException;
+		NativeLong pread64( int fd, Pointer buffer, NativeLong count, long offset ) throws LastErrorException;
+		int syncfs( int fd ) throws LastErrorException;
+	}
+
+	private static final CLibrary libc = loadLibrary();
+
+	private static CLibrary loadLibrary() {
+		try {
+			return (CLibrary) Native.loadLibrary( "c", CLibrary.class );
+		} catch ( Throwable th ) {
+			log.debug( "Native C library is not available", th );
+			return null;
+		}
+	}
+
+	/** O_DIRECT flag value is architecture dependent */
+	private static int getDirectFlag() {
+		switch ( Platform.ARCH ) {
+			case "x86":
+			case "x86-64":
+				return 040000;
+			case "arm":
+			case "aarch64":
+				return 0200000;
+			default:
+				return 0;
+		}
+	}
+
+	static boolean isAvailable() {
+		return libc != null && Platform.isLinux() && O_DIRECT != 0;
+	}
+
+	/** Writes dirty pages of the filesystem the path is placed on to the device */
+	static void syncFilesystem( Path path ) throws IOException {
+		if ( ! isAvailable() ) {
+			return;
+		}
+		try {
+			int fd = libc.open( path.toString(), O_RDONLY );
+			try {
+				libc.syncfs( fd );
+			} finally {
+				libc.close( fd );
+			}
+		} catch ( LastErrorException lee ) {
+			throw new IOException( "Can't sync filesystem of " + path + ": errno " + lee.getErrorCode(), lee );
+		}
+	}
+
+	DirectReadEngine() {
+		if ( ! isAvailable() ) {
+			throw new IllegalStateException( "O_DIRECT reads are not available on this platform" );
+		}
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public ByteBuffer allocateBuffer( int size ) {
+		if ( size % ALIGNMENT != 0 ) {
+			throw new IllegalArgumentException( "Read size should be multiple of " + ALIGNMENT + " but is " + size );
+		}
+		ByteBuffer buffer = ByteBuffer.allocateDirect( size + ALIGNMENT );
+		long address = Pointer.nativeValue( Native.getDirectBufferPointer( buffer ) );
+		int offset = (int) ( ( ALIGNMENT - address % ALIGNMENT ) % ALIGNMENT );
+		buffer.position( offset ).limit( offset + size );
+		return buffer.slice();
+	}
+
+	@Override
+	public ReadFile open( Path path ) throws IOException {
+		int fd;
+		try {
+			fd = libc.open( path.toString(), O_RDONLY | O_DIRECT );
+		} catch ( LastErrorException lee ) {
+			if ( lee.getErrorCode() == EINVAL ) {
+				log.debug( "O_DIRECT isn't supported for '{}'. Reading through page cache", path );
+				return new PreadReadEngine.ChannelFile( path, FileChannel.open( path, StandardOpenOption.READ ) );
+			}
+			throw new IOException( "Can't open " + path + ": errno " + lee.getErrorCode(), lee );
+		}
+		return new DirectFile( path, fd, Files.size( path ) );
+	}
+
+	private static class DirectFile implements ReadFile {
+		private final Path path;
+		private final int fd;
+		private final long size;
+
+		DirectFile( Path path, int fd, long size ) {
+			this.path = path;
+			this.fd = fd;
+			this.size = size;
+		}
+
+		@Override
+		public long size() {
+			return size;
+		}
+
+		@Override
+		public ByteBuffer read( long position, int length, ByteBuffer buffer ) throws IOException {
+			if ( position % ALIGNMENT != 0 ) {
+				throw new IOException( "Unaligned O_DIRECT read of " + path + " at " + position );
+			}
+			// the file tail is read by the whole aligned block, the read just stops at the file end
+			int alignedLength = ( length + ALIGNMENT - 1 ) / ALIGNMENT * ALIGNMENT;
+			if ( alignedLength > buffer.capacity() ) {
+				throw new IllegalArgumentException( "Read of " + length + " bytes doesn't fit the buffer" );
+			}
+			Pointer pointer = Native.getDirectBufferPointer( buffer );
+			int total = 0;
+			try {
+				while ( total < length ) {
+					long count = libc.pread64(
+							fd, pointer.share( total ), new NativeLong( alignedLength - total ), position + total
+					).longValue();
+					if ( count <= 0 ) {
+						throw new IOException( "File " + path + " was truncated while hashing" );
+					}
+					total += count;
+				}
+			} catch ( LastErrorException lee ) {
+				throw new IOException( "Can't read " + path + ": errno " + lee.getErrorCode(), lee );
+			}
+			buffer.clear();
+			buffer.limit( length );
+			return buffer;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				libc.close( fd );
+			} catch ( LastErrorException lee ) {
+				throw new IOException( "Can't close " + path + ": errno " + lee.getErrorCode(), lee );
+			}
+		}
+	}
+}
@@ -2,9 +2,9 @@ package iks.medialibchecker;
 
 import org.slf4j.*;
 
-import java.io.File;
-import java.nio.file.Path;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
 
 /**
  * Directory info structure.
@@ -16,35 +16,100 @@ import java.util.ArrayList;
 class DirectoryInfo extends FileInfo {
 	private static final Logger performanceLog = LoggerFactory.getLogger( "performance.DirectoryInfo" );
 	private static final Logger log = LoggerFactory.getLogger( DirectoryInfo.class );
+	private static final Comparator< DirectoryLister.Entry > INODE_ORDER = ( a, b ) -> Long.compare( a.inode, b.inode );
 	ArrayList< FileInfo > containingFiles;
 
-	DirectoryInfo( File file ) {
-		super( null, file );
+	DirectoryInfo( DirectoryInfo parent, String name ) {
+		super( parent, name );
 	}
 
-	void readContent( Path rootDirectoryPath ) {
+	/** @param name directory name bytes as the filesystem keeps them */
+	DirectoryInfo( DirectoryInfo parent, byte[] name ) {
+		super( parent, name );
+	}
+
+	/** @return the directory with a part of its files, to pass just them to an {@link ExtentProvider} */
+	DirectoryInfo withFiles( ArrayList< FileInfo > files ) {
+		DirectoryInfo directory = new DirectoryInfo( parent, getNameBytes() );
+		directory.containingFiles = files;
+		return directory;
+	}
+
+	/**
+	 * Lists the directory telling subdirectories by the entry type readdir() returns, so they aren't stat'ed.
+	 * The rest of the entries are stat'ed once in inode order, which follows the inode table order on disk, and the
+	 * attributes are kept in the file info for the later stages. Entries which can't be stat'ed and special files
+	 * are skipped. Leaves {@link #containingFiles} null if the directory can't be read.
+	 * @param rootPaths roots to show the directory path relative to in logs, or null to show the full path
+	 */
+	void readContent( List< Path > rootPaths ) {
+		readContent( rootPaths, MetadataSource.LOCAL, true );
+	}
+
+	/**
+	 * @param statFiles false to leave the regular files (by the entry type) not stat'ed, so the caller stats them
+	 * concurrently by {@link FileInfo#readAttributes(MetadataSource)}. Other entries are stat'ed anyway
+	 * @see #readContent(List)
+	 */
+	void readContent( List< Path > rootPaths, MetadataSource metadataSource, boolean statFiles ) {
 		long startTime = System.nanoTime();
-		log.trace( "Reading content of directory '{}'", file.getPath() );
-		File[] innerFiles = file.listFiles();
-		if ( innerFiles != null ) {
-			containingFiles = new ArrayList<>(innerFiles.length);
-			for (File file : innerFiles) {
-				if (file.isDirectory()) {
-					DirectoryInfo dirInfo = new DirectoryInfo(file);
-					containingFiles.add(dirInfo);
-				} else {
-					containingFiles.add(new FileInfo(super.file, file));
-				}
+		Path directory = toPath();
+		if ( log.isTraceEnabled() ) {
+			log.trace( "Reading content of directory '{}'", directory );
+		}
+		List< DirectoryLister.Entry > entries;
+		try {
+			entries = metadataSource.list( directory );
+		} catch ( IOException e ) {
+			log.error( String.format( "Can't read content of directory '%s'", directory ), e );
+			return;
+		}
+		containingFiles = new ArrayList<>( entries.size() );
+		ArrayList< DirectoryLister.Entry > toBeStated = new ArrayList<>( entries.size() );
+		for ( DirectoryLister.Entry entry : entries ) {
+			if ( ! isNameDecodable( entry.name ) ) {
+				log.warn(
+						"Name of '{}' in directory '{}' isn't valid in the file name charset {} of the JVM. Skipping it. "
+								+ "Run with the locale the names are in (LC_ALL) to scan it", new String( entry.name, NAME_CHARSET ),
+						directory, NAME_CHARSET
+				);
+				continue;
+			}
+			if ( entry.type == DirectoryLister.TYPE_DIRECTORY ) {
+				containingFiles.add( new DirectoryInfo( this, entry.name ) );
+			} else if ( entry.type == DirectoryLister.TYPE_FILE && ! statFiles ) {
+				containingFiles.add( new FileInfo( this, entry.name ) );
+			} else if ( entry.type != DirectoryLister.TYPE_OTHER ) {
+				toBeStated.add( entry );
+			}
+		}
+		toBeStated.sort( INODE_ORDER );
+		for ( DirectoryLister.Entry entry : toBeStated ) {
+			Path path = directory.resolve( new String( entry.name, NAME_CHARSET ) );
+			Map< String, Object > attributes;
+			try {
+				attributes = metadataSource.readAttributes( path );
+			} catch ( IOException e ) {
+				log.debug( "Can't read attributes of '{}': {}", path, e.toString() );
+				continue;
+			}
+			if ( (Boolean) attributes.get( "isDirectory" ) ) {
+				containingFiles.add( new DirectoryInfo( this, entry.name ) );
+			} else if ( ! (Boolean) attributes.get( "isOther" ) ) {
+				FileInfo fileInfo = new FileInfo( this, entry.name );
+				fileInfo.setAttributes( attributes );
+				containingFiles.add( fileInfo );
 			}
 		}
 		if ( performanceLog.isDebugEnabled() ) {
+			long nanos = System.nanoTime() - startTime;
 			performanceLog.debug(
-					"{} files of directory \"{}\" has been read in {}",
-					containingFiles == null ? 0 : containingFiles.size(),
-					rootDirectoryPath == null ? file.getPath() : rootDirectoryPath.relativize( file.toPath() ),
-					Utils.asHumanReadableDelay( startTime )
-            );
+					"{} files of directory \"{}\" has been read in {} ({} entries stat'ed, {} entries/s)",
+					containingFiles.size(),
+					rootPaths == null ? directory : Utils.relativize( rootPaths, directory ),
+					Utils.asHumanReadableDelay( startTime ), toBeStated.size(),
+					entries.size() * 1_000_000_000L / Math.max( nanos, 1 )
+			);
 		}
 	}
-
 }
@@ -0,0 +1,172 @@
+package iks.medialibchecker;
+
+import com.sun.jna.*;
+import org.slf4j.*;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Lists directory entries along with their inode numbers and types as getdents64() returns them, so directories are
+ * told from files without a stat call per entry and the entries still to be stat'ed can be sorted in inode order.
+ * The system call is made directly: unlike readdir() it tells the end of the directory (0) from an error (-1), so a
+ * stale errno can't be taken for an error. Where it isn't available the entries are listed by {@link DirectoryStream}
+ * with unknown type and inode.
+ */
+class DirectoryLister {
+	private static final Logger log = LoggerFactory.getLogger( DirectoryLister.class );
+
+	static final byte TYPE_UNKNOWN = 0;
+	static final byte TYPE_DIRECTORY = 1;
+	static final byte TYPE_FILE = 2;
+	/** Devices, pipes and sockets */
+	static final byte TYPE_OTHER = 3;
+
+	/** d_type values of dirent */
+	private static final byte DT_UNKNOWN = 0;
+	private static final byte DT_DIR = 4;
+	private static final byte DT_REG = 8;
+	private static final byte DT_LNK = 10;
+
+	/** struct linux_dirent64 layout is the same on all Linux architectures */
+	private static final int D_INO_OFFSET = 0;
+	private static final int D_RECLEN_OFFSET = 16;
+	private static final int D_TYPE_OFFSET = 18;
+	private static final int D_NAME_OFFSET = 19;
+	private static final int O_RDONLY = 0;
+	/** Entries buffer of a getdents64 call */
+	private static final int BUFFER_SIZE = 64 << 10;
+	/** getdents64 system call number of the architecture or -1 if it isn't known */
+	private static final long SYS_GETDENTS64 = getGetdentsNumber( Platform.ARCH );
+
+	interface CLibrary extends Library {
+		/** @return file descriptor or -1 setting errno */
+		int open( byte[] path, int flags );
+		int close( int fd );
+		/** @return result of the system call, -1 setting errno on error */
+		NativeLong syscall( NativeLong number, Object... args );
+	}
+
+	private static final CLibrary libc = loadLibrary();
+	private static final ThreadLocal< Memory > buffers = ThreadLocal.withInitial( () -> new Memory( BUFFER_SIZE ) );
+
+	private static CLibrary loadLibrary() {
+		if ( ! Platform.isLinux() ) {
+			return null;
+		}
+		if ( SYS_GETDENTS64 < 0 ) {
+			log.debug( "getdents64 system call number of {} is unknown", Platform.ARCH );
+			return null;
+		}
+		try {
+			return (CLibrary) Native.loadLibrary( "c", CLibrary.class );
+		} catch ( Throwable th ) {
+			log.debug( "Native C library is not available", th );
+			return null;
+		}
+	}
+
+	/** @param arch architecture name as JNA tells it */
+	static long getGetdentsNumber( String arch ) {
+		switch ( arch ) {
+			case "x86-64":
+			case "arm":
+			case "armel":
+				return 217;
+			case "x86":
+			case "s390x":
+				return 220;
+			case "ppc":
+			case "ppc64":
+			case "ppc64le":
+				return 202;
+			case "aarch64":
+			case "riscv64":
+			case "loongarch64":
+				return 61;
+			default:
+				return -1;
+		}
+	}
+
+	/** Directory entry */
+	static class Entry {
+		/** Name bytes as the filesystem keeps them */
+		final byte[] name;
+		/** 0 if unknown */
+		final long inode;
+		/** One of the TYPE_ constants. Symbolic links are of unknown type as the target type matters */
+		final byte type;
+
+		Entry( byte[] name, long inode, byte type ) {
+			this.name = name;
+			this.inode = inode;
+			this.type = type;
+		}
+	}
+
+	private DirectoryLister() {}
+
+	static boolean isNative() {
+		return libc != null;
+	}
+
+	/** @return entries of the directory except '.' and '..' */
+	static List< Entry > list( Path directory ) throws IOException {
+		return libc != null ? listNative( directory ) : listPortable( directory );
+	}
+
+	private static List< Entry > listNative( Path directory ) throws IOException {
+		byte[] path = directory.toString().getBytes( FileInfo.NAME_CHARSET );
+		int fd = libc.open( Arrays.copyOf( path, path.length + 1 ), O_RDONLY );
+		if ( fd < 0 ) {
+			throw new IOException( "Can't open directory " + directory + ": errno " + Native.getLastError() );
+		}
+		Memory buffer = buffers.get();
+		NativeLong number = new NativeLong( SYS_GETDENTS64 );
+		NativeLong bufferSize = new NativeLong( BUFFER_SIZE );
+		ArrayList< Entry > entries = new ArrayList<>();
+		try {
+			while ( true ) {
+				long length = libc.syscall( number, fd, buffer, bufferSize ).longValue();
+				if ( length < 0 ) {
+					throw new IOException( "Can't read directory " + directory + ": errno " + Native.getLastError() );
+				}
+				if ( length == 0 ) {
+					return entries;
+				}
+				for ( int offset = 0; offset < length; offset += buffer.getShort( offset + D_RECLEN_OFFSET ) & 0xffff ) {
+					// the terminating zero offset relative to the name start
+					int nameLength = (int) buffer.indexOf( offset + D_NAME_OFFSET, (byte) 0 );
+					byte[] name = buffer.getByteArray( offset + D_NAME_OFFSET, nameLength );
+					if ( isDotOrDotDot( name ) ) {
+						continue;
+					}
+					byte dType = buffer.getByte( offset + D_TYPE_OFFSET );
+					byte type = dType == DT_DIR ? TYPE_DIRECTORY : dType == DT_REG ? TYPE_FILE
+							: dType == DT_LNK || dType == DT_UNKNOWN ? TYPE_UNKNOWN : TYPE_OTHER;
+					entries.add( new Entry( name, buffer.getLong( offset + D_INO_OFFSET ), type ) );
+				}
+			}
+		} finally {
+			libc.close( fd );
+		}
+	}
+
+	private static List< Entry > listPortable( Path directory ) throws IOException {
+		ArrayList< Entry > entries = new ArrayList<>();
+		try ( DirectoryStream< Path > stream = Files.newDirectoryStream( directory ) ) {
+			for ( Path path : stream ) {
+				entries.add( new Entry( path.getFileName().toString().getBytes( FileInfo.NAME_CHARSET ), 0, TYPE_UNKNOWN ) );
+			}
+		} catch ( DirectoryIteratorException die ) {
+			throw die.getCause();
+		}
+		return entries;
+	}
+
+	private static boolean isDotOrDotDot( byte[] name ) {
+		return ( name.length == 1 && name[0] == '.' ) || ( name.length == 2 && name[0] == '.' && name[1] == '.' );
+	}
+}
@@ -3,22 +3,15 @@ package iks.medialibchecker;
 import org.slf4j.*;
 
 import java.io.*;
-import java.nio.file.Path;
+import java.nio.file.*;
 import java.util.*;
-import java.util.concurrent.*;
-import java.util.concurrent.locks.*;
 
 import static iks.medialibchecker.Utils.getFileSizeNice;
 
 class DirectoryScanner implements Runnable {
 	private static final Logger log = LoggerFactory.getLogger( DirectoryScanner.class );
-	private static final Logger performanceLog = LoggerFactory.getLogger( "performance.DirectoryScanner" );
 
-	private final File rootDirectory;
-	private final Path rootDirectoryPath;
-
-	/** First directory segment to directory info navigable map */
-	private ConcurrentSkipListMap< Integer, DirectoryInfo > directoriesToBeRead = new ConcurrentSkipListMap<>();
+	private final List< Path > rootPaths;
 
 	/**
 	 * Directory file start block to directory info map.
@@ -26,23 +19,85 @@ class DirectoryScanner implements Runnable {
 	 * The map is populated by asynchronous directory segment map scanner process and is depopulated by directory content
 	 * scanner process.
 	 **/
-	private ConcurrentSkipListMap< Integer, DirectoryInfo > directoryPlacementMap = new ConcurrentSkipListMap<>();
-
-	/** The queue to scan directory segment maps */
-	private LinkedBlockingQueue< FileInfo > directoryMapScanQueue = new LinkedBlockingQueue<>();
-
-	private ConcurrentSkipListMap< Integer, DirectoryInfo > directoryExtentMap = new ConcurrentSkipListMap<>();
-	private TreeMap< Integer, FileInfo > fileExtentMap = new TreeMap<>();
+	private ExtentIndex< DirectoryInfo > directoryExtentMap = new ExtentIndex<>();
+	/** File extent start block to file info map. Every extent of file has its own entry */
+	private ExtentIndex< FileInfo > fileExtentMap = new ExtentIndex<>();
+	/** Extent maps of the files and directories referred by the extent maps above */
+	private SegmentTable segmentTable = new SegmentTable();
+	/** Directories in the order they were read. Not kept by the streaming scan */
 	private ArrayList< DirectoryInfo > preparedDirectories = new ArrayList<>();
+	/** Totals of the listed directories gathered as they are read, so the report doesn't walk the tree */
+	private int directoryCount;
+	private int totalFiles;
+	private long totalFileSize;
+	private long maxExtentSize;
 
-	private ReentrantLock lock = new ReentrantLock();
-	private Condition extentMapScannerDone = lock.newCondition();
 	private String loggerSuffix;
 
-	DirectoryScanner( String directoryRootPath )  {
-		rootDirectory = new File( directoryRootPath );
-		rootDirectoryPath = rootDirectory.toPath();
-		loggerSuffix = directoryRootPath.replaceAll( "(/[^/])[^/]+(?=/)", "$1" );
+	private final ExtentProvider extentProvider;
+	/** Extent map workers */
+	private final int extentWorkers;
+	/** Directory the extent maps are saved to for {@link ScanSimulator} or null */
+	private final Path snapshotDirectory;
+	/** Directory of the {@link ExtentCache} files or null */
+	private final Path extentCacheDirectory;
+	/** Cache of the listings and extent maps while the directories are gathered */
+	private ExtentCache extentCache;
+	/**
+	 * Bytes past the directory just read which mapped file extents are hashed while the traversal goes on or 0 to
+	 * hash the files once all of them are mapped
+	 */
+	private final long streamWindow;
+	/** Extents waiting for hashing the streaming traversal stops for to hash some of them */
+	private final int maxPendingExtents;
+	/** Entries of the streaming window copied out of the file extent map */
+	private long[] rangeKeys = new long[ 1024 ];
+	private Object[] rangeOwners = new Object[ 1024 ];
+	/** Hash catalog verifier or null if no catalog is used */
+	private final CatalogVerifier catalogVerifier;
+	/** Verifies a sample of the chunks instead of hashing the files or null */
+	private final SamplingVerifier samplingVerifier;
+	private final HashMode hashMode;
+	private final ExtentReader extentReader;
+	private final VolumeLayout volumeLayout;
+	private final DeviceMetrics metrics;
+
+	/**
+	 * @param deviceName name of the physical device all the roots are placed on
+	 * @param rootPaths media source roots to be scanned in the single pass over the device
+	 * @param extentWorkers directory batches mapped at once
+	 * @param snapshotDirectory directory to save the gathered extent maps to or null
+	 * @param extentCacheDirectory directory of the listing and extent map cache or null
+	 * @param streamWindow bytes past the directory just read to hash the mapped files within while the traversal goes
+	 *                     on or 0 to hash the files after the traversal
+	 * @param maxPendingExtents extents waiting for hashing the streaming traversal is bounded by
+	 */
+	DirectoryScanner(
+			String deviceName, List< Path > rootPaths, ExtentProvider extentProvider, int extentWorkers,
+			ExtentReader extentReader, CatalogVerifier catalogVerifier, SamplingVerifier samplingVerifier,
+			Path snapshotDirectory, Path extentCacheDirectory, long streamWindow, int maxPendingExtents
+	)  {
+		if ( streamWindow > 0 && ( snapshotDirectory != null || extentCacheDirectory != null ) ) {
+			throw new IllegalArgumentException( "Streaming scan doesn't keep the extent maps to be saved" );
+		}
+		this.extentProvider = extentProvider;
+		this.extentWorkers = extentWorkers;
+		this.snapshotDirectory = snapshotDirectory;
+		this.extentCacheDirectory = extentCacheDirectory;
+		this.streamWindow = streamWindow;
+		this.maxPendingExtents = maxPendingExtents;
+		this.extentReader = extentReader;
+		this.hashMode = extentReader.getPipeline().getHashMode();
+		this.metrics = extentReader.getMetrics();
+		this.volumeLayout = extentReader.getVolumeLayout();
+		this.catalogVerifier = catalogVerifier;
+		this.samplingVerifier = samplingVerifier;
+		this.rootPaths = rootPaths;
+		loggerSuffix = deviceName;
+		if ( streamWindow > 0 ) {
+			// failed files are released as well, so neither their extents nor their hash state outlive the sweep
+			extentReader.setFinishedListener( fileInfo -> segmentTable.release( fileInfo.firstSegment, fileInfo.segmentCount ) );
+		}
 	}
 
 	@Override
@@ -51,106 +106,259 @@ class DirectoryScanner implements Runnable {
 		try {
 			gatherFilesAndExtents();
 			reportStats();
-			calcFileHashes();
+			if ( samplingVerifier != null ) {
+				samplingVerifier.verify( loggerSuffix, fileExtentMap, segmentTable, metrics, extentReader.getThrottle() );
+			} else {
+				calcFileHashes();
+				metrics.finished();
+			}
 		} catch ( InterruptedException ie ) {
 			// Just finish the work
+		} finally {
+			extentReader.close();
 		}
 	}
 
-	private void calcFileHashes() {
-		// scan from disk start to the end and vice versa making file checksums
-		// single thread implementation. TODO: make it multithreaded
+	String getDeviceName() {
+		return loggerSuffix;
+	}
+
+	SegmentTable getSegmentTable() {
+		return segmentTable;
+	}
+
+	/** @return governor of the device reads or null */
+	IoThrottle getThrottle() {
+		return extentReader.getThrottle();
+	}
+
+	/**
+	 * Lists the roots and maps extents of all the files without hashing them.
+	 * The files to be hashed are chosen by {@link DuplicateFinder} then.
+	 */
+	void mapFiles() throws InterruptedException {
+		gatherFilesAndExtents();
+		reportStats();
+		fileExtentMap = new ExtentIndex<>();
+	}
+
+	/** @return non-directory files found by {@link #mapFiles()} */
+	List< FileInfo > getFiles() {
+		ArrayList< FileInfo > files = new ArrayList<>();
+		for ( DirectoryInfo directory : preparedDirectories ) {
+			if ( directory.containingFiles != null ) {
+				for ( FileInfo fileInfo : directory.containingFiles ) {
+					if ( ! ( fileInfo instanceof DirectoryInfo ) ) {
+						files.add( fileInfo );
+					}
+				}
+			}
+		}
+		return files;
+	}
+
+	/** Hashes the files mapped by {@link #mapFiles()} in physical order sweeps */
+	void hashFiles( List< FileInfo > files ) throws InterruptedException {
+		long bytes = 0;
+		for ( FileInfo fileInfo : files ) {
+			for ( int i = 0; i < fileInfo.segmentCount; ++ i ) {
+				fileExtentMap.put( segmentTable.getPhysicalOffset( fileInfo.firstSegment + i ), fileInfo );
+				bytes += (long) segmentTable.getBlockCount( fileInfo.firstSegment + i ) * fileInfo.blockSize;
+			}
+		}
+		metrics.extentsPlaced( bytes );
+		calcFileHashes();
+		metrics.finished();
+	}
+
+	/** Releases the reader. Called after {@link #hashFiles} as {@link #run()} does it itself */
+	void close() {
+		extentReader.close();
+	}
+
+	private void calcFileHashes() throws InterruptedException {
+		// scan from disk start to the end reading files for checksums. Stream hash needs extra pass for every fragment
+		// of file which is placed before the previous one, tree hash takes any extent so the single pass is enough.
+		// The content is hashed by the pipeline workers while the next extents are read
 		for ( int scanPassNumber = 0; ! Thread.currentThread().isInterrupted() && ! fileExtentMap.isEmpty(); ++ scanPassNumber ) {
 			log.info( "File map checksum scan #{}...", scanPassNumber );
-			// it's mandatory to use iterator to avoid ConcurrentModificationException while remove elements from the Map
-			Iterator< Map.Entry<Integer, FileInfo> > iterator = fileExtentMap.entrySet().iterator();
-			while ( ! Thread.currentThread().isInterrupted() && iterator.hasNext() ) {
-				Map.Entry<Integer, FileInfo> fileExtentEntry = iterator.next();
-				FileInfo fileInfo = fileExtentEntry.getValue();
-				int absExtentIndex = fileExtentEntry.getKey();
-				if (fileInfo.isNextExtent(absExtentIndex)) {
-					// Ok to scan this block and remove it from extent map
-					try {
-						fileInfo.calcHash();
-					} catch ( IOException ioe ) {
-						log.error( String.format( "Error while reading %s", fileInfo.file.getPath() ), ioe );
-					}
-					iterator.remove();
+			metrics.hashingPassStarted( scanPassNumber );
+			ExtentIndex< FileInfo >.Cursor cursor = fileExtentMap.cursor();
+			while ( ! Thread.currentThread().isInterrupted() && cursor.next() ) {
+				FileInfo fileInfo = cursor.owner();
+				long absExtentIndex = cursor.key();
+				if ( fileInfo.isExtentsRead() ) {
+					// the file failed, so the rest of its extents is never read
+					cursor.remove();
+				} else if ( hashMode == HashMode.TREE || fileInfo.isNextExtent( segmentTable, absExtentIndex )) {
+					// Ok to read this block and remove it from extent map
+					readExtents( fileInfo, absExtentIndex );
+					cursor.remove();
 				}
 			}
+			extentReader.flush();
+		}
+	}
+
+	/**
+	 * Hashes the mapped file extents within [fromBlock, toBlock) while the traversal goes on. Stream hash takes the
+	 * next extent of a file only, so the range is swept again while it makes progress.
+	 * @param pendingLimit stops once the file extent map holds this many extents at most
+	 */
+	private void hashRange( long fromBlock, long toBlock, int pendingLimit ) throws InterruptedException {
+		boolean progress = true;
+		while ( progress && fileExtentMap.size() > pendingLimit && ! Thread.currentThread().isInterrupted() ) {
+			progress = false;
+			// the extent map workers keep placing files, so the range is copied rather than iterated by a cursor
+			int count;
+			while ( ( count = fileExtentMap.copyRange( fromBlock, toBlock, rangeKeys, rangeOwners ) ) > rangeKeys.length ) {
+				rangeKeys = new long[ count + ( count >> 1 ) ];
+				rangeOwners = new Object[ rangeKeys.length ];
+			}
+			for ( int i = 0; i < count && fileExtentMap.size() > pendingLimit; ++ i ) {
+				FileInfo fileInfo = (FileInfo) rangeOwners[ i ];
+				if ( fileInfo.isExtentsRead() ) {
+					fileExtentMap.remove( rangeKeys[ i ], fileInfo );
+					progress = true;
+				} else if ( hashMode == HashMode.TREE || fileInfo.isNextExtent( segmentTable, rangeKeys[ i ] ) ) {
+					readExtents( fileInfo, rangeKeys[ i ] );
+					fileExtentMap.remove( rangeKeys[ i ], fileInfo );
+					progress = true;
+				}
+			}
+			// read files aren't held by the copy
+			Arrays.fill( rangeOwners, 0, Math.min( count, rangeOwners.length ), null );
+		}
+		extentReader.flush();
+	}
+
+	/**
+	 * Reads the extent. The streaming scan drops the extent map of the file once the reader finishes it, see the
+	 * constructor
+	 */
+	private void readExtents( FileInfo fileInfo, long physicalOffset ) throws InterruptedException {
+		try {
+			extentReader.readExtents( fileInfo, segmentTable, physicalOffset );
+		} catch ( IOException ioe ) {
+			log.error( String.format( "Error while reading %s", fileInfo.getPath() ), ioe );
 		}
 	}
 
 	private void gatherFilesAndExtents() throws InterruptedException {
+		if ( extentCacheDirectory != null ) {
+			extentCache = ExtentCache.open(
+					extentCacheDirectory.resolve( loggerSuffix + ExtentCache.FILE_SUFFIX ), ! extentReader.isRawDevice()
+			);
+		}
 		ExtentMapScanner extentMapScanner = new ExtentMapScanner(
-				rootDirectory.toPath(), directoryExtentMap, fileExtentMap, lock, extentMapScannerDone
+				rootPaths, extentCache != null ? extentCache.wrap( extentProvider ) : extentProvider, volumeLayout,
+				samplingVerifier != null ? samplingVerifier::isSampled
+						: catalogVerifier != null ? catalogVerifier::isToBeHashed : fileInfo -> true,
+				directoryExtentMap, fileExtentMap, segmentTable, extentWorkers, streamWindow > 0, metrics
 		);
-		Thread extentMapScannerThread = new Thread( extentMapScanner );
-		extentMapScannerThread.setName( "EXTENT-" + loggerSuffix );;
-		extentMapScannerThread.start();
-		DirectoryInfo rootDir = new DirectoryInfo( rootDirectory );
-		rootDir.readContent( null );
-		extentMapScanner.addDirectory( rootDir );
-		int currentBlock = 0;
-			while ( true ) {
-				if (directoryExtentMap.isEmpty()) {
-					log.trace( "Extent map is empty. Going to lock" );
-					lock.lock();
-					try {
-						while (directoryExtentMap.isEmpty() && ! extentMapScanner.isIdle()) {
-							extentMapScannerDone.await();
-							log.trace("Notify received");
-						}
-						if (directoryExtentMap.isEmpty() && extentMapScanner.isIdle()) {
-							// We've done. Stop directory extent mapper
-							log.trace( "Extent mapper thread is done. Terminating it" );
-							extentMapScannerThread.interrupt();
-							// and now all the directories prepared for sure
-							return;
-						}
-					} catch ( InterruptedException ie ) {
-						log.trace( "Interrupted" );
-						throw ie;
-					} finally {
-						lock.unlock();
-					}
+		if ( streamWindow > 0 ) {
+			log.info(
+					"Hashing files within {} past the directories read while the traversal goes on",
+					getFileSizeNice( streamWindow )
+			);
+			metrics.streamingStarted();
+		}
+		extentMapScanner.start( "EXTENT-" + loggerSuffix );
+		try {
+			for ( Path rootPath : rootPaths ) {
+				DirectoryInfo rootDir = new DirectoryInfo( null, rootPath.toString() );
+				readContent( rootDir, null );
+				extentMapScanner.addDirectory( rootDir );
+				if ( streamWindow == 0 ) {
+					preparedDirectories.add( rootDir );
 				}
-				// directoryExtentMap is not empty here
-				Integer greater = directoryExtentMap.ceilingKey(currentBlock);
-				Integer less = directoryExtentMap.floorKey(currentBlock);
-				// choose nearest to the current block. The block can't be null as we have at least one entry in the map
-				int nextKey = (greater == null) ? less : (less == null) ? greater :
+			}
+			long currentBlock = 0;
+			// the directories are read as soon as they are mapped. All of them are prepared when the map is drained
+			// and no directory is being mapped
+			while ( extentMapScanner.awaitDirectory() ) {
+				if ( streamWindow > 0 && fileExtentMap.size() > maxPendingExtents ) {
+					// the traversal waits for the reads to keep the memory bounded. Half of the extents are read at
+					// once, so the sweep isn't stopped by every directory
+					hashRange( currentBlock, Long.MAX_VALUE, maxPendingExtents / 2 );
+					hashRange( 0, currentBlock, maxPendingExtents / 2 );
+				}
+				long greater = directoryExtentMap.ceilingKey(currentBlock);
+				long less = directoryExtentMap.floorKey(currentBlock);
+				// choose nearest to the current block. The both can't be absent as we have at least one entry in the map
+				long nextKey = (greater == ExtentIndex.NO_KEY) ? less : (less == ExtentIndex.NO_KEY) ? greater :
 						(Math.abs(currentBlock - less) > Math.abs(currentBlock - greater)) ? greater : less;
 				DirectoryInfo nextDirectory = directoryExtentMap.remove(nextKey);
-				log.trace( "Nearest block index is {} with directory \"{}\"", nextKey, nextDirectory.file.getName() );
-				nextDirectory.readContent( rootDirectoryPath );
+				if ( log.isTraceEnabled() ) {
+					log.trace( "Nearest block index is {} with directory \"{}\"", nextKey, nextDirectory.getName() );
+				}
+				readContent( nextDirectory, rootPaths );
 				extentMapScanner.addDirectory(nextDirectory);
-				// actually the directory will be prepared for sure after extentMapScanner will be done only. But ...
-				preparedDirectories.add( nextDirectory );
-				currentBlock = nextDirectory.segments.get( 0 ).physicalOffset;
+				currentBlock = nextKey;
+				if ( streamWindow == 0 ) {
+					preparedDirectories.add( nextDirectory );
+				} else {
+					segmentTable.release( nextDirectory.firstSegment, nextDirectory.segmentCount );
+					if ( nextDirectory.blockSize > 0 ) {
+						hashRange( currentBlock, currentBlock + streamWindow / nextDirectory.blockSize, 0 );
+					}
+				}
 			}
+		} finally {
+			log.trace( "Directories are prepared. Stopping extent map workers" );
+			extentMapScanner.stop();
+		}
+		maxExtentSize = extentMapScanner.getMaxExtentSize();
+		if ( snapshotDirectory != null ) {
+			saveSnapshot();
+		}
+		if ( extentCache != null ) {
+			extentCache.reportStats();
+			try {
+				extentCache.save( preparedDirectories, segmentTable, volumeLayout );
+			} catch ( IOException ioe ) {
+				log.error( "Can't save extent cache", ioe );
+			}
+			// releases the mapping of the previous cache
+			extentCache = null;
+		}
 	}
 
-	private void reportStats() {
+	private void saveSnapshot() {
+		Path path = snapshotDirectory.resolve( loggerSuffix + ExtentSnapshot.FILE_SUFFIX );
+		try {
+			Files.createDirectories( snapshotDirectory );
+			ExtentSnapshot.save( path, loggerSuffix, preparedDirectories, segmentTable );
+			log.info( "Extent maps are saved to {}", path );
+		} catch ( IOException ioe ) {
+			log.error( String.format( "Can't save extent maps to %s", path ), ioe );
+		}
+	}
+
+	private void readContent( DirectoryInfo directory, List< Path > rootPaths ) {
 		long startTime = System.nanoTime();
-		int totalFiles = 0;
-		long totalFileSize = 0;
-		long maxExtentSize = 0;
-		for ( DirectoryInfo directory : preparedDirectories ) {
-			ArrayList< FileInfo > fileInfos = directory.containingFiles;
-			if ( fileInfos != null ) {
-				totalFiles += fileInfos.size();
-				for ( FileInfo fileInfo : fileInfos ) {
-					totalFileSize += fileInfo.file.length();
-					maxExtentSize = Math.max( maxExtentSize, fileInfo.getMaxExtentSize() );
-				}
+		if ( extentCache != null ) {
+			extentCache.readContent( directory, rootPaths );
+		} else {
+			directory.readContent( rootPaths );
+		}
+		metrics.directoryListed(
+				directory.containingFiles == null ? 0 : directory.containingFiles.size(), System.nanoTime() - startTime
+		);
+		++ directoryCount;
+		if ( directory.containingFiles != null ) {
+			totalFiles += directory.containingFiles.size();
+			for ( FileInfo fileInfo : directory.containingFiles ) {
+				totalFileSize += fileInfo.size;
 			}
 		}
+	}
+
+	private void reportStats() {
 		log.info(
 				"Found {} directories with {} files and total size {}. Max extent size is {}",
-				preparedDirectories.size(), totalFiles, getFileSizeNice( totalFileSize ),
+				directoryCount, totalFiles, getFileSizeNice( totalFileSize ),
 				getFileSizeNice( maxExtentSize )
 		);
-		performanceLog.debug( "File report done in {}", Utils.asHumanReadableDelay(startTime) );
 	}
 }
@@ -0,0 +1,381 @@
+package iks.medialibchecker;
+
+import net.jpountz.xxhash.*;
+import org.slf4j.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Finds duplicate files of all the devices in stages, so just a small part of the content a full scan reads is read:
+ * <ol>
+ * <li>files are grouped by exact size, so files of unique size aren't read at all;</li>
+ * <li>same size files are grouped by hashes of their head and tail samples. Samples are read in physical order of the
+ * extent maps. Files not larger than two samples are compared completely by this stage;</li>
+ * <li>the files colliding by the samples are hashed completely by the device sweeps of {@link DirectoryScanner}.</li>
+ * </ol>
+ * A duplicate set is written out as soon as all its files are hashed.
+ */
+class DuplicateFinder implements HashPipeline.Listener {
+	private static final Logger log = LoggerFactory.getLogger( DuplicateFinder.class );
+	private static final Logger performanceLog = LoggerFactory.getLogger( "performance.DuplicateFinder" );
+	/** Size of the head and the tail sample */
+	static final int SAMPLE_SIZE = 64 << 10;
+	private static final long SAMPLE_SEED = 0x9747b2842093420L;
+	private static final XXHash64 xxHash64 = XXHashFactory.fastestInstance().hash64();
+
+	/** File which content may be the same as the content of other files */
+	private static class Candidate {
+		final FileInfo fileInfo;
+		/** Index of the scanner of the file device */
+		final int device;
+		long headHash;
+		long tailHash;
+		/** A sample can't be read, so the file isn't compared */
+		boolean failed;
+
+		Candidate( FileInfo fileInfo, int device ) {
+			this.fileInfo = fileInfo;
+			this.device = device;
+		}
+
+		/** Both samples cover the whole file */
+		boolean isSampledCompletely() {
+			return fileInfo.size <= 2L * SAMPLE_SIZE;
+		}
+	}
+
+	/** Head or tail sample of a candidate */
+	private static class Sample {
+		final Candidate candidate;
+		final long position;
+		final int length;
+		/** Byte offset of the sample start on the device. Defines the read order */
+		final long devicePosition;
+
+		Sample( Candidate candidate, long position, int length, long devicePosition ) {
+			this.candidate = candidate;
+			this.position = position;
+			this.length = length;
+			this.devicePosition = devicePosition;
+		}
+	}
+
+	/** Files of the same size and samples waiting for their full hashes */
+	private static class Group {
+		final List< FileInfo > files;
+		int remaining;
+
+		Group( List< FileInfo > files ) {
+			this.files = files;
+			remaining = files.size();
+		}
+	}
+
+	private static final Comparator< Candidate > SAMPLE_ORDER = ( a, b ) -> {
+		int result = Long.compare( a.fileInfo.size, b.fileInfo.size );
+		if ( result == 0 ) {
+			result = Long.compare( a.headHash, b.headHash );
+		}
+		return result != 0 ? result : Long.compare( a.tailHash, b.tailHash );
+	};
+
+	private final Writer out;
+	/** Files waiting for the full hash. Guarded by this */
+	private final IdentityHashMap< FileInfo, Group > pendingGroups = new IdentityHashMap<>();
+
+	private long totalFiles;
+	private long totalBytes;
+	private long sizeCandidates;
+	private long sampleCandidates;
+	private final AtomicLong sampleBytes = new AtomicLong();
+	private long fullBytes;
+	private long duplicateSets;
+	private long duplicateFiles;
+	private long wastedBytes;
+	private boolean writeFailed;
+
+	/** @param out duplicate sets output. Every set is a comment line with the file count and size followed by the paths */
+	DuplicateFinder( Writer out ) {
+		this.out = out;
+	}
+
+	/**
+	 * Runs the stages over the devices of the scanners. Every stage runs in parallel for all the devices.
+	 * Full hashes are calculated by the hashing pipeline, so the last sets are written out by {@link #finish()} after
+	 * the pipeline is closed.
+	 */
+	void run( List< DirectoryScanner > scanners ) throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool( scanners.size() );
+		try {
+			long startTime = System.nanoTime();
+			runOnDevices( executor, scanners, device -> scanners.get( device ).mapFiles() );
+			List< List< Candidate > > candidatesByDevice = groupBySize( scanners );
+			performanceLog.debug( "Files listed and mapped in {}", Utils.asHumanReadableDelay( startTime ) );
+
+			startTime = System.nanoTime();
+			runOnDevices( executor, scanners, device -> hashSamples(
+					candidatesByDevice.get( device ), scanners.get( device ).getSegmentTable(),
+					scanners.get( device ).getThrottle()
+			) );
+			List< List< FileInfo > > filesByDevice = groupBySamples( candidatesByDevice );
+			performanceLog.debug( "Samples hashed in {}", Utils.asHumanReadableDelay( startTime ) );
+
+			runOnDevices( executor, scanners, device -> scanners.get( device ).hashFiles( filesByDevice.get( device ) ) );
+		} finally {
+			executor.shutdownNow();
+			for ( DirectoryScanner scanner : scanners ) {
+				scanner.close();
+			}
+		}
+	}
+
+	private interface DeviceStage {
+		void run( int device ) throws Exception;
+	}
+
+	private static void runOnDevices(
+			ExecutorService executor, List< DirectoryScanner > scanners, DeviceStage stage
+	) throws InterruptedException {
+		ArrayList< Callable< Void > > tasks = new ArrayList<>( scanners.size() );
+		for ( int i = 0; i < scanners.size(); ++ i ) {
+			int device = i;
+			tasks.add( () -> {
+				Thread.currentThread().setName( "SCAN-" + scanners.get( device ).getDeviceName() );
+				stage.run( device );
+				return null;
+			} );
+		}
+		for ( Future< Void > result : executor.invokeAll( tasks ) ) {
+			try {
+				result.get();
+			} catch ( ExecutionException ee ) {
+				if ( ee.getCause() instanceof InterruptedException ) {
+					throw (InterruptedException) ee.getCause();
+				}
+				log.error( "Duplicate search stage failed", ee.getCause() );
+			}
+		}
+	}
+
+	/** The first stage: files of unique size aren't duplicates */
+	private List< List< Candidate > > groupBySize( List< DirectoryScanner > scanners ) {
+		HashMap< Long, List< Candidate > > bySize = new HashMap<>();
+		for ( int device = 0; device < scanners.size(); ++ device ) {
+			for ( FileInfo fileInfo : scanners.get( device ).getFiles() ) {
+				++ totalFiles;
+				totalBytes += fileInfo.size;
+				// empty files have no content to compare
+				if ( fileInfo.size > 0 ) {
+					bySize.computeIfAbsent( fileInfo.size, size -> new ArrayList<>( 2 ) ).add( new Candidate( fileInfo, device ) );
+				}
+			}
+		}
+		List< List< Candidate > > candidatesByDevice = newDeviceLists( scanners.size() );
+		for ( List< Candidate > sameSize : bySize.values() ) {
+			if ( sameSize.size() > 1 ) {
+				for ( Candidate candidate : sameSize ) {
+					candidatesByDevice.get( candidate.device ).add( candidate );
+					++ sizeCandidates;
+				}
+			}
+		}
+		log.info( "{} of {} files have the same size as other files", sizeCandidates, totalFiles );
+		return candidatesByDevice;
+	}
+
+	/** The second stage: reads head and tail samples of the device candidates in physical order */
+	private void hashSamples(
+			List< Candidate > candidates, SegmentTable segments, IoThrottle throttle
+	) throws InterruptedException {
+		ArrayList< Sample > samples = new ArrayList<>( candidates.size() * 2 );
+		for ( Candidate candidate : candidates ) {
+			FileInfo fileInfo = candidate.fileInfo;
+			int headLength = (int) Math.min( SAMPLE_SIZE, fileInfo.size );
+			samples.add( new Sample( candidate, 0, headLength, fileInfo.getDevicePosition( segments, 0 ) ) );
+			if ( fileInfo.size > SAMPLE_SIZE ) {
+				// the tail follows the head right away in small files, so the samples cover them completely
+				long tailPosition = Math.max( SAMPLE_SIZE, fileInfo.size - SAMPLE_SIZE );
+				samples.add( new Sample(
+						candidate, tailPosition, (int) ( fileInfo.size - tailPosition ),
+						fileInfo.getDevicePosition( segments, tailPosition )
+				) );
+			}
+		}
+		samples.sort( ( a, b ) -> Long.compare( a.devicePosition, b.devicePosition ) );
+		ByteBuffer buffer = ByteBuffer.allocateDirect( SAMPLE_SIZE );
+		for ( Sample sample : samples ) {
+			if ( Thread.currentThread().isInterrupted() ) {
+				return;
+			}
+			FileInfo fileInfo = sample.candidate.fileInfo;
+			if ( sample.candidate.failed ) {
+				continue;
+			}
+			try ( FileChannel channel = FileChannel.open( fileInfo.toPath(), StandardOpenOption.READ ) ) {
+				buffer.clear().limit( sample.length );
+				if ( throttle != null ) {
+					throttle.acquire( sample.length );
+				}
+				long startTime = System.nanoTime();
+				try {
+					while ( buffer.hasRemaining() ) {
+						if ( channel.read( buffer, sample.position + buffer.position() ) < 0 ) {
+							throw new IOException( "File " + fileInfo.getPath() + " was truncated while sampling" );
+						}
+					}
+				} finally {
+					if ( throttle != null ) {
+						throttle.readDone( buffer.position(), System.nanoTime() - startTime );
+					}
+				}
+				long hash = xxHash64.hash( buffer, 0, sample.length, SAMPLE_SEED );
+				if ( sample.position == 0 ) {
+					sample.candidate.headHash = hash;
+				} else {
+					sample.candidate.tailHash = hash;
+				}
+				sampleBytes.addAndGet( sample.length );
+			} catch ( IOException ioe ) {
+				log.error( String.format( "Error while sampling %s", fileInfo.getPath() ), ioe );
+				sample.candidate.failed = true;
+			}
+		}
+	}
+
+	/**
+	 * Groups the candidates by size and samples. Completely sampled groups are duplicate sets already,
+	 * the rest are registered for the full hashes.
+	 * @return files to be hashed by device
+	 */
+	private List< List< FileInfo > > groupBySamples( List< List< Candidate > > candidatesByDevice ) {
+		ArrayList< Candidate > candidates = new ArrayList<>();
+		for ( List< Candidate > deviceCandidates : candidatesByDevice ) {
+			for ( Candidate candidate : deviceCandidates ) {
+				if ( ! candidate.failed ) {
+					candidates.add( candidate );
+				}
+			}
+		}
+		candidates.sort( SAMPLE_ORDER );
+		List< List< FileInfo > > filesByDevice = newDeviceLists( candidatesByDevice.size() );
+		for ( int start = 0, end; start < candidates.size(); start = end ) {
+			end = start + 1;
+			while ( end < candidates.size() && SAMPLE_ORDER.compare( candidates.get( start ), candidates.get( end ) ) == 0 ) {
+				++ end;
+			}
+			if ( end - start < 2 ) {
+				continue;
+			}
+			ArrayList< FileInfo > files = new ArrayList<>( end - start );
+			for ( int i = start; i < end; ++ i ) {
+				files.add( candidates.get( i ).fileInfo );
+			}
+			if ( candidates.get( start ).isSampledCompletely() ) {
+				writeSet( files );
+				continue;
+			}
+			Group group = new Group( files );
+			synchronized ( this ) {
+				for ( int i = start; i < end; ++ i ) {
+					Candidate candidate = candidates.get( i );
+					pendingGroups.put( candidate.fileInfo, group );
+					filesByDevice.get( candidate.device ).add( candidate.fileInfo );
+					fullBytes += candidate.fileInfo.size;
+					++ sampleCandidates;
+				}
+			}
+		}
+		log.info( "{} files have the same samples as other files and are to be hashed completely", sampleCandidates );
+		return filesByDevice;
+	}
+
+	/** The third stage: writes out the group as soon as all its files are hashed */
+	@Override
+	public void fileHashed( FileInfo fileInfo, FileInfo.HashState state ) {
+		Group group;
+		synchronized ( this ) {
+			group = pendingGroups.remove( fileInfo );
+			if ( group == null || -- group.remaining > 0 ) {
+				return;
+			}
+		}
+		writeHashedSets( group.files );
+	}
+
+	/**
+	 * Writes out the groups some files of which failed to be hashed, comparing the hashed ones only, and logs the
+	 * stats. Called after the hashing pipeline is closed.
+	 */
+	void finish() {
+		HashSet< Group > incomplete = new HashSet<>();
+		synchronized ( this ) {
+			incomplete.addAll( pendingGroups.values() );
+			pendingGroups.clear();
+		}
+		for ( Group group : incomplete ) {
+			ArrayList< FileInfo > hashed = new ArrayList<>( group.files.size() );
+			for ( FileInfo fileInfo : group.files ) {
+				if ( fileInfo.isHashReady() ) {
+					hashed.add( fileInfo );
+				}
+			}
+			writeHashedSets( hashed );
+		}
+		long bytesRead = sampleBytes.get() + fullBytes;
+		log.info(
+				"Duplicates: {} sets of {} files wasting {}. Read {} of {} ({}%)",
+				duplicateSets, duplicateFiles, Utils.getFileSizeNice( wastedBytes ), Utils.getFileSizeNice( bytesRead ),
+				Utils.getFileSizeNice( totalBytes ),
+				totalBytes == 0 ? 0 : String.format( "%.1f", bytesRead * 100.0 / totalBytes )
+		);
+	}
+
+	/** Splits the same size files by their full hashes */
+	private void writeHashedSets( List< FileInfo > files ) {
+		HashMap< Long, List< FileInfo > > byHash = new HashMap<>();
+		for ( FileInfo fileInfo : files ) {
+			byHash.computeIfAbsent( fileInfo.getHash(), hash -> new ArrayList<>( 2 ) ).add( fileInfo );
+		}
+		for ( List< FileInfo > sameHash : byHash.values() ) {
+			if ( sameHash.size() > 1 ) {
+				writeSet( sameHash );
+			}
+		}
+	}
+
+	private synchronized void writeSet( List< FileInfo > files ) {
+		long size = files.get( 0 ).size;
+		++ duplicateSets;
+		duplicateFiles += files.size();
+		wastedBytes += size * ( files.size() - 1 );
+		if ( writeFailed ) {
+			return;
+		}
+		try {
+			out.write( "# " + files.size() + " files of " + size + " bytes\n" );
+			for ( FileInfo fileInfo : files ) {
+				out.write( fileInfo.getPath() );
+				out.write( '\n' );
+			}
+			out.write( '\n' );
+			out.flush();
+		} catch ( IOException ioe ) {
+			writeFailed = true;
+			log.error( "Can't write duplicate sets", ioe );
+		}
+	}
+
+	private static < T > List< List< T > > newDeviceLists( int deviceCount ) {
+		List< List< T > > lists = new ArrayList<>( deviceCount );
+		for ( int i = 0; i < deviceCount; ++ i ) {
+			lists.add( new ArrayList<>() );
+		}
+		return lists;
+	}
+}
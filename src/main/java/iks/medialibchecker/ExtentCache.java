@@ -0,0 +1,451 @@
+package iks.medialibchecker;
+
+import org.slf4j.*;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Directory listings and extent maps of a device kept between the runs, so a run over a mostly unchanged library
+ * lists and maps just the changed parts.
+ *
+ * A directory listing is reused if the directory inode has the same size, modification and change time the previous
+ * run saw before listing it. The files are stat'ed anyway, as the catalog needs their current attributes. Extent
+ * maps of the files and subdirectories are reused per inode, size, modification and change time, the rest of the
+ * files go to the extent provider. Defragmentation moves the blocks keeping the modification time, so the change
+ * time has to match too. Still, not every defragmenter changes it, so the files read from the raw device, where a
+ * stale map reads other data, are mapped afresh.
+ *
+ * The cache file is memory mapped and a directory record is parsed when the directory is visited, so just the index
+ * of the directories is kept in the heap. The new cache is written after the directories are gathered and replaces
+ * the old one atomically. A single mapping limits the file to 2 GiB (some 20M files).
+ */
+class ExtentCache {
+	private static final Logger log = LoggerFactory.getLogger( ExtentCache.class );
+	private static final Logger performanceLog = LoggerFactory.getLogger( "performance.ExtentCache" );
+	static final String FILE_SUFFIX = ".cache";
+	/** Version 1 cache has no change time of the files */
+	private static final long MAGIC_V1 = 0x4d4c43455843_0001L;
+	private static final long MAGIC = 0x4d4c43455843_0002L;
+	private static final String DIRECTORY_ATTRIBUTES = "unix:dev,ino,size,lastModifiedTime,ctime";
+	private static final byte TYPE_FILE = 0;
+	private static final byte TYPE_DIRECTORY = 1;
+	/** Segment count of the file which extents weren't mapped */
+	private static final int UNMAPPED = -1;
+	private static final int SEGMENT_SIZE = 21;
+
+	/** Directory identity and version taken before it's listed */
+	private static class DirectoryState {
+		final long device;
+		final long inode;
+		final long size;
+		final long modifiedTime;
+		final long changeTime;
+		/** Offset of the cached record of the directory inode or -1 */
+		final int record;
+		/** Whether the cached listing is of the same directory version */
+		final boolean listingValid;
+
+		DirectoryState( Map< String, Object > attributes, ExtentCache cache ) {
+			device = (Long) attributes.get( "dev" );
+			inode = (Long) attributes.get( "ino" );
+			size = (Long) attributes.get( "size" );
+			modifiedTime = ( (FileTime) attributes.get( "lastModifiedTime" ) ).to( TimeUnit.NANOSECONDS );
+			changeTime = ( (FileTime) attributes.get( "ctime" ) ).to( TimeUnit.NANOSECONDS );
+			record = cache.findRecord( device, inode );
+			listingValid = record >= 0
+					&& cache.buffer.getLong( record ) == size
+					&& cache.buffer.getLong( record + 8 ) == modifiedTime
+					&& cache.buffer.getLong( record + 16 ) == changeTime;
+		}
+	}
+
+	/** Entry of a cached directory record */
+	private static class Entry {
+		boolean directory;
+		byte[] name;
+		long inode;
+		long size;
+		/** Milliseconds for a file as {@link FileInfo#modifiedTime}, nanoseconds for a directory */
+		long modifiedTime;
+		/** Nanoseconds or -1 if unknown */
+		long changeTime;
+		int blockSize;
+		int segmentCount;
+		/** Offset of the first segment in the cache file */
+		int segments;
+	}
+
+	private final Path path;
+	/** Whether the cached extent maps of the files are used, as opposed to the ones of the directories only */
+	private final boolean reuseFileMaps;
+	/** Cache of the previous run or null */
+	private final MappedByteBuffer buffer;
+	/** Cached directories sorted by device and inode */
+	private final long[] indexDevices;
+	private final long[] indexInodes;
+	private final int[] indexRecords;
+	private final ConcurrentHashMap< DirectoryInfo, DirectoryState > states = new ConcurrentHashMap<>();
+
+	private final AtomicInteger reusedListings = new AtomicInteger();
+	private final AtomicInteger listings = new AtomicInteger();
+	private final AtomicInteger reusedExtentMaps = new AtomicInteger();
+	private final AtomicInteger extentMaps = new AtomicInteger();
+
+	private ExtentCache(
+			Path path, boolean reuseFileMaps, MappedByteBuffer buffer, long[] indexDevices, long[] indexInodes,
+			int[] indexRecords
+	) {
+		this.path = path;
+		this.reuseFileMaps = reuseFileMaps;
+		this.buffer = buffer;
+		this.indexDevices = indexDevices;
+		this.indexInodes = indexInodes;
+		this.indexRecords = indexRecords;
+	}
+
+	/**
+	 * Maps the cache left by the previous run. A missing or broken cache is just started over
+	 * @param reuseFileMaps false to map the files afresh, as their content is read from the raw device
+	 */
+	static ExtentCache open( Path path, boolean reuseFileMaps ) {
+		if ( Files.exists( path ) ) {
+			try ( FileChannel channel = FileChannel.open( path, StandardOpenOption.READ ) ) {
+				long size = channel.size();
+				if ( size > Integer.MAX_VALUE ) {
+					throw new IOException( "Cache is larger than 2 GiB" );
+				}
+				MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+				if ( size >= 20 && buffer.getLong( 0 ) == MAGIC_V1 ) {
+					log.info( "Extent cache {} is of the previous version. Starting it over", path );
+					return new ExtentCache( path, reuseFileMaps, null, new long[ 0 ], new long[ 0 ], new int[ 0 ] );
+				}
+				if ( size < 20 || buffer.getLong( 0 ) != MAGIC ) {
+					throw new IOException( "Not an extent cache" );
+				}
+				int indexOffset = (int) buffer.getLong( (int) size - 8 );
+				int count = buffer.getInt( indexOffset );
+				if ( indexOffset + 4 + count * 20L != size - 8 ) {
+					throw new IOException( "Cache index is broken" );
+				}
+				long[] devices = new long[ count ];
+				long[] inodes = new long[ count ];
+				int[] records = new int[ count ];
+				for ( int i = 0, offset = indexOffset + 4; i < count; ++ i, offset += 20 ) {
+					devices[ i ] = buffer.getLong( offset );
+					inodes[ i ] = buffer.getLong( offset + 8 );
+					records[ i ] = buffer.getInt( offset + 16 );
+				}
+				log.info( "Extent cache {} has {} directories", path, count );
+				return new ExtentCache( path, reuseFileMaps, buffer, devices, inodes, records );
+			} catch ( IOException | RuntimeException e ) {
+				log.warn( "Can't use extent cache {}: {}. Starting it over", path, e.toString() );
+			}
+		}
+		return new ExtentCache( path, reuseFileMaps, null, new long[ 0 ], new long[ 0 ], new int[ 0 ] );
+	}
+
+	/** @return record offset or -1 */
+	private int findRecord( long device, long inode ) {
+		int low = 0;
+		int high = indexDevices.length - 1;
+		while ( low <= high ) {
+			int middle = ( low + high ) >>> 1;
+			int order = indexDevices[ middle ] != device ? Long.compare( indexDevices[ middle ], device )
+					: Long.compare( indexInodes[ middle ], inode );
+			if ( order < 0 ) {
+				low = middle + 1;
+			} else if ( order > 0 ) {
+				high = middle - 1;
+			} else {
+				return indexRecords[ middle ];
+			}
+		}
+		return -1;
+	}
+
+	/** @return the state taken the first time the directory is seen or null if it can't be stat'ed */
+	private DirectoryState getState( DirectoryInfo directory ) {
+		DirectoryState state = states.get( directory );
+		if ( state == null ) {
+			try {
+				state = new DirectoryState( Files.readAttributes( directory.toPath(), DIRECTORY_ATTRIBUTES ), this );
+			} catch ( IOException ioe ) {
+				log.debug( "Can't read attributes of '{}': {}", directory.toPath(), ioe.toString() );
+				return null;
+			}
+			DirectoryState existing = states.putIfAbsent( directory, state );
+			if ( existing != null ) {
+				state = existing;
+			}
+		}
+		return state;
+	}
+
+	private List< Entry > readRecord( int record ) {
+		int count = buffer.getInt( record + 24 );
+		ArrayList< Entry > entries = new ArrayList<>( count );
+		int offset = record + 28;
+		for ( int i = 0; i < count; ++ i ) {
+			Entry entry = new Entry();
+			entry.directory = buffer.get( offset ) == TYPE_DIRECTORY;
+			entry.name = new byte[ buffer.getShort( offset + 1 ) & 0xffff ];
+			offset += 3;
+			for ( int j = 0; j < entry.name.length; ++ j ) {
+				entry.name[ j ] = buffer.get( offset + j );
+			}
+			offset += entry.name.length;
+			entry.inode = buffer.getLong( offset );
+			entry.size = buffer.getLong( offset + 8 );
+			entry.modifiedTime = buffer.getLong( offset + 16 );
+			entry.changeTime = buffer.getLong( offset + 24 );
+			entry.blockSize = buffer.getInt( offset + 32 );
+			entry.segmentCount = buffer.getInt( offset + 36 );
+			entry.segments = offset + 40;
+			offset = entry.segments + Math.max( 0, entry.segmentCount ) * SEGMENT_SIZE;
+			entries.add( entry );
+		}
+		return entries;
+	}
+
+	private Map< Long, Entry > readEntriesByInode( DirectoryState state ) {
+		if ( state == null || state.record < 0 ) {
+			return Collections.emptyMap();
+		}
+		HashMap< Long, Entry > entries = new HashMap<>();
+		for ( Entry entry : readRecord( state.record ) ) {
+			entries.put( entry.inode, entry );
+		}
+		return entries;
+	}
+
+	private List< FileSegment > readSegments( Entry entry ) {
+		ArrayList< FileSegment > segments = new ArrayList<>( entry.segmentCount );
+		for ( int i = 0, offset = entry.segments; i < entry.segmentCount; ++ i, offset += SEGMENT_SIZE ) {
+			segments.add( new FileSegment(
+					buffer.getLong( offset ), buffer.getLong( offset + 8 ), buffer.getInt( offset + 16 ), buffer.get( offset + 20 )
+			) );
+		}
+		return segments;
+	}
+
+	/**
+	 * Takes the directory content from the cache if the directory is unchanged or lists it otherwise.
+	 * @see DirectoryInfo#readContent(List)
+	 */
+	void readContent( DirectoryInfo directory, List< Path > rootPaths ) {
+		listings.incrementAndGet();
+		DirectoryState state = getState( directory );
+		if ( state == null || ! state.listingValid ) {
+			directory.readContent( rootPaths );
+			return;
+		}
+		List< Entry > entries = readRecord( state.record );
+		ArrayList< FileInfo > files = new ArrayList<>( entries.size() );
+		ArrayList< Entry > toBeStated = new ArrayList<>( entries.size() );
+		for ( Entry entry : entries ) {
+			if ( entry.directory ) {
+				files.add( new DirectoryInfo( directory, entry.name ) );
+			} else {
+				toBeStated.add( entry );
+			}
+		}
+		// the same inode order the listing stats the files in
+		toBeStated.sort( ( a, b ) -> Long.compare( a.inode, b.inode ) );
+		for ( Entry entry : toBeStated ) {
+			FileInfo fileInfo = new FileInfo( directory, entry.name );
+			try {
+				fileInfo.readAttributes();
+			} catch ( IOException ioe ) {
+				log.debug( "Can't read attributes of '{}': {}", fileInfo.getPath(), ioe.toString() );
+				continue;
+			}
+			files.add( fileInfo );
+		}
+		directory.containingFiles = files;
+		reusedListings.incrementAndGet();
+		if ( log.isTraceEnabled() ) {
+			log.trace( "Content of directory '{}' is taken from the cache", directory.getPath() );
+		}
+	}
+
+	/** @return the provider which takes the unchanged extent maps from the cache and the rest from the given one */
+	ExtentProvider wrap( ExtentProvider provider ) {
+		return new ExtentProvider() {
+			@Override
+			public void mapExtents( DirectoryInfo directory, ExtentConsumer consumer ) throws IOException {
+				mapExtents( Collections.singletonList( directory ), consumer );
+			}
+
+			@Override
+			public void mapExtents( List< DirectoryInfo > directories, ExtentConsumer consumer ) throws IOException {
+				ArrayList< DirectoryInfo > toBeMapped = new ArrayList<>( directories.size() );
+				for ( DirectoryInfo directory : directories ) {
+					ArrayList< FileInfo > files = mapCached( directory, consumer );
+					if ( files.size() == directory.containingFiles.size() ) {
+						toBeMapped.add( directory );
+					} else if ( ! files.isEmpty() ) {
+						toBeMapped.add( directory.withFiles( files ) );
+					}
+				}
+				if ( ! toBeMapped.isEmpty() ) {
+					provider.mapExtents( toBeMapped, consumer );
+				}
+			}
+
+			@Override
+			public String getName() {
+				return provider.getName();
+			}
+		};
+	}
+
+	/** @return files of the directory which extent maps aren't cached */
+	private ArrayList< FileInfo > mapCached( DirectoryInfo directory, ExtentProvider.ExtentConsumer consumer ) {
+		Map< Long, Entry > entries = readEntriesByInode( getState( directory ) );
+		ArrayList< FileInfo > files = new ArrayList<>();
+		for ( FileInfo fileInfo : directory.containingFiles ) {
+			extentMaps.incrementAndGet();
+			Entry entry;
+			if ( fileInfo instanceof DirectoryInfo ) {
+				// stat'ed before it's listed, so the state is the version the listing will be of
+				DirectoryState state = getState( (DirectoryInfo) fileInfo );
+				entry = state == null ? null : entries.get( state.inode );
+				if ( entry != null && ! ( entry.directory && isSameVersion( entry, state.size, state.modifiedTime, state.changeTime ) ) ) {
+					entry = null;
+				}
+			} else {
+				entry = reuseFileMaps ? entries.get( fileInfo.inode ) : null;
+				if ( entry != null
+						&& ! ( ! entry.directory && isSameVersion( entry, fileInfo.size, fileInfo.modifiedTime, fileInfo.changeTime ) ) ) {
+					entry = null;
+				}
+			}
+			if ( entry != null && entry.segmentCount != UNMAPPED ) {
+				consumer.accept( fileInfo, entry.blockSize, readSegments( entry ) );
+				reusedExtentMaps.incrementAndGet();
+			} else {
+				files.add( fileInfo );
+			}
+		}
+		return files;
+	}
+
+	/** Change time of the entry has to be known to tell its map is current */
+	private static boolean isSameVersion( Entry entry, long size, long modifiedTime, long changeTime ) {
+		return entry.size == size && entry.modifiedTime == modifiedTime && entry.changeTime == changeTime && changeTime >= 0;
+	}
+
+	/**
+	 * Writes the new cache from the gathered directories and replaces the old one.
+	 * Extent maps of the files which weren't mapped this time are kept if they are still valid.
+	 * @param volumeLayout the layout the extent maps were moved by, the cache keeps the offsets of the filesystem
+	 */
+	void save( List< DirectoryInfo > directories, SegmentTable segmentTable, VolumeLayout volumeLayout ) throws IOException {
+		long startTime = System.nanoTime();
+		Files.createDirectories( path.toAbsolutePath().getParent() );
+		Path temporary = path.resolveSibling( path.getFileName() + ".tmp" );
+		ArrayList< long[] > index = new ArrayList<>( directories.size() );
+		try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( temporary ), 64 * 1024 ) ) ) {
+			out.writeLong( MAGIC );
+			for ( DirectoryInfo directory : directories ) {
+				DirectoryState state = states.get( directory );
+				if ( state == null || directory.containingFiles == null ) {
+					continue;
+				}
+				index.add( new long[] { state.device, state.inode, out.size() } );
+				out.writeLong( state.size );
+				out.writeLong( state.modifiedTime );
+				out.writeLong( state.changeTime );
+				out.writeInt( directory.containingFiles.size() );
+				Map< Long, Entry > oldEntries = readEntriesByInode( state );
+				for ( FileInfo fileInfo : directory.containingFiles ) {
+					writeEntry( out, fileInfo, segmentTable, volumeLayout, oldEntries );
+				}
+			}
+			index.sort( ( a, b ) -> a[ 0 ] != b[ 0 ] ? Long.compare( a[ 0 ], b[ 0 ] ) : Long.compare( a[ 1 ], b[ 1 ] ) );
+			int indexOffset = out.size();
+			out.writeInt( index.size() );
+			for ( long[] directory : index ) {
+				out.writeLong( directory[ 0 ] );
+				out.writeLong( directory[ 1 ] );
+				out.writeInt( (int) directory[ 2 ] );
+			}
+			out.writeLong( indexOffset );
+			if ( out.size() == Integer.MAX_VALUE ) {
+				throw new IOException( "Cache is larger than 2 GiB" );
+			}
+		}
+		Files.move( temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		performanceLog.debug( "Extent cache of {} directories saved in {}", index.size(), Utils.asHumanReadableDelay( startTime ) );
+	}
+
+	private void writeEntry(
+			DataOutputStream out, FileInfo fileInfo, SegmentTable segmentTable, VolumeLayout volumeLayout,
+			Map< Long, Entry > oldEntries
+	) throws IOException {
+		boolean directory = fileInfo instanceof DirectoryInfo;
+		long inode = fileInfo.inode;
+		long size = fileInfo.size;
+		long modifiedTime = fileInfo.modifiedTime;
+		long changeTime = fileInfo.changeTime;
+		if ( directory ) {
+			// a subdirectory is known by its state, the one not stat'ed gets no entry to be matched
+			DirectoryState state = states.get( fileInfo );
+			inode = state == null ? -1 : state.inode;
+			size = state == null ? -1 : state.size;
+			modifiedTime = state == null ? -1 : state.modifiedTime;
+			changeTime = state == null ? -1 : state.changeTime;
+		}
+		byte[] name = fileInfo.getNameBytes();
+		out.writeByte( directory ? TYPE_DIRECTORY : TYPE_FILE );
+		out.writeShort( name.length );
+		out.write( name );
+		out.writeLong( inode );
+		out.writeLong( size );
+		out.writeLong( modifiedTime );
+		out.writeLong( changeTime );
+		if ( fileInfo.blockSize > 0 ) {
+			out.writeInt( fileInfo.blockSize );
+			out.writeInt( fileInfo.segmentCount );
+			long startBlock = volumeLayout.getStartBlock( fileInfo, fileInfo.blockSize );
+			for ( int i = 0; i < fileInfo.segmentCount; ++ i ) {
+				int segment = fileInfo.firstSegment + i;
+				out.writeLong( segmentTable.getLogicalOffset( segment ) );
+				out.writeLong( segmentTable.getPhysicalOffset( segment ) - startBlock );
+				out.writeInt( segmentTable.getBlockCount( segment ) );
+				out.writeByte( segmentTable.getFlags( segment ) );
+			}
+			return;
+		}
+		Entry old = oldEntries.get( inode );
+		if ( old != null && old.directory == directory && isSameVersion( old, size, modifiedTime, changeTime )
+				&& old.segmentCount != UNMAPPED ) {
+			out.writeInt( old.blockSize );
+			out.writeInt( old.segmentCount );
+			for ( FileSegment segment : readSegments( old ) ) {
+				out.writeLong( segment.logicalOffset );
+				out.writeLong( segment.physicalOffset );
+				out.writeInt( segment.blockCount );
+				out.writeByte( segment.flags );
+			}
+		} else {
+			out.writeInt( 0 );
+			out.writeInt( UNMAPPED );
+		}
+	}
+
+	void reportStats() {
+		log.info(
+				"Extent cache: {} of {} directory listings and {} of {} extent maps reused",
+				reusedListings.get(), listings.get(), reusedExtentMaps.get(), extentMaps.get()
+		);
+	}
+}
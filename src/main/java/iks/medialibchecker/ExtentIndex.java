@@ -0,0 +1,316 @@
+package iks.medialibchecker;
+
+import java.util.Arrays;
+
+/**
+ * Sorted index of physical block offsets to their owners (files or directories).
+ *
+ * Keys are primitive longs packed into an array along with the owner references (12 bytes per extent with compressed
+ * oops instead of ~100 bytes of boxed map nodes). The same key may have several owners: shared (reflinked) extents,
+ * delayed allocation extents reported at block zero, inline data, etc.
+ *
+ * New entries are appended to an unsorted tail which is merged into the sorted part lazily, when the tail grows
+ * large enough to slow the queries down. Removed entries are marked and dropped by the next merge.
+ * All the methods except cursor ones are synchronized, so the index can be populated by one thread and queried
+ * by another one.
+ */
+class ExtentIndex< T > {
+	/** Returned by key queries when there is no such key */
+	static final long NO_KEY = Long.MIN_VALUE;
+	private static final int INITIAL_CAPACITY = 64;
+	private static final int MIN_TAIL_TO_MERGE = 256;
+
+	private long[] keys = new long[ INITIAL_CAPACITY ];
+	private Object[] owners = new Object[ INITIAL_CAPACITY ];
+	/** Entries [0, sortedSize) are sorted, [sortedSize, size) are the unsorted tail */
+	private int sortedSize;
+	private int size;
+	/** Count of removed entries (with null owner) in the sorted part */
+	private int removedCount;
+
+	synchronized void put( long key, T owner ) {
+		if ( owner == null ) {
+			throw new IllegalArgumentException( "Owner can't be null" );
+		}
+		if ( size == keys.length ) {
+			int capacity = keys.length + ( keys.length >> 1 );
+			keys = Arrays.copyOf( keys, capacity );
+			owners = Arrays.copyOf( owners, capacity );
+		}
+		keys[ size ] = key;
+		owners[ size ] = owner;
+		++ size;
+	}
+
+	synchronized boolean isEmpty() {
+		return size == removedCount;
+	}
+
+	synchronized int size() {
+		return size - removedCount;
+	}
+
+	/** @return the least key greater than or equal to the given one or {@link #NO_KEY} */
+	synchronized long ceilingKey( long key ) {
+		mergeTailIfLarge();
+		long result = NO_KEY;
+		for ( int i = ceilingIndex( key ); i < sortedSize; ++ i ) {
+			if ( owners[ i ] != null ) {
+				result = keys[ i ];
+				break;
+			}
+		}
+		for ( int i = sortedSize; i < size; ++ i ) {
+			if ( keys[ i ] >= key && ( result == NO_KEY || keys[ i ] < result ) ) {
+				result = keys[ i ];
+			}
+		}
+		return result;
+	}
+
+	/** @return the greatest key less than or equal to the given one or {@link #NO_KEY} */
+	synchronized long floorKey( long key ) {
+		mergeTailIfLarge();
+		long result = NO_KEY;
+		for ( int i = ceilingIndex( key + 1 ) - 1; i >= 0; -- i ) {
+			if ( owners[ i ] != null ) {
+				result = keys[ i ];
+				break;
+			}
+		}
+		for ( int i = sortedSize; i < size; ++ i ) {
+			if ( keys[ i ] <= key && ( result == NO_KEY || keys[ i ] > result ) ) {
+				result = keys[ i ];
+			}
+		}
+		return result;
+	}
+
+	/** Removes one of the owners of the key */
+	@SuppressWarnings( "unchecked" )
+	synchronized T remove( long key ) {
+		for ( int i = size - 1; i >= sortedSize; -- i ) {
+			if ( keys[ i ] == key ) {
+				T owner = (T) owners[ i ];
+				-- size;
+				keys[ i ] = keys[ size ];
+				owners[ i ] = owners[ size ];
+				owners[ size ] = null;
+				return owner;
+			}
+		}
+		for ( int i = ceilingIndex( key ); i < sortedSize && keys[ i ] == key; ++ i ) {
+			if ( owners[ i ] != null ) {
+				T owner = (T) owners[ i ];
+				owners[ i ] = null;
+				++ removedCount;
+				return owner;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Removes the owner of the key. Unlike {@link #remove(long)} it picks the given one of several owners.
+	 * @return false if there is no such entry
+	 */
+	synchronized boolean remove( long key, T owner ) {
+		for ( int i = size - 1; i >= sortedSize; -- i ) {
+			if ( keys[ i ] == key && owners[ i ] == owner ) {
+				-- size;
+				keys[ i ] = keys[ size ];
+				owners[ i ] = owners[ size ];
+				owners[ size ] = null;
+				return true;
+			}
+		}
+		for ( int i = ceilingIndex( key ); i < sortedSize && keys[ i ] == key; ++ i ) {
+			if ( owners[ i ] == owner ) {
+				owners[ i ] = null;
+				++ removedCount;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Copies the entries within [from, to) in ascending key order. Unlike the cursor, it may be used while the index
+	 * is populated by another thread.
+	 * @return count of the entries in the range. Just the ones fitting the arrays are copied
+	 */
+	synchronized int copyRange( long from, long to, long[] rangeKeys, Object[] rangeOwners ) {
+		// called often while the tail grows, so the tail is merged lazily and its entries are sorted in the copy
+		mergeTailIfLarge();
+		int count = 0;
+		for ( int i = ceilingIndex( from ); i < sortedSize && keys[ i ] < to; ++ i ) {
+			if ( owners[ i ] != null ) {
+				if ( count < rangeKeys.length ) {
+					rangeKeys[ count ] = keys[ i ];
+					rangeOwners[ count ] = owners[ i ];
+				}
+				++ count;
+			}
+		}
+		int sortedCount = count;
+		for ( int i = sortedSize; i < size; ++ i ) {
+			if ( keys[ i ] >= from && keys[ i ] < to ) {
+				if ( count < rangeKeys.length ) {
+					rangeKeys[ count ] = keys[ i ];
+					rangeOwners[ count ] = owners[ i ];
+				}
+				++ count;
+			}
+		}
+		if ( count > sortedCount && count <= rangeKeys.length ) {
+			sort( rangeKeys, rangeOwners, 0, count - 1 );
+		}
+		return count;
+	}
+
+	/**
+	 * Cursor over all the entries in ascending key order.
+	 * The index shouldn't be modified other than by {@link Cursor#remove()} while the cursor is in use.
+	 */
+	synchronized Cursor cursor() {
+		merge();
+		return new Cursor();
+	}
+
+	class Cursor {
+		private int index = -1;
+
+		boolean next() {
+			do {
+				++ index;
+			} while ( index < sortedSize && owners[ index ] == null );
+			return index < sortedSize;
+		}
+
+		long key() {
+			return keys[ index ];
+		}
+
+		@SuppressWarnings( "unchecked" )
+		T owner() {
+			return (T) owners[ index ];
+		}
+
+		void remove() {
+			synchronized ( ExtentIndex.this ) {
+				owners[ index ] = null;
+				++ removedCount;
+			}
+		}
+	}
+
+	/** @return index of the first sorted entry with key greater than or equal to the given one */
+	private int ceilingIndex( long key ) {
+		int low = 0;
+		int high = sortedSize;
+		while ( low < high ) {
+			int middle = ( low + high ) >>> 1;
+			if ( keys[ middle ] < key ) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/** Keeps the linear scans of the tail and of removed entries about square root of the index size */
+	private void mergeTailIfLarge() {
+		int tailSize = size - sortedSize;
+		if ( ( tailSize > MIN_TAIL_TO_MERGE && (long) tailSize * tailSize > size )
+				|| ( removedCount > MIN_TAIL_TO_MERGE && (long) removedCount * removedCount > size ) ) {
+			merge();
+		}
+	}
+
+	/**
+	 * Sorts the tail, merges it with the sorted part and drops removed entries.
+	 * The merge goes backwards in place, so just the tail is copied aside.
+	 */
+	private void merge() {
+		int tailSize = size - sortedSize;
+		if ( tailSize > 0 ) {
+			sort( keys, owners, sortedSize, size - 1 );
+			if ( sortedSize > 0 ) {
+				long[] tailKeys = Arrays.copyOfRange( keys, sortedSize, size );
+				Object[] tailOwners = Arrays.copyOfRange( owners, sortedSize, size );
+				int sorted = sortedSize - 1;
+				int tail = tailSize - 1;
+				for ( int merged = size - 1; tail >= 0; -- merged ) {
+					if ( sorted >= 0 && keys[ sorted ] > tailKeys[ tail ] ) {
+						keys[ merged ] = keys[ sorted ];
+						owners[ merged ] = owners[ sorted -- ];
+					} else {
+						keys[ merged ] = tailKeys[ tail ];
+						owners[ merged ] = tailOwners[ tail -- ];
+					}
+				}
+			}
+			sortedSize = size;
+		}
+		if ( removedCount > 0 ) {
+			int kept = 0;
+			for ( int i = 0; i < size; ++ i ) {
+				if ( owners[ i ] != null ) {
+					keys[ kept ] = keys[ i ];
+					owners[ kept ++ ] = owners[ i ];
+				}
+			}
+			Arrays.fill( owners, kept, size, null );
+			size = kept;
+			sortedSize = kept;
+			removedCount = 0;
+		}
+	}
+
+	/** Quick sort of keys along with their owners within [from, to] range */
+	private static void sort( long[] keys, Object[] owners, int from, int to ) {
+		while ( to - from > 16 ) {
+			long pivot = median( keys[ from ], keys[ ( from + to ) >>> 1 ], keys[ to ] );
+			int i = from;
+			int j = to;
+			while ( i <= j ) {
+				while ( keys[ i ] < pivot ) {
+					++ i;
+				}
+				while ( keys[ j ] > pivot ) {
+					-- j;
+				}
+				if ( i <= j ) {
+					swap( keys, owners, i ++, j -- );
+				}
+			}
+			// recurse into the smaller part to limit the stack depth
+			if ( j - from < to - i ) {
+				sort( keys, owners, from, j );
+				from = i;
+			} else {
+				sort( keys, owners, i, to );
+				to = j;
+			}
+		}
+		for ( int i = from + 1; i <= to; ++ i ) {
+			for ( int j = i; j > from && keys[ j - 1 ] > keys[ j ]; -- j ) {
+				swap( keys, owners, j - 1, j );
+			}
+		}
+	}
+
+	private static long median( long a, long b, long c ) {
+		return Math.max( Math.min( a, b ), Math.min( Math.max( a, b ), c ) );
+	}
+
+	private static void swap( long[] keys, Object[] owners, int i, int j ) {
+		long key = keys[ i ];
+		keys[ i ] = keys[ j ];
+		keys[ j ] = key;
+		Object owner = owners[ i ];
+		owners[ i ] = owners[ j ];
+		owners[ j ] = owner;
+	}
+}
@@ -6,97 +6,164 @@ import java.io.*;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.locks.*;
-
-import static iks.medialibchecker.ExtentMapScanner.OutputParserState.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
 
 /**
  * File extents (filesystem's file placement map) scanner.
  * File extents are needed to minimize HDD head's movement during file checksum scans to maximize speed of scan.
  * Also file extent maps used to minimize head movements during folder scans.
+ *
+ * Directories listed by the directory reader are mapped by several workers, so a slow provider call (a filefrag
+ * process of a large batch) doesn't hold the others back. The queue is bounded: the reader waits for the workers
+ * when they fall behind. The directories added but not mapped yet are counted atomically, and a worker places the
+ * extents before it counts its batch done, so the reader can't see the scan finished while a batch is being mapped.
  */
-class ExtentMapScanner implements Runnable {
+class ExtentMapScanner {
 	private static final Logger log = LoggerFactory.getLogger( ExtentMapScanner.class );
 	private static final Logger performanceLog = LoggerFactory.getLogger( "performance.ExtentMapScanner" );
-	private static final String FILE_FRAG_UTILITY_COMMAND[] = new String[] { "filefrag", "-e" };
-	private static final String EXTENTS_HEADER = " ext:     logical_offset:        physical_offset: length:   expected: flags:";
-	private static final Integer EXPECTED_SEGMENTS_COUNT = 4;
-
-	enum  OutputParserState {
-		LOOKING_FOR_FILE_HEADER,
-		BYPASS_EXTENTS_HEADER,
-		READING_EXTENTS
-	}
+	static final int DEFAULT_WORKER_COUNT = 2;
 
 	/** Result extent map for directories */
-	private ConcurrentSkipListMap< Integer, DirectoryInfo > directoryExtentMap;
+	private ExtentIndex< DirectoryInfo > directoryExtentMap;
 
 	/**
-	 * Directories count that can be still processed.
-	 * If zero then all supplied directories has been processed and the results (if any) has been returned.
+	 * Directories added but not mapped yet.
+	 * If zero then all added directories has been processed and the results (if any) are in the extent maps.
 	 **/
-	private volatile int toBeProcessed;
+	private final AtomicInteger toBeProcessed = new AtomicInteger();
 
 	/** Result extent map for non-directory files */
-	private TreeMap< Integer, FileInfo > fileExtentMap;
+	private ExtentIndex< FileInfo > fileExtentMap;
+	/** Extents of all the mapped files */
+	private final SegmentTable segmentTable;
+	/** Largest extent of the mapped files and directories in bytes. Gathered as the workers place them */
+	private final LongAccumulator maxExtentSize = new LongAccumulator( Math::max, 0 );
+
+	/** Directories mapped by a single provider call at most. Queued directories are batched for the providers like filefrag */
+	private static final int MAX_BATCH_DIRECTORIES = 256;
+	private static final int QUEUE_CAPACITY = 4 * MAX_BATCH_DIRECTORIES;
 
 	/** Queue of directories for allocation map to be read */
-	private LinkedBlockingQueue< DirectoryInfo > directoriesToBeProcessed = new LinkedBlockingQueue<>();
+	private final ArrayBlockingQueue< DirectoryInfo > directoriesToBeProcessed = new ArrayBlockingQueue<>( QUEUE_CAPACITY );
 
-	private ReentrantLock lock;
-	private Condition directoriesProcessedCondition;
-	private Path rootDirectory;
+	private final List< Path > rootPaths;
+	private final ExtentProvider extentProvider;
+	/** Moves the extent maps of the filesystems sharing the disk to its scale */
+	private final VolumeLayout volumeLayout;
+	/** Decides whether non-directory file is to be placed in file extent map for hashing */
+	private final Predicate< FileInfo > hashingFilter;
+	private final DeviceMetrics metrics;
+	/** Whether the listings are dropped once mapped, so just the files waiting for hashing stay in memory */
+	private final boolean releaseListings;
+	private final Thread[] workers;
+	/** The directory reader woken up by the workers when their batch is placed */
+	private Thread reader;
 
 	ExtentMapScanner(
-			Path rootDirectory,
-			ConcurrentSkipListMap< Integer, DirectoryInfo > directoryExtentMap,
-			TreeMap< Integer, FileInfo > fileExtentMap,
-			ReentrantLock lock,
-			Condition directoriesProcessedCondition ) {
-		this.rootDirectory = rootDirectory;
+			List< Path > rootPaths,
+			ExtentProvider extentProvider,
+			VolumeLayout volumeLayout,
+			Predicate< FileInfo > hashingFilter,
+			ExtentIndex< DirectoryInfo > directoryExtentMap,
+			ExtentIndex< FileInfo > fileExtentMap,
+			SegmentTable segmentTable,
+			int workerCount,
+			boolean releaseListings,
+			DeviceMetrics metrics ) {
+		if ( workerCount < 1 ) {
+			throw new IllegalArgumentException( "Extent worker count should be positive" );
+		}
+		this.rootPaths = rootPaths;
+		this.extentProvider = extentProvider;
+		this.volumeLayout = volumeLayout;
+		this.hashingFilter = hashingFilter;
 		this.fileExtentMap = fileExtentMap;
+		this.segmentTable = segmentTable;
 		this.directoryExtentMap = directoryExtentMap;
-		this.directoriesProcessedCondition = directoriesProcessedCondition;
-		this.lock = lock;
+		this.metrics = metrics;
+		this.releaseListings = releaseListings;
+		workers = new Thread[ workerCount ];
+	}
+
+	/** Starts the workers. The calling thread becomes the directory reader */
+	void start( String name ) {
+		reader = Thread.currentThread();
+		for ( int i = 0; i < workers.length; ++ i ) {
+			workers[ i ] = new Thread( this::work );
+			workers[ i ].setName( workers.length == 1 ? name : name + "-" + i );
+			workers[ i ].start();
+		}
+	}
+
+	/** Stops the workers. The ones busy with a provider call finish it first */
+	void stop() {
+		for ( Thread worker : workers ) {
+			worker.interrupt();
+		}
+	}
+
+	/** Queues the listed directory. Waits while the queue is full */
+	void addDirectory( DirectoryInfo directory ) throws InterruptedException {
+		toBeProcessed.incrementAndGet();
+		try {
+			directoriesToBeProcessed.put( directory );
+		} catch ( InterruptedException ie ) {
+			toBeProcessed.decrementAndGet();
+			throw ie;
+		}
 	}
 
-	void addDirectory( DirectoryInfo directory ) {
-		++ toBeProcessed;
-		directoriesToBeProcessed.offer( directory );   // nonblocking method as we didn't restrict queue size
+	/** @return largest extent mapped so far in bytes */
+	long getMaxExtentSize() {
+		return maxExtentSize.get();
 	}
 
-	boolean isIdle() {
-		return toBeProcessed == 0;
+	/**
+	 * Waits until the directory extent map has a directory to be read. Called by the reader only.
+	 * @return false if all the added directories are mapped and the directory extent map is drained
+	 */
+	boolean awaitDirectory() throws InterruptedException {
+		while ( true ) {
+			// the counter is read first: the directories it doesn't count anymore are in the map already
+			boolean idle = toBeProcessed.get() == 0;
+			if ( ! directoryExtentMap.isEmpty() ) {
+				return true;
+			}
+			if ( idle ) {
+				return false;
+			}
+			// a worker done after the check leaves the permit, so the wake up isn't lost
+			LockSupport.park( this );
+			if ( Thread.interrupted() ) {
+				throw new InterruptedException();
+			}
+		}
 	}
 
-	@Override
-	public void run() {
-		log.debug( "Extent map scanner thread started" );
+	private void work() {
+		log.debug( "Extent map worker started" );
+		ArrayList< DirectoryInfo > batch = new ArrayList<>( MAX_BATCH_DIRECTORIES );
 		try {
 			do {
-				DirectoryInfo directory = directoriesToBeProcessed.poll();
-				if ( directory == null ) {
-					// signal to producer thread that we going to sleep.
-					// If it already sleeps (due to absence of new directories)
-					// then it should wake up and interrupt this thread
-					log.trace( "No more directories. Notifying directory scan thread" );
-					lock.lock();
-					try {
-						directoriesProcessedCondition.signalAll();
-					} finally {
-						lock.unlock();
-					}
-					directory = directoriesToBeProcessed.take();
-				}
+				DirectoryInfo directory = directoriesToBeProcessed.take();
+				batch.add( directory );
+				// the queued directories are shared by the workers rather than taken by the first one
+				directoriesToBeProcessed.drainTo(
+						batch, Math.min( MAX_BATCH_DIRECTORIES - 1, directoriesToBeProcessed.size() / workers.length )
+				);
 				try {
-					runExternalFileMappingCommand(directory);
+					mapDirectoryExtents( batch );
 				} catch ( IOException ioe ) {
-					log.error( String.format( "I/O error processing directory \"%s\"", directory.file.getPath() ), ioe );
+					log.error( String.format( "I/O error processing directory \"%s\"%s", directory.getPath(), getBatchSuffix( batch ) ), ioe );
 				} catch ( Throwable th ) {
-					log.error( String.format( "Error processing firectory \"%s\"", directory.file.getPath() ), th );
+					log.error( String.format( "Error processing directory \"%s\"%s", directory.getPath(), getBatchSuffix( batch ) ), th );
 				}
 				finally {
-					-- toBeProcessed;
+					toBeProcessed.addAndGet( - batch.size() );
+					batch.clear();
+					LockSupport.unpark( reader );
 				}
 			} while ( ! Thread.interrupted() );
 		} catch ( InterruptedException ignore ) {
@@ -105,152 +172,98 @@ class ExtentMapScanner implements Runnable {
 		}
 	}
 
-	private String getCommand() {
-		return String.join( " " , (CharSequence[]) FILE_FRAG_UTILITY_COMMAND);
+	private static String getBatchSuffix( List< DirectoryInfo > batch ) {
+		return batch.size() > 1 ? " (batch of " + batch.size() + " directories)" : "";
 	}
 
-	private void runExternalFileMappingCommand(DirectoryInfo directory) throws IOException {
-		if ( directory.containingFiles == null ) {
-			log.trace( "'{}' is an empty directory", directory.file.getPath() );
+	private void mapDirectoryExtents( List< DirectoryInfo > batch ) throws IOException {
+		int fileCount = 0;
+		ArrayList< DirectoryInfo > nonEmptyDirectories = new ArrayList<>( batch.size() );
+		for ( DirectoryInfo directory : batch ) {
+			if ( directory.containingFiles == null || directory.containingFiles.isEmpty() ) {
+				if ( log.isTraceEnabled() ) {
+					log.trace( "'{}' is an empty directory", directory.getPath() );
+				}
+			} else {
+				nonEmptyDirectories.add( directory );
+				fileCount += directory.containingFiles.size();
+			}
+		}
+		if ( nonEmptyDirectories.isEmpty() ) {
 			return;
 		}
-		log.trace( "Scanning extent map for '{}'", directory.file.getPath() );
-		long startTime = System.nanoTime();
-		HashMap< String, FileInfo > filesMap = new HashMap<>( directory.containingFiles.size() );
-		String[] commandLine = new String[ FILE_FRAG_UTILITY_COMMAND.length + directory.containingFiles.size() ];
-		{
-			System.arraycopy( FILE_FRAG_UTILITY_COMMAND, 0, commandLine, 0, FILE_FRAG_UTILITY_COMMAND.length );
-			int i = FILE_FRAG_UTILITY_COMMAND.length;
-			for ( FileInfo fileInfo : directory.containingFiles ) {
-				filesMap.put( fileInfo.getName(), fileInfo );
-				commandLine[ i ++ ] = fileInfo.getName();
-			}
+		if ( log.isTraceEnabled() ) {
+			log.trace( "Scanning extent map for '{}'{}", batch.get( 0 ).getPath(), getBatchSuffix( batch ) );
 		}
-		ProcessBuilder builder = new ProcessBuilder( commandLine );
-		builder.redirectError( ProcessBuilder.Redirect.to( new File( "logs/filefrag.error.log" ) ) );
-		builder.directory( directory.file );
-		log.trace( "Starting filefrag for '{}'", directory.file.getName() );
-		Process process = builder.start();
-		BufferedReader in = new BufferedReader( new InputStreamReader( process.getInputStream() ) );
-		String str = null;
-		OutputParserState state = OutputParserState.LOOKING_FOR_FILE_HEADER;
-		String fileName = null;
-		int blockSize = 0;
-		ArrayList< FileSegment > segments = null;
-		try {
-			while ((str = in.readLine()) != null) {
-				switch (state) {
-					case LOOKING_FOR_FILE_HEADER:
-						if (!str.startsWith("File size of ")) {
-							continue;
-						}
-						fileName = str.substring("File size of ".length(), str.lastIndexOf(" is "));
-						if (!str.endsWith(" bytes)")) {
-							throw new IllegalStateException(
-									"File size header of " + getCommand() +
-											" should ends with 'NNNN bytes)' but ends as:\n" + str
-							);
-						}
-						log.trace("Found file name \"{}\" in output", fileName);
-						blockSize = Integer.parseInt(
-								str.substring(
-										str.lastIndexOf(" of ") + " of ".length(),
-										str.lastIndexOf(' ')
-								)
-						);
-						log.trace("Block size for file \"{}\" is {}", fileName, blockSize);
-						state = BYPASS_EXTENTS_HEADER;
-						break;
-					case BYPASS_EXTENTS_HEADER:
-						if (!EXTENTS_HEADER.equals(str)) {
-							throw new IllegalStateException(
-									"File extents header of " + getCommand() +
-											" should be '" + EXTENTS_HEADER + "' but actually is:\n"
-											+ str
-							);
-						}
-						state = READING_EXTENTS;
-						segments = new ArrayList<>(EXPECTED_SEGMENTS_COUNT);
-						break;
-					case READING_EXTENTS:
-						if (str.startsWith(fileName)) {
-							if (!str.endsWith(" found")) {
-								throw new IllegalStateException(
-										"File extents bottomline of " + getCommand() +
-												" should ends with ' found' but ends as:\n"
-												+ str
-								);
-							}
-							FileInfo fileInfo = filesMap.get(fileName);
-							if (fileInfo == null) {
-								throw new IllegalStateException(
-										"Internal error. Unexpected file in output of " + getCommand() +
-												": '" + fileName + "'"
-								);
-							}
-							fileInfo.setBlockSize(blockSize);
-							// sort IN REVERSE logical block sequence order
-							Collections.sort(segments, (x, y) -> y.logicalOffset - x.logicalOffset );
-							fileInfo.setExtentMap(segments);
-							if (fileInfo.file.isDirectory()) {
-								// place directory in extent map
-								log.trace(
-										"Adding directory \"{}\" (extents {}:{}) to extent map",
-										fileInfo.getName(),
-										segments.get(segments.size() - 1).physicalOffset,
-										segments.get(0).physicalOffset
-								);
-								directoryExtentMap.put(segments.get(segments.size() - 1).physicalOffset, (DirectoryInfo) fileInfo);
-							} else {
-								// place general file in extent map
-								log.trace(
-										"Adding file \"{}\" ({} extents) to extent map",
-										fileInfo.getName(),
-										segments.size()
-								);
-								for (FileSegment fileSegment : segments) {
-									fileExtentMap.put(fileSegment.physicalOffset, fileInfo);
-								}
-							}
-							state = OutputParserState.LOOKING_FOR_FILE_HEADER;
-							break;
-						}
-						String[] fields = str.split("[ :.]+");
-						if (fields.length < 6) {
-							throw new IllegalStateException(
-									"No enought fields in extent map of " + getCommand() +
-											". Should be at least 5, but actual output is:\n"
-											+ str
-							);
-						}
-						try {
-							segments.add(new FileSegment(
-											Integer.parseInt(fields[2]),
-											Integer.parseInt(fields[4]),
-											Integer.parseInt(fields[6])
-									)
-							);
-						} catch (NumberFormatException nfe) {
-							throw new IllegalStateException(
-									"Unexpected extent description format in output of " + getCommand() +
-											". The line is:\n"
-											+ str
-							);
-						}
-				}
+		long startTime = System.nanoTime();
+		extentProvider.mapExtents( nonEmptyDirectories, this::placeFile );
+		metrics.extentMapLatency.record( System.nanoTime() - startTime );
+		if ( releaseListings ) {
+			// the placed files are referred by the extent maps, the others aren't needed any more
+			for ( DirectoryInfo directory : nonEmptyDirectories ) {
+				directory.containingFiles = null;
 			}
-		} catch ( Throwable th ) {
-			throw new IllegalStateException( String.format( "Error parsing filefrag output string \"%s\"", str ), th );
 		}
 		if ( performanceLog.isDebugEnabled() ) {
-			Path directoryPath = directory.file.toPath();
 			performanceLog.debug(
-					"Extent map for {} files in directory \"{}\" aquired in {}",
-					directory.containingFiles.size(),
-					directoryPath.equals( rootDirectory ) ? directoryPath : rootDirectory.relativize( directoryPath ),
+					"Extent map for {} files in directory \"{}\"{} aquired by {} in {}",
+					fileCount,
+					Utils.relativize( rootPaths, nonEmptyDirectories.get( 0 ).toPath() ),
+					getBatchSuffix( batch ),
+					extentProvider.getName(),
 					Utils.asHumanReadableDelay(startTime)
 			);
 		}
-		// do not wait for process to finish (if it didn't yet)
+	}
+
+	/** Places file with just acquired extent map to the directory or file extent map */
+	private void placeFile( FileInfo fileInfo, int blockSize, List< FileSegment > segments ) {
+		// sort in logical block sequence order
+		Collections.sort(segments, (x, y) -> Long.compare( x.logicalOffset, y.logicalOffset ) );
+		long startBlock = volumeLayout.getStartBlock( fileInfo, blockSize );
+		if ( startBlock != 0 ) {
+			for ( FileSegment segment : segments ) {
+				segment.physicalOffset += startBlock;
+			}
+		}
+		if ( fileInfo instanceof DirectoryInfo ) {
+			setExtentMap( fileInfo, blockSize, segments );
+			// place directory in extent map. Directories without extents (inline ones) are read first
+			long firstBlock = segments.isEmpty() ? 0 : segments.get( 0 ).physicalOffset;
+			if ( log.isTraceEnabled() ) {
+				log.trace(
+						"Adding directory \"{}\" (extents {}:{}) to extent map",
+						fileInfo.getName(),
+						firstBlock,
+						segments.isEmpty() ? 0 : segments.get( segments.size() - 1 ).physicalOffset
+				);
+			}
+			directoryExtentMap.put( firstBlock, (DirectoryInfo) fileInfo );
+		} else if ( hashingFilter.test( fileInfo ) ) {
+			setExtentMap( fileInfo, blockSize, segments );
+			// place general file in extent map
+			if ( log.isTraceEnabled() ) {
+				log.trace(
+						"Adding file \"{}\" ({} extents) to extent map",
+						fileInfo.getName(),
+						segments.size()
+				);
+			}
+			long blocks = 0;
+			for (FileSegment fileSegment : segments) {
+				fileExtentMap.put(fileSegment.physicalOffset, fileInfo);
+				blocks += fileSegment.blockCount;
+			}
+			metrics.extentsPlaced( blocks * blockSize );
+		}
+	}
+
+	private void setExtentMap( FileInfo fileInfo, int blockSize, List< FileSegment > segments ) {
+		fileInfo.setExtentMap( blockSize, segmentTable.add( segments ), segments.size() );
+		int maxBlockCount = 0;
+		for ( FileSegment segment : segments ) {
+			maxBlockCount = Math.max( maxBlockCount, segment.blockCount );
+		}
+		maxExtentSize.accumulate( (long) maxBlockCount * blockSize );
 	}
 }
@@ -0,0 +1,53 @@
+package iks.medialibchecker;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Source of file extent maps (filesystem's file placement map).
+ * Implementations pass block size and extent map of every file of the directory to the consumer.
+ * Files which extent map can't be acquired are just skipped.
+ */
+interface ExtentProvider {
+	/**
+	 * Receives extent map of a file. Extents may come in any order.
+	 * The segments may be reused by the provider after the call, so they are to be copied rather than kept.
+	 */
+	interface ExtentConsumer {
+		void accept( FileInfo fileInfo, int blockSize, List< FileSegment > segments );
+	}
+
+	void mapExtents( DirectoryInfo directory, ExtentConsumer consumer ) throws IOException;
+
+	/** Maps files of several directories. Providers with a large fixed cost per call map them at once */
+	default void mapExtents( List< DirectoryInfo > directories, ExtentConsumer consumer ) throws IOException {
+		for ( DirectoryInfo directory : directories ) {
+			mapExtents( directory, consumer );
+		}
+	}
+
+	/** Short provider name for logs and command line */
+	String getName();
+
+	/**
+	 * Creates provider by its name.
+	 * "auto" means native FIEMAP provider if it's available on the platform or filefrag otherwise.
+	 */
+	static ExtentProvider create( String name, int filefragProcesses ) {
+		switch ( name ) {
+			case FilefragExtentProvider.NAME:
+				return new FilefragExtentProvider( filefragProcesses );
+			case FiemapExtentProvider.NAME:
+				if ( ! FiemapExtentProvider.isAvailable() ) {
+					throw new IllegalArgumentException( "FIEMAP extent provider isn't available on this platform" );
+				}
+				return new FiemapExtentProvider( new FilefragExtentProvider( filefragProcesses ) );
+			case "auto":
+				return FiemapExtentProvider.isAvailable()
+						? new FiemapExtentProvider( new FilefragExtentProvider( filefragProcesses ) )
+						: new FilefragExtentProvider( filefragProcesses );
+			default:
+				throw new IllegalArgumentException( "Unknown extent provider '" + name + "'" );
+		}
+	}
+}
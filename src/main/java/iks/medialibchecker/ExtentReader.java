@@ -0,0 +1,481 @@
+package iks.medialibchecker;
+
+import org.slf4j.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static iks.medialibchecker.Utils.getFileSizeNice;
+
+/**
+ * Reads file extents by chunks of the read size into pooled buffers and passes them to {@link HashPipeline}.
+ * Runs on the device scanner thread, so the device is read in physical order by the single thread. The pool limits
+ * the content in flight: the reader waits for a free buffer when the hashing lags behind.
+ *
+ * Extents smaller than the read size are collected into a run sharing the single buffer, so small files don't take
+ * a buffer each. With raw device reads enabled a run of physically contiguous extents (files laid out back to back)
+ * is read from the block device by the single read. Otherwise every extent of the run is read through its file.
+ * An {@link IoThrottle} paces the reads and shortens them while the device is busy with other I/O.
+ */
+class ExtentReader {
+	private static final Logger log = LoggerFactory.getLogger( ExtentReader.class );
+	private static final Logger performanceLog = LoggerFactory.getLogger( "performance.ExtentReader" );
+	static final int DEFAULT_READ_SIZE = 4 << 20;
+
+	/** Pooled buffer shared by the chunks read into it. Returns to the pool when all of them are hashed */
+	static class PooledBuffer {
+		final ByteBuffer buffer;
+		private final BlockingQueue< PooledBuffer > pool;
+		private final AtomicInteger users = new AtomicInteger();
+
+		private PooledBuffer( ByteBuffer buffer, BlockingQueue< PooledBuffer > pool ) {
+			this.buffer = buffer;
+			this.pool = pool;
+		}
+
+		void retain() {
+			users.incrementAndGet();
+		}
+
+		void release() {
+			if ( users.decrementAndGet() == 0 ) {
+				pool.offer( this );
+			}
+		}
+	}
+
+	/** Extent waiting in the run to be read */
+	private static class RunExtent {
+		final FileInfo fileInfo;
+		final FileInfo.HashState state;
+		final long position;
+		final int length;
+		/** Offset of the extent in the run buffer */
+		final int offset;
+		/** Position on the disk scale of the {@link VolumeLayout} */
+		final long devicePosition;
+
+		RunExtent( FileInfo fileInfo, FileInfo.HashState state, long position, int length, int offset, long devicePosition ) {
+			this.fileInfo = fileInfo;
+			this.state = state;
+			this.position = position;
+			this.length = length;
+			this.offset = offset;
+			this.devicePosition = devicePosition;
+		}
+	}
+
+	private final HashPipeline pipeline;
+	private final ReadEngine readEngine;
+	private final int readSize;
+	/** Null if raw device reads are disabled */
+	private final BlockDevices blockDevices;
+	/** Scale of the device positions: the disk of all the roots */
+	private final VolumeLayout volumeLayout;
+	private final DeviceMetrics metrics;
+	/** Null if the reads are not throttled */
+	private final IoThrottle throttle;
+	private BlockingQueue< PooledBuffer > pool;
+	/** Gets the files read to the end or given up on or null */
+	private Consumer< FileInfo > finishedListener;
+
+	private final ArrayList< RunExtent > run = new ArrayList<>();
+	/** Bytes of the run buffer taken by the extents */
+	private int runLength;
+	/** Filesystem device of the run or null if the run is read through the files */
+	private Long runDevice;
+	/** Device position of the run start and end. Makes sense for raw run only */
+	private long runStart;
+	private long runEnd;
+	/** Start of the filesystem device of the raw run on the disk scale */
+	private long runDeviceStart;
+
+	/** Devices of the scan roots */
+	private final IdentityHashMap< FileInfo, Long > rootDevices = new IdentityHashMap<>();
+	/** Opened block devices. Null value means the device can't be read raw */
+	private final HashMap< Long, ReadEngine.ReadFile > rawDevices = new HashMap<>();
+	private final HashMap< Long, Path > deviceNodes = new HashMap<>();
+
+	/**
+	 * @param blockDevices to find the devices for the raw reads of contiguous extents or null to read the files only
+	 * @param volumeLayout layout the extent maps of the roots are moved by
+	 * @param throttle governor of the reads or null to read at full speed
+	 */
+	ExtentReader(
+			HashPipeline pipeline, ReadEngine readEngine, int readSize, BlockDevices blockDevices,
+			VolumeLayout volumeLayout, DeviceMetrics metrics, IoThrottle throttle
+	) {
+		this.pipeline = pipeline;
+		this.readEngine = readEngine;
+		this.readSize = readSize;
+		this.blockDevices = blockDevices;
+		this.volumeLayout = volumeLayout;
+		this.metrics = metrics;
+		this.throttle = throttle;
+	}
+
+	HashPipeline getPipeline() {
+		return pipeline;
+	}
+
+	DeviceMetrics getMetrics() {
+		return metrics;
+	}
+
+	VolumeLayout getVolumeLayout() {
+		return volumeLayout;
+	}
+
+	/** @return whether contiguous extents are read from the raw device rather than through the files */
+	boolean isRawDevice() {
+		return blockDevices != null;
+	}
+
+	IoThrottle getThrottle() {
+		return throttle;
+	}
+
+	/**
+	 * @param finishedListener gets every file once when all its extents are read or the file fails, which may happen
+	 *                         while the run of other files is read
+	 */
+	void setFinishedListener( Consumer< FileInfo > finishedListener ) {
+		this.finishedListener = finishedListener;
+	}
+
+	/**
+	 * Reads extents of the file placed at the physical block.
+	 * Stream mode reads the next extent of the file only, tree mode reads all the extents sharing the block.
+	 * Small extents may stay in the run until {@link #flush()}.
+	 */
+	void readExtents( FileInfo fileInfo, SegmentTable segments, long physicalOffset ) throws IOException, InterruptedException {
+		if ( fileInfo.isExtentsRead() ) {
+			return;
+		}
+		FileInfo.HashState state = fileInfo.getHashState();
+		if ( state != null && state.failed ) {
+			// failed by the hashing, which can't finish the file itself
+			finish( fileInfo );
+			return;
+		}
+		if ( state == null ) {
+			// captured along with the directory listing, so it's normally no extra stat
+			try {
+				fileInfo.readAttributes();
+			} catch ( IOException ioe ) {
+				// the rest of the extents is dropped by the scanner
+				finish( fileInfo );
+				throw ioe;
+			}
+			state = fileInfo.startHashing(
+					pipeline.getHashMode(), pipeline.getDigests(), fileInfo.size, pipeline.assignWorker()
+			);
+			state.maxExtentSize = fileInfo.getMaxExtentSize( segments );
+		}
+		if ( state.readSegments == null ) {
+			readSegment( fileInfo, state, segments, fileInfo.firstSegment + state.nextExtentIndex );
+			++ state.nextExtentIndex;
+		} else {
+			for ( int i = 0; i < fileInfo.segmentCount; ++ i ) {
+				if ( segments.getPhysicalOffset( fileInfo.firstSegment + i ) == physicalOffset && ! state.readSegments.get( i ) ) {
+					state.readSegments.set( i );
+					readSegment( fileInfo, state, segments, fileInfo.firstSegment + i );
+				}
+			}
+		}
+		int extentsRead = state.readSegments == null ? state.nextExtentIndex : state.readSegments.cardinality();
+		if ( extentsRead == fileInfo.segmentCount ) {
+			finish( fileInfo );
+		}
+	}
+
+	private void readSegment(
+			FileInfo fileInfo, FileInfo.HashState state, SegmentTable segments, int segmentIndex
+	) throws IOException, InterruptedException {
+		long position = segments.getLogicalOffset( segmentIndex ) * fileInfo.blockSize;
+		long blocksLength = (long) segments.getBlockCount( segmentIndex ) * fileInfo.blockSize;
+		metrics.extentDone( blocksLength );
+		// the last extent ends up with the file end rather than with the block end
+		long extentEnd = Math.min( state.size, position + blocksLength );
+		if ( extentEnd <= position ) {
+			return;
+		}
+		long devicePosition = segments.getPhysicalOffset( segmentIndex ) * fileInfo.blockSize;
+		int maxReadLength = getMaxReadLength();
+		if ( blocksLength > maxReadLength || ! readEngine.readsIntoBuffer() ) {
+			flush();
+			readLargeSegment( fileInfo, state, position, extentEnd, devicePosition );
+			return;
+		}
+		Long device = ( segments.getFlags( segmentIndex ) & FileSegment.FLAG_NOT_RAW ) == 0 ? getRawDevice( fileInfo ) : null;
+		// slots are aligned to the block, so the direct reads into them are aligned too
+		int slotLength = (int) ( ( blocksLength + DirectReadEngine.ALIGNMENT - 1 ) / DirectReadEngine.ALIGNMENT * DirectReadEngine.ALIGNMENT );
+		boolean joinsRun = run.isEmpty() || ( Objects.equals( device, runDevice ) && ( device == null || devicePosition == runEnd ) );
+		if ( ! joinsRun || runLength + slotLength > maxReadLength ) {
+			flush();
+		}
+		if ( run.isEmpty() ) {
+			runDevice = device;
+			runStart = devicePosition;
+			runEnd = devicePosition;
+			runDeviceStart = volumeLayout.getStartBlock( fileInfo, fileInfo.blockSize ) * fileInfo.blockSize;
+		}
+		// raw run extents are placed by their device position
+		int offset = runDevice != null ? (int) ( devicePosition - runStart ) : runLength;
+		run.add( new RunExtent( fileInfo, state, position, (int) ( extentEnd - position ), offset, devicePosition ) );
+		runLength = runDevice != null ? (int) ( devicePosition + blocksLength - runStart ) : runLength + slotLength;
+		runEnd = devicePosition + blocksLength;
+	}
+
+	/** Reads the extent by chunks of the read size into buffers of its own */
+	private void readLargeSegment(
+			FileInfo fileInfo, FileInfo.HashState state, long position, long extentEnd, long devicePosition
+	) throws IOException, InterruptedException {
+		long startTime = System.nanoTime();
+		long extentStart = position;
+		// the file is opened for the extent only, so files fragmented over the whole disk don't hold file descriptors
+		try ( ReadEngine.ReadFile file = readEngine.open( fileInfo.toPath() ) ) {
+			while ( position < extentEnd ) {
+				int length = (int) Math.min( getMaxReadLength(), extentEnd - position );
+				PooledBuffer pooled = takeBuffer();
+				ByteBuffer content;
+				long readTime;
+				try {
+					acquire( length );
+					long readStartTime = System.nanoTime();
+					try {
+						content = file.read( position, length, pooled.buffer );
+					} finally {
+						readTime = System.nanoTime() - readStartTime;
+						readDone( length, readTime );
+					}
+				} catch ( IOException | InterruptedException e ) {
+					pooled.release();
+					throw e;
+				}
+				metrics.recordRead( devicePosition + position - extentStart, length, readTime );
+				submit( fileInfo, state, position, content, pooled );
+				pooled.release();
+				position += length;
+			}
+		} catch ( IOException ioe ) {
+			fail( fileInfo, state );
+			throw ioe;
+		}
+		if ( performanceLog.isDebugEnabled() ) {
+			logRead( fileInfo.getName(), extentEnd - extentStart, startTime );
+		}
+	}
+
+	/** Reads the collected run */
+	void flush() throws InterruptedException {
+		if ( run.isEmpty() ) {
+			return;
+		}
+		long startTime = System.nanoTime();
+		PooledBuffer pooled = takeBuffer();
+		try {
+			boolean rawRead = false;
+			if ( runDevice != null ) {
+				acquire( runLength );
+				long readStartTime = System.nanoTime();
+				try {
+					rawDevices.get( runDevice ).read( runStart - runDeviceStart, runLength, pooled.buffer );
+					metrics.recordRead( runStart, runLength, System.nanoTime() - readStartTime );
+					rawRead = true;
+				} catch ( IOException ioe ) {
+					log.warn( String.format( "Raw read of device %s failed. Reading the files", deviceNodes.get( runDevice ) ), ioe );
+				} finally {
+					readDone( runLength, System.nanoTime() - readStartTime );
+				}
+			}
+			ReadEngine.ReadFile file = null;
+			FileInfo openedFile = null;
+			for ( RunExtent extent : run ) {
+				if ( extent.state.failed ) {
+					continue;
+				}
+				ByteBuffer slice = pooled.buffer.duplicate();
+				slice.limit( extent.offset + ( rawRead ? extent.length : pooled.buffer.capacity() - extent.offset ) );
+				slice.position( extent.offset );
+				slice = slice.slice();
+				if ( ! rawRead ) {
+					try {
+						if ( openedFile != extent.fileInfo ) {
+							closeQuietly( file );
+							file = null;
+							openedFile = extent.fileInfo;
+							file = readEngine.open( extent.fileInfo.toPath() );
+						}
+						acquire( extent.length );
+						long readStartTime = System.nanoTime();
+						long readTime;
+						try {
+							slice = file.read( extent.position, extent.length, slice );
+						} finally {
+							readTime = System.nanoTime() - readStartTime;
+							readDone( extent.length, readTime );
+						}
+						metrics.recordRead( extent.devicePosition, extent.length, readTime );
+					} catch ( IOException ioe ) {
+						fail( extent.fileInfo, extent.state );
+						log.error( String.format( "Error while reading %s", extent.fileInfo.getPath() ), ioe );
+						continue;
+					}
+				}
+				submit( extent.fileInfo, extent.state, extent.position, slice, pooled );
+			}
+			closeQuietly( file );
+			if ( performanceLog.isDebugEnabled() ) {
+				logRead( run.size() + ( rawRead ? " raw extents" : " extents" ), runLength, startTime );
+			}
+		} finally {
+			pooled.release();
+			run.clear();
+			runLength = 0;
+			runDevice = null;
+		}
+	}
+
+	/** Closes opened block devices */
+	void close() {
+		for ( ReadEngine.ReadFile device : rawDevices.values() ) {
+			closeQuietly( device );
+		}
+		rawDevices.clear();
+	}
+
+	private void submit(
+			FileInfo fileInfo, FileInfo.HashState state, long position, ByteBuffer content, PooledBuffer pooled
+	) throws InterruptedException {
+		pooled.retain();
+		try {
+			pipeline.submit( new HashPipeline.Chunk( fileInfo, state, position, content, pooled ) );
+		} catch ( InterruptedException ie ) {
+			pooled.release();
+			throw ie;
+		}
+	}
+
+	/**
+	 * Gives up on the file. It is finished as if all its extents were read, so the scanner drops the rest of them
+	 * and extents waiting in the run are skipped by the failed state
+	 */
+	private void fail( FileInfo fileInfo, FileInfo.HashState state ) {
+		if ( state.markFailed() ) {
+			finish( fileInfo );
+			pipeline.fileFailed( fileInfo, state );
+		}
+	}
+
+	/** Finishes the file unless the last extent of it has been taken before the run failed */
+	private void finish( FileInfo fileInfo ) {
+		if ( fileInfo.isExtentsRead() ) {
+			return;
+		}
+		fileInfo.finishReading();
+		if ( finishedListener != null ) {
+			finishedListener.accept( fileInfo );
+		}
+	}
+
+	/** @return the read size unless the throttle shortens the reads */
+	private int getMaxReadLength() {
+		return throttle == null ? readSize : Math.min( readSize, throttle.getReadLength() );
+	}
+
+	private void acquire( long length ) throws InterruptedException {
+		if ( throttle != null ) {
+			throttle.acquire( length );
+		}
+	}
+
+	private void readDone( long length, long nanos ) {
+		if ( throttle != null ) {
+			throttle.readDone( length, nanos );
+		}
+	}
+
+	/** @return buffer retained by the caller */
+	private PooledBuffer takeBuffer() throws InterruptedException {
+		if ( pool == null ) {
+			// enough to keep all the workers busy while the next buffer is read
+			int bufferCount = 2 * pipeline.getWorkerCount() + 1;
+			pool = new ArrayBlockingQueue<>( bufferCount );
+			for ( int i = 0; i < bufferCount; ++ i ) {
+				pool.add( new PooledBuffer( readEngine.allocateBuffer( readSize ), pool ) );
+			}
+		}
+		PooledBuffer pooled = pool.take();
+		pooled.retain();
+		return pooled;
+	}
+
+	/** @return filesystem device of the file if it can be read raw or null */
+	private Long getRawDevice( FileInfo fileInfo ) {
+		if ( blockDevices == null ) {
+			return null;
+		}
+		FileInfo root = fileInfo;
+		while ( root.parent != null ) {
+			root = root.parent;
+		}
+		Long device = rootDevices.get( root );
+		if ( device == null ) {
+			try {
+				device = BlockDevices.getDeviceId( root.toPath() );
+			} catch ( IOException ioe ) {
+				log.warn( String.format( "Can't get device of '%s'. Reading it through the files", root.getPath() ), ioe );
+				device = -1L;
+			}
+			rootDevices.put( root, device );
+			if ( device != -1L && ! rawDevices.containsKey( device ) ) {
+				rawDevices.put( device, openRawDevice( device, root.toPath() ) );
+			}
+		}
+		return rawDevices.get( device ) != null ? device : null;
+	}
+
+	private ReadEngine.ReadFile openRawDevice( long device, Path root ) {
+		Path deviceNode = null;
+		try {
+			deviceNode = blockDevices.getDeviceNode( device );
+			deviceNodes.put( device, deviceNode );
+			// the device holds the content written back only
+			DirectReadEngine.syncFilesystem( root );
+			ReadEngine engine = readEngine.readsIntoBuffer() ? readEngine : new PreadReadEngine();
+			ReadEngine.ReadFile file = engine.open( deviceNode );
+			log.info( "Reading contiguous extents of '{}' from {}", root, deviceNode );
+			return file;
+		} catch ( IOException ioe ) {
+			log.warn( "Can't read device {} of '{}' raw ({}). Reading it through the files", deviceNode, root, ioe.toString() );
+			return null;
+		}
+	}
+
+	private static void closeQuietly( ReadEngine.ReadFile file ) {
+		if ( file != null ) {
+			try {
+				file.close();
+			} catch ( IOException ioe ) {
+				log.debug( "Error closing file", ioe );
+			}
+		}
+	}
+
+	private static void logRead( String what, long length, long startTime ) {
+		if ( performanceLog.isDebugEnabled() ) {
+			performanceLog.debug(
+					"Read {} of {} with {}/sec in {}",
+					getFileSizeNice( length ), what,
+					getFileSizeNice( (long) ( length * 1e9 / ( System.nanoTime() - startTime + 1 ) ) ),
+					Utils.asHumanReadableDelay( startTime )
+			);
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package iks.medialibchecker;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Directory and file extent maps of a device as the scanner gathered them, saved to replay the scan by
+ * {@link ScanSimulator} without touching the disk.
+ *
+ * The directories are saved in the order the scanner read them with the index of the parent directory, so the
+ * replay knows when a directory is discovered. The files are the ones placed in the file extent map for hashing.
+ * Extents are in logical order, positions and lengths are in bytes.
+ */
+class ExtentSnapshot {
+	private static final long MAGIC = 0x4d4c43455853_0001L;
+	static final String FILE_SUFFIX = ".extents";
+
+	/** Directory or file with its extents */
+	static class Item {
+		/** Index of the parent directory or -1 for a scan root */
+		final int parent;
+		final long[] positions;
+		final long[] lengths;
+
+		Item( int parent, long[] positions, long[] lengths ) {
+			this.parent = parent;
+			this.positions = positions;
+			this.lengths = lengths;
+		}
+
+		long getLength() {
+			long length = 0;
+			for ( long extentLength : lengths ) {
+				length += extentLength;
+			}
+			return length;
+		}
+	}
+
+	final String deviceName;
+	final List< Item > directories;
+	final List< Item > files;
+
+	private ExtentSnapshot( String deviceName, List< Item > directories, List< Item > files ) {
+		this.deviceName = deviceName;
+		this.directories = directories;
+		this.files = files;
+	}
+
+	/**
+	 * Saves the extent maps gathered by the scanner.
+	 * @param directories directories in the order they were read. Their files with extents are the ones to be hashed
+	 */
+	static void save( Path path, String deviceName, List< DirectoryInfo > directories, SegmentTable segmentTable ) throws IOException {
+		IdentityHashMap< DirectoryInfo, Integer > indexes = new IdentityHashMap<>();
+		for ( DirectoryInfo directory : directories ) {
+			indexes.put( directory, indexes.size() );
+		}
+		try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( path ), 64 * 1024 ) ) ) {
+			out.writeLong( MAGIC );
+			out.writeUTF( deviceName );
+			out.writeInt( directories.size() );
+			for ( DirectoryInfo directory : directories ) {
+				Integer parent = directory.parent == null ? null : indexes.get( directory.parent );
+				writeItem( out, parent == null ? -1 : parent, directory, segmentTable );
+			}
+			int fileCount = 0;
+			for ( DirectoryInfo directory : directories ) {
+				fileCount += getFilesToBeHashed( directory ).size();
+			}
+			out.writeInt( fileCount );
+			for ( DirectoryInfo directory : directories ) {
+				for ( FileInfo fileInfo : getFilesToBeHashed( directory ) ) {
+					writeItem( out, indexes.get( directory ), fileInfo, segmentTable );
+				}
+			}
+		}
+	}
+
+	private static List< FileInfo > getFilesToBeHashed( DirectoryInfo directory ) {
+		if ( directory.containingFiles == null ) {
+			return Collections.emptyList();
+		}
+		ArrayList< FileInfo > files = new ArrayList<>();
+		for ( FileInfo fileInfo : directory.containingFiles ) {
+			if ( ! ( fileInfo instanceof DirectoryInfo ) && fileInfo.segmentCount > 0 ) {
+				files.add( fileInfo );
+			}
+		}
+		return files;
+	}
+
+	private static void writeItem( DataOutputStream out, int parent, FileInfo fileInfo, SegmentTable segmentTable ) throws IOException {
+		out.writeInt( parent );
+		out.writeInt( fileInfo.segmentCount );
+		for ( int i = 0; i < fileInfo.segmentCount; ++ i ) {
+			out.writeLong( segmentTable.getPhysicalOffset( fileInfo.firstSegment + i ) * fileInfo.blockSize );
+			out.writeLong( (long) segmentTable.getBlockCount( fileInfo.firstSegment + i ) * fileInfo.blockSize );
+		}
+	}
+
+	static ExtentSnapshot load( Path path ) throws IOException {
+		try ( DataInputStream in = new DataInputStream( new BufferedInputStream( Files.newInputStream( path ), 64 * 1024 ) ) ) {
+			if ( in.readLong() != MAGIC ) {
+				throw new IOException( path + " is not an extent snapshot" );
+			}
+			String deviceName = in.readUTF();
+			List< Item > directories = readItems( in );
+			List< Item > files = readItems( in );
+			return new ExtentSnapshot( deviceName, directories, files );
+		}
+	}
+
+	private static List< Item > readItems( DataInputStream in ) throws IOException {
+		int count = in.readInt();
+		ArrayList< Item > items = new ArrayList<>( count );
+		for ( int i = 0; i < count; ++ i ) {
+			int parent = in.readInt();
+			int extentCount = in.readInt();
+			long[] positions = new long[ extentCount ];
+			long[] lengths = new long[ extentCount ];
+			for ( int extent = 0; extent < extentCount; ++ extent ) {
+				positions[ extent ] = in.readLong();
+				lengths[ extent ] = in.readLong();
+			}
+			items.add( new Item( parent, positions, lengths ) );
+		}
+		return items;
+	}
+}
@@ -0,0 +1,159 @@
+package iks.medialibchecker;
+
+import com.sun.jna.*;
+import com.sun.jna.ptr.IntByReference;
+import org.slf4j.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Extent provider calling Linux FIEMAP ioctl directly (the same way filefrag does internally).
+ * No process is spawned so the cost of directory mapping is just the ioctl calls.
+ * If the filesystem doesn't support FIEMAP then the directory is passed to the fallback provider.
+ */
+class FiemapExtentProvider implements ExtentProvider {
+	private static final Logger log = LoggerFactory.getLogger( FiemapExtentProvider.class );
+	static final String NAME = "fiemap";
+
+	private static final int O_RDONLY = 0;
+	private static final int ENOTTY = 25;
+	private static final int EOPNOTSUPP = 95;
+	/** _IOWR('f', 11, struct fiemap) */
+	private static final NativeLong FS_IOC_FIEMAP = new NativeLong( 0xC020660BL );
+	/** _IO(0x00, 2) */
+	private static final NativeLong FIGETBSZ = new NativeLong( 2 );
+
+	// struct fiemap layout
+	private static final int FM_START = 0;
+	private static final int FM_LENGTH = 8;
+	private static final int FM_FLAGS = 16;
+	private static final int FM_MAPPED_EXTENTS = 20;
+	private static final int FM_EXTENT_COUNT = 24;
+	private static final int FM_EXTENTS = 32;
+	// struct fiemap_extent layout
+	private static final int FE_LOGICAL = 0;
+	private static final int FE_PHYSICAL = 8;
+	private static final int FE_LENGTH = 16;
+	private static final int FE_FLAGS = 40;
+	private static final int FE_SIZE = 56;
+	private static final int FIEMAP_EXTENT_LAST = 0x1;
+	/** UNKNOWN, DELALLOC, ENCODED, DATA_ENCRYPTED, NOT_ALIGNED, DATA_INLINE, DATA_TAIL and UNWRITTEN extents */
+	private static final int FIEMAP_EXTENT_NOT_RAW = 0x2 | 0x4 | 0x8 | 0x80 | 0x100 | 0x200 | 0x400 | 0x800;
+
+	/** Extents requested by single ioctl call. Media files are rarely fragmented more */
+	private static final int EXTENTS_PER_CALL = 64;
+
+	interface CLibrary extends Library {
+		int open( String path, int flags ) throws LastErrorException;
+		int close( int fd ) throws LastErrorException;
+		int ioctl( int fd, NativeLong request, Pointer arg ) throws LastErrorException;
+		int ioctl( int fd, NativeLong request, IntByReference arg ) throws LastErrorException;
+	}
+
+	private static final CLibrary libc = loadLibrary();
+
+	private static CLibrary loadLibrary() {
+		try {
+			return (CLibrary) Native.loadLibrary( "c", CLibrary.class );
+		} catch ( Throwable th ) {
+			log.debug( "Native C library is not available", th );
+			return null;
+		}
+	}
+
+	static boolean isAvailable() {
+		return libc != null && Platform.isLinux();
+	}
+
+	private final ExtentProvider fallback;
+	private final ThreadLocal< Memory > fiemapBuffer = new ThreadLocal< Memory >() {
+		@Override protected Memory initialValue() {
+			return new Memory( FM_EXTENTS + EXTENTS_PER_CALL * FE_SIZE );
+		}
+	};
+
+	FiemapExtentProvider( ExtentProvider fallback ) {
+		if ( ! isAvailable() ) {
+			throw new IllegalStateException( "FIEMAP ioctl is not available on this platform" );
+		}
+		this.fallback = fallback;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void mapExtents( DirectoryInfo directory, ExtentConsumer consumer ) throws IOException {
+		// results are published after the whole directory is mapped, so the fallback can take over it safely
+		int fileCount = directory.containingFiles.size();
+		ArrayList< FileInfo > mappedFiles = new ArrayList<>( fileCount );
+		int[] blockSizes = new int[ fileCount ];
+		ArrayList< List< FileSegment > > extentMaps = new ArrayList<>( fileCount );
+		String directoryPath = directory.getPath();
+		for ( FileInfo fileInfo : directory.containingFiles ) {
+			String path = directoryPath + File.separatorChar + fileInfo.getName();
+			try {
+				ArrayList< FileSegment > segments = new ArrayList<>( 1 );
+				blockSizes[ mappedFiles.size() ] = mapFile( path, segments );
+				mappedFiles.add( fileInfo );
+				extentMaps.add( segments );
+			} catch ( LastErrorException lee ) {
+				if ( lee.getErrorCode() == ENOTTY || lee.getErrorCode() == EOPNOTSUPP ) {
+					log.debug( "FIEMAP isn't supported for '{}'. Falling back to {}", directoryPath, fallback.getName() );
+					fallback.mapExtents( directory, consumer );
+					return;
+				}
+				log.warn( "Can't get extent map of '{}': errno {}", path, lee.getErrorCode() );
+			}
+		}
+		for ( int i = 0; i < mappedFiles.size(); ++ i ) {
+			consumer.accept( mappedFiles.get( i ), blockSizes[ i ], extentMaps.get( i ) );
+		}
+	}
+
+	/** @return block size of the file */
+	private int mapFile( String path, List< FileSegment > segments ) {
+		int fd = libc.open( path, O_RDONLY );
+		try {
+			IntByReference blockSizeRef = new IntByReference();
+			libc.ioctl( fd, FIGETBSZ, blockSizeRef );
+			int blockSize = blockSizeRef.getValue();
+			Memory fiemap = fiemapBuffer.get();
+			long start = 0;
+			boolean last = false;
+			while ( ! last ) {
+				fiemap.clear( FM_EXTENTS );
+				fiemap.setLong( FM_START, start );
+				fiemap.setLong( FM_LENGTH, -1L );    // up to the end of file
+				fiemap.setInt( FM_FLAGS, 0 );
+				fiemap.setInt( FM_EXTENT_COUNT, EXTENTS_PER_CALL );
+				libc.ioctl( fd, FS_IOC_FIEMAP, fiemap );
+				int mappedExtents = fiemap.getInt( FM_MAPPED_EXTENTS );
+				if ( mappedExtents == 0 ) {
+					break;
+				}
+				for ( int i = 0; i < mappedExtents; ++ i ) {
+					long extentOffset = FM_EXTENTS + (long) i * FE_SIZE;
+					long logical = fiemap.getLong( extentOffset + FE_LOGICAL );
+					long physical = fiemap.getLong( extentOffset + FE_PHYSICAL );
+					long length = fiemap.getLong( extentOffset + FE_LENGTH );
+					int flags = fiemap.getInt( extentOffset + FE_FLAGS );
+					segments.add( new FileSegment(
+							logical / blockSize,
+							physical / blockSize,
+							(int) ( ( length + blockSize - 1 ) / blockSize ),
+							( flags & FIEMAP_EXTENT_NOT_RAW ) != 0 ? FileSegment.FLAG_NOT_RAW : 0
+					) );
+					start = logical + length;
+					last = ( flags & FIEMAP_EXTENT_LAST ) != 0;
+				}
+			}
+			return blockSize;
+		} finally {
+			libc.close( fd );
+		}
+	}
+}
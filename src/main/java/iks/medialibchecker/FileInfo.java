@@ -4,143 +4,432 @@ import net.jpountz.xxhash.*;
 import org.slf4j.*;
 
 import java.io.*;
-import java.nio.MappedByteBuffer;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.*;
 
 import static iks.medialibchecker.Utils.getFileSizeNice;
 
+/**
+ * File info structure.
+ *
+ * Millions of them are kept in memory during the scan, so the structure is kept compact: the path is built on demand
+ * from the parent directory and the file name, extents are kept in the shared {@link SegmentTable} and hashing state
+ * exists while the file is being hashed only.
+ */
 class FileInfo {
 	private static final Logger performanceLog = LoggerFactory.getLogger( "performance.FileInfo" );
 	private static final Logger log = LoggerFactory.getLogger( FileInfo.class );
-	final File file;
-	int blockSize;
 	private static final long HASH_SEED = 0x9747b2842093420L;
 	// value you want, but always the same
 
 	private static final XXHashFactory factory = XXHashFactory.fastestInstance();
-	private StreamingXXHash64 hash64;
+	/** File hash throughput over the run */
+	private static final LongAdder bytesHashed = new LongAdder();
+	private static final LongAdder hashNanos = new LongAdder();
+	/** The attributes of a single stat call. Directory flag tells the entries of unknown type */
+	static final String ATTRIBUTES = "unix:dev,ino,size,lastModifiedTime,ctime,isDirectory,isOther";
+	/**
+	 * Charset of the file names the JVM passes to the system calls (sun.jnu.encoding). Name bytes are decoded by it,
+	 * so the paths built from them refer to the same files
+	 */
+	static final Charset NAME_CHARSET = getNameCharset();
+
+	/** Parent directory or null for a scan root */
+	final DirectoryInfo parent;
+	/** File name bytes as the filesystem keeps them. Full path for a scan root */
+	private final byte[] name;
+	int blockSize;
+
+	/**
+	 * File extent map in the {@link SegmentTable}.
+	 * Sorted in logical block order as the streaming hash has to see file content in its natural order.
+	 */
+	int firstSegment;
+	int segmentCount;
+
+	/** File identity and content version. Captured by {@link DirectoryInfo#readContent} or read by {@link #readAttributes()} */
+	long device;
+	long inode;
+	long size;
+	long modifiedTime;
+	/** Inode change time in nanoseconds or -1 if unknown. Moved blocks keep the modification time but not this one */
+	long changeTime = -1;
+
+	private long hash;
+	/** Set by the hashing worker */
+	private volatile boolean hashReady;
+	/** Exists while the file is being read */
+	private HashState hashState;
+	private boolean extentsRead;
+	private boolean attributesRead;
 
 	/**
-	 * File extent map.
-	 * Sorted from last block to the first (to maximize block list collapsing during checksum scan).
+	 * State of the file being hashed.
+	 * Read progress is accessed by the device scanner thread only. Content is hashed by {@link HashPipeline} workers:
+	 * the single one in {@link HashMode#STREAM} mode as the streaming hash has to see the content in logical order,
+	 * or any of them in {@link HashMode#TREE} mode. Every {@link Digest} has workers of its own, the one of the same index
+	 * gets the file. The hash and the digests are done in any order, the last one completes the file.
 	 */
-	List< FileSegment > segments;
+	static class HashState {
+		final long size;
+		/** Hashing worker of the file in stream mode */
+		final int worker;
+		/** Bytes to be hashed yet */
+		private final AtomicLong bytesRemains;
+		private final StreamingXXHash64 hash64;
+		private final TreeHash treeHash;
+		private final List< Digest > digests;
+		private final Digest.Computation[] computations;
+		/** Bytes to be digested yet by every digest. Accessed by its worker only */
+		private final long[] digestBytesRemain;
+		private final byte[][] digestValues;
+		/** The hash and the digests not done yet */
+		private final AtomicInteger lanesRemain;
+
+		int nextExtentIndex;
+		/** Extents read in tree mode. Several extents may share the physical block so they are read at once */
+		final BitSet readSegments;
+		/**
+		 * Read error happened. The rest of the file isn't read as the hash can't be calculated anyway. Set by
+		 * {@link #markFailed}
+		 */
+		volatile boolean failed;
+		/** Largest extent of the file in bytes for the scan results */
+		long maxExtentSize;
+
+		private HashState(
+				HashMode hashMode, List< Digest > digests, long size, int segmentCount, int worker,
+				TreeHash.ContentSource contentSource
+		) {
+			if ( hashMode == HashMode.TREE && ! digests.isEmpty() ) {
+				throw new IllegalArgumentException( "Digests need the content in logical order of the stream hash mode" );
+			}
+			this.size = size;
+			this.worker = worker;
+			this.digests = digests;
+			bytesRemains = new AtomicLong( size );
+			computations = new Digest.Computation[ digests.size() ];
+			digestBytesRemain = new long[ digests.size() ];
+			digestValues = new byte[ digests.size() ][];
+			for ( int i = 0; i < computations.length; ++ i ) {
+				computations[ i ] = digests.get( i ).start();
+				digestBytesRemain[ i ] = size;
+			}
+			lanesRemain = new AtomicInteger( 1 + digests.size() );
+			if ( hashMode == HashMode.TREE ) {
+				hash64 = null;
+				treeHash = new TreeHash( size, contentSource );
+				readSegments = new BitSet( segmentCount );
+			} else {
+				hash64 = factory.newStreamingHash64( HASH_SEED );
+				treeHash = null;
+				readSegments = null;
+			}
+		}
+
+		/**
+		 * Hashes piece of the file content from the buffer position to its limit.
+		 * The streaming hash takes byte arrays only, so the content is copied to the worker's mirror buffer for it.
+		 * Tree hash chunks are hashed right in the (direct) buffer.
+		 */
+		void update( long position, ByteBuffer buffer, byte[] mirrorBuffer ) throws IOException {
+			if ( treeHash != null ) {
+				treeHash.update( position, buffer );
+				return;
+			}
+			if ( buffer.hasArray() ) {
+				hash64.update( buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining() );
+				return;
+			}
+			ByteBuffer source = buffer.duplicate();
+			while ( source.hasRemaining() ) {
+				int length = Math.min( source.remaining(), mirrorBuffer.length );
+				source.get( mirrorBuffer, 0, length );
+				hash64.update( mirrorBuffer, 0, length );
+			}
+		}
+
+		private long getValue() {
+			return treeHash != null ? treeHash.getValue() : hash64.getValue();
+		}
+
+		/**
+		 * Marks the file failed by the reader or the hashing. Content held for the hash is dropped
+		 * @return true if the file wasn't failed before, so the failure is to be reported
+		 */
+		synchronized boolean markFailed() {
+			if ( failed ) {
+				return false;
+			}
+			failed = true;
+			if ( treeHash != null ) {
+				treeHash.discard();
+			}
+			return true;
+		}
 
-	FileInfo( File directory, File file ) {
-		this.file = file;
+		/** @return {@link TreeHash} chunk hashes of the hashed file or null in stream mode */
+		long[] getChunkHashes() {
+			return treeHash != null ? treeHash.getChunkHashes() : null;
+		}
+
+		List< Digest > getDigests() {
+			return digests;
+		}
+
+		/** @return value of the digest of the given index. Ready once the file is hashed */
+		byte[] getDigestValue( int index ) {
+			return digestValues[ index ];
+		}
+
+		/** @return true if the hash or the digest done was the last one */
+		private boolean laneDone() {
+			return lanesRemain.decrementAndGet() == 0;
+		}
+	}
+
+	FileInfo( DirectoryInfo parent, String name ) {
+		this( parent, name.getBytes( NAME_CHARSET ) );
+	}
+
+	/** @param name file name bytes as the filesystem keeps them */
+	FileInfo( DirectoryInfo parent, byte[] name ) {
+		this.parent = parent;
+		this.name = name;
+	}
+
+	private static Charset getNameCharset() {
+		String encoding = System.getProperty( "sun.jnu.encoding" );
+		try {
+			return encoding == null ? Charset.defaultCharset() : Charset.forName( encoding );
+		} catch ( IllegalArgumentException iae ) {
+			return Charset.defaultCharset();
+		}
+	}
+
+	/**
+	 * @return false if the name bytes can't be decoded by {@link #NAME_CHARSET}, so the JVM can't refer to the file
+	 * by its path (an ISO-8859-1 name when the JVM runs with a UTF-8 locale)
+	 */
+	static boolean isNameDecodable( byte[] name ) {
+		return Arrays.equals( name, new String( name, NAME_CHARSET ).getBytes( NAME_CHARSET ) );
 	}
 
 	String getName() {
-		return file.getName();
+		return new String( name, NAME_CHARSET );
+	}
+
+	/** @return file name bytes as the filesystem keeps them */
+	byte[] getNameBytes() {
+		return name;
+	}
+
+	String getPath() {
+		StringBuilder builder = new StringBuilder( 128 );
+		appendPath( builder );
+		return builder.toString();
+	}
+
+	void appendPath( StringBuilder builder ) {
+		if ( parent != null ) {
+			parent.appendPath( builder );
+			builder.append( File.separatorChar );
+		}
+		builder.append( getName() );
+	}
+
+	File getFile() {
+		return new File( getPath() );
 	}
 
-	void setBlockSize( int blockSize ) {
+	Path toPath() {
+		return Paths.get( getPath() );
+	}
+
+	void setExtentMap( int blockSize, int firstSegment, int segmentCount ) {
 		this.blockSize = blockSize;
+		this.firstSegment = firstSegment;
+		this.segmentCount = segmentCount;
 	}
 
-	private FileChannel scanChannel;
-	private int nextExtentIndex;
-	private long bytesRemains;
-	private long hash;
-	private byte[] mirrorBuffer;
+	void readAttributes() throws IOException {
+		readAttributes( MetadataSource.LOCAL );
+	}
+
+	void readAttributes( MetadataSource metadataSource ) throws IOException {
+		if ( ! attributesRead ) {
+			setAttributes( metadataSource.readAttributes( toPath() ) );
+		}
+	}
+
+	/**
+	 * Keeps the attributes read by {@link DirectoryInfo#readContent} along with the listing.
+	 * Symbolic links are followed as the target content is what gets hashed.
+	 */
+	void setAttributes( Map< String, Object > attributes ) {
+		device = (Long) attributes.get( "dev" );
+		inode = (Long) attributes.get( "ino" );
+		size = (Long) attributes.get( "size" );
+		modifiedTime = ( (FileTime) attributes.get( "lastModifiedTime" ) ).toMillis();
+		FileTime ctime = (FileTime) attributes.get( "ctime" );
+		changeTime = ctime == null ? -1 : ctime.to( TimeUnit.NANOSECONDS );
+		attributesRead = true;
+	}
+
+	boolean isHashReady() {
+		return hashReady;
+	}
+
+	long getHash() {
+		return hash;
+	}
 
-	void setExtentMap( ArrayList< FileSegment > extentMap ) {
-		this.segments = extentMap;
+	HashState getHashState() {
+		return hashState;
 	}
 
-	void calcHash() throws IOException {
-		if ( scanChannel == null ) {
-			scanChannel = new FileInputStream( file ).getChannel();
-			hash64 = factory.newStreamingHash64( HASH_SEED );
-			bytesRemains = scanChannel.size();
+	/**
+	 * Starts reading of the file content. Called by the device scanner thread when the first extent is read
+	 * @param digests digests computed along with the hash
+	 */
+	HashState startHashing( HashMode hashMode, List< Digest > digests, long fileSize, int worker ) {
+		hashState = new HashState( hashMode, digests, fileSize, segmentCount, worker, this::readContent );
+		return hashState;
+	}
+
+	/** Reads the content from the file itself rather than by the extents. {@link TreeHash} needs it rarely */
+	private void readContent( long position, ByteBuffer buffer ) throws IOException {
+		try ( FileChannel channel = FileChannel.open( toPath(), StandardOpenOption.READ ) ) {
+			while ( buffer.hasRemaining() ) {
+				if ( channel.read( buffer, position + buffer.position() ) < 0 ) {
+					throw new EOFException( "File " + getPath() + " was truncated while hashing" );
+				}
+			}
 		}
-		FileSegment nextSegment = getNextSegment();
+	}
+
+	/**
+	 * Marks all the extents as read, or not to be read any more as the file failed. The hashing workers keep their own
+	 * reference to the hash state, so the file drops it not to waste memory while the other files are read.
+	 */
+	void finishReading() {
+		hashState = null;
+		extentsRead = true;
+	}
+
+	boolean isExtentsRead() {
+		return extentsRead;
+	}
+
+	/**
+	 * Hashes piece of the file content from the buffer position to its limit. Called by the hashing worker.
+	 * @param mirrorBuffer worker's buffer for the streaming hash
+	 * @return true if the whole file has been hashed and digested, so the hash and the digests are ready
+	 * @throws IOException if the content the hash needs couldn't be read
+	 */
+	boolean hashChunk( HashState state, long position, ByteBuffer buffer, byte[] mirrorBuffer ) throws IOException {
 		long startTime = System.nanoTime();
-		int toBeRead = (int) Math.min( bytesRemains, nextSegment.blockCount * blockSize );
-		MappedByteBuffer buffer = scanChannel.map(
-				FileChannel.MapMode.READ_ONLY, nextSegment.logicalOffset, toBeRead
-		);
-		buffer.load();  // try to load whole block FIXME: for performance tests only
-		performanceLog.debug(
-				"Loaded {} blocks ({} with {}/sec) of {} in {}",
-				nextSegment.blockCount, getFileSizeNice( toBeRead ),
-				getFileSizeNice( (long) ( ( (double) toBeRead ) * 1e9 / ( System.nanoTime() - startTime + 1 )  ) ),
-				file.getName(), Utils.asHumanReadableDelay( startTime )
-		);
-		startTime = System.nanoTime();
-		if ( buffer.hasArray() ) {
-			// backed by byte buffer. Read at once
-			hash64.update( buffer.array(), 0, toBeRead );
+		int length = buffer.remaining();
+		state.update( position, buffer, mirrorBuffer );
+		long nanos = System.nanoTime() - startTime;
+		bytesHashed.add( length );
+		hashNanos.add( nanos );
+		if ( performanceLog.isDebugEnabled() ) {
 			performanceLog.debug(
-					"Hashed {} blocks ({} with {}/sec) of {} AT ONCE in {}",
-					nextSegment.blockCount, getFileSizeNice( toBeRead ),
-					getFileSizeNice( (long) ( ( (double) toBeRead ) * 1e9 / ( System.nanoTime() - startTime + 1 )  ) ),
-					file.getName(), Utils.asHumanReadableDelay( startTime )
+					"Hashed {} of {} with {}/sec",
+					getFileSizeNice( length ), getName(), getFileSizeNice( (long) ( length * 1e9 / ( nanos + 1 ) ) )
 			);
-		} else {
-			// no backed buffer. Read by relatively small buffers
-			int toBeRead2 = toBeRead;
-			if ( mirrorBuffer == null ) {
-				mirrorBuffer = new byte[ blockSize ];
-			}
-			for ( int i = 0; i < nextSegment.blockCount; ++ i ) {
-				int toBeMirrored = (int) Math.min( toBeRead, blockSize );
-				if ( toBeMirrored == 0 ) {
-					break;
-				}
-				buffer.get(mirrorBuffer, 0, toBeMirrored);
-				hash64.update(mirrorBuffer, 0, toBeMirrored);
-				toBeRead -= toBeMirrored;
-			}
+		}
+		if ( state.bytesRemains.addAndGet( - length ) != 0 ) {
+			return false;
+		}
+		hash = state.getValue();
+		hashReady = true;
+		return state.laneDone();
+	}
+
+	/**
+	 * Digests piece of the file content by one of the digests. Called by the worker of the digest.
+	 * The content comes in logical order, so the position isn't needed.
+	 * @param index index of the digest in the hash state
+	 * @return true if the whole file has been hashed and digested
+	 */
+	boolean digestChunk( HashState state, int index, ByteBuffer buffer, byte[] mirrorBuffer ) {
+		long startTime = System.nanoTime();
+		int length = buffer.remaining();
+		Digest digest = state.digests.get( index );
+		state.computations[ index ].update( buffer, mirrorBuffer );
+		long nanos = System.nanoTime() - startTime;
+		digest.recordThroughput( length, nanos );
+		if ( performanceLog.isDebugEnabled() ) {
 			performanceLog.debug(
-					"Hashed {} blocks ({} with {}/sec) of {} BY MIRROR BUFFER in {}",
-					nextSegment.blockCount, getFileSizeNice( toBeRead2 ),
-					getFileSizeNice( (long) ( ( (double) toBeRead2 ) * 1e9 / ( System.nanoTime() - startTime + 1 ) ) ),
-					file.getName(), Utils.asHumanReadableDelay( startTime )
+					"Digested {} of {} by {} with {}/sec",
+					getFileSizeNice( length ), getName(), digest.getName(),
+					getFileSizeNice( (long) ( length * 1e9 / ( nanos + 1 ) ) )
 			);
 		}
-		bytesRemains -= toBeRead;
-		++ nextExtentIndex;
-		if ( bytesRemains == 0 ) {
-			scanChannel.close();
-			hash = hash64.getValue();
-			scanChannel = null;
-			hash64 = null;
-			mirrorBuffer = null;
+		state.digestBytesRemain[ index ] -= length;
+		if ( state.digestBytesRemain[ index ] != 0 ) {
+			return false;
 		}
+		state.digestValues[ index ] = state.computations[ index ].getValue();
+		return state.laneDone();
 	}
 
-	long getMaxExtentSize() {
+	/** Reports the file hash and digest throughput over the run. It's the throughput of a single core */
+	static void reportThroughput( List< Digest > digests ) {
+		performanceLog.info(
+				"File hash: {} with {}/sec", getFileSizeNice( bytesHashed.sum() ),
+				getFileSizeNice( (long) ( bytesHashed.sum() * 1e9 / ( hashNanos.sum() + 1 ) ) )
+		);
+		for ( Digest digest : digests ) {
+			performanceLog.info(
+					"Digest {}: {} with {}/sec", digest.getName(), getFileSizeNice( digest.getBytesDigested() ),
+					getFileSizeNice( (long) ( digest.getBytesDigested() * 1e9 / ( digest.getDigestNanos() + 1 ) ) )
+			);
+		}
+	}
+
+	long getMaxExtentSize( SegmentTable segments ) {
 		int maxSizeInBlocks = 0;
-		if ( segments != null ) {
-			for (FileSegment segment : segments) {
-				maxSizeInBlocks = Math.max(maxSizeInBlocks, segment.blockCount);
-			}
+		for ( int i = 0; i < segmentCount; ++ i ) {
+			maxSizeInBlocks = Math.max( maxSizeInBlocks, segments.getBlockCount( firstSegment + i ) );
 		}
 		return ((long)maxSizeInBlocks) * blockSize;
 	}
 
-	boolean isNextExtent( int absBlockIndex ) {
-		FileSegment fileSegment = getNextSegment();
-		return fileSegment != null && fileSegment.physicalOffset == absBlockIndex;
+	/** @return byte offset of the file position on the device or 0 if the position has no extent (inline or hole) */
+	long getDevicePosition( SegmentTable segments, long position ) {
+		if ( blockSize == 0 ) {
+			return 0;
+		}
+		long block = position / blockSize;
+		for ( int i = firstSegment; i < firstSegment + segmentCount; ++ i ) {
+			long logicalOffset = segments.getLogicalOffset( i );
+			if ( block >= logicalOffset && block < logicalOffset + segments.getBlockCount( i ) ) {
+				return ( segments.getPhysicalOffset( i ) + block - logicalOffset ) * blockSize + position % blockSize;
+			}
+		}
+		return 0;
 	}
 
-	private FileSegment getNextSegment() {
-		return ( segments == null || segments.isEmpty() ) ? null : segments.get( nextExtentIndex );
+	boolean isNextExtent( SegmentTable segments, long absBlockIndex ) {
+		if ( extentsRead ) {
+			return false;
+		}
+		int nextExtentIndex = hashState == null ? 0 : hashState.nextExtentIndex;
+		return nextExtentIndex < segmentCount
+				&& segments.getPhysicalOffset( firstSegment + nextExtentIndex ) == absBlockIndex;
 	}
 
 	@Override
 	public String toString() {
-		StringBuilder builder = new StringBuilder();
-		builder.append( "File " ).append( file.getPath() );
-		if ( segments != null ) {
-			builder.append(" has the next ")
-					.append(blockSize).append(" byte extents:");
-			for (FileSegment fileSegment : segments) {
-				builder.append('\n').append(fileSegment.toString());
-			}
-		}
-		return builder.toString();
+		return "File " + getPath();
 	}
 }
@@ -3,22 +3,36 @@ package iks.medialibchecker;
 /** Segment of file that places in sequenced blocks on drive */
 class FileSegment {
 	/** Offset of the first block within file */
-	int logicalOffset;
+	long logicalOffset;
 	/** Offset of the first block within drive */
-	int physicalOffset;
+	long physicalOffset;
 	/** Size of the segment in blocks (size of every block is drive dependent) */
 	int blockCount;
+	/** Combination of the FLAG_ constants */
+	int flags;
 
-	FileSegment ( int logicalOffset, int physicalOffset, int blockCount ) {
+	/**
+	 * Segment content can't be read from the block device as is: unwritten, delayed allocation, inline, encoded,
+	 * encrypted, etc. It has to be read through the file
+	 */
+	static final int FLAG_NOT_RAW = 1;
+
+	FileSegment ( long logicalOffset, long physicalOffset, int blockCount ) {
+		this( logicalOffset, physicalOffset, blockCount, 0 );
+	}
+
+	FileSegment ( long logicalOffset, long physicalOffset, int blockCount, int flags ) {
 		this.logicalOffset = logicalOffset;
 		this.physicalOffset = physicalOffset;
 		this.blockCount = blockCount;
+		this.flags = flags;
 	}
 
 	@Override
 	public String toString() {
 		return "logical offset: " + logicalOffset
 				+ "\t physicalOffset: " + physicalOffset
-				+ "\t size in blocks: " + blockCount;
+				+ "\t size in blocks: " + blockCount
+				+ ( ( flags & FLAG_NOT_RAW ) != 0 ? "\t not raw" : "" );
 	}
 }
@@ -0,0 +1,174 @@
+package iks.medialibchecker;
+
+import org.slf4j.*;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Extent provider running external 'filefrag' utility and parsing its text output.
+ * Works on every filesystem filefrag knows about. Process spawn is the main cost, so files of a batch of directories
+ * are passed to a single invocation by their absolute paths (up to the command line limit), and large batches are
+ * split between several processes running concurrently.
+ */
+class FilefragExtentProvider implements ExtentProvider {
+	private static final Logger log = LoggerFactory.getLogger( FilefragExtentProvider.class );
+	static final String NAME = "filefrag";
+	static final int DEFAULT_PROCESS_COUNT = 4;
+	private static final String FILE_FRAG_UTILITY_COMMAND[] = new String[] { "filefrag", "-e" };
+	/** Arguments size of an invocation. Well below Linux ARG_MAX (2 MiB with the default stack limit) */
+	private static final int MAX_ARGUMENTS_BYTES = 256 << 10;
+	/** Argument pointer and terminating zero taken along with every argument */
+	private static final int ARGUMENT_OVERHEAD_BYTES = 9;
+	/** Smaller batches are not split between processes as the spawn costs more than mapping them */
+	private static final int MIN_FILES_PER_PROCESS = 64;
+	/** Arguments are passed to the process in this encoding, so filefrag prints paths in it too */
+	private static final Charset ARGUMENT_CHARSET = FileInfo.NAME_CHARSET;
+
+	private final int processCount;
+	private final ExecutorService processPool;
+	private final ThreadLocal< FilefragOutputParser > parsers = ThreadLocal.withInitial( FilefragOutputParser::new );
+
+	/** Files of a single filefrag invocation */
+	private static class Invocation {
+		final ArrayList< FileInfo > files = new ArrayList<>();
+		final ArrayList< byte[] > paths = new ArrayList<>();
+		int argumentsBytes;
+	}
+
+	FilefragExtentProvider() {
+		this( DEFAULT_PROCESS_COUNT );
+	}
+
+	/** @param processCount filefrag processes running at once */
+	FilefragExtentProvider( int processCount ) {
+		if ( processCount < 1 ) {
+			throw new IllegalArgumentException( "At least one filefrag process is expected" );
+		}
+		this.processCount = processCount;
+		AtomicInteger threadNumber = new AtomicInteger();
+		processPool = Executors.newFixedThreadPool( processCount, runnable -> {
+			Thread thread = new Thread( runnable, "FILEFRAG-" + threadNumber.getAndIncrement() );
+			thread.setDaemon( true );
+			return thread;
+		} );
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void mapExtents( DirectoryInfo directory, ExtentConsumer consumer ) throws IOException {
+		mapExtents( Collections.singletonList( directory ), consumer );
+	}
+
+	@Override
+	public void mapExtents( List< DirectoryInfo > directories, ExtentConsumer consumer ) throws IOException {
+		List< Invocation > invocations = splitToInvocations( directories );
+		if ( invocations.size() == 1 ) {
+			run( invocations.get( 0 ), consumer );
+			return;
+		}
+		// the processes are parsed concurrently, the consumer gets the files one by one
+		Object consumerLock = new Object();
+		ExtentConsumer synchronizedConsumer = ( fileInfo, blockSize, segments ) -> {
+			synchronized ( consumerLock ) {
+				consumer.accept( fileInfo, blockSize, segments );
+			}
+		};
+		ArrayList< Future< ? > > results = new ArrayList<>( invocations.size() );
+		for ( Invocation invocation : invocations ) {
+			results.add( processPool.submit( () -> {
+				run( invocation, synchronizedConsumer );
+				return null;
+			} ) );
+		}
+		Throwable error = null;
+		boolean interrupted = false;
+		for ( Future< ? > result : results ) {
+			while ( true ) {
+				try {
+					result.get();
+					break;
+				} catch ( ExecutionException ee ) {
+					if ( error == null ) {
+						error = ee.getCause();
+					} else {
+						error.addSuppressed( ee.getCause() );
+					}
+					break;
+				} catch ( InterruptedException ie ) {
+					// the consumer must not be called after return, so the processes are waited for anyway
+					interrupted = true;
+				}
+			}
+		}
+		if ( interrupted ) {
+			Thread.currentThread().interrupt();
+		}
+		if ( error instanceof IOException ) {
+			throw (IOException) error;
+		} else if ( error instanceof RuntimeException ) {
+			throw (RuntimeException) error;
+		} else if ( error != null ) {
+			throw new IllegalStateException( "filefrag invocation failed", error );
+		}
+	}
+
+	/**
+	 * Splits files of the directories into invocations fitting the command line limit.
+	 * Large batches are spread over all the processes of the pool.
+	 */
+	private List< Invocation > splitToInvocations( List< DirectoryInfo > directories ) {
+		int fileCount = 0;
+		for ( DirectoryInfo directory : directories ) {
+			if ( directory.containingFiles != null ) {
+				fileCount += directory.containingFiles.size();
+			}
+		}
+		int filesPerInvocation = Math.max( MIN_FILES_PER_PROCESS, ( fileCount + processCount - 1 ) / processCount );
+		ArrayList< Invocation > invocations = new ArrayList<>();
+		Invocation invocation = null;
+		for ( DirectoryInfo directory : directories ) {
+			if ( directory.containingFiles == null ) {
+				continue;
+			}
+			for ( FileInfo fileInfo : directory.containingFiles ) {
+				byte[] path = fileInfo.getPath().getBytes( ARGUMENT_CHARSET );
+				int argumentBytes = path.length + ARGUMENT_OVERHEAD_BYTES;
+				if ( invocation == null || invocation.files.size() >= filesPerInvocation
+						|| invocation.argumentsBytes + argumentBytes > MAX_ARGUMENTS_BYTES ) {
+					invocation = new Invocation();
+					invocations.add( invocation );
+				}
+				invocation.files.add( fileInfo );
+				invocation.paths.add( path );
+				invocation.argumentsBytes += argumentBytes;
+			}
+		}
+		return invocations;
+	}
+
+	private void run( Invocation invocation, ExtentConsumer consumer ) throws IOException {
+		String[] commandLine = new String[ FILE_FRAG_UTILITY_COMMAND.length + invocation.files.size() ];
+		System.arraycopy( FILE_FRAG_UTILITY_COMMAND, 0, commandLine, 0, FILE_FRAG_UTILITY_COMMAND.length );
+		for ( int i = 0; i < invocation.files.size(); ++ i ) {
+			commandLine[ FILE_FRAG_UTILITY_COMMAND.length + i ] = new String( invocation.paths.get( i ), ARGUMENT_CHARSET );
+		}
+		ProcessBuilder builder = new ProcessBuilder( commandLine );
+		builder.redirectError( ProcessBuilder.Redirect.appendTo( new File( "logs/filefrag.error.log" ) ) );
+		if ( log.isTraceEnabled() ) {
+			log.trace( "Starting filefrag for {} files", invocation.files.size() );
+		}
+		Process process = builder.start();
+		try ( InputStream in = process.getInputStream() ) {
+			parsers.get().parse( in, invocation.files, invocation.paths, consumer );
+		}
+		// do not wait for process to finish (if it didn't yet)
+	}
+}
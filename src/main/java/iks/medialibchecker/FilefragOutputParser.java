@@ -0,0 +1,279 @@
+package iks.medialibchecker;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Streaming parser of 'filefrag -e' output working on the bytes.
+ *
+ * filefrag reports the files in the order of its arguments (skipping the ones it can't open), so the file header is
+ * matched against the expected argument bytes instead of building a name string and looking it up. Lines are parsed
+ * in place, numbers are parsed from the digits and the segment objects are recycled after the consumer returns, so
+ * nothing is allocated per line once the buffers have grown. The parser is reused by a single thread at a time.
+ */
+class FilefragOutputParser {
+	private static final byte[] FILE_HEADER = bytes( "File size of " );
+	private static final byte[] IS = bytes( " is " );
+	private static final byte[] OF = bytes( " of " );
+	private static final byte[] BYTES_END = bytes( " bytes)" );
+	private static final byte[] EXTENTS_HEADER = bytes(
+			" ext:     logical_offset:        physical_offset: length:   expected: flags:"
+	);
+	private static final byte[] FOUND_END = bytes( " found" );
+	/** Extent flags filefrag prints for extents which content can't be read from the block device as is */
+	private static final byte[][] NOT_RAW_FLAGS = {
+			bytes( "unknown_loc" ), bytes( "delalloc" ), bytes( "encoded" ), bytes( "encrypted" ),
+			bytes( "not_aligned" ), bytes( "inline" ), bytes( "tail_packed" ), bytes( "unwritten" )
+	};
+
+	private enum State {
+		LOOKING_FOR_FILE_HEADER,
+		BYPASS_EXTENTS_HEADER,
+		READING_EXTENTS
+	}
+
+	private final byte[] buffer = new byte[ 64 << 10 ];
+	private int bufferPosition;
+	private int bufferLimit;
+	private InputStream in;
+	private byte[] line = new byte[ 1024 ];
+	private int lineLength;
+	/** Parse position within the line */
+	private int cursor;
+	private final ArrayList< FileSegment > segments = new ArrayList<>();
+	private final ArrayList< FileSegment > freeSegments = new ArrayList<>();
+
+	/**
+	 * Parses the output passing extents of every file to the consumer. The segments are valid during the call only.
+	 * @param files files in the order of filefrag arguments
+	 * @param paths the arguments as they were passed to filefrag
+	 */
+	void parse( InputStream in, List< ? extends FileInfo > files, List< byte[] > paths, ExtentProvider.ExtentConsumer consumer ) throws IOException {
+		this.in = in;
+		bufferPosition = 0;
+		bufferLimit = 0;
+		State state = State.LOOKING_FOR_FILE_HEADER;
+		int nextFile = 0;
+		byte[] path = null;
+		int blockSize = 0;
+		while ( readLine() ) {
+			switch ( state ) {
+				case LOOKING_FOR_FILE_HEADER:
+					if ( ! startsWith( FILE_HEADER, 0 ) ) {
+						continue;
+					}
+					while ( nextFile < paths.size() && ! isHeaderOf( paths.get( nextFile ) ) ) {
+						++ nextFile;
+					}
+					if ( nextFile == paths.size() ) {
+						throw unexpected( "Unexpected file in output" );
+					}
+					path = paths.get( nextFile );
+					blockSize = parseBlockSize();
+					state = State.BYPASS_EXTENTS_HEADER;
+					break;
+				case BYPASS_EXTENTS_HEADER:
+					if ( lineLength != EXTENTS_HEADER.length || ! startsWith( EXTENTS_HEADER, 0 ) ) {
+						throw unexpected( "Unexpected extents header" );
+					}
+					state = State.READING_EXTENTS;
+					break;
+				case READING_EXTENTS:
+					if ( startsWith( path, 0 ) && lineLength > path.length && line[ path.length ] == ':' ) {
+						if ( ! endsWith( FOUND_END ) ) {
+							throw unexpected( "File extents bottom line should end with ' found'" );
+						}
+						try {
+							consumer.accept( files.get( nextFile ), blockSize, segments );
+						} finally {
+							// addAll() would copy the list to an array
+							for ( int i = 0; i < segments.size(); ++ i ) {
+								freeSegments.add( segments.get( i ) );
+							}
+							segments.clear();
+						}
+						++ nextFile;
+						state = State.LOOKING_FOR_FILE_HEADER;
+						break;
+					}
+					parseExtent();
+			}
+		}
+		this.in = null;
+		if ( state != State.LOOKING_FOR_FILE_HEADER ) {
+			throw new IllegalStateException( "filefrag output ended in the middle of the extent map" );
+		}
+	}
+
+	/** "File size of &lt;path&gt; is &lt;size&gt; (&lt;count&gt; blocks of &lt;block size&gt; bytes)" */
+	private boolean isHeaderOf( byte[] path ) {
+		return startsWith( path, FILE_HEADER.length ) && startsWith( IS, FILE_HEADER.length + path.length );
+	}
+
+	private int parseBlockSize() {
+		if ( ! endsWith( BYTES_END ) ) {
+			throw unexpected( "File size header should end with 'NNNN bytes)'" );
+		}
+		int end = lineLength - BYTES_END.length;
+		cursor = lastIndexOf( OF, end ) + OF.length;
+		if ( cursor < OF.length ) {
+			throw unexpected( "No block size in the file size header" );
+		}
+		long blockSize = parseNumber();
+		if ( cursor != end || blockSize <= 0 || blockSize > Integer.MAX_VALUE ) {
+			throw unexpected( "Unexpected block size" );
+		}
+		return (int) blockSize;
+	}
+
+	/** "   0:        0..    2197:   48177152..  48179349:   2198:   48179350: last,eof" */
+	private void parseExtent() {
+		cursor = 0;
+		parseNumber();
+		expect( ':' );
+		long logicalOffset = parseNumber();
+		expect( '.' );
+		expect( '.' );
+		parseNumber();
+		expect( ':' );
+		long physicalOffset = parseNumber();
+		expect( '.' );
+		expect( '.' );
+		parseNumber();
+		expect( ':' );
+		long length = parseNumber();
+		expect( ':' );
+		if ( length <= 0 || length > Integer.MAX_VALUE ) {
+			throw unexpected( "Unexpected extent length" );
+		}
+		skipSpaces();
+		// expected physical offset is printed for discontinuous extents only
+		if ( cursor < lineLength && isDigit( line[ cursor ] ) ) {
+			parseNumber();
+			expect( ':' );
+		}
+		FileSegment segment = freeSegments.isEmpty()
+				? new FileSegment( 0, 0, 0 )
+				: freeSegments.remove( freeSegments.size() - 1 );
+		segment.logicalOffset = logicalOffset;
+		segment.physicalOffset = physicalOffset;
+		segment.blockCount = (int) length;
+		segment.flags = isRawReadable() ? 0 : FileSegment.FLAG_NOT_RAW;
+		segments.add( segment );
+	}
+
+	/** Flags are comma separated from the cursor to the line end */
+	private boolean isRawReadable() {
+		skipSpaces();
+		while ( cursor < lineLength ) {
+			int end = cursor;
+			while ( end < lineLength && line[ end ] != ',' ) {
+				++ end;
+			}
+			for ( byte[] flag : NOT_RAW_FLAGS ) {
+				if ( end - cursor == flag.length && startsWith( flag, cursor ) ) {
+					return false;
+				}
+			}
+			cursor = end + 1;
+		}
+		return true;
+	}
+
+	private long parseNumber() {
+		skipSpaces();
+		int start = cursor;
+		long value = 0;
+		while ( cursor < lineLength && isDigit( line[ cursor ] ) ) {
+			value = value * 10 + ( line[ cursor ++ ] - '0' );
+		}
+		if ( cursor == start || cursor - start > 18 ) {
+			throw unexpected( "Number expected at position " + start );
+		}
+		return value;
+	}
+
+	private void expect( char c ) {
+		if ( cursor >= lineLength || line[ cursor ] != c ) {
+			throw unexpected( "'" + c + "' expected at position " + cursor );
+		}
+		++ cursor;
+	}
+
+	private void skipSpaces() {
+		while ( cursor < lineLength && line[ cursor ] == ' ' ) {
+			++ cursor;
+		}
+	}
+
+	private static boolean isDigit( byte b ) {
+		return b >= '0' && b <= '9';
+	}
+
+	private boolean startsWith( byte[] prefix, int offset ) {
+		if ( offset + prefix.length > lineLength ) {
+			return false;
+		}
+		for ( int i = 0; i < prefix.length; ++ i ) {
+			if ( line[ offset + i ] != prefix[ i ] ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean endsWith( byte[] suffix ) {
+		return lineLength >= suffix.length && startsWith( suffix, lineLength - suffix.length );
+	}
+
+	/** @return start of the last occurrence of the pattern ending before the limit or -1 */
+	private int lastIndexOf( byte[] pattern, int limit ) {
+		for ( int i = limit - pattern.length; i >= 0; -- i ) {
+			if ( startsWith( pattern, i ) ) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/** Reads the next line without the line feed into the line buffer */
+	private boolean readLine() throws IOException {
+		lineLength = 0;
+		while ( true ) {
+			if ( bufferPosition == bufferLimit ) {
+				bufferLimit = in.read( buffer );
+				bufferPosition = 0;
+				if ( bufferLimit <= 0 ) {
+					bufferLimit = 0;
+					return lineLength > 0;
+				}
+			}
+			int end = bufferPosition;
+			while ( end < bufferLimit && buffer[ end ] != '\n' ) {
+				++ end;
+			}
+			int length = end - bufferPosition;
+			if ( lineLength + length > line.length ) {
+				line = Arrays.copyOf( line, Math.max( line.length * 2, lineLength + length ) );
+			}
+			System.arraycopy( buffer, bufferPosition, line, lineLength, length );
+			lineLength += length;
+			bufferPosition = end;
+			if ( end < bufferLimit ) {
+				++ bufferPosition;
+				return true;
+			}
+		}
+	}
+
+	private IllegalStateException unexpected( String message ) {
+		return new IllegalStateException(
+				message + " of 'filefrag -e'. The line is:\n" + new String( line, 0, lineLength, StandardCharsets.UTF_8 )
+		);
+	}
+
+	private static byte[] bytes( String s ) {
+		return s.getBytes( StandardCharsets.US_ASCII );
+	}
+}
@@ -0,0 +1,614 @@
+package iks.medialibchecker;
+
+import org.slf4j.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Persistent catalog of file hashes keyed by device and inode.
+ *
+ * The catalog consists of two files in the catalog directory:
+ * <ul>
+ *     <li>compacted index: header, fixed size records sorted by device and inode, then the path region and the
+ *     chunk hash region. The record region is memory mapped and looked up by binary search, so it's cheap even with
+ *     10M+ entries;</li>
+ *     <li>journal: records added since last compaction. It's replayed into memory on open and merged into the index
+ *     by compaction on close when it's large compared to the index. A journal longer than {@link #MAX_JOURNAL_LENGTH}
+ *     is compacted by the flush that follows the store of its last entry, so the entries kept in memory are bounded
+ *     even on the first scan of a large library.</li>
+ * </ul>
+ * {@link HashMode#TREE} entries keep the chunk hashes too, so parts of a file can be verified on their own.
+ * Version 1 index (without chunk hashes) is still read, the compaction writes version 2.
+ * Hashes of different {@link HashMode}s are not comparable, so the catalog is bound to the mode it was created with.
+ * All the methods are synchronized as the catalog is shared by scanner threads.
+ */
+class HashCatalog implements Closeable {
+	private static final Logger log = LoggerFactory.getLogger( HashCatalog.class );
+	private static final Logger performanceLog = LoggerFactory.getLogger( "performance.HashCatalog" );
+
+	private static final String INDEX_FILE_NAME = "catalog.idx";
+	private static final String JOURNAL_FILE_NAME = "catalog.journal";
+	/** Text file with the name of hash mode the catalog hashes are calculated by */
+	private static final String MODE_FILE_NAME = "catalog.mode";
+	private static final long MAGIC_V1 = 0x4d4c43434154_0001L;
+	private static final long MAGIC = 0x4d4c43434154_0002L;
+	/** Starts the version 2 journal. Version 1 journal has no header */
+	private static final long JOURNAL_MAGIC = 0x4d4c434a524e_0002L;
+	private static final int HEADER_SIZE_V1 = 24;
+	private static final int HEADER_SIZE = 32;
+	// record layout: device, inode, size, modification time, hash, path offset within path region. Version 2 adds
+	// chunk hash offset within chunk hash region and chunk hash count
+	private static final int RECORD_SIZE_V1 = 48;
+	private static final int RECORD_SIZE = 64;
+	private static final int MAX_RECORDS = Integer.MAX_VALUE / RECORD_SIZE;
+	/** Journal is merged into the index on close when it has more entries than this part of the index */
+	private static final double COMPACTION_RATIO = 0.1;
+	private static final int MIN_ENTRIES_TO_COMPACT = 10_000;
+	/**
+	 * Journal longer than this is compacted whatever the index size. About 300K entries of usual paths, which take
+	 * some 100 MiB of heap
+	 */
+	static final long MAX_JOURNAL_LENGTH = 64L << 20;
+	/** Longer path in the journal means it's corrupted */
+	private static final int MAX_PATH_LENGTH = 1 << 16;
+
+	static class Entry {
+		final long device;
+		final long inode;
+		final long size;
+		final long modifiedTime;
+		final long hash;
+		final String path;
+		/** Chunk hashes of journal entries. Indexed ones are read by {@link #getChunkHash} */
+		private final long[] chunkHashes;
+		/** Offset within the chunk hash region of indexed entry */
+		private final long chunkOffset;
+		/** Compaction of the index the entry was read from. Chunk offsets of older indexes are looked up again */
+		private final int indexGeneration;
+		/** 0 if the chunk hashes are unknown */
+		final int chunkCount;
+
+		Entry( long device, long inode, long size, long modifiedTime, long hash, String path ) {
+			this( device, inode, size, modifiedTime, hash, path, null );
+		}
+
+		/** @param chunkHashes {@link TreeHash} chunk hashes or null */
+		Entry( long device, long inode, long size, long modifiedTime, long hash, String path, long[] chunkHashes ) {
+			this( device, inode, size, modifiedTime, hash, path, chunkHashes, -1, chunkHashes == null ? 0 : chunkHashes.length, 0 );
+		}
+
+		private Entry(
+				long device, long inode, long size, long modifiedTime, long hash, String path, long[] chunkHashes,
+				long chunkOffset, int chunkCount, int indexGeneration
+		) {
+			this.device = device;
+			this.inode = inode;
+			this.size = size;
+			this.modifiedTime = modifiedTime;
+			this.hash = hash;
+			this.path = path;
+			this.chunkHashes = chunkHashes;
+			this.chunkOffset = chunkOffset;
+			this.chunkCount = chunkCount;
+			this.indexGeneration = indexGeneration;
+		}
+
+		boolean isSameContentVersion( long size, long modifiedTime ) {
+			return this.size == size && this.modifiedTime == modifiedTime;
+		}
+	}
+
+	private static class Key implements Comparable< Key > {
+		final long device;
+		final long inode;
+
+		Key( long device, long inode ) {
+			this.device = device;
+			this.inode = inode;
+		}
+
+		@Override
+		public boolean equals( Object o ) {
+			return o instanceof Key && ( (Key) o ).device == device && ( (Key) o ).inode == inode;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode( device * 31 + inode );
+		}
+
+		@Override
+		public int compareTo( Key other ) {
+			int result = Long.compare( device, other.device );
+			return result != 0 ? result : Long.compare( inode, other.inode );
+		}
+	}
+
+	/** Tells the journal offset the replay has reached */
+	private static class CountingInputStream extends FilterInputStream {
+		long count;
+		private long markedCount;
+
+		CountingInputStream( InputStream in ) {
+			super( in );
+		}
+
+		@Override
+		public int read() throws IOException {
+			int result = super.read();
+			if ( result >= 0 ) {
+				++ count;
+			}
+			return result;
+		}
+
+		@Override
+		public int read( byte[] buffer, int offset, int length ) throws IOException {
+			int read = super.read( buffer, offset, length );
+			if ( read > 0 ) {
+				count += read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip( long length ) throws IOException {
+			long skipped = super.skip( length );
+			count += skipped;
+			return skipped;
+		}
+
+		@Override
+		public synchronized void mark( int readLimit ) {
+			super.mark( readLimit );
+			markedCount = count;
+		}
+
+		@Override
+		public synchronized void reset() throws IOException {
+			super.reset();
+			count = markedCount;
+		}
+	}
+
+	private final Path indexPath;
+	private final Path journalPath;
+	private FileChannel indexChannel;
+	private MappedByteBuffer records;
+	private int recordSize = RECORD_SIZE;
+	private int recordCount;
+	private long pathRegionOffset;
+	private long chunkRegionOffset;
+	/** Incremented by every compaction */
+	private int indexGeneration;
+	/** Entries of the journal (and the ones added by this session) */
+	private final HashMap< Key, Entry > journalEntries = new HashMap<>();
+	private DataOutputStream journal;
+	private FileOutputStream journalFile;
+	/** Journal length in bytes including the entries not flushed yet */
+	private long journalLength;
+	private final long maxJournalLength;
+
+	HashCatalog( Path catalogDirectory, HashMode hashMode ) throws IOException {
+		this( catalogDirectory, hashMode, MAX_JOURNAL_LENGTH );
+	}
+
+	/** @param maxJournalLength journal length in bytes that makes the flush compact the journal */
+	HashCatalog( Path catalogDirectory, HashMode hashMode, long maxJournalLength ) throws IOException {
+		this.maxJournalLength = maxJournalLength;
+		Files.createDirectories( catalogDirectory );
+		checkHashMode( catalogDirectory.resolve( MODE_FILE_NAME ), hashMode );
+		indexPath = catalogDirectory.resolve( INDEX_FILE_NAME );
+		journalPath = catalogDirectory.resolve( JOURNAL_FILE_NAME );
+		long startTime = System.nanoTime();
+		openIndex();
+		long validLength = replayJournal();
+		if ( validLength < 0 ) {
+			// entries are appended in version 2 format only
+			rewriteJournal();
+		} else if ( Files.exists( journalPath ) ) {
+			// the entry being written when the process was killed is dropped, so the appended ones stay aligned
+			try ( FileChannel channel = FileChannel.open( journalPath, StandardOpenOption.WRITE ) ) {
+				channel.truncate( validLength );
+			}
+		}
+		openJournal( validLength < 0 ? Files.size( journalPath ) : validLength );
+		log.info( "Hash catalog {} opened with {} indexed and {} journal entries", catalogDirectory, recordCount, journalEntries.size() );
+		performanceLog.debug( "Hash catalog opened in {}", Utils.asHumanReadableDelay( startTime ) );
+	}
+
+	/** @param length length of the complete entries of the journal file or 0 to start a new one */
+	private void openJournal( long length ) throws IOException {
+		journalFile = new FileOutputStream( journalPath.toFile(), length > 0 );
+		journal = new DataOutputStream( new BufferedOutputStream( journalFile, 64 * 1024 ) );
+		journalLength = length;
+		if ( length == 0 ) {
+			journal.writeLong( JOURNAL_MAGIC );
+			journalLength = 8;
+		}
+	}
+
+	private static void checkHashMode( Path modePath, HashMode hashMode ) throws IOException {
+		if ( ! Files.exists( modePath ) ) {
+			Files.write( modePath, hashMode.getName().getBytes( StandardCharsets.UTF_8 ) );
+			return;
+		}
+		String catalogMode = new String( Files.readAllBytes( modePath ), StandardCharsets.UTF_8 ).trim();
+		if ( ! catalogMode.equals( hashMode.getName() ) ) {
+			throw new IOException(
+					"Hash catalog holds " + catalogMode + " hashes and can't be used with " + hashMode.getName() + " hash mode"
+			);
+		}
+	}
+
+	private void openIndex() throws IOException {
+		if ( ! Files.exists( indexPath ) ) {
+			recordCount = 0;
+			return;
+		}
+		indexChannel = FileChannel.open( indexPath, StandardOpenOption.READ );
+		ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+		readFully( indexChannel, header, 0 );
+		header.flip();
+		long magic = header.getLong();
+		if ( magic != MAGIC && magic != MAGIC_V1 ) {
+			throw new IOException( "File " + indexPath + " is not a hash catalog index" );
+		}
+		recordSize = magic == MAGIC ? RECORD_SIZE : RECORD_SIZE_V1;
+		long count = header.getLong();
+		if ( count > MAX_RECORDS ) {
+			throw new IOException( "Too many records in " + indexPath + ": " + count );
+		}
+		recordCount = (int) count;
+		pathRegionOffset = header.getLong();
+		chunkRegionOffset = magic == MAGIC ? header.getLong() : 0;
+		records = indexChannel.map(
+				FileChannel.MapMode.READ_ONLY, magic == MAGIC ? HEADER_SIZE : HEADER_SIZE_V1, (long) recordCount * recordSize
+		);
+	}
+
+	/**
+	 * Replays the journal into memory
+	 * @return length of the magic and the complete entries of version 2 journal (0 if there is no magic yet) or -1 if
+	 * the journal is of version 1
+	 */
+	private long replayJournal() throws IOException {
+		if ( ! Files.exists( journalPath ) ) {
+			return 0;
+		}
+		CountingInputStream counter = new CountingInputStream( new BufferedInputStream( Files.newInputStream( journalPath ), 64 * 1024 ) );
+		try ( DataInputStream in = new DataInputStream( counter ) ) {
+			in.mark( 8 );
+			boolean version1 = in.readLong() != JOURNAL_MAGIC;
+			if ( version1 ) {
+				in.reset();
+			}
+			long validLength = counter.count;
+			while ( true ) {
+				Entry entry;
+				try {
+					entry = readJournalEntry( in, version1 );
+				} catch ( EOFException eof ) {
+					// the end of journal or partially written last entry of interrupted session
+					break;
+				}
+				journalEntries.put( new Key( entry.device, entry.inode ), entry );
+				validLength = counter.count;
+			}
+			return version1 ? -1 : validLength;
+		} catch ( EOFException eof ) {
+			// interrupted while writing the magic
+			return 0;
+		}
+	}
+
+	private static Entry readJournalEntry( DataInputStream in, boolean version1 ) throws IOException {
+		long device = in.readLong();
+		long inode = in.readLong();
+		long size = in.readLong();
+		long modifiedTime = in.readLong();
+		long hash = in.readLong();
+		int pathLength = in.readInt();
+		if ( pathLength < 0 || pathLength > MAX_PATH_LENGTH ) {
+			throw new IOException( "Hash catalog journal is corrupted: path length " + pathLength );
+		}
+		byte[] path = new byte[ pathLength ];
+		in.readFully( path );
+		long[] chunkHashes = null;
+		int chunkCount = version1 ? 0 : in.readInt();
+		if ( chunkCount < 0 ) {
+			throw new IOException( "Hash catalog journal is corrupted: chunk count " + chunkCount );
+		}
+		if ( chunkCount > 0 ) {
+			chunkHashes = new long[ chunkCount ];
+			for ( int i = 0; i < chunkCount; ++ i ) {
+				chunkHashes[ i ] = in.readLong();
+			}
+		}
+		return new Entry( device, inode, size, modifiedTime, hash, new String( path, StandardCharsets.UTF_8 ), chunkHashes );
+	}
+
+	/** @return number of bytes written */
+	private static int writeJournalEntry( DataOutputStream out, Entry entry ) throws IOException {
+		byte[] path = entry.path.getBytes( StandardCharsets.UTF_8 );
+		out.writeLong( entry.device );
+		out.writeLong( entry.inode );
+		out.writeLong( entry.size );
+		out.writeLong( entry.modifiedTime );
+		out.writeLong( entry.hash );
+		out.writeInt( path.length );
+		out.write( path );
+		out.writeInt( entry.chunkHashes == null ? 0 : entry.chunkHashes.length );
+		if ( entry.chunkHashes != null ) {
+			for ( long chunkHash : entry.chunkHashes ) {
+				out.writeLong( chunkHash );
+			}
+		}
+		return 5 * 8 + 4 + path.length + 4 + ( entry.chunkHashes == null ? 0 : entry.chunkHashes.length * 8 );
+	}
+
+	/** Converts version 1 journal replayed into memory */
+	private void rewriteJournal() throws IOException {
+		Path newJournalPath = journalPath.resolveSibling( JOURNAL_FILE_NAME + ".new" );
+		try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( newJournalPath ), 1 << 20 ) ) ) {
+			out.writeLong( JOURNAL_MAGIC );
+			for ( Entry entry : journalEntries.values() ) {
+				writeJournalEntry( out, entry );
+			}
+		}
+		Files.move( newJournalPath, journalPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+	}
+
+	/** @return stored entry or null if the file was never hashed */
+	synchronized Entry lookup( long device, long inode ) throws IOException {
+		Entry entry = journalEntries.get( new Key( device, inode ) );
+		if ( entry != null ) {
+			return entry;
+		}
+		int index = findRecord( device, inode );
+		return index < 0 ? null : readRecord( index );
+	}
+
+	synchronized void store( Entry entry ) throws IOException {
+		journalEntries.put( new Key( entry.device, entry.inode ), entry );
+		journalLength += writeJournalEntry( journal, entry );
+		if ( journalLength > maxJournalLength ) {
+			flush();
+		}
+	}
+
+	/**
+	 * Makes the stored entries durable. The journal longer than the limit is merged into the index then: a scan without
+	 * a checkpoint has it done by {@link #store}
+	 */
+	synchronized void flush() throws IOException {
+		journal.flush();
+		journalFile.getFD().sync();
+		if ( journalLength > maxJournalLength ) {
+			journal.close();
+			compact();
+			openJournal( 0 );
+			journal.flush();
+			journalFile.getFD().sync();
+		}
+	}
+
+	/** @return hash of the chunk of the entry got by {@link #lookup} */
+	synchronized long getChunkHash( Entry entry, int chunkIndex ) throws IOException {
+		if ( chunkIndex < 0 || chunkIndex >= entry.chunkCount ) {
+			throw new IllegalArgumentException( "No chunk " + chunkIndex + " in the entry of " + entry.path );
+		}
+		if ( entry.chunkHashes != null ) {
+			return entry.chunkHashes[ chunkIndex ];
+		}
+		if ( entry.indexGeneration != indexGeneration ) {
+			// the index was compacted since the entry was looked up
+			Entry current = lookup( entry.device, entry.inode );
+			if ( current == null || chunkIndex >= current.chunkCount ) {
+				throw new IOException( "Hash catalog entry of " + entry.path + " was replaced" );
+			}
+			return getChunkHash( current, chunkIndex );
+		}
+		ByteBuffer buffer = ByteBuffer.allocate( 8 );
+		readFully( indexChannel, buffer, chunkRegionOffset + entry.chunkOffset + chunkIndex * 8L );
+		buffer.flip();
+		return buffer.getLong();
+	}
+
+	private long[] getChunkHashes( Entry entry ) throws IOException {
+		if ( entry.chunkHashes != null || entry.chunkCount == 0 ) {
+			return entry.chunkHashes;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate( entry.chunkCount * 8 );
+		readFully( indexChannel, buffer, chunkRegionOffset + entry.chunkOffset );
+		buffer.flip();
+		long[] chunkHashes = new long[ entry.chunkCount ];
+		buffer.asLongBuffer().get( chunkHashes );
+		return chunkHashes;
+	}
+
+	/** Binary search of the record in memory mapped index */
+	private int findRecord( long device, long inode ) {
+		int low = 0;
+		int high = recordCount - 1;
+		while ( low <= high ) {
+			int middle = ( low + high ) >>> 1;
+			int base = middle * recordSize;
+			int compare = Long.compare( records.getLong( base ), device );
+			if ( compare == 0 ) {
+				compare = Long.compare( records.getLong( base + 8 ), inode );
+			}
+			if ( compare < 0 ) {
+				low = middle + 1;
+			} else if ( compare > 0 ) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		return -1;
+	}
+
+	private Entry readRecord( int index ) throws IOException {
+		int base = index * recordSize;
+		boolean hasChunks = recordSize == RECORD_SIZE;
+		return new Entry(
+				records.getLong( base ), records.getLong( base + 8 ), records.getLong( base + 16 ),
+				records.getLong( base + 24 ), records.getLong( base + 32 ), readPath( records.getLong( base + 40 ) ), null,
+				hasChunks ? records.getLong( base + 48 ) : -1, hasChunks ? (int) records.getLong( base + 56 ) : 0,
+				indexGeneration
+		);
+	}
+
+	private String readPath( long offset ) throws IOException {
+		ByteBuffer lengthBuffer = ByteBuffer.allocate( 4 );
+		readFully( indexChannel, lengthBuffer, pathRegionOffset + offset );
+		lengthBuffer.flip();
+		ByteBuffer pathBuffer = ByteBuffer.allocate( lengthBuffer.getInt() );
+		readFully( indexChannel, pathBuffer, pathRegionOffset + offset + 4 );
+		return new String( pathBuffer.array(), StandardCharsets.UTF_8 );
+	}
+
+	private static void readFully( FileChannel channel, ByteBuffer buffer, long position ) throws IOException {
+		while ( buffer.hasRemaining() ) {
+			int read = channel.read( buffer, position );
+			if ( read < 0 ) {
+				throw new EOFException( "Unexpected end of hash catalog file" );
+			}
+			position += read;
+		}
+	}
+
+	private static void append( FileChannel target, Path sourcePath ) throws IOException {
+		try ( FileChannel source = FileChannel.open( sourcePath, StandardOpenOption.READ ) ) {
+			long position = 0;
+			long size = source.size();
+			long targetPosition = target.size();
+			while ( position < size ) {
+				position += source.transferTo( position, size - position, target.position( targetPosition + position ) );
+			}
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		journal.close();
+		if ( journalEntries.size() >= MIN_ENTRIES_TO_COMPACT && journalEntries.size() > recordCount * COMPACTION_RATIO ) {
+			compact();
+		}
+		if ( indexChannel != null ) {
+			indexChannel.close();
+		}
+	}
+
+	/**
+	 * Merges journal entries into the index.
+	 * New index is written sequentially next to the old one (records first, paths and chunk hashes into temporary
+	 * files that are appended afterwards) and then atomically replaces it. The journal is truncated after that.
+	 */
+	private void compact() throws IOException {
+		long startTime = System.nanoTime();
+		ArrayList< Key > journalKeys = new ArrayList<>( journalEntries.keySet() );
+		Collections.sort( journalKeys );
+		long newCount = recordCount;
+		for ( Key key : journalKeys ) {
+			if ( findRecord( key.device, key.inode ) < 0 ) {
+				++ newCount;
+			}
+		}
+		if ( newCount > MAX_RECORDS ) {
+			throw new IOException( "Hash catalog can't hold more than " + MAX_RECORDS + " entries" );
+		}
+		Path newIndexPath = indexPath.resolveSibling( INDEX_FILE_NAME + ".new" );
+		Path pathsPath = indexPath.resolveSibling( INDEX_FILE_NAME + ".paths" );
+		Path chunksPath = indexPath.resolveSibling( INDEX_FILE_NAME + ".chunks" );
+		long pathRegionSize;
+		try (
+				DataOutputStream out = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( newIndexPath ), 1 << 20 ) );
+				DataOutputStream paths = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( pathsPath ), 1 << 20 ) );
+				DataOutputStream chunks = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( chunksPath ), 1 << 20 ) )
+		) {
+			out.writeLong( MAGIC );
+			out.writeLong( newCount );
+			out.writeLong( HEADER_SIZE + newCount * RECORD_SIZE );
+			// chunk region offset is patched when the path region size is known
+			out.writeLong( 0 );
+			long pathOffset = 0;
+			long chunkOffset = 0;
+			int recordIndex = 0;
+			int journalIndex = 0;
+			while ( recordIndex < recordCount || journalIndex < journalKeys.size() ) {
+				Key journalKey = journalIndex < journalKeys.size() ? journalKeys.get( journalIndex ) : null;
+				Entry entry;
+				if ( recordIndex < recordCount ) {
+					int base = recordIndex * recordSize;
+					int compare = journalKey == null ? -1 : new Key( records.getLong( base ), records.getLong( base + 8 ) ).compareTo( journalKey );
+					if ( compare < 0 ) {
+						entry = readRecord( recordIndex ++ );
+					} else {
+						if ( compare == 0 ) {
+							// journal entry replaces the indexed one
+							++ recordIndex;
+						}
+						entry = journalEntries.get( journalKey );
+						++ journalIndex;
+					}
+				} else {
+					entry = journalEntries.get( journalKey );
+					++ journalIndex;
+				}
+				byte[] path = entry.path.getBytes( StandardCharsets.UTF_8 );
+				out.writeLong( entry.device );
+				out.writeLong( entry.inode );
+				out.writeLong( entry.size );
+				out.writeLong( entry.modifiedTime );
+				out.writeLong( entry.hash );
+				out.writeLong( pathOffset );
+				paths.writeInt( path.length );
+				paths.write( path );
+				pathOffset += 4 + path.length;
+				long[] chunkHashes = getChunkHashes( entry );
+				out.writeLong( chunkHashes == null ? -1 : chunkOffset );
+				out.writeLong( chunkHashes == null ? 0 : chunkHashes.length );
+				if ( chunkHashes != null ) {
+					for ( long chunkHash : chunkHashes ) {
+						chunks.writeLong( chunkHash );
+					}
+					chunkOffset += chunkHashes.length * 8L;
+				}
+			}
+			pathRegionSize = pathOffset;
+		}
+		try ( FileChannel target = FileChannel.open( newIndexPath, StandardOpenOption.WRITE ) ) {
+			ByteBuffer chunkRegion = ByteBuffer.allocate( 8 );
+			chunkRegion.putLong( HEADER_SIZE + newCount * RECORD_SIZE + pathRegionSize ).flip();
+			while ( chunkRegion.hasRemaining() ) {
+				target.write( chunkRegion, 24 + chunkRegion.position() );
+			}
+			append( target, pathsPath );
+			append( target, chunksPath );
+			target.force( true );
+		}
+		Files.delete( pathsPath );
+		Files.delete( chunksPath );
+		if ( indexChannel != null ) {
+			indexChannel.close();
+		}
+		Files.move( newIndexPath, indexPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+		// the new index is durable before the journal entries it holds are deleted
+		try ( FileChannel directory = FileChannel.open( indexPath.getParent(), StandardOpenOption.READ ) ) {
+			directory.force( true );
+		}
+		Files.deleteIfExists( journalPath );
+		journalEntries.clear();
+		++ indexGeneration;
+		openIndex();
+		log.info( "Hash catalog compacted to {} entries", recordCount );
+		performanceLog.debug( "Hash catalog compacted in {}", Utils.asHumanReadableDelay( startTime ) );
+	}
+}
@@ -0,0 +1,21 @@
+package iks.medialibchecker;
+
+/** The way file hash is calculated */
+enum HashMode {
+	/** Plain XXH64 of the file content. Extents have to be read in logical order, so fragmented files cost extra passes */
+	STREAM,
+	/** {@link TreeHash}. Extents are read in any order, so the whole disk is hashed in a single sweep */
+	TREE;
+
+	static HashMode parse( String name ) {
+		try {
+			return valueOf( name.toUpperCase() );
+		} catch ( IllegalArgumentException iae ) {
+			throw new IllegalArgumentException( "Unknown hash mode '" + name + "'" );
+		}
+	}
+
+	String getName() {
+		return name().toLowerCase();
+	}
+}
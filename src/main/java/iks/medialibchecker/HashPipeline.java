@@ -0,0 +1,211 @@
+package iks.medialibchecker;
+
+import org.slf4j.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashing stage of the scan.
+ * Device scanner threads read file content in physical order by {@link ExtentReader} and pass it to the hashing
+ * workers shared by all the devices, so the disks don't wait for hashing and hashing is spread over the CPU cores.
+ * Worker queues are bounded: the reader waits when the hashing lags behind.
+ * Every enabled {@link Digest} has the same number of workers of its own, fed with the same pooled buffers, so the
+ * digests of a file are computed on other cores than its hash.
+ */
+class HashPipeline {
+	private static final Logger log = LoggerFactory.getLogger( HashPipeline.class );
+	private static final int QUEUE_CAPACITY = 4;
+	/** Streaming hash is fed from the direct buffers through this much of the worker's heap buffer */
+	static final int MIRROR_BUFFER_SIZE = 64 << 10;
+
+	/** Gets the files which hash is ready. Called by the hashing workers */
+	interface Listener {
+		/** @param state the hash state of the file, which the file itself doesn't keep any more */
+		void fileHashed( FileInfo fileInfo, FileInfo.HashState state );
+
+		/** Called once by the reader when a read error gives up on the file, so its hash never gets ready */
+		default void fileFailed( FileInfo fileInfo, FileInfo.HashState state ) {
+		}
+	}
+
+	/** Piece of the file content read into a pooled buffer */
+	static class Chunk {
+		final FileInfo fileInfo;
+		final FileInfo.HashState state;
+		final long position;
+		/** The content from position to limit. Part of the pooled buffer or a memory mapping */
+		final ByteBuffer content;
+		/** Released after hashing */
+		final ExtentReader.PooledBuffer buffer;
+
+		Chunk(
+				FileInfo fileInfo, FileInfo.HashState state, long position, ByteBuffer content,
+				ExtentReader.PooledBuffer buffer
+		) {
+			this.fileInfo = fileInfo;
+			this.state = state;
+			this.position = position;
+			this.content = content;
+			this.buffer = buffer;
+		}
+	}
+
+	private static final Chunk END = new Chunk( null, null, 0, null, null );
+
+	private final HashMode hashMode;
+	private final List< Digest > digests;
+	/** Hash catalog verifier, duplicate finder, result sink or null */
+	private final Listener listener;
+	private final Metrics metrics;
+	private final Worker[] workers;
+	/** Workers of every digest */
+	private final Worker[][] digestWorkers;
+	private final AtomicInteger nextWorker = new AtomicInteger();
+
+	/** @param digests digests computed along with the hash. Stream hash mode only */
+	HashPipeline( HashMode hashMode, List< Digest > digests, int workerCount, Listener listener, Metrics metrics ) {
+		if ( workerCount < 1 ) {
+			throw new IllegalArgumentException( "At least one hashing worker is expected" );
+		}
+		if ( hashMode != HashMode.STREAM && ! digests.isEmpty() ) {
+			throw new IllegalArgumentException( "Digests need the content in logical order of the stream hash mode" );
+		}
+		this.hashMode = hashMode;
+		this.digests = digests;
+		this.listener = listener;
+		this.metrics = metrics;
+		workers = new Worker[ workerCount ];
+		for ( int i = 0; i < workerCount; ++ i ) {
+			workers[ i ] = new Worker( "HASH-" + i, -1 );
+			workers[ i ].start();
+		}
+		digestWorkers = new Worker[ digests.size() ][ workerCount ];
+		for ( int digest = 0; digest < digests.size(); ++ digest ) {
+			for ( int i = 0; i < workerCount; ++ i ) {
+				digestWorkers[ digest ][ i ] = new Worker( digests.get( digest ).getName().toUpperCase() + "-" + i, digest );
+				digestWorkers[ digest ][ i ].start();
+			}
+		}
+	}
+
+	HashMode getHashMode() {
+		return hashMode;
+	}
+
+	List< Digest > getDigests() {
+		return digests;
+	}
+
+	int getWorkerCount() {
+		return workers.length;
+	}
+
+	/** Chooses the worker for a file. Stream mode passes all the file content to it */
+	int assignWorker() {
+		return ( nextWorker.getAndIncrement() & Integer.MAX_VALUE ) % workers.length;
+	}
+
+	void submit( Chunk chunk ) throws InterruptedException {
+		int worker = hashMode == HashMode.STREAM ? chunk.state.worker : assignWorker();
+		// the digest workers share the buffer, every one of them releases it
+		for ( Worker[] laneWorkers : digestWorkers ) {
+			chunk.buffer.retain();
+			try {
+				laneWorkers[ worker ].queue.put( new Chunk(
+						chunk.fileInfo, chunk.state, chunk.position, chunk.content.duplicate(), chunk.buffer
+				) );
+			} catch ( InterruptedException ie ) {
+				chunk.buffer.release();
+				throw ie;
+			}
+		}
+		workers[ worker ].queue.put( chunk );
+	}
+
+	/** Tells the listener the file won't be hashed because of a read error */
+	void fileFailed( FileInfo fileInfo, FileInfo.HashState state ) {
+		if ( listener != null ) {
+			listener.fileFailed( fileInfo, state );
+		}
+	}
+
+	/**
+	 * Waits for the submitted content to be hashed and stops the workers.
+	 * Doesn't give up on interruption as the hashes have to be stored before the catalog is closed. Queues are short,
+	 * so it doesn't take long.
+	 */
+	void close() {
+		boolean interrupted = false;
+		ArrayList< Worker > allWorkers = new ArrayList<>( Arrays.asList( workers ) );
+		for ( Worker[] laneWorkers : digestWorkers ) {
+			allWorkers.addAll( Arrays.asList( laneWorkers ) );
+		}
+		for ( Worker worker : allWorkers ) {
+			boolean ended = false;
+			while ( ! ended ) {
+				try {
+					worker.queue.put( END );
+					ended = true;
+				} catch ( InterruptedException ie ) {
+					interrupted = true;
+				}
+			}
+			while ( worker.isAlive() ) {
+				try {
+					worker.join();
+				} catch ( InterruptedException ie ) {
+					interrupted = true;
+				}
+			}
+		}
+		if ( interrupted ) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private class Worker extends Thread {
+		private final BlockingQueue< Chunk > queue = new ArrayBlockingQueue<>( QUEUE_CAPACITY );
+		private final byte[] mirrorBuffer = new byte[ MIRROR_BUFFER_SIZE ];
+		/** Index of the digest the worker computes or -1 for the file hash */
+		private final int digest;
+
+		Worker( String name, int digest ) {
+			super( name );
+			this.digest = digest;
+		}
+
+		@Override
+		public void run() {
+			try {
+				for ( Chunk chunk = queue.take(); chunk != END; chunk = queue.take() ) {
+					try {
+						int length = chunk.content.remaining();
+						boolean fileDone = digest < 0
+								? chunk.fileInfo.hashChunk( chunk.state, chunk.position, chunk.content, mirrorBuffer )
+								: chunk.fileInfo.digestChunk( chunk.state, digest, chunk.content, mirrorBuffer );
+						// the content is counted once, by the hash worker
+						metrics.chunkHashed( digest < 0 ? length : 0, fileDone );
+						if ( fileDone && listener != null ) {
+							listener.fileHashed( chunk.fileInfo, chunk.state );
+						}
+					} catch ( IOException ioe ) {
+						log.error( String.format( "Error reading %s", chunk.fileInfo.getPath() ), ioe );
+						if ( chunk.state.markFailed() ) {
+							fileFailed( chunk.fileInfo, chunk.state );
+						}
+					} catch ( Throwable th ) {
+						log.error( String.format( "Error hashing %s", chunk.fileInfo.getPath() ), th );
+					} finally {
+						chunk.buffer.release();
+					}
+				}
+			} catch ( InterruptedException ie ) {
+				log.trace( "Interrupted. Exiting" );
+			}
+		}
+	}
+}
@@ -0,0 +1,219 @@
+package iks.medialibchecker;
+
+import org.slf4j.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rate governor of the reads of a device, so the scan doesn't starve other users of the disk (media streaming).
+ *
+ * Reads are paced by a token bucket: every read reserves its time slot at the current rate and the reader sleeps
+ * until the slot comes, so the sleep intervals follow the rate by themselves. The rate is capped by the configured
+ * bytes/sec if any.
+ *
+ * Adaptive mode adjusts the rate and the read length every {@link #WINDOW_NANOS} in the AIMD manner. The window is
+ * congested when the own reads take more than {@link #LATENCY_FACTOR} times longer per byte than the best recent
+ * window of the same read length, or when the device transfers notably more than the own reads as {@link LoadSource}
+ * tells. The transferred sectors are compared rather than the requests in flight: a read is split into several
+ * requests and readahead is issued on its behalf, so the own requests can't be told from the foreground ones.
+ * Congestion halves the rate (down to {@link #MIN_RATE}) and the read length, so the disk is given back to the
+ * foreground I/O sooner.
+ * Calm windows grow them back gradually.
+ *
+ * The clock and the load source are pluggable, so the governor can be run against a simulated disk.
+ */
+class IoThrottle {
+	private static final Logger log = LoggerFactory.getLogger( IoThrottle.class );
+	private static final Logger performanceLog = LoggerFactory.getLogger( "performance.IoThrottle" );
+
+	static final long UNLIMITED = Long.MAX_VALUE;
+	/** The scan keeps going at this rate however busy the disk is */
+	static final long MIN_RATE = 1 << 20;
+	static final int MIN_READ_LENGTH = 256 << 10;
+	/** Reads allowed without waiting after idle time */
+	private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos( 100 );
+	private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos( 500 );
+	private static final int MIN_WINDOW_READS = 4;
+	/** Windows the latency baseline is taken from, so it follows the disk state (cache hits, other zones) */
+	private static final int BASELINE_WINDOWS = 60;
+	private static final double LATENCY_FACTOR = 2.0;
+	/** Part of the own bytes the foreground I/O of the window should exceed to make it congested */
+	private static final double FOREGROUND_FRACTION = 0.1;
+	/** Foreground bytes of a window that are not taken as load: readahead past the window end, metadata, journal */
+	private static final long MIN_FOREGROUND_BYTES = 1 << 20;
+	private static final int SECTOR_SIZE = 512;
+
+	/** Time source of the throttle */
+	interface Clock {
+		long nanoTime();
+		void sleep( long nanos ) throws InterruptedException;
+	}
+
+	static final Clock SYSTEM_CLOCK = new Clock() {
+		@Override
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+
+		@Override
+		public void sleep( long nanos ) throws InterruptedException {
+			TimeUnit.NANOSECONDS.sleep( nanos );
+		}
+	};
+
+	/** Load of the device including the throttled reads, like the sector counters of /sys/block/&lt;disk&gt;/stat */
+	interface LoadSource {
+		/** @return sectors read and written by the device so far or -1 if unknown */
+		long getTransferredSectors();
+	}
+
+	private final String deviceName;
+	private final long maxRate;
+	private final int maxReadLength;
+	private final boolean adaptive;
+	/** Null if only the latency of the own reads is watched */
+	private final LoadSource loadSource;
+	private final Clock clock;
+
+	/** Current rate, bytes/sec */
+	private long rate;
+	private int readLength;
+	/** Time the next read may start at */
+	private long nextFreeTime;
+
+	private long windowStart;
+	private long windowBytes;
+	private long windowReadNanos;
+	private int windowReads;
+	/** Device sectors transferred by the window start or -1 if unknown */
+	private long windowStartSectors;
+	/** Read nanoseconds per MiB of the recent windows and the read length they were taken with */
+	private final double[] windowCosts = new double[ BASELINE_WINDOWS ];
+	private final int[] windowReadLengths = new int[ BASELINE_WINDOWS ];
+	private int windowCount;
+
+	private long sleepNanos;
+	private int backoffCount;
+
+	/**
+	 * @param maxRate bytes/sec cap or {@link #UNLIMITED}
+	 * @param maxReadLength read length the scanner uses unthrottled
+	 * @param adaptive whether to back off on congestion
+	 * @param loadSource device load or null to watch the own reads only
+	 */
+	IoThrottle( String deviceName, long maxRate, int maxReadLength, boolean adaptive, LoadSource loadSource, Clock clock ) {
+		if ( maxRate < MIN_RATE ) {
+			throw new IllegalArgumentException( "Throttle rate should be at least " + Utils.getFileSizeNice( MIN_RATE ) + "/sec" );
+		}
+		this.deviceName = deviceName;
+		this.maxRate = maxRate;
+		this.maxReadLength = maxReadLength;
+		this.adaptive = adaptive;
+		this.loadSource = loadSource;
+		this.clock = clock;
+		rate = maxRate;
+		readLength = maxReadLength;
+		windowStart = clock.nanoTime();
+		nextFreeTime = windowStart;
+		windowStartSectors = getTransferredSectors();
+	}
+
+	/** @return length of the next read, which is less than the scanner read size while backing off */
+	synchronized int getReadLength() {
+		return readLength;
+	}
+
+	synchronized long getRate() {
+		return rate;
+	}
+
+	/** Waits for the time slot of the read. Every call should be followed by {@link #readDone} */
+	void acquire( long bytes ) throws InterruptedException {
+		long waitNanos = reserve( bytes );
+		if ( waitNanos > 0 ) {
+			clock.sleep( waitNanos );
+		}
+	}
+
+	private synchronized long reserve( long bytes ) {
+		long now = clock.nanoTime();
+		if ( rate == UNLIMITED ) {
+			return 0;
+		}
+		nextFreeTime = Math.max( nextFreeTime, now - BURST_NANOS ) + (long) ( bytes * 1e9 / rate );
+		long waitNanos = nextFreeTime - now - BURST_NANOS;
+		if ( waitNanos > 0 ) {
+			sleepNanos += waitNanos;
+			return waitNanos;
+		}
+		return 0;
+	}
+
+	/** Takes the read into account. Failed reads should be reported too with the bytes they've read */
+	synchronized void readDone( long bytes, long nanos ) {
+		if ( ! adaptive ) {
+			return;
+		}
+		windowBytes += bytes;
+		windowReadNanos += nanos;
+		++ windowReads;
+		long now = clock.nanoTime();
+		if ( now - windowStart >= WINDOW_NANOS && windowReads >= MIN_WINDOW_READS ) {
+			adjust( now );
+		}
+	}
+
+	private void adjust( long now ) {
+		double cost = windowBytes == 0 ? 0 : (double) windowReadNanos * ( 1 << 20 ) / windowBytes;
+		// shorter reads cost more per byte by themselves, so the windows of the same read length are compared only
+		double baseline = cost;
+		for ( int i = 0; i < Math.min( windowCount, BASELINE_WINDOWS ); ++ i ) {
+			if ( windowReadLengths[ i ] == readLength ) {
+				baseline = Math.min( baseline, windowCosts[ i ] );
+			}
+		}
+		windowCosts[ windowCount % BASELINE_WINDOWS ] = cost;
+		windowReadLengths[ windowCount % BASELINE_WINDOWS ] = readLength;
+		++ windowCount;
+		boolean slow = cost > baseline * LATENCY_FACTOR;
+		long sectors = getTransferredSectors();
+		boolean busy = false;
+		if ( sectors >= 0 && windowStartSectors >= 0 ) {
+			long foregroundBytes = ( sectors - windowStartSectors ) * SECTOR_SIZE - windowBytes;
+			busy = foregroundBytes > Math.max( MIN_FOREGROUND_BYTES, windowBytes * FOREGROUND_FRACTION );
+		}
+		if ( slow || busy ) {
+			long throughput = (long) ( windowBytes * 1e9 / ( now - windowStart ) );
+			rate = Math.max( MIN_RATE, Math.min( rate, throughput ) / 2 );
+			readLength = Math.max( MIN_READ_LENGTH, readLength / 2 );
+			++ backoffCount;
+			if ( log.isDebugEnabled() ) {
+				log.debug(
+						"{} is congested ({}). Backing off to {}/sec by {} reads", deviceName,
+						slow ? String.format( "reads are %.1f times slower", cost / baseline ) : "foreground I/O",
+						Utils.getFileSizeNice( rate ), Utils.getFileSizeNice( readLength )
+				);
+			}
+		} else if ( rate != maxRate || readLength != maxReadLength ) {
+			rate = rate >= maxRate / 2 ? maxRate : Math.min( maxRate, rate + rate / 4 + MIN_RATE );
+			readLength = (int) Math.min( maxReadLength, readLength * 2L );
+		}
+		windowStart = now;
+		windowBytes = 0;
+		windowReadNanos = 0;
+		windowReads = 0;
+		windowStartSectors = sectors;
+	}
+
+	private long getTransferredSectors() {
+		return adaptive && loadSource != null ? loadSource.getTransferredSectors() : -1;
+	}
+
+	synchronized void reportStats() {
+		performanceLog.debug(
+				"Throttle of {} delayed the reads by {} in total, backed off {} times, rate is {} by {} reads", deviceName,
+				Utils.asHumanReadableInterval( sleepNanos ), backoffCount,
+				rate == UNLIMITED ? "unlimited" : Utils.getFileSizeNice( rate ) + "/sec", Utils.getFileSizeNice( readLength )
+		);
+	}
+}
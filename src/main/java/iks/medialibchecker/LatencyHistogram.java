@@ -0,0 +1,83 @@
+package iks.medialibchecker;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear latency histogram in the HdrHistogram manner: every power of two range of nanoseconds is split into
+ * {@link #SUB_BUCKETS} linear buckets, so the values are kept with ~12% precision in the fixed array.
+ * Recording is lock free and doesn't allocate, so it's cheap enough for every read.
+ */
+class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private final AtomicLongArray counts = new AtomicLongArray( ( 64 - SUB_BUCKET_BITS + 1 ) * SUB_BUCKETS );
+	private final AtomicLongArray totals = new AtomicLongArray( 2 );
+	private static final int COUNT = 0;
+	private static final int MAX = 1;
+
+	void record( long nanos ) {
+		if ( nanos < 0 ) {
+			nanos = 0;
+		}
+		counts.incrementAndGet( getBucket( nanos ) );
+		totals.incrementAndGet( COUNT );
+		long max;
+		while ( nanos > ( max = totals.get( MAX ) ) && ! totals.compareAndSet( MAX, max, nanos ) ) {
+			// retry
+		}
+	}
+
+	long getCount() {
+		return totals.get( COUNT );
+	}
+
+	long getMax() {
+		return totals.get( MAX );
+	}
+
+	/**
+	 * @param percentile 0..100
+	 * @return upper bound of the bucket the percentile falls into, nanoseconds. 0 if nothing is recorded
+	 */
+	long getPercentile( double percentile ) {
+		long count = getCount();
+		if ( count == 0 ) {
+			return 0;
+		}
+		long rank = Math.max( 1, (long) Math.ceil( count * percentile / 100 ) );
+		long seen = 0;
+		for ( int bucket = 0; bucket < counts.length(); ++ bucket ) {
+			seen += counts.get( bucket );
+			if ( seen >= rank ) {
+				return Math.min( getBucketEnd( bucket ), getMax() );
+			}
+		}
+		return getMax();
+	}
+
+	/** Values below {@link #SUB_BUCKETS} get a bucket each, then every power of two gets {@link #SUB_BUCKETS} of them */
+	private static int getBucket( long value ) {
+		if ( value < SUB_BUCKETS ) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros( value ) - SUB_BUCKET_BITS;
+		int subBucket = (int) ( value >>> exponent ) - SUB_BUCKETS;
+		return ( exponent + 1 ) * SUB_BUCKETS + subBucket;
+	}
+
+	private static long getBucketEnd( int bucket ) {
+		if ( bucket < SUB_BUCKETS ) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS - 1;
+		long subBucket = bucket % SUB_BUCKETS + SUB_BUCKETS;
+		return ( ( subBucket + 1 ) << exponent ) - 1;
+	}
+
+	/** Compact "p50/p99/max ms" for the progress line */
+	String describe() {
+		return getCount() == 0 ? "-" :
+				String.format( "%.2f/%.2f/%.2f ms", getPercentile( 50 ) / 1e6, getPercentile( 99 ) / 1e6, getMax() / 1e6 );
+	}
+}
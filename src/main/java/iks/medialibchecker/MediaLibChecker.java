@@ -2,9 +2,19 @@ package iks.medialibchecker;
 
 import org.slf4j.*;
 
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
 public class MediaLibChecker {
 	private static final Logger log = LoggerFactory.getLogger( MediaLibChecker.class );
+	/** Time the shutdown hook gives the main thread to save the checkpoint and close the catalog */
+	private static final long SHUTDOWN_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis( 1 );
 	private static Thread mainThread;
+	/** Set when the main thread exits by itself, so the shutdown hook doesn't wait for it */
+	private static volatile boolean exiting;
 
 	public static void main( String[] args ) {
 		mainThread = Thread.currentThread();
@@ -12,15 +22,340 @@ public class MediaLibChecker {
 			@Override public void run() {
 				log.info("Interrupting processing by shutdown hook...");
 				mainThread.interrupt();
+				if ( exiting ) {
+					return;
+				}
+				// the JVM halts once the hooks are done, so let the main thread finish its files first
+				try {
+					mainThread.join( SHUTDOWN_TIMEOUT_MILLIS );
+				} catch ( InterruptedException ie ) {
+					// don't wait any more
+				}
 			}
 		});
 
-		if ( args.length != 1 ) {
-			// TODO: take multiple media source root paths
-			System.err.println( "Usage: medialibchecker <media source root path>" );
-			System.exit( 1 );
+		Options options;
+		ExtentProvider extentProvider;
+		ReadEngine readEngine;
+		try {
+			options = Options.parse( args );
+			extentProvider = ExtentProvider.create( options.extentProvider, options.filefragProcesses );
+			readEngine = ReadEngine.create( options.readEngine );
+		} catch ( IllegalArgumentException iae ) {
+			System.err.println( iae.getMessage() );
+			System.err.print( Options.USAGE );
+			exit( 1 );
+			return;
+		}
+		log.info(
+				"Using {} extent provider and {} read engine with {} reads",
+				extentProvider.getName(), readEngine.getName(), Utils.getFileSizeNice( options.readSize )
+		);
+		BlockDevices blockDevices = new BlockDevices( Paths.get( options.sysfsRoot ) );
+		Map< String, List< Path > > rootsByDevice;
+		try {
+			rootsByDevice = groupRootsByDevice( options.rootPaths, blockDevices );
+		} catch ( IOException ioe ) {
+			System.err.println( "Can't access media source root: " + ioe );
+			exit( 1 );
+			return;
+		}
+		ResultSink sink = null;
+		if ( options.resultsPath != null ) {
+			try {
+				sink = createResultSink( options );
+			} catch ( IOException ioe ) {
+				System.err.println( "Can't write scan results: " + ioe );
+				exit( 1 );
+				return;
+			}
+		}
+		HashCatalog catalog = null;
+		CatalogVerifier catalogVerifier = null;
+		SamplingVerifier samplingVerifier = null;
+		ScanCheckpoint checkpoint = null;
+		try {
+			if ( options.catalogPath != null ) {
+				catalog = new HashCatalog( Paths.get( options.catalogPath ), options.hashMode );
+				if ( options.isSampling() ) {
+					samplingVerifier = new SamplingVerifier(
+							catalog, Paths.get( options.catalogPath ), options.sampleBytes, options.sampleMinutes,
+							options.sampleDays, rootsByDevice.size()
+					);
+				} else {
+					if ( options.checkpointInterval > 0 ) {
+						checkpoint = new ScanCheckpoint(
+								Paths.get( options.catalogPath, ScanCheckpoint.FILE_NAME ), getScanId( options ),
+								options.checkpointInterval
+						);
+					}
+					catalogVerifier = new CatalogVerifier( catalog, options.newOnly, checkpoint, sink );
+				}
+			}
+			Metrics metrics = new Metrics();
+			metrics.startReporting( options.progressInterval );
+			if ( options.duplicatesPath != null ) {
+				findDuplicates( rootsByDevice, extentProvider, readEngine, options, blockDevices, metrics );
+				metrics.stopReporting();
+				return;
+			}
+			// the verifier passes its outcomes to the sink itself
+			HashPipeline.Listener listener = catalogVerifier != null ? catalogVerifier : sink;
+			boolean completed = runScanners(
+					rootsByDevice, extentProvider, new HashPipeline( options.hashMode, options.digests, options.hashThreads, listener, metrics ),
+					readEngine, options, blockDevices, catalogVerifier, listener, samplingVerifier, metrics
+			);
+			metrics.stopReporting();
+			if ( samplingVerifier == null ) {
+				FileInfo.reportThroughput( options.digests );
+			}
+			if ( catalogVerifier != null ) {
+				catalogVerifier.reportStats();
+			}
+			if ( samplingVerifier != null ) {
+				samplingVerifier.finish();
+			}
+			if ( checkpoint != null && completed ) {
+				checkpoint.delete();
+				checkpoint = null;
+			}
+		} catch ( IOException ioe ) {
+			log.error( "Hash catalog error", ioe );
+		} finally {
+			if ( checkpoint != null ) {
+				try {
+					catalog.flush();
+					checkpoint.close();
+					log.info( "Scan checkpoint is saved. The next run with the same options resumes the scan" );
+				} catch ( IOException ioe ) {
+					log.error( "Can't save scan checkpoint", ioe );
+				}
+			}
+			if ( catalog != null ) {
+				try {
+					catalog.close();
+				} catch ( IOException ioe ) {
+					log.error( "Error closing hash catalog", ioe );
+				}
+			}
+			if ( sink != null ) {
+				try {
+					sink.close();
+				} catch ( IOException ioe ) {
+					log.error( String.format( "Can't write scan results to '%s'", options.resultsPath ), ioe );
+				}
+			}
+		}
+	}
+
+	private static ResultSink createResultSink( Options options ) throws IOException {
+		OutputStream out = "-".equals( options.resultsPath ) ? System.out : Files.newOutputStream( Paths.get( options.resultsPath ) );
+		return new ResultSink( out, options.resultsFormat, options.digests );
+	}
+
+	private static void exit( int status ) {
+		exiting = true;
+		System.exit( status );
+	}
+
+	/** Identifies the scan a checkpoint can be resumed by: the same hash mode, verification mode and roots */
+	private static String getScanId( Options options ) {
+		TreeSet< String > roots = new TreeSet<>();
+		for ( String root : options.rootPaths ) {
+			roots.add( Paths.get( root ).toAbsolutePath().normalize().toString() );
+		}
+		return options.hashMode.getName() + ( options.newOnly ? " new-only " : " " ) + roots;
+	}
+
+	/** Runs the staged duplicate search over all the devices. All the stages are swept in physical order */
+	private static void findDuplicates(
+			Map< String, List< Path > > rootsByDevice, ExtentProvider extentProvider, ReadEngine readEngine,
+			Options options, BlockDevices blockDevices, Metrics metrics
+	) {
+		boolean toStdout = "-".equals( options.duplicatesPath );
+		try ( Writer out = toStdout
+				? new OutputStreamWriter( System.out, StandardCharsets.UTF_8 )
+				: Files.newBufferedWriter( Paths.get( options.duplicatesPath ), StandardCharsets.UTF_8 ) ) {
+			DuplicateFinder duplicateFinder = new DuplicateFinder( out );
+			HashPipeline hashPipeline = new HashPipeline(
+					options.hashMode, Collections.emptyList(), options.hashThreads, duplicateFinder, metrics
+			);
+			ArrayList< DirectoryScanner > scanners = new ArrayList<>();
+			ArrayList< IoThrottle > throttles = new ArrayList<>();
+			for ( Map.Entry< String, List< Path > > entry : rootsByDevice.entrySet() ) {
+				IoThrottle throttle = createThrottle( entry.getKey(), options, blockDevices );
+				if ( throttle != null ) {
+					throttles.add( throttle );
+				}
+				ExtentReader extentReader = new ExtentReader(
+						hashPipeline, readEngine, options.readSize, options.rawDevice ? blockDevices : null,
+						getVolumeLayout( entry.getKey(), entry.getValue(), blockDevices ), metrics.addDevice( entry.getKey() ),
+						throttle
+				);
+				scanners.add( new DirectoryScanner(
+						entry.getKey(), entry.getValue(), extentProvider, options.extentWorkers, extentReader, null, null,
+						getSnapshotDirectory( options ), getExtentCacheDirectory( options ), 0, 0
+				) );
+			}
+			try {
+				duplicateFinder.run( scanners );
+			} catch ( InterruptedException ie ) {
+				log.info( "Duplicate search interrupted" );
+			}
+			hashPipeline.close();
+			duplicateFinder.finish();
+			throttles.forEach( IoThrottle::reportStats );
+		} catch ( IOException ioe ) {
+			log.error( String.format( "Can't write duplicates to '%s'", options.duplicatesPath ), ioe );
+		}
+	}
+
+	/**
+	 * Groups media source roots by the physical device they are placed on.
+	 * Roots nested into other roots (or repeated) are dropped to avoid scanning the same files twice.
+	 */
+	private static Map< String, List< Path > > groupRootsByDevice( List< String > rootPaths, BlockDevices blockDevices ) throws IOException {
+		ArrayList< Path > roots = new ArrayList<>();
+		for ( String rootPath : rootPaths ) {
+			roots.add( Paths.get( rootPath ).toRealPath() );
+		}
+		LinkedHashMap< String, List< Path > > rootsByDevice = new LinkedHashMap<>();
+		for ( int i = 0; i < roots.size(); ++ i ) {
+			Path root = roots.get( i );
+			boolean covered = false;
+			for ( int j = 0; j < roots.size() && ! covered; ++ j ) {
+				Path otherRoot = roots.get( j );
+				covered = root.equals( otherRoot ) ? j < i : root.startsWith( otherRoot );
+			}
+			if ( covered ) {
+				log.warn( "Media source root '{}' is already covered by another root. Skipping it", root );
+				continue;
+			}
+			String diskName = blockDevices.getDiskName( root );
+			rootsByDevice.computeIfAbsent( diskName, name -> new ArrayList<>() ).add( root );
+		}
+		for ( Map.Entry< String, List< Path > > entry : rootsByDevice.entrySet() ) {
+			log.info( "Device {}: {}", entry.getKey(), entry.getValue() );
+		}
+		return rootsByDevice;
+	}
+
+	/**
+	 * Runs independent scanner for every physical device in parallel and waits for all of them.
+	 * Rotational devices are swept in physical order, the others are hashed by {@link ParallelScanner}.
+	 * Sampling sweeps all the devices in physical order as it reads the extent maps.
+	 * Then waits for the read content to be hashed.
+	 * @param listener gets the files hashed by {@link ParallelScanner} or null
+	 * @return false if the scan was interrupted
+	 */
+	private static boolean runScanners(
+			Map< String, List< Path > > rootsByDevice, ExtentProvider extentProvider, HashPipeline hashPipeline,
+			ReadEngine readEngine, Options options, BlockDevices blockDevices, CatalogVerifier catalogVerifier,
+			HashPipeline.Listener listener, SamplingVerifier samplingVerifier, Metrics metrics
+	) {
+		ExecutorService executor = Executors.newFixedThreadPool( rootsByDevice.size() );
+		ArrayList< IoThrottle > throttles = new ArrayList<>();
+		for ( Map.Entry< String, List< Path > > entry : rootsByDevice.entrySet() ) {
+			String deviceName = entry.getKey();
+			DeviceMetrics deviceMetrics = metrics.addDevice( deviceName );
+			IoThrottle throttle = createThrottle( deviceName, options, blockDevices );
+			if ( throttle != null ) {
+				throttles.add( throttle );
+			}
+			DeviceMode deviceMode = getDeviceMode( deviceName, entry.getValue(), options.deviceMode, blockDevices );
+			if ( deviceMode != DeviceMode.ROTATIONAL && samplingVerifier == null ) {
+				boolean network = deviceMode == DeviceMode.NETWORK;
+				int concurrency = network ? options.networkConcurrency : options.queueDepth;
+				log.info(
+						"Device {} is {}. Hashing it by {} parallel {}", deviceName,
+						network ? "a network filesystem" : "non-rotational", concurrency,
+						network ? "metadata calls and reads" : "reads"
+				);
+				executor.execute( new ParallelScanner(
+						deviceName, entry.getValue(), readEngine, options.readSize, options.hashMode, options.digests,
+						concurrency, network, MetadataSource.LOCAL, catalogVerifier, listener, metrics, deviceMetrics,
+						throttle
+				) );
+				continue;
+			}
+			ExtentReader extentReader = new ExtentReader(
+					hashPipeline, readEngine, options.readSize, options.rawDevice ? blockDevices : null,
+					getVolumeLayout( deviceName, entry.getValue(), blockDevices ), deviceMetrics, throttle
+			);
+			executor.execute( new DirectoryScanner(
+					deviceName, entry.getValue(), extentProvider, options.extentWorkers, extentReader, catalogVerifier,
+					samplingVerifier, getSnapshotDirectory( options ), getExtentCacheDirectory( options ),
+					options.streamWindow, options.streamPending
+			) );
+		}
+		executor.shutdown();
+		boolean completed = true;
+		try {
+			while ( ! executor.awaitTermination( 1, TimeUnit.HOURS ) ) {
+				log.trace( "Scanners are still running" );
+			}
+		} catch ( InterruptedException ie ) {
+			completed = false;
+			// stop the scanners and let them finish gracefully
+			executor.shutdownNow();
+			try {
+				executor.awaitTermination( 1, TimeUnit.MINUTES );
+			} catch ( InterruptedException ignore ) {
+				// don't wait any more
+			}
+		}
+		hashPipeline.close();
+		throttles.forEach( IoThrottle::reportStats );
+		return completed;
+	}
+
+	private static Path getSnapshotDirectory( Options options ) {
+		return options.extentSnapshotPath == null ? null : Paths.get( options.extentSnapshotPath );
+	}
+
+	private static Path getExtentCacheDirectory( Options options ) {
+		return options.extentCachePath == null ? null : Paths.get( options.extentCachePath );
+	}
+
+	/** @return the way the device is to be scanned: the requested one or the one it's detected to need */
+	private static DeviceMode getDeviceMode(
+			String deviceName, List< Path > roots, DeviceMode requested, BlockDevices blockDevices
+	) {
+		if ( requested != DeviceMode.AUTO ) {
+			return requested;
+		}
+		try {
+			if ( BlockDevices.isNetworkFileSystem( roots.get( 0 ) ) ) {
+				return DeviceMode.NETWORK;
+			}
+		} catch ( IOException ioe ) {
+			log.warn( "Can't get filesystem type of '{}': {}", roots.get( 0 ), ioe.toString() );
+		}
+		return blockDevices.isRotational( deviceName ) ? DeviceMode.ROTATIONAL : DeviceMode.SSD;
+	}
+
+	/** @return placement of the filesystems of the roots on their disk or no placement if it can't be found */
+	private static VolumeLayout getVolumeLayout( String deviceName, List< Path > roots, BlockDevices blockDevices ) {
+		try {
+			return blockDevices.getVolumeLayout( deviceName, roots );
+		} catch ( IOException ioe ) {
+			log.warn( "Can't find the volumes of device {}: {}. Sweeping their extents as they are", deviceName, ioe.toString() );
+			return VolumeLayout.NONE;
+		}
+	}
+
+	/** @return the device read governor or null if the reads are not throttled */
+	private static IoThrottle createThrottle( String deviceName, Options options, BlockDevices blockDevices ) {
+		if ( ! options.isThrottling() ) {
+			return null;
+		}
+		Path statPath = blockDevices.getStatPath( deviceName );
+		if ( options.throttleAdaptive && statPath == null ) {
+			log.info( "No I/O stats of device {}. Throttling it by the read latency only", deviceName );
 		}
-		DirectoryScanner directoryScanner = new DirectoryScanner( args[0] );
-		directoryScanner.run();
+		return new IoThrottle(
+				deviceName, options.throttleRate, options.readSize, options.throttleAdaptive,
+				statPath == null ? null : () -> BlockDevices.readTransferredSectors( statPath ), IoThrottle.SYSTEM_CLOCK
+		);
 	}
 }
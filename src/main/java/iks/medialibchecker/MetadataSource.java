@@ -0,0 +1,29 @@
+package iks.medialibchecker;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Directory listing and stat calls of the traversal. The benchmarks wrap it to simulate network filesystem round
+ * trips on the local filesystem.
+ */
+interface MetadataSource {
+	MetadataSource LOCAL = new MetadataSource() {
+		@Override
+		public List< DirectoryLister.Entry > list( Path directory ) throws IOException {
+			return DirectoryLister.list( directory );
+		}
+
+		@Override
+		public Map< String, Object > readAttributes( Path path ) throws IOException {
+			return Files.readAttributes( path, FileInfo.ATTRIBUTES );
+		}
+	};
+
+	/** @see DirectoryLister#list */
+	List< DirectoryLister.Entry > list( Path directory ) throws IOException;
+
+	/** @return {@link FileInfo#ATTRIBUTES} of the file */
+	Map< String, Object > readAttributes( Path path ) throws IOException;
+}
@@ -0,0 +1,113 @@
+package iks.medialibchecker;
+
+import org.slf4j.*;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Run level metrics registry: hashing counters shared by all the devices and {@link DeviceMetrics} of every device.
+ * Exposed over JMX (iks.medialibchecker:type=Metrics and type=Device) and as the periodic compact progress line.
+ */
+class Metrics implements MetricsMXBean {
+	private static final Logger log = LoggerFactory.getLogger( Metrics.class );
+	private static final String DOMAIN = "iks.medialibchecker";
+
+	private final long startTime = System.nanoTime();
+	private final LongAdder filesHashed = new LongAdder();
+	private final LongAdder bytesHashed = new LongAdder();
+	private final CopyOnWriteArrayList< DeviceMetrics > devices = new CopyOnWriteArrayList<>();
+	private ScheduledExecutorService reporter;
+
+	/** Registers the registry bean. JMX failure doesn't break the scan */
+	Metrics() {
+		register( "type=Metrics", this );
+	}
+
+	DeviceMetrics addDevice( String deviceName ) {
+		DeviceMetrics deviceMetrics = new DeviceMetrics( deviceName );
+		devices.add( deviceMetrics );
+		register( "type=Device,name=" + ObjectName.quote( deviceName ), deviceMetrics );
+		return deviceMetrics;
+	}
+
+	/** Called by the hashing workers for every chunk */
+	void chunkHashed( long bytes, boolean fileDone ) {
+		bytesHashed.add( bytes );
+		if ( fileDone ) {
+			filesHashed.increment();
+		}
+	}
+
+	/** Starts logging the progress line every interval. 0 disables it */
+	void startReporting( int intervalSeconds ) {
+		if ( intervalSeconds <= 0 ) {
+			return;
+		}
+		reporter = Executors.newSingleThreadScheduledExecutor( runnable -> {
+			Thread thread = new Thread( runnable, "PROGRESS" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+		reporter.scheduleAtFixedRate( this::reportProgress, intervalSeconds, intervalSeconds, TimeUnit.SECONDS );
+	}
+
+	/** Stops the reporting and logs the final line */
+	void stopReporting() {
+		if ( reporter != null ) {
+			reporter.shutdownNow();
+		}
+		reportProgress();
+	}
+
+	private void reportProgress() {
+		StringBuilder line = new StringBuilder( String.format(
+				"%d files, %s hashed at %.1f MB/s in %s",
+				getFilesHashed(), Utils.getFileSizeNice( getBytesHashed() ), getHashMegabytesPerSecond(),
+				Utils.asHumanReadableDelay( startTime )
+		) );
+		for ( DeviceMetrics device : devices ) {
+			line.append( " | " ).append( device.describe() );
+		}
+		log.info( line.toString() );
+	}
+
+	@Override
+	public long getFilesHashed() {
+		return filesHashed.sum();
+	}
+
+	@Override
+	public long getBytesHashed() {
+		return bytesHashed.sum();
+	}
+
+	@Override
+	public double getHashMegabytesPerSecond() {
+		return getBytesHashed() * 1e3 / ( System.nanoTime() - startTime + 1 );
+	}
+
+	@Override
+	public long getElapsedSeconds() {
+		return TimeUnit.NANOSECONDS.toSeconds( System.nanoTime() - startTime );
+	}
+
+	@Override
+	public long getEtaSeconds() {
+		long eta = -1;
+		for ( DeviceMetrics device : devices ) {
+			eta = Math.max( eta, device.getEtaSeconds() );
+		}
+		return eta;
+	}
+
+	private static void register( String properties, Object bean ) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean( bean, new ObjectName( DOMAIN + ":" + properties ) );
+		} catch ( JMException | RuntimeException e ) {
+			log.warn( "Can't register {} metrics bean: {}", properties, e.toString() );
+		}
+	}
+}
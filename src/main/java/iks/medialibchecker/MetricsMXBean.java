@@ -0,0 +1,15 @@
+package iks.medialibchecker;
+
+/** JMX view of {@link Metrics}. Per device metrics are registered as {@link DeviceMetricsMXBean} beans */
+public interface MetricsMXBean {
+	long getFilesHashed();
+
+	long getBytesHashed();
+
+	double getHashMegabytesPerSecond();
+
+	long getElapsedSeconds();
+
+	/** The longest of the device estimations or -1 if not known yet */
+	long getEtaSeconds();
+}
@@ -0,0 +1,57 @@
+package iks.medialibchecker;
+
+import java.io.IOException;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/**
+ * Memory mapping of every chunk. The mapping is loaded by the reading thread, so the device is still read
+ * in physical order. Pooled buffers are empty and just limit the mappings in flight.
+ * Mappings are released by the garbage collector.
+ */
+class MmapReadEngine implements ReadEngine {
+	static final String NAME = "mmap";
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public ByteBuffer allocateBuffer( int size ) {
+		return ByteBuffer.allocate( 0 );
+	}
+
+	@Override
+	public boolean readsIntoBuffer() {
+		return false;
+	}
+
+	@Override
+	public ReadFile open( Path path ) throws IOException {
+		FileChannel channel = FileChannel.open( path, StandardOpenOption.READ );
+		long size = channel.size();
+		return new ReadFile() {
+			@Override
+			public long size() {
+				return size;
+			}
+
+			@Override
+			public ByteBuffer read( long position, int length, ByteBuffer buffer ) throws IOException {
+				if ( position + length > channel.size() ) {
+					throw new IOException( "File " + path + " was truncated while hashing" );
+				}
+				MappedByteBuffer mapping = channel.map( FileChannel.MapMode.READ_ONLY, position, length );
+				mapping.load();
+				return mapping;
+			}
+
+			@Override
+			public void close() throws IOException {
+				channel.close();
+			}
+		};
+	}
+}
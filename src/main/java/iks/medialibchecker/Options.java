@@ -0,0 +1,263 @@
+package iks.medialibchecker;
+
+import java.util.*;
+
+/** Command line options */
+class Options {
+	static final String USAGE =
+			"Usage: medialibchecker [options] <media source root path>...\n" +
+			"Options:\n" +
+			"  --extent-provider=auto|fiemap|filefrag  source of file extent maps (default: auto)\n" +
+			"  --filefrag-processes=<count>            filefrag processes running at once (default: 4)\n" +
+			"  --extent-workers=<count>                directory batches mapped at once (default: 2)\n" +
+			"  --extent-snapshot=<directory>           save the extent maps of every device to <device>.extents there\n" +
+			"                                          to replay them by ScanSimulator\n" +
+			"  --extent-cache=<directory>              keep the listings and extent maps of every rotational device in\n" +
+			"                                          <device>.cache there to reuse the unchanged ones by the next run.\n" +
+			"                                          Files read from the raw device are mapped every run anyway\n" +
+			"  --stream-window=<MiB>                   hash the mapped files within this much past every directory read\n" +
+			"                                          while the traversal goes on, keeping just the files waiting for\n" +
+			"                                          hashing in memory, 0 hashes them after the traversal (default: 0)\n" +
+			"  --stream-pending=<count>                file extents waiting for hashing the streaming traversal stops\n" +
+			"                                          for (default: 65536)\n" +
+			"  --hash-mode=stream|tree                 plain XXH64 or single sweep order independent tree hash (default: stream)\n" +
+			"  --digests=<name>,...                    digests computed along with the hash from the same reads and\n" +
+			"                                          written to --results: xxh64, sha256, murmur3 (128-bit). Needs\n" +
+			"                                          --hash-mode=stream\n" +
+			"  --catalog=<directory>                   verify file hashes against persistent hash catalog\n" +
+			"  --new-only                              hash new and changed files only (requires --catalog)\n" +
+			"  --checkpoint=<seconds>                  interval of the catalog scan checkpoints an interrupted scan resumes\n" +
+			"                                          from, 0 disables them (default: 60)\n" +
+			"  --sample-bytes=<GiB>                    verify just a sample of chunks against the tree hash catalog\n" +
+			"                                          reading at most this much\n" +
+			"  --sample-minutes=<minutes>              verify just a sample of chunks, stopping the reads after this time\n" +
+			"  --sample-days=<count>                   runs the sampling rotation covers the whole library in (default: 30)\n" +
+			"  --duplicates=<file>|-                   find duplicate files instead of hashing all of them, writing the\n" +
+			"                                          sets to the file or stdout. Every device is swept in physical order\n" +
+			"  --results=<file>|-                      stream the result of every file (path, size, extents, hash, status)\n" +
+			"                                          to the file or stdout while the scan goes\n" +
+			"  --results-format=jsonl|binary           JSON object per line or binary records (default: jsonl)\n" +
+			"  --hash-threads=<count>                  hashing worker threads (default: CPU core count)\n" +
+			"  --read-engine=pread|mmap|direct         positional reads, memory mapping or O_DIRECT reads (default: pread)\n" +
+			"  --read-size=<MiB>                       size of single read, 1..64 (default: 4)\n" +
+			"  --raw-device                            read physically contiguous extents of several files from the block\n" +
+			"                                          device at once (needs read access to the device)\n" +
+			"  --throttle=<MiB/s>                      cap of the reads of every device (default: unlimited)\n" +
+			"  --throttle-adaptive                     slow the reads down while the device is busy with other I/O\n" +
+			"  --progress=<seconds>                    progress line interval, 0 disables it (default: 10)\n" +
+			"  --device-mode=auto|rotational|ssd|network\n" +
+			"                                          physical order sweep or parallel hashing without extent maps. Auto\n" +
+			"                                          takes it from the filesystem type and the device rotational flag in\n" +
+			"                                          sysfs (default: auto)\n" +
+			"  --queue-depth=<count>                   parallel reads of a non-rotational device (default: 32)\n" +
+			"  --network-concurrency=<count>           parallel metadata calls and reads of a network filesystem\n" +
+			"                                          (default: 64)\n" +
+			"  --sysfs-root=<directory>                sysfs to take block device info from (default: /sys)\n";
+
+	private static final int MAX_READ_SIZE_MIB = 64;
+	private static final int DEFAULT_STREAM_PENDING = 65536;
+
+	String extentProvider = "auto";
+	int filefragProcesses = FilefragExtentProvider.DEFAULT_PROCESS_COUNT;
+	int extentWorkers = ExtentMapScanner.DEFAULT_WORKER_COUNT;
+	String extentSnapshotPath;
+	String extentCachePath;
+	long streamWindow;
+	int streamPending = DEFAULT_STREAM_PENDING;
+	HashMode hashMode = HashMode.STREAM;
+	List< Digest > digests = Collections.emptyList();
+	String catalogPath;
+	boolean newOnly;
+	String duplicatesPath;
+	String resultsPath;
+	ResultSink.Format resultsFormat = ResultSink.Format.JSONL;
+	int checkpointInterval = ScanCheckpoint.DEFAULT_INTERVAL_SECONDS;
+	long sampleBytes;
+	int sampleMinutes;
+	int sampleDays = SamplingVerifier.DEFAULT_DAYS;
+	int hashThreads = Runtime.getRuntime().availableProcessors();
+	String readEngine = PreadReadEngine.NAME;
+	int readSize = ExtentReader.DEFAULT_READ_SIZE;
+	boolean rawDevice;
+	long throttleRate = IoThrottle.UNLIMITED;
+	boolean throttleAdaptive;
+	int progressInterval = 10;
+	DeviceMode deviceMode = DeviceMode.AUTO;
+	int queueDepth = ParallelScanner.DEFAULT_QUEUE_DEPTH;
+	int networkConcurrency = ParallelScanner.DEFAULT_NETWORK_CONCURRENCY;
+	String sysfsRoot = BlockDevices.DEFAULT_SYSFS_ROOT;
+	List< String > rootPaths;
+
+	static Options parse( String[] args ) {
+		Options options = new Options();
+		ArrayList< String > roots = new ArrayList<>();
+		for ( String arg : args ) {
+			if ( ! arg.startsWith( "--" ) ) {
+				roots.add( arg );
+				continue;
+			}
+			int eqIndex = arg.indexOf( '=' );
+			String name = eqIndex < 0 ? arg : arg.substring( 0, eqIndex );
+			String value = eqIndex < 0 ? null : arg.substring( eqIndex + 1 );
+			switch ( name ) {
+				case "--extent-provider":
+					options.extentProvider = requireValue( name, value );
+					break;
+				case "--filefrag-processes":
+					options.filefragProcesses = parsePositiveInt( name, requireValue( name, value ) );
+					break;
+				case "--extent-workers":
+					options.extentWorkers = parsePositiveInt( name, requireValue( name, value ) );
+					break;
+				case "--extent-snapshot":
+					options.extentSnapshotPath = requireValue( name, value );
+					break;
+				case "--extent-cache":
+					options.extentCachePath = requireValue( name, value );
+					break;
+				case "--stream-window":
+					options.streamWindow = (long) parseInt( name, requireValue( name, value ), 0 ) << 20;
+					break;
+				case "--stream-pending":
+					options.streamPending = parsePositiveInt( name, requireValue( name, value ) );
+					break;
+				case "--hash-mode":
+					options.hashMode = HashMode.parse( requireValue( name, value ) );
+					break;
+				case "--digests":
+					options.digests = Digest.createAll( requireValue( name, value ) );
+					break;
+				case "--catalog":
+					options.catalogPath = requireValue( name, value );
+					break;
+				case "--duplicates":
+					options.duplicatesPath = requireValue( name, value );
+					break;
+				case "--results":
+					options.resultsPath = requireValue( name, value );
+					break;
+				case "--results-format":
+					options.resultsFormat = ResultSink.Format.parse( requireValue( name, value ) );
+					break;
+				case "--checkpoint":
+					options.checkpointInterval = parseInt( name, requireValue( name, value ), 0 );
+					break;
+				case "--sample-bytes":
+					options.sampleBytes = (long) parsePositiveInt( name, requireValue( name, value ) ) << 30;
+					break;
+				case "--sample-minutes":
+					options.sampleMinutes = parsePositiveInt( name, requireValue( name, value ) );
+					break;
+				case "--sample-days":
+					options.sampleDays = parsePositiveInt( name, requireValue( name, value ) );
+					break;
+				case "--new-only":
+					options.newOnly = true;
+					break;
+				case "--hash-threads":
+					options.hashThreads = parsePositiveInt( name, requireValue( name, value ) );
+					break;
+				case "--read-engine":
+					options.readEngine = requireValue( name, value );
+					break;
+				case "--raw-device":
+					options.rawDevice = true;
+					break;
+				case "--throttle":
+					options.throttleRate = (long) parsePositiveInt( name, requireValue( name, value ) ) << 20;
+					break;
+				case "--throttle-adaptive":
+					options.throttleAdaptive = true;
+					break;
+				case "--progress":
+					options.progressInterval = parseInt( name, requireValue( name, value ), 0 );
+					break;
+				case "--device-mode":
+					options.deviceMode = DeviceMode.parse( requireValue( name, value ) );
+					break;
+				case "--queue-depth":
+					options.queueDepth = parsePositiveInt( name, requireValue( name, value ) );
+					break;
+				case "--network-concurrency":
+					options.networkConcurrency = parsePositiveInt( name, requireValue( name, value ) );
+					break;
+				case "--sysfs-root":
+					options.sysfsRoot = requireValue( name, value );
+					break;
+				case "--read-size":
+					int readSizeMiB = parsePositiveInt( name, requireValue( name, value ) );
+					if ( readSizeMiB > MAX_READ_SIZE_MIB ) {
+						throw new IllegalArgumentException( "Option " + name + " should be at most " + MAX_READ_SIZE_MIB );
+					}
+					options.readSize = readSizeMiB << 20;
+					break;
+				default:
+					throw new IllegalArgumentException( "Unknown option " + name );
+			}
+		}
+		if ( roots.isEmpty() ) {
+			throw new IllegalArgumentException( "At least one media source root path is expected" );
+		}
+		if ( options.newOnly && options.catalogPath == null ) {
+			throw new IllegalArgumentException( "Option --new-only requires --catalog" );
+		}
+		if ( options.isSampling() ) {
+			if ( options.catalogPath == null || options.hashMode != HashMode.TREE ) {
+				throw new IllegalArgumentException( "Sampling requires --catalog with --hash-mode=tree" );
+			}
+			if ( options.newOnly || options.duplicatesPath != null ) {
+				throw new IllegalArgumentException( "Sampling can't be used with --new-only or --duplicates" );
+			}
+		}
+		if ( options.duplicatesPath != null && options.catalogPath != null ) {
+			throw new IllegalArgumentException( "Options --duplicates and --catalog can't be used together" );
+		}
+		if ( options.streamWindow > 0 && ( options.isSampling() || options.duplicatesPath != null
+				|| options.extentSnapshotPath != null || options.extentCachePath != null ) ) {
+			throw new IllegalArgumentException(
+					"Option --stream-window can't be used with sampling, --duplicates, --extent-snapshot or --extent-cache"
+			);
+		}
+		if ( options.resultsPath != null && ( options.isSampling() || options.duplicatesPath != null ) ) {
+			throw new IllegalArgumentException( "Option --results can't be used with sampling or --duplicates" );
+		}
+		if ( ! options.digests.isEmpty() && ( options.resultsPath == null || options.hashMode != HashMode.STREAM ) ) {
+			throw new IllegalArgumentException( "Option --digests requires --results and --hash-mode=stream" );
+		}
+		options.rootPaths = roots;
+		return options;
+	}
+
+	boolean isThrottling() {
+		return throttleRate != IoThrottle.UNLIMITED || throttleAdaptive;
+	}
+
+	boolean isSampling() {
+		return sampleBytes > 0 || sampleMinutes > 0;
+	}
+
+	private static int parsePositiveInt( String name, String value ) {
+		return parseInt( name, value, 1 );
+	}
+
+	private static int parseInt( String name, String value, int minValue ) {
+		try {
+			int result = Integer.parseInt( value );
+			if ( result >= minValue ) {
+				return result;
+			}
+		} catch ( NumberFormatException ignore ) {
+			// reported below
+		}
+		throw new IllegalArgumentException(
+				"Option " + name + " requires a " + ( minValue > 0 ? "positive" : "non-negative" ) + " number but got '" + value + "'"
+		);
+	}
+
+	private static String requireValue( String name, String value ) {
+		if ( value == null || value.isEmpty() ) {
+			throw new IllegalArgumentException( "Option " + name + " requires a value" );
+		}
+		return value;
+	}
+}
@@ -0,0 +1,274 @@
+package iks.medialibchecker;
+
+import org.slf4j.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Predicate;
+
+/**
+ * Scanner of a non-rotational (SSD/NVMe) device or a network filesystem.
+ * Seeks cost nothing there (or can't be seen at all), so neither extent maps nor physical order are needed.
+ * Directories are listed and files are hashed by tasks of a work-stealing pool, which keeps as many reads in flight
+ * as the pool has threads. Stream hash needs the file content in order, so a file is read by a single task. Tree
+ * hash chunks are independent, so large files are split into read size tasks too. The hashes are the same as the ones of {@link DirectoryScanner}.
+ * {@link IoThrottle} paces the reads of all the tasks together.
+ *
+ * Metadata calls of a network filesystem are round trips to the server, so there the files are stat'ed by their
+ * tasks rather than one by one along with the directory listing, and the pool is as large as the round trips to be
+ * kept in flight.
+ */
+class ParallelScanner implements Runnable {
+	private static final Logger log = LoggerFactory.getLogger( ParallelScanner.class );
+	private static final Logger performanceLog = LoggerFactory.getLogger( "performance.ParallelScanner" );
+	static final int DEFAULT_QUEUE_DEPTH = 32;
+	static final int DEFAULT_NETWORK_CONCURRENCY = 64;
+
+	private final String deviceName;
+	private final List< Path > rootPaths;
+	private final ReadEngine readEngine;
+	private final int readSize;
+	private final HashMode hashMode;
+	/** Digests computed along with the hash by the reading thread */
+	private final List< Digest > digests;
+	private final int queueDepth;
+	/** Whether the files are stat'ed by their tasks */
+	private final boolean network;
+	private final MetadataSource metadataSource;
+	/** Hash catalog verifier or null if no catalog is used */
+	private final CatalogVerifier catalogVerifier;
+	/** Gets the hashed and failed files: the catalog verifier, the result sink or null */
+	private final HashPipeline.Listener listener;
+	private final Predicate< FileInfo > hashingFilter;
+	private final Metrics metrics;
+	private final DeviceMetrics deviceMetrics;
+	/** Null if the reads are not throttled */
+	private final IoThrottle throttle;
+	/** Read buffer of every pool thread */
+	private final ThreadLocal< ByteBuffer > buffers;
+	private final ThreadLocal< byte[] > mirrorBuffers = ThreadLocal.withInitial( () -> new byte[ HashPipeline.MIRROR_BUFFER_SIZE ] );
+	private volatile boolean cancelled;
+
+	/**
+	 * @param queueDepth reads and metadata calls in flight, which is the pool thread count
+	 * @param digests digests computed along with the hash. Stream hash mode only
+	 * @param network whether the device is a network filesystem
+	 * @param listener gets the hashed files or null
+	 * @param throttle governor of the reads or null to read at full speed
+	 */
+	ParallelScanner(
+			String deviceName, List< Path > rootPaths, ReadEngine readEngine, int readSize, HashMode hashMode,
+			List< Digest > digests, int queueDepth, boolean network, MetadataSource metadataSource, CatalogVerifier catalogVerifier,
+			HashPipeline.Listener listener, Metrics metrics, DeviceMetrics deviceMetrics, IoThrottle throttle
+	) {
+		if ( queueDepth < 1 ) {
+			throw new IllegalArgumentException( "Queue depth should be positive" );
+		}
+		this.deviceName = deviceName;
+		this.rootPaths = rootPaths;
+		this.readEngine = readEngine;
+		this.readSize = readSize;
+		this.hashMode = hashMode;
+		this.digests = digests;
+		this.queueDepth = queueDepth;
+		this.network = network;
+		this.metadataSource = metadataSource;
+		this.catalogVerifier = catalogVerifier;
+		this.listener = listener;
+		hashingFilter = catalogVerifier == null ? fileInfo -> true : catalogVerifier::isToBeHashed;
+		this.metrics = metrics;
+		this.deviceMetrics = deviceMetrics;
+		this.throttle = throttle;
+		buffers = ThreadLocal.withInitial( () -> readEngine.allocateBuffer( readSize ) );
+	}
+
+	@Override
+	public void run() {
+		Thread.currentThread().setName( "SCAN-" + deviceName );
+		long startTime = System.nanoTime();
+		deviceMetrics.parallelHashingStarted();
+		ForkJoinPool pool = new ForkJoinPool( queueDepth, forkJoinPool -> {
+			ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread( forkJoinPool );
+			thread.setName( ( network ? "NET-" : "SSD-" ) + deviceName + "-" + thread.getPoolIndex() );
+			return thread;
+		}, null, false );
+		try {
+			ArrayList< DirectoryTask > roots = new ArrayList<>();
+			for ( Path rootPath : rootPaths ) {
+				roots.add( new DirectoryTask( new DirectoryInfo( null, rootPath.toString() ) ) );
+			}
+			pool.submit( () -> ForkJoinTask.invokeAll( roots ) ).get();
+			deviceMetrics.finished();
+		} catch ( InterruptedException ie ) {
+			// stop the tasks and finish
+			cancelled = true;
+		} catch ( ExecutionException ee ) {
+			log.error( String.format( "Parallel scan of device %s failed", deviceName ), ee.getCause() );
+		} finally {
+			pool.shutdownNow();
+			try {
+				pool.awaitTermination( 1, TimeUnit.MINUTES );
+			} catch ( InterruptedException ie ) {
+				// don't wait any more
+			}
+		}
+		performanceLog.debug( "Device {} has been scanned in {}", deviceName, Utils.asHumanReadableDelay( startTime ) );
+	}
+
+	/** Lists the directory and processes its subdirectories and files in parallel */
+	private class DirectoryTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final DirectoryInfo directory;
+
+		DirectoryTask( DirectoryInfo directory ) {
+			this.directory = directory;
+		}
+
+		@Override
+		protected void compute() {
+			if ( cancelled ) {
+				return;
+			}
+			long startTime = System.nanoTime();
+			directory.readContent( directory.parent == null ? null : rootPaths, metadataSource, ! network );
+			ArrayList< FileInfo > files = directory.containingFiles;
+			deviceMetrics.directoryListed( files == null ? 0 : files.size(), System.nanoTime() - startTime );
+			if ( files == null ) {
+				return;
+			}
+			ArrayList< RecursiveAction > tasks = new ArrayList<>( files.size() );
+			for ( FileInfo fileInfo : files ) {
+				if ( fileInfo instanceof DirectoryInfo ) {
+					tasks.add( new DirectoryTask( (DirectoryInfo) fileInfo ) );
+				} else {
+					tasks.add( new FileTask( fileInfo ) );
+				}
+			}
+			// the directory isn't needed any more. Files keep their parent reference for the path
+			directory.containingFiles = null;
+			invokeAll( tasks );
+		}
+	}
+
+	/**
+	 * Stats the file unless the listing did it and hashes it.
+	 * Tree hashed files are split into read size pieces hashed in parallel.
+	 */
+	private class FileTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final FileInfo fileInfo;
+
+		FileTask( FileInfo fileInfo ) {
+			this.fileInfo = fileInfo;
+		}
+
+		@Override
+		protected void compute() {
+			if ( cancelled ) {
+				return;
+			}
+			try {
+				fileInfo.readAttributes( metadataSource );
+			} catch ( IOException ioe ) {
+				log.debug( "Can't read attributes of '{}': {}", fileInfo.getPath(), ioe.toString() );
+				return;
+			}
+			// empty files have no extents, so the rotational scan doesn't hash them either
+			if ( fileInfo.size == 0 || ! hashingFilter.test( fileInfo ) ) {
+				return;
+			}
+			deviceMetrics.extentsPlaced( fileInfo.size );
+			FileInfo.HashState state = fileInfo.startHashing( hashMode, digests, fileInfo.size, 0 );
+			try ( ReadEngine.ReadFile file = readEngine.open( fileInfo.toPath() ) ) {
+				if ( hashMode == HashMode.STREAM || fileInfo.size <= readSize ) {
+					for ( long position = 0; position < fileInfo.size && ! cancelled; position += readSize ) {
+						hashPiece( file, state, position );
+					}
+				} else {
+					ArrayList< PieceTask > pieces = new ArrayList<>();
+					for ( long position = 0; position < fileInfo.size; position += readSize ) {
+						pieces.add( new PieceTask( file, state, position ) );
+					}
+					invokeAll( pieces );
+				}
+			} catch ( IOException ioe ) {
+				fail( state );
+				log.error( String.format( "Error while reading %s", fileInfo.getPath() ), ioe );
+			} catch ( InterruptedException ie ) {
+				cancelled = true;
+			} finally {
+				fileInfo.finishReading();
+			}
+		}
+
+		/** Reads a piece of the file and hashes it right in the reading thread */
+		void hashPiece(
+				ReadEngine.ReadFile file, FileInfo.HashState state, long position
+		) throws IOException, InterruptedException {
+			int length = (int) Math.min( readSize, fileInfo.size - position );
+			if ( throttle != null ) {
+				throttle.acquire( length );
+			}
+			long startTime = System.nanoTime();
+			ByteBuffer content;
+			long readTime;
+			try {
+				content = file.read( position, length, buffers.get() );
+			} finally {
+				readTime = System.nanoTime() - startTime;
+				if ( throttle != null ) {
+					throttle.readDone( length, readTime );
+				}
+			}
+			deviceMetrics.recordParallelRead( length, readTime );
+			boolean fileDone = fileInfo.hashChunk( state, position, content.duplicate(), mirrorBuffers.get() );
+			// the files are hashed by many threads at once, so the digests don't need workers of their own here
+			for ( int i = 0; i < digests.size(); ++ i ) {
+				fileDone |= fileInfo.digestChunk( state, i, content, mirrorBuffers.get() );
+			}
+			deviceMetrics.extentDone( length );
+			metrics.chunkHashed( length, fileDone );
+			if ( fileDone && listener != null ) {
+				listener.fileHashed( fileInfo, state );
+			}
+		}
+
+		/** Tells the listener about the file once, though several pieces may fail */
+		void fail( FileInfo.HashState state ) {
+			if ( state.markFailed() && listener != null ) {
+				listener.fileFailed( fileInfo, state );
+			}
+		}
+
+		private class PieceTask extends RecursiveAction {
+			private static final long serialVersionUID = 1L;
+			private final ReadEngine.ReadFile file;
+			private final FileInfo.HashState state;
+			private final long position;
+
+			PieceTask( ReadEngine.ReadFile file, FileInfo.HashState state, long position ) {
+				this.file = file;
+				this.state = state;
+				this.position = position;
+			}
+
+			@Override
+			protected void compute() {
+				if ( cancelled ) {
+					return;
+				}
+				try {
+					hashPiece( file, state, position );
+				} catch ( IOException ioe ) {
+					fail( state );
+					log.error( String.format( "Error while reading %s at %d", fileInfo.getPath(), position ), ioe );
+				} catch ( InterruptedException ie ) {
+					cancelled = true;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package iks.medialibchecker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/** Positional reads through the page cache into pooled direct buffers */
+class PreadReadEngine implements ReadEngine {
+	static final String NAME = "pread";
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public ByteBuffer allocateBuffer( int size ) {
+		return ByteBuffer.allocateDirect( size );
+	}
+
+	@Override
+	public ReadFile open( Path path ) throws IOException {
+		return new ChannelFile( path, FileChannel.open( path, StandardOpenOption.READ ) );
+	}
+
+	static class ChannelFile implements ReadFile {
+		private final Path path;
+		private final FileChannel channel;
+		private final long size;
+
+		ChannelFile( Path path, FileChannel channel ) throws IOException {
+			this.path = path;
+			this.channel = channel;
+			size = channel.size();
+		}
+
+		@Override
+		public long size() {
+			return size;
+		}
+
+		@Override
+		public ByteBuffer read( long position, int length, ByteBuffer buffer ) throws IOException {
+			buffer.clear();
+			buffer.limit( length );
+			while ( buffer.hasRemaining() ) {
+				if ( channel.read( buffer, position + buffer.position() ) < 0 ) {
+					throw new IOException( "File " + path + " was truncated while hashing" );
+				}
+			}
+			buffer.flip();
+			return buffer;
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package iks.medialibchecker;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * The way file content is read for hashing.
+ * Extents are read by chunks of the configured read size into pooled buffers allocated by the engine.
+ */
+interface ReadEngine {
+	/** File opened for reading */
+	interface ReadFile extends Closeable {
+		long size();
+
+		/**
+		 * Reads the file content.
+		 * @param buffer pooled buffer of the engine to read into
+		 * @return buffer with the content from its position to its limit. Either the pooled buffer or engine's own one
+		 * @throws IOException if the file is shorter than expected
+		 */
+		ByteBuffer read( long position, int length, ByteBuffer buffer ) throws IOException;
+	}
+
+	ReadFile open( Path path ) throws IOException;
+
+	/** Allocates buffer for the pool */
+	ByteBuffer allocateBuffer( int size );
+
+	/** @return false if the engine provides its own buffers, so pooled ones can't be shared by several reads */
+	default boolean readsIntoBuffer() {
+		return true;
+	}
+
+	/** Short engine name for logs and command line */
+	String getName();
+
+	static ReadEngine create( String name ) {
+		switch ( name ) {
+			case PreadReadEngine.NAME:
+				return new PreadReadEngine();
+			case MmapReadEngine.NAME:
+				return new MmapReadEngine();
+			case DirectReadEngine.NAME:
+				if ( ! DirectReadEngine.isAvailable() ) {
+					throw new IllegalArgumentException( "O_DIRECT read engine isn't available on this platform" );
+				}
+				return new DirectReadEngine();
+			default:
+				throw new IllegalArgumentException( "Unknown read engine '" + name + "'" );
+		}
+	}
+}
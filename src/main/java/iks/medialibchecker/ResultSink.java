@@ -0,0 +1,212 @@
+package iks.medialibchecker;
+
+import org.slf4j.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-file results streamed while the scan goes, so other tools can follow the scan live instead of digging the
+ * results out of the logs. A record tells the path, size, extent count, largest extent, hash, status and the enabled
+ * {@link Digest}s of a file.
+ *
+ * Formats:
+ * - jsonl: a JSON object per line, the hash is a hex string or null. The digests are an object of hex strings by
+ *   the digest name or null if the file wasn't hashed. There is no such field unless digests are enabled
+ * - binary: {@link #MAGIC}, the digest names (byte count and UTF strings), then records of UTF-8 path (int length
+ *   and bytes), size (long), extent count (int), largest extent (long), hash (long), whether the hash is set (byte),
+ *   status ordinal (byte) and every digest value (byte length, 0 if the file wasn't hashed, and bytes)
+ *
+ * Records come from the hashing workers of all the devices. They are buffered and flushed every second.
+ */
+class ResultSink implements HashPipeline.Listener, Closeable {
+	private static final Logger log = LoggerFactory.getLogger( ResultSink.class );
+	static final long MAGIC = 0x4d4c43524553_0002L;
+	private static final long FLUSH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos( 1 );
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	enum Format {
+		JSONL,
+		BINARY;
+
+		static Format parse( String name ) {
+			try {
+				return valueOf( name.toUpperCase() );
+			} catch ( IllegalArgumentException iae ) {
+				throw new IllegalArgumentException( "Unknown result format '" + name + "'" );
+			}
+		}
+	}
+
+	/** Outcome of a file. The binary format keeps the ordinal, so new ones are appended */
+	enum Status {
+		/** Hashed without a catalog */
+		HASHED,
+		/** Not in the catalog yet */
+		NEW,
+		/** Size or modification time differs from the catalog */
+		CHANGED,
+		/** Unchanged, the hash matches the catalog */
+		VERIFIED,
+		/** Unchanged, but the hash differs from the catalog */
+		MISMATCHED,
+		/** Unchanged and not hashed as only new files are requested */
+		SKIPPED,
+		/** Read error */
+		FAILED;
+
+		String getName() {
+			return name().toLowerCase();
+		}
+	}
+
+	private final Format format;
+	private final List< Digest > digests;
+	private final OutputStream stream;
+	private final DataOutputStream out;
+	private final StringBuilder line = new StringBuilder( 256 );
+	private long lastFlushTime = System.nanoTime();
+	private long recordCount;
+	private boolean failed;
+
+	/**
+	 * @param stream the output, which is closed along with the sink
+	 * @param digests digests computed along with the hash
+	 */
+	ResultSink( OutputStream stream, Format format, List< Digest > digests ) throws IOException {
+		this.format = format;
+		this.digests = digests;
+		this.stream = stream;
+		out = new DataOutputStream( new BufferedOutputStream( stream, 64 * 1024 ) );
+		if ( format == Format.BINARY ) {
+			out.writeLong( MAGIC );
+			out.writeByte( digests.size() );
+			for ( Digest digest : digests ) {
+				out.writeUTF( digest.getName() );
+			}
+		}
+	}
+
+	@Override
+	public void fileHashed( FileInfo fileInfo, FileInfo.HashState state ) {
+		fileDone( fileInfo, state, Status.HASHED );
+	}
+
+	@Override
+	public void fileFailed( FileInfo fileInfo, FileInfo.HashState state ) {
+		fileDone( fileInfo, state, Status.FAILED );
+	}
+
+	/**
+	 * Writes the record of the file
+	 * @param state hash state of the file read this run or null if the file wasn't read (the hash isn't known)
+	 */
+	synchronized void fileDone( FileInfo fileInfo, FileInfo.HashState state, Status status ) {
+		if ( failed ) {
+			return;
+		}
+		boolean hashSet = state != null && status != Status.FAILED && fileInfo.isHashReady();
+		long maxExtentSize = state == null ? 0 : state.maxExtentSize;
+		try {
+			if ( format == Format.BINARY ) {
+				byte[] path = fileInfo.getPath().getBytes( StandardCharsets.UTF_8 );
+				out.writeInt( path.length );
+				out.write( path );
+				out.writeLong( fileInfo.size );
+				out.writeInt( fileInfo.segmentCount );
+				out.writeLong( maxExtentSize );
+				out.writeLong( hashSet ? fileInfo.getHash() : 0 );
+				out.writeByte( hashSet ? 1 : 0 );
+				out.writeByte( status.ordinal() );
+				for ( int i = 0; i < digests.size(); ++ i ) {
+					byte[] value = hashSet ? state.getDigestValue( i ) : null;
+					out.writeByte( value == null ? 0 : value.length );
+					if ( value != null ) {
+						out.write( value );
+					}
+				}
+			} else {
+				line.setLength( 0 );
+				line.append( "{\"path\":" );
+				appendString( line, fileInfo.getPath() );
+				line.append( ",\"size\":" ).append( fileInfo.size );
+				line.append( ",\"extents\":" ).append( fileInfo.segmentCount );
+				line.append( ",\"maxExtent\":" ).append( maxExtentSize );
+				line.append( ",\"hash\":" );
+				if ( hashSet ) {
+					line.append( '"' );
+					appendHex( line, fileInfo.getHash() );
+					line.append( '"' );
+				} else {
+					line.append( "null" );
+				}
+				if ( ! digests.isEmpty() ) {
+					appendDigests( line, hashSet ? state : null );
+				}
+				line.append( ",\"status\":\"" ).append( status.getName() ).append( "\"}\n" );
+				out.write( line.toString().getBytes( StandardCharsets.UTF_8 ) );
+			}
+			++ recordCount;
+			long now = System.nanoTime();
+			if ( now - lastFlushTime >= FLUSH_INTERVAL_NANOS ) {
+				out.flush();
+				lastFlushTime = now;
+			}
+		} catch ( IOException ioe ) {
+			// the scan goes on, the results are in the logs anyway
+			failed = true;
+			log.error( "Can't write scan results. No more results are written", ioe );
+		}
+	}
+
+	private static void appendString( StringBuilder builder, String value ) {
+		builder.append( '"' );
+		for ( int i = 0; i < value.length(); ++ i ) {
+			char c = value.charAt( i );
+			if ( c == '"' || c == '\\' ) {
+				builder.append( '\\' ).append( c );
+			} else if ( c < 0x20 ) {
+				builder.append( "\\u00" ).append( HEX_DIGITS[ c >> 4 ] ).append( HEX_DIGITS[ c & 0xf ] );
+			} else {
+				builder.append( c );
+			}
+		}
+		builder.append( '"' );
+	}
+
+	private void appendDigests( StringBuilder builder, FileInfo.HashState state ) {
+		builder.append( ",\"digests\":" );
+		if ( state == null ) {
+			builder.append( "null" );
+			return;
+		}
+		builder.append( '{' );
+		for ( int i = 0; i < digests.size(); ++ i ) {
+			builder.append( i == 0 ? "\"" : ",\"" ).append( digests.get( i ).getName() ).append( "\":\"" );
+			for ( byte b : state.getDigestValue( i ) ) {
+				builder.append( HEX_DIGITS[ ( b >> 4 ) & 0xf ] ).append( HEX_DIGITS[ b & 0xf ] );
+			}
+			builder.append( '"' );
+		}
+		builder.append( '}' );
+	}
+
+	private static void appendHex( StringBuilder builder, long value ) {
+		for ( int shift = 60; shift >= 0; shift -= 4 ) {
+			builder.append( HEX_DIGITS[ (int) ( value >>> shift ) & 0xf ] );
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		log.info( "{} file results written", recordCount );
+		if ( stream == System.out ) {
+			// standard output stays open for the rest of the run
+			out.flush();
+		} else {
+			out.close();
+		}
+	}
+}
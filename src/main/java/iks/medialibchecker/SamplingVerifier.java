@@ -0,0 +1,391 @@
+package iks.medialibchecker;
+
+import org.slf4j.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Budgeted verification of a part of the library against the {@link TreeHash} chunk hashes of the hash catalog.
+ *
+ * Every chunk of the library belongs to one of N rotation slots by a hash of its identity, and every run verifies the
+ * chunks of the current slot, so the whole library is covered by N runs. If the slot doesn't fit the byte budget,
+ * chunks are taken from every stratum (equal part of the device's physical range) in proportion, in pseudo-random
+ * order. The chunks are read in physical order by several sweeps over the device, every sweep taking the next part of
+ * every stratum, so a run stopped by the time budget still covers the whole device evenly.
+ *
+ * The rotation moves to the next slot only when every device has read all the chunks selected, so a slot cut short by
+ * the time budget or an interruption is sampled again by the next run. The pseudo-random order changes every run, so
+ * the runs sampling the same slot (again or in the next cycle) read other chunks first and the slot is covered over
+ * the runs even if the budget is short of it.
+ */
+class SamplingVerifier {
+	private static final Logger log = LoggerFactory.getLogger( SamplingVerifier.class );
+	private static final Logger performanceLog = LoggerFactory.getLogger( "performance.SamplingVerifier" );
+	static final int DEFAULT_DAYS = 30;
+	/** The run number and the rotation file in the catalog directory */
+	private static final String RUN_FILE_NAME = "sampling.run";
+	private static final int STRATA = 64;
+	private static final int SWEEPS = 4;
+	private static final long SLOT_SEED = 0x6a09e667f3bcc909L;
+	private static final long PRIORITY_SEED = 0xbb67ae8584caa73bL;
+
+	/** Chunk chosen for verification */
+	private static class SampledChunk {
+		final FileInfo fileInfo;
+		final HashCatalog.Entry entry;
+		final int chunkIndex;
+		final long devicePosition;
+		final long priority;
+		int sweep;
+
+		SampledChunk( FileInfo fileInfo, HashCatalog.Entry entry, int chunkIndex, long devicePosition, long priority ) {
+			this.fileInfo = fileInfo;
+			this.entry = entry;
+			this.chunkIndex = chunkIndex;
+			this.devicePosition = devicePosition;
+			this.priority = priority;
+		}
+
+		int getLength() {
+			return (int) Math.min( TreeHash.CHUNK_SIZE, fileInfo.size - (long) chunkIndex * TreeHash.CHUNK_SIZE );
+		}
+	}
+
+	private final HashCatalog catalog;
+	private final Path runPath;
+	/** Every run has its own number, the chunk priorities are derived from */
+	private final int run;
+	/** Slots completed so far. The next slot of the rotation is sampled until it's completed */
+	private final int rotation;
+	private final int days;
+	private final int slot;
+	private final long prioritySeed;
+	/** Budget of every device. Long.MAX_VALUE if there is no byte budget */
+	private final long deviceBytes;
+	/** System.nanoTime() the reads stop at or 0 if there is no time budget */
+	private final long deadline;
+	private final long startTime = System.nanoTime();
+	private final int deviceCount;
+	/** Devices all the selected chunks were read on */
+	private final AtomicInteger completedDevices = new AtomicInteger();
+
+	private final AtomicLong sampledFiles = new AtomicLong();
+	private final AtomicLong unverifiableFiles = new AtomicLong();
+	private final AtomicLong libraryChunks = new AtomicLong();
+	private final AtomicLong slotChunks = new AtomicLong();
+	private final AtomicLong selectedChunks = new AtomicLong();
+	private final AtomicLong verifiedChunks = new AtomicLong();
+	private final AtomicLong verifiedBytes = new AtomicLong();
+	private final AtomicLong mismatchedChunks = new AtomicLong();
+	private final AtomicLong failedChunks = new AtomicLong();
+	private final AtomicLong strataCovered = new AtomicLong();
+	private final AtomicLong strataTotal = new AtomicLong();
+	private volatile boolean budgetExhausted;
+
+	/**
+	 * @param catalogDirectory keeps the run number and the rotation choosing the slot
+	 * @param budgetBytes bytes to be read over all the devices or 0 for no limit
+	 * @param budgetMinutes time the reads stop at or 0 for no limit
+	 * @param days rotation slot count: runs to cover the whole library
+	 */
+	SamplingVerifier(
+			HashCatalog catalog, Path catalogDirectory, long budgetBytes, int budgetMinutes, int days, int deviceCount
+	) throws IOException {
+		if ( days < 1 ) {
+			throw new IllegalArgumentException( "At least one rotation slot is expected" );
+		}
+		this.catalog = catalog;
+		this.days = days;
+		this.deviceCount = deviceCount;
+		runPath = catalogDirectory.resolve( RUN_FILE_NAME );
+		int[] state = readState( runPath );
+		run = state[ 0 ];
+		rotation = state[ 1 ];
+		slot = Math.floorMod( rotation, days );
+		prioritySeed = mix( PRIORITY_SEED + run );
+		deviceBytes = budgetBytes > 0 ? Math.max( 1, budgetBytes / deviceCount ) : Long.MAX_VALUE;
+		deadline = budgetMinutes > 0 ? startTime + TimeUnit.MINUTES.toNanos( budgetMinutes ) : 0;
+		log.info( "Sampling run #{} verifies rotation slot {} of {}", run, slot, days );
+	}
+
+	/** @return run number and rotation. The file of the previous versions has the run number only, which is both */
+	private static int[] readState( Path runPath ) throws IOException {
+		if ( ! Files.exists( runPath ) ) {
+			return new int[] { 0, 0 };
+		}
+		String text = new String( Files.readAllBytes( runPath ), StandardCharsets.US_ASCII ).trim();
+		String[] fields = text.split( "\\s+" );
+		try {
+			int run = Integer.parseInt( fields[ 0 ] );
+			if ( fields.length == 1 ) {
+				return new int[] { run, run };
+			}
+			if ( fields.length == 2 ) {
+				return new int[] { run, Integer.parseInt( fields[ 1 ] ) };
+			}
+		} catch ( NumberFormatException nfe ) {
+			// reported below
+		}
+		throw new IOException( "Unexpected sampling run number and rotation '" + text + "' in " + runPath );
+	}
+
+	/**
+	 * Files are placed in the file extent map if their catalog entry has chunk hashes of the same content version.
+	 * Called by the extent map thread.
+	 */
+	boolean isSampled( FileInfo fileInfo ) {
+		try {
+			fileInfo.readAttributes();
+			HashCatalog.Entry entry = catalog.lookup( fileInfo.device, fileInfo.inode );
+			if ( entry != null && entry.chunkCount > 0 && entry.isSameContentVersion( fileInfo.size, fileInfo.modifiedTime ) ) {
+				sampledFiles.incrementAndGet();
+				return true;
+			}
+		} catch ( IOException ioe ) {
+			log.error( String.format( "Can't check '%s' against hash catalog", fileInfo.getPath() ), ioe );
+		}
+		unverifiableFiles.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Chooses and verifies the chunks of the files of the device extent map. Called by the device scanner thread
+	 * @param throttle governor of the reads or null to read at full speed
+	 */
+	void verify(
+			String deviceName, ExtentIndex< FileInfo > fileExtentMap, SegmentTable segments, DeviceMetrics metrics,
+			IoThrottle throttle
+	) {
+		long selectionStartTime = System.nanoTime();
+		List< SampledChunk > chunks = select( collectSlotChunks( fileExtentMap, segments ) );
+		long bytes = 0;
+		for ( SampledChunk chunk : chunks ) {
+			bytes += chunk.getLength();
+		}
+		metrics.extentsPlaced( bytes );
+		performanceLog.debug(
+				"{} chunks of {} selected on {} in {}", chunks.size(), Utils.getFileSizeNice( bytes ), deviceName,
+				Utils.asHumanReadableDelay( selectionStartTime )
+		);
+		ByteBuffer buffer = ByteBuffer.allocateDirect( TreeHash.CHUNK_SIZE );
+		FileInfo openFile = null;
+		FileChannel channel = null;
+		int sweep = -1;
+		try {
+			for ( SampledChunk chunk : chunks ) {
+				if ( Thread.currentThread().isInterrupted() ) {
+					log.info( "Sampling of {} interrupted", deviceName );
+					return;
+				}
+				if ( deadline != 0 && System.nanoTime() - deadline > 0 ) {
+					budgetExhausted = true;
+					log.info( "Time budget is exhausted on {}", deviceName );
+					return;
+				}
+				if ( chunk.sweep != sweep ) {
+					sweep = chunk.sweep;
+					metrics.hashingPassStarted( sweep );
+				}
+				int length = chunk.getLength();
+				try {
+					if ( chunk.fileInfo != openFile ) {
+						closeQuietly( channel );
+						openFile = null;
+						channel = FileChannel.open( chunk.fileInfo.toPath(), StandardOpenOption.READ );
+						openFile = chunk.fileInfo;
+					}
+					if ( throttle != null ) {
+						throttle.acquire( length );
+					}
+					long readStartTime = System.nanoTime();
+					long position = (long) chunk.chunkIndex * TreeHash.CHUNK_SIZE;
+					buffer.clear().limit( length );
+					try {
+						while ( buffer.hasRemaining() ) {
+							if ( channel.read( buffer, position + buffer.position() ) < 0 ) {
+								throw new IOException( "File " + openFile.getPath() + " was truncated while sampling" );
+							}
+						}
+					} finally {
+						if ( throttle != null ) {
+							throttle.readDone( buffer.position(), System.nanoTime() - readStartTime );
+						}
+					}
+					metrics.recordRead( chunk.devicePosition, length, System.nanoTime() - readStartTime );
+					long hash = TreeHash.hashChunk( buffer, 0, length );
+					long storedHash = catalog.getChunkHash( chunk.entry, chunk.chunkIndex );
+					verifiedChunks.incrementAndGet();
+					verifiedBytes.addAndGet( length );
+					if ( hash != storedHash ) {
+						mismatchedChunks.incrementAndGet();
+						log.error(
+								"Chunk hash mismatch (bit rot?) of unchanged file '{}' at {}: stored {}, actual {}",
+								chunk.fileInfo.getPath(), position, Long.toHexString( storedHash ), Long.toHexString( hash )
+						);
+					}
+				} catch ( IOException ioe ) {
+					failedChunks.incrementAndGet();
+					log.error( String.format( "Error while sampling %s", chunk.fileInfo.getPath() ), ioe );
+				} catch ( InterruptedException ie ) {
+					log.info( "Sampling of {} interrupted", deviceName );
+					Thread.currentThread().interrupt();
+					return;
+				}
+				metrics.extentDone( length );
+			}
+			// every chunk selected was read
+			completedDevices.incrementAndGet();
+		} finally {
+			closeQuietly( channel );
+			metrics.finished();
+		}
+	}
+
+	/** @return chunks of the files of the extent map which belong to the rotation slot of the run */
+	private List< SampledChunk > collectSlotChunks( ExtentIndex< FileInfo > fileExtentMap, SegmentTable segments ) {
+		ArrayList< SampledChunk > chunks = new ArrayList<>();
+		IdentityHashMap< FileInfo, Boolean > visited = new IdentityHashMap<>();
+		long chunkCount = 0;
+		ExtentIndex< FileInfo >.Cursor cursor = fileExtentMap.cursor();
+		while ( cursor.next() ) {
+			FileInfo fileInfo = cursor.owner();
+			if ( visited.put( fileInfo, Boolean.TRUE ) != null ) {
+				continue;
+			}
+			HashCatalog.Entry entry;
+			try {
+				entry = catalog.lookup( fileInfo.device, fileInfo.inode );
+			} catch ( IOException ioe ) {
+				log.error( String.format( "Can't look '%s' up in hash catalog", fileInfo.getPath() ), ioe );
+				continue;
+			}
+			if ( entry == null ) {
+				continue;
+			}
+			chunkCount += entry.chunkCount;
+			for ( int chunkIndex = 0; chunkIndex < entry.chunkCount; ++ chunkIndex ) {
+				long identity = mix( mix( mix( SLOT_SEED ^ fileInfo.device ) ^ fileInfo.inode ) ^ chunkIndex );
+				if ( Math.floorMod( identity, days ) == slot ) {
+					chunks.add( new SampledChunk(
+							fileInfo, entry, chunkIndex,
+							fileInfo.getDevicePosition( segments, (long) chunkIndex * TreeHash.CHUNK_SIZE ),
+							mix( identity ^ prioritySeed )
+					) );
+				}
+			}
+		}
+		libraryChunks.addAndGet( chunkCount );
+		slotChunks.addAndGet( chunks.size() );
+		return chunks;
+	}
+
+	/**
+	 * Takes the part of every stratum fitting the byte budget and orders the chunks by the sweeps and then by
+	 * physical position
+	 */
+	private List< SampledChunk > select( List< SampledChunk > slotChunks ) {
+		if ( slotChunks.isEmpty() ) {
+			return slotChunks;
+		}
+		long minPosition = Long.MAX_VALUE;
+		long maxPosition = Long.MIN_VALUE;
+		long slotBytes = 0;
+		for ( SampledChunk chunk : slotChunks ) {
+			minPosition = Math.min( minPosition, chunk.devicePosition );
+			maxPosition = Math.max( maxPosition, chunk.devicePosition );
+			slotBytes += chunk.getLength();
+		}
+		ArrayList< List< SampledChunk > > strata = new ArrayList<>( STRATA );
+		for ( int i = 0; i < STRATA; ++ i ) {
+			strata.add( new ArrayList<>() );
+		}
+		double stratumSpan = ( (double) maxPosition - minPosition + 1 ) / STRATA;
+		for ( SampledChunk chunk : slotChunks ) {
+			strata.get( Math.min( STRATA - 1, (int) ( ( chunk.devicePosition - minPosition ) / stratumSpan ) ) ).add( chunk );
+		}
+		double fraction = Math.min( 1.0, (double) deviceBytes / slotBytes );
+		ArrayList< SampledChunk > selected = new ArrayList<>();
+		for ( List< SampledChunk > stratum : strata ) {
+			if ( stratum.isEmpty() ) {
+				continue;
+			}
+			strataTotal.incrementAndGet();
+			stratum.sort( ( a, b ) -> Long.compare( a.priority, b.priority ) );
+			long stratumBytes = 0;
+			for ( SampledChunk chunk : stratum ) {
+				stratumBytes += chunk.getLength();
+			}
+			long quota = (long) Math.ceil( stratumBytes * fraction );
+			int taken = 0;
+			for ( long takenBytes = 0; taken < stratum.size() && takenBytes < quota; ++ taken ) {
+				takenBytes += stratum.get( taken ).getLength();
+			}
+			if ( taken > 0 ) {
+				strataCovered.incrementAndGet();
+			}
+			for ( int i = 0; i < taken; ++ i ) {
+				SampledChunk chunk = stratum.get( i );
+				chunk.sweep = i * SWEEPS / taken;
+				selected.add( chunk );
+			}
+		}
+		selected.sort( ( a, b ) -> a.sweep != b.sweep ? Integer.compare( a.sweep, b.sweep ) : Long.compare( a.devicePosition, b.devicePosition ) );
+		selectedChunks.addAndGet( selected.size() );
+		return selected;
+	}
+
+	/**
+	 * Logs the coverage and counts the run. The rotation moves to the next slot unless the run was stopped by the time
+	 * budget or interrupted on any device
+	 */
+	void finish() {
+		long slotCount = slotChunks.get();
+		long verified = verifiedChunks.get();
+		log.info(
+				"Sampling run #{} (slot {} of {}): verified {} of {} selected chunks ({}), {} mismatched, {} failed, "
+						+ "{} of {} slot chunks ({}%), {} of {} strata, library of {} chunks in {} files, {} files unverifiable, "
+						+ "in {}{}",
+				run, this.slot, days, verified, selectedChunks.get(), Utils.getFileSizeNice( verifiedBytes.get() ),
+				mismatchedChunks.get(), failedChunks.get(), verified, slotCount,
+				slotCount == 0 ? "100.0" : String.format( "%.1f", verified * 100.0 / slotCount ), strataCovered.get(),
+				strataTotal.get(), libraryChunks.get(), sampledFiles.get(), unverifiableFiles.get(),
+				Utils.asHumanReadableDelay( startTime ), budgetExhausted ? " (time budget exhausted)" : ""
+		);
+		boolean slotCompleted = completedDevices.get() == deviceCount;
+		if ( ! slotCompleted ) {
+			log.info( "Rotation slot {} is sampled again by the next run as not all its selected chunks were read", slot );
+		}
+		String state = ( run + 1 ) + " " + ( slotCompleted ? rotation + 1 : rotation );
+		try {
+			Files.write( runPath, state.getBytes( StandardCharsets.US_ASCII ) );
+		} catch ( IOException ioe ) {
+			log.error( String.format( "Can't store sampling run number to '%s'", runPath ), ioe );
+		}
+	}
+
+	/** MurmurHash3 finalizer spreading the identity bits */
+	private static long mix( long value ) {
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdL;
+		value ^= value >>> 33;
+		value *= 0xc4ceb9fe1a85ec53L;
+		return value ^ ( value >>> 33 );
+	}
+
+	private static void closeQuietly( FileChannel channel ) {
+		if ( channel != null ) {
+			try {
+				channel.close();
+			} catch ( IOException ignore ) {
+				// nothing was written
+			}
+		}
+	}
+}
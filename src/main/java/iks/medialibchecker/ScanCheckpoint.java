@@ -0,0 +1,160 @@
+package iks.medialibchecker;
+
+import org.slf4j.*;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checkpoint of the catalog verification, so an interrupted scan resumes instead of hashing everything again.
+ *
+ * The outcomes of the verified files are kept in memory and appended to the checkpoint file every interval, after the
+ * catalog entries they refer to are made durable, so the checkpoint never runs ahead of the catalog. A restart lists
+ * the roots and maps the extents again (it's cheap compared to hashing and catches the changes made since the
+ * interruption), but skips the files completed by the previous runs unless their size or modification time has
+ * changed. So the extents left are exactly the ones of the files not hashed yet. Partially read files are read again
+ * from the start.
+ *
+ * The checkpoint is bound to the hash mode, verification mode and roots of the scan. It's removed once the scan
+ * completes.
+ */
+class ScanCheckpoint implements Closeable {
+	private static final Logger log = LoggerFactory.getLogger( ScanCheckpoint.class );
+	static final String FILE_NAME = "scan.checkpoint";
+	static final int DEFAULT_INTERVAL_SECONDS = 60;
+	private static final long MAGIC = 0x4d4c43434b50_0001L;
+	private static final int RECORD_SIZE = 33;
+
+	/** Outcomes of the verification */
+	static final byte NEW = 0;
+	static final byte CHANGED = 1;
+	static final byte VERIFIED = 2;
+	static final byte MISMATCHED = 3;
+
+	/** File completed by a previous run */
+	private static class Completed {
+		final long size;
+		final long modifiedTime;
+		final byte outcome;
+
+		Completed( long size, long modifiedTime, byte outcome ) {
+			this.size = size;
+			this.modifiedTime = modifiedTime;
+			this.outcome = outcome;
+		}
+	}
+
+	private final Path path;
+	private final long intervalNanos;
+	/** Completed files by device and inode */
+	private final HashMap< Long, HashMap< Long, Completed > > completed = new HashMap<>();
+	private int completedCount;
+	private final FileOutputStream file;
+	/** Outcomes not written to the file yet */
+	private final ByteArrayOutputStream pending = new ByteArrayOutputStream( 64 * 1024 );
+	private final DataOutputStream out = new DataOutputStream( pending );
+	private long lastFlushTime = System.nanoTime();
+
+	/**
+	 * Loads the checkpoint left by the interrupted scan of the same parameters if any
+	 * @param scanId hash mode, verification mode and roots of the scan
+	 */
+	ScanCheckpoint( Path path, String scanId, int intervalSeconds ) throws IOException {
+		this.path = path;
+		intervalNanos = TimeUnit.SECONDS.toNanos( intervalSeconds );
+		byte[] id = scanId.getBytes( StandardCharsets.UTF_8 );
+		long validLength = Files.exists( path ) ? load( id ) : -1;
+		if ( validLength >= 0 ) {
+			// the record being written when the process was killed is dropped
+			try ( FileChannel channel = FileChannel.open( path, StandardOpenOption.WRITE ) ) {
+				channel.truncate( validLength );
+			}
+			log.info( "Resuming interrupted scan: {} files are completed already", completedCount );
+		}
+		file = new FileOutputStream( path.toFile(), validLength >= 0 );
+		if ( validLength < 0 ) {
+			out.writeLong( MAGIC );
+			out.writeInt( id.length );
+			out.write( id );
+		}
+	}
+
+	/** @return length of the complete records of the checkpoint of the same scan or -1 if it's of another scan */
+	private long load( byte[] scanId ) throws IOException {
+		try ( DataInputStream in = new DataInputStream( new BufferedInputStream( Files.newInputStream( path ), 64 * 1024 ) ) ) {
+			if ( in.readLong() != MAGIC || in.readInt() != scanId.length ) {
+				log.info( "Checkpoint {} is of another scan. Starting from scratch", path );
+				return -1;
+			}
+			byte[] id = new byte[ scanId.length ];
+			in.readFully( id );
+			if ( ! Arrays.equals( id, scanId ) ) {
+				log.info( "Checkpoint {} is of another scan. Starting from scratch", path );
+				return -1;
+			}
+			long length = 12 + id.length;
+			while ( true ) {
+				try {
+					long device = in.readLong();
+					long inode = in.readLong();
+					Completed file = new Completed( in.readLong(), in.readLong(), in.readByte() );
+					if ( completed.computeIfAbsent( device, d -> new HashMap<>() ).put( inode, file ) == null ) {
+						++ completedCount;
+					}
+				} catch ( EOFException eofe ) {
+					return length;
+				}
+				length += RECORD_SIZE;
+			}
+		} catch ( EOFException eofe ) {
+			log.info( "Checkpoint {} is incomplete. Starting from scratch", path );
+			return -1;
+		}
+	}
+
+	/** @return outcome of the file completed by a previous run or -1 if the file is to be hashed */
+	byte getCompletedOutcome( FileInfo fileInfo ) {
+		HashMap< Long, Completed > deviceFiles = completed.get( fileInfo.device );
+		Completed file = deviceFiles == null ? null : deviceFiles.get( fileInfo.inode );
+		return file != null && file.size == fileInfo.size && file.modifiedTime == fileInfo.modifiedTime ? file.outcome : -1;
+	}
+
+	/** Keeps the outcome until the next {@link #flush}. The caller serializes the calls */
+	void fileCompleted( FileInfo fileInfo, byte outcome ) throws IOException {
+		out.writeLong( fileInfo.device );
+		out.writeLong( fileInfo.inode );
+		out.writeLong( fileInfo.size );
+		out.writeLong( fileInfo.modifiedTime );
+		out.writeByte( outcome );
+	}
+
+	/** @return true if the checkpoint should be made durable */
+	boolean isFlushDue() {
+		return System.nanoTime() - lastFlushTime >= intervalNanos;
+	}
+
+	/** Writes the outcomes and makes them durable. The results they refer to should be durable already */
+	void flush() throws IOException {
+		pending.writeTo( file );
+		pending.reset();
+		file.getFD().sync();
+		lastFlushTime = System.nanoTime();
+	}
+
+	/** Keeps the checkpoint for the next run */
+	@Override
+	public void close() throws IOException {
+		flush();
+		file.close();
+	}
+
+	/** Removes the checkpoint of the completed scan */
+	void delete() throws IOException {
+		file.close();
+		Files.delete( path );
+	}
+}
@@ -0,0 +1,428 @@
+package iks.medialibchecker;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Replays an extent snapshot saved by the scanner (--extent-snapshot) under several scheduling strategies and
+ * reports the head travel and the time of a disk model, so the strategies are compared on real layouts without
+ * touching the disk. Both phases of the scan are replayed: directory gathering, where a directory is known once its
+ * parent is read, and hashing, where stream hash makes an extent of a file ready once the previous one is read.
+ * Usage: ScanSimulator &lt;snapshot&gt; [options]
+ */
+public class ScanSimulator {
+	private static final String USAGE = "Usage: ScanSimulator <snapshot> [options]\n" +
+			"  --strategies=<list>          comma separated nearest, sweep, elevator, batched (default: all)\n" +
+			"  --hash-mode=stream|tree      extent order the hashing phase needs (default: stream)\n" +
+			"  --batch=<requests>           batch size of the batched strategy (default: 64)\n" +
+			"  --track-to-track=<ms>        shortest seek time (default: 1.0)\n" +
+			"  --full-stroke=<ms>           longest seek time (default: 18.0)\n" +
+			"  --rpm=<count>                spindle speed, a seek waits half a revolution (default: 7200)\n" +
+			"  --transfer=<MiB/s>           sequential read speed (default: 150)\n" +
+			"  --capacity=<GiB>             full stroke distance (default: the end of the last extent)\n";
+
+	/** Read of a directory or of a file extent */
+	static class Request {
+		final int item;
+		final int extent;
+		final long position;
+		private boolean served;
+
+		Request( int item, int extent, long position ) {
+			this.item = item;
+			this.extent = extent;
+			this.position = position;
+		}
+	}
+
+	/** Requests ready to be served, by position and by arrival */
+	static class Pending {
+		private final TreeMap< Long, ArrayDeque< Request > > byPosition = new TreeMap<>();
+		private final ArrayDeque< Request > byArrival = new ArrayDeque<>();
+		private int size;
+
+		void add( Request request ) {
+			byPosition.computeIfAbsent( request.position, position -> new ArrayDeque<>() ).add( request );
+			byArrival.add( request );
+			++ size;
+		}
+
+		void remove( Request request ) {
+			ArrayDeque< Request > requests = byPosition.get( request.position );
+			requests.remove( request );
+			if ( requests.isEmpty() ) {
+				byPosition.remove( request.position );
+			}
+			request.served = true;
+			-- size;
+		}
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		/** @return the first request at or after the position or null */
+		Request ceiling( long position ) {
+			Map.Entry< Long, ArrayDeque< Request > > entry = byPosition.ceilingEntry( position );
+			return entry == null ? null : entry.getValue().peek();
+		}
+
+		/** @return the last request at or before the position or null */
+		Request floor( long position ) {
+			Map.Entry< Long, ArrayDeque< Request > > entry = byPosition.floorEntry( position );
+			return entry == null ? null : entry.getValue().peek();
+		}
+
+		/** @return the requests ready for the longest time, up to the count */
+		List< Request > getOldest( int count ) {
+			while ( ! byArrival.isEmpty() && byArrival.peek().served ) {
+				byArrival.poll();
+			}
+			ArrayList< Request > requests = new ArrayList<>( count );
+			for ( Iterator< Request > i = byArrival.iterator(); i.hasNext() && requests.size() < count; ) {
+				Request request = i.next();
+				if ( ! request.served ) {
+					requests.add( request );
+				}
+			}
+			return requests;
+		}
+	}
+
+	/** Chooses the request to be served next */
+	interface Strategy {
+		/** @param pending ready requests, not empty */
+		Request next( Pending pending, long head );
+	}
+
+	enum StrategyType {
+		/** Nearest to the head (shortest seek first), the way the scanner reads the directories */
+		NEAREST {
+			@Override
+			Strategy create( int batchSize ) {
+				return ( pending, head ) -> {
+					Request greater = pending.ceiling( head );
+					Request less = pending.floor( head );
+					if ( greater == null || less == null ) {
+						return greater == null ? less : greater;
+					}
+					return head - less.position > greater.position - head ? greater : less;
+				};
+			}
+		},
+		/** Ascending sweeps starting over from the disk start (C-SCAN), the way the scanner reads the files */
+		SWEEP {
+			@Override
+			Strategy create( int batchSize ) {
+				return ( pending, head ) -> {
+					Request request = pending.ceiling( head );
+					return request != null ? request : pending.ceiling( Long.MIN_VALUE );
+				};
+			}
+		},
+		/** Ascending and descending sweeps in turn (elevator) */
+		ELEVATOR {
+			@Override
+			Strategy create( int batchSize ) {
+				return new Strategy() {
+					private boolean ascending = true;
+
+					@Override
+					public Request next( Pending pending, long head ) {
+						Request request = ascending ? pending.ceiling( head ) : pending.floor( head );
+						if ( request == null ) {
+							ascending = ! ascending;
+							request = ascending ? pending.ceiling( head ) : pending.floor( head );
+						}
+						return request;
+					}
+				};
+			}
+		},
+		/**
+		 * The oldest ready requests taken by batches, every batch served by an ascending sweep from the head
+		 * (N-step SCAN). The requests got ready meanwhile wait for the next batch
+		 */
+		BATCHED {
+			@Override
+			Strategy create( int batchSize ) {
+				return new Strategy() {
+					private final ArrayList< Request > batch = new ArrayList<>( batchSize );
+
+					@Override
+					public Request next( Pending pending, long head ) {
+						if ( batch.isEmpty() ) {
+							batch.addAll( pending.getOldest( batchSize ) );
+							batch.sort( ( x, y ) -> Long.compare( x.position, y.position ) );
+						}
+						int index = 0;
+						while ( index < batch.size() && batch.get( index ).position < head ) {
+							++ index;
+						}
+						return batch.remove( index == batch.size() ? 0 : index );
+					}
+				};
+			}
+		};
+
+		/** @return a new strategy instance, as a strategy may keep state between the calls */
+		abstract Strategy create( int batchSize );
+
+		static StrategyType parse( String name ) {
+			try {
+				return valueOf( name.toUpperCase() );
+			} catch ( IllegalArgumentException iae ) {
+				throw new IllegalArgumentException( "Unknown strategy '" + name + "'" );
+			}
+		}
+
+		String getName() {
+			return name().toLowerCase();
+		}
+	}
+
+	/**
+	 * Hard disk timing model. Seek time grows with the square root of the distance from the track-to-track seek time
+	 * to the full stroke one, and a seek waits for half a revolution on average
+	 */
+	static class DiskModel {
+		final double trackToTrackMillis;
+		final double fullStrokeMillis;
+		final double revolutionMillis;
+		final double bytesPerMilli;
+		final long capacity;
+
+		DiskModel( double trackToTrackMillis, double fullStrokeMillis, int rpm, double bytesPerSecond, long capacity ) {
+			if ( rpm <= 0 || bytesPerSecond <= 0 || capacity <= 0 ) {
+				throw new IllegalArgumentException( "Spindle speed, transfer rate and capacity should be positive" );
+			}
+			this.trackToTrackMillis = trackToTrackMillis;
+			this.fullStrokeMillis = fullStrokeMillis;
+			revolutionMillis = 60_000.0 / rpm;
+			bytesPerMilli = bytesPerSecond / 1000;
+			this.capacity = capacity;
+		}
+
+		double getAccessMillis( long distance, long bytes ) {
+			double millis = bytes / bytesPerMilli;
+			if ( distance != 0 ) {
+				double stroke = Math.min( 1.0, (double) Math.abs( distance ) / capacity );
+				millis += trackToTrackMillis + ( fullStrokeMillis - trackToTrackMillis ) * Math.sqrt( stroke ) + revolutionMillis / 2;
+			}
+			return millis;
+		}
+	}
+
+	/** Head travel of a replayed phase */
+	static class Replay {
+		private final DiskModel disk;
+		long head;
+		private int direction;
+		int requests;
+		long bytes;
+		int seeks;
+		long seekDistance;
+		/** Changes of the seek direction */
+		int reversals;
+		double millis;
+
+		Replay( DiskModel disk ) {
+			this.disk = disk;
+		}
+
+		void read( long position, long length ) {
+			long distance = position - head;
+			if ( distance != 0 ) {
+				++ seeks;
+				seekDistance += Math.abs( distance );
+				int seekDirection = Long.signum( distance );
+				if ( direction != 0 && seekDirection != direction ) {
+					++ reversals;
+				}
+				direction = seekDirection;
+			}
+			millis += disk.getAccessMillis( distance, length );
+			bytes += length;
+			head = position + length;
+		}
+
+		/** @return round trips of the head: a sweep and the way back */
+		int getPasses() {
+			return reversals / 2 + 1;
+		}
+	}
+
+	private ScanSimulator() {}
+
+	/**
+	 * Replays directory gathering: the roots are listed first, a directory is ready once its parent is read.
+	 * Directories without extents (inline ones) cost no I/O, the scanner places them at block 0.
+	 */
+	static Replay replayDirectories( ExtentSnapshot snapshot, Strategy strategy, DiskModel disk ) {
+		List< ExtentSnapshot.Item > directories = snapshot.directories;
+		ArrayList< List< Integer > > children = new ArrayList<>( directories.size() );
+		for ( int i = 0; i < directories.size(); ++ i ) {
+			children.add( new ArrayList<>() );
+		}
+		ArrayList< Integer > roots = new ArrayList<>();
+		for ( int i = 0; i < directories.size(); ++ i ) {
+			int parent = directories.get( i ).parent;
+			( parent < 0 ? roots : children.get( parent ) ).add( i );
+		}
+		Replay replay = new Replay( disk );
+		Pending pending = new Pending();
+		for ( int root : roots ) {
+			++ replay.requests;
+			addDirectories( children.get( root ), directories, pending );
+		}
+		while ( ! pending.isEmpty() ) {
+			Request request = strategy.next( pending, replay.head );
+			pending.remove( request );
+			++ replay.requests;
+			ExtentSnapshot.Item directory = directories.get( request.item );
+			for ( int extent = 0; extent < directory.positions.length; ++ extent ) {
+				replay.read( directory.positions[ extent ], directory.lengths[ extent ] );
+			}
+			addDirectories( children.get( request.item ), directories, pending );
+		}
+		return replay;
+	}
+
+	private static void addDirectories( List< Integer > indexes, List< ExtentSnapshot.Item > directories, Pending pending ) {
+		for ( int index : indexes ) {
+			ExtentSnapshot.Item directory = directories.get( index );
+			pending.add( new Request( index, 0, directory.positions.length == 0 ? 0 : directory.positions[ 0 ] ) );
+		}
+	}
+
+	/** Replays hashing: stream hash needs the extents of a file in logical order, tree hash takes them in any order */
+	static Replay replayFiles( ExtentSnapshot snapshot, HashMode hashMode, Strategy strategy, DiskModel disk ) {
+		List< ExtentSnapshot.Item > files = snapshot.files;
+		Replay replay = new Replay( disk );
+		Pending pending = new Pending();
+		for ( int i = 0; i < files.size(); ++ i ) {
+			ExtentSnapshot.Item file = files.get( i );
+			int readyExtents = hashMode == HashMode.STREAM ? 1 : file.positions.length;
+			for ( int extent = 0; extent < readyExtents; ++ extent ) {
+				pending.add( new Request( i, extent, file.positions[ extent ] ) );
+			}
+		}
+		while ( ! pending.isEmpty() ) {
+			Request request = strategy.next( pending, replay.head );
+			pending.remove( request );
+			++ replay.requests;
+			ExtentSnapshot.Item file = files.get( request.item );
+			replay.read( request.position, file.lengths[ request.extent ] );
+			int nextExtent = request.extent + 1;
+			if ( hashMode == HashMode.STREAM && nextExtent < file.positions.length ) {
+				pending.add( new Request( request.item, nextExtent, file.positions[ nextExtent ] ) );
+			}
+		}
+		return replay;
+	}
+
+	private static long getLastExtentEnd( ExtentSnapshot snapshot ) {
+		long end = 0;
+		for ( List< ExtentSnapshot.Item > items : Arrays.asList( snapshot.directories, snapshot.files ) ) {
+			for ( ExtentSnapshot.Item item : items ) {
+				for ( int extent = 0; extent < item.positions.length; ++ extent ) {
+					end = Math.max( end, item.positions[ extent ] + item.lengths[ extent ] );
+				}
+			}
+		}
+		return end;
+	}
+
+	public static void main( String[] args ) throws IOException {
+		if ( args.length < 1 ) {
+			System.err.print( USAGE );
+			System.exit( 1 );
+		}
+		List< StrategyType > strategies = Arrays.asList( StrategyType.values() );
+		HashMode hashMode = HashMode.STREAM;
+		int batchSize = 64;
+		double trackToTrackMillis = 1.0;
+		double fullStrokeMillis = 18.0;
+		int rpm = 7200;
+		double transferMiBs = 150;
+		long capacity = 0;
+		try {
+			for ( int i = 1; i < args.length; ++ i ) {
+				int separator = args[ i ].indexOf( '=' );
+				if ( separator < 0 ) {
+					throw new IllegalArgumentException( "Option " + args[ i ] + " has no value" );
+				}
+				String value = args[ i ].substring( separator + 1 );
+				switch ( args[ i ].substring( 0, separator ) ) {
+					case "--strategies":
+						strategies = new ArrayList<>();
+						for ( String name : value.split( "," ) ) {
+							strategies.add( StrategyType.parse( name.trim() ) );
+						}
+						break;
+					case "--hash-mode":
+						hashMode = HashMode.parse( value );
+						break;
+					case "--batch":
+						batchSize = Integer.parseInt( value );
+						if ( batchSize < 1 ) {
+							throw new IllegalArgumentException( "Batch size should be positive" );
+						}
+						break;
+					case "--track-to-track":
+						trackToTrackMillis = Double.parseDouble( value );
+						break;
+					case "--full-stroke":
+						fullStrokeMillis = Double.parseDouble( value );
+						break;
+					case "--rpm":
+						rpm = Integer.parseInt( value );
+						break;
+					case "--transfer":
+						transferMiBs = Double.parseDouble( value );
+						break;
+					case "--capacity":
+						capacity = (long) ( Double.parseDouble( value ) * ( 1L << 30 ) );
+						break;
+					default:
+						throw new IllegalArgumentException( "Unknown option " + args[ i ] );
+				}
+			}
+		} catch ( IllegalArgumentException iae ) {
+			System.err.println( iae.getMessage() );
+			System.err.print( USAGE );
+			System.exit( 1 );
+		}
+
+		ExtentSnapshot snapshot = ExtentSnapshot.load( Paths.get( args[ 0 ] ) );
+		long totalBytes = 0;
+		int totalExtents = 0;
+		for ( ExtentSnapshot.Item file : snapshot.files ) {
+			totalBytes += file.getLength();
+			totalExtents += file.positions.length;
+		}
+		DiskModel disk = new DiskModel(
+				trackToTrackMillis, fullStrokeMillis, rpm, transferMiBs * ( 1 << 20 ),
+				capacity > 0 ? capacity : Math.max( 1, getLastExtentEnd( snapshot ) )
+		);
+		System.out.printf(
+				"%s: %d directories, %d files with %d extents and total size %s, %s hash, %s stroke%n",
+				snapshot.deviceName, snapshot.directories.size(), snapshot.files.size(), totalExtents,
+				Utils.getFileSizeNice( totalBytes ), hashMode.getName(), Utils.getFileSizeNice( disk.capacity )
+		);
+		System.out.printf( "%-9s %-11s %10s %10s %14s %8s %14s%n", "strategy", "phase", "requests", "seeks", "seek distance", "passes", "modeled time" );
+		for ( StrategyType strategy : strategies ) {
+			print( strategy, "directories", replayDirectories( snapshot, strategy.create( batchSize ), disk ) );
+			print( strategy, "files", replayFiles( snapshot, hashMode, strategy.create( batchSize ), disk ) );
+		}
+	}
+
+	private static void print( StrategyType strategy, String phase, Replay replay ) {
+		System.out.printf(
+				"%-9s %-11s %10d %10d %14s %8d %14s%n", strategy.getName(), phase, replay.requests, replay.seeks,
+				Utils.getFileSizeNice( replay.seekDistance ), replay.getPasses(),
+				Utils.asHumanReadableInterval( (long) ( replay.millis * 1e6 ) )
+		);
+	}
+}
@@ -0,0 +1,86 @@
+package iks.medialibchecker;
+
+import java.util.*;
+
+/**
+ * Extent maps of all the files packed into shared primitive arrays (21 bytes per extent).
+ * Extents of a file are stored contiguously in logical order, so the file keeps just the first extent index
+ * and the extent count. Arrays are split into fixed size pages to avoid copying of huge arrays on growth.
+ *
+ * Extents are added by extent mapping thread and read by the scanner thread. Reads don't need synchronization as
+ * the scanner gets the file through {@link ExtentIndex} which is synchronized after the extents were added.
+ * The streaming scan releases the extents it is done with, so the pages are dropped as the sweep goes.
+ */
+class SegmentTable {
+	private static final int PAGE_BITS = 16;
+	private static final int PAGE_SIZE = 1 << PAGE_BITS;
+	private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+	private long[][] logicalOffsets = new long[ 0 ][];
+	private long[][] physicalOffsets = new long[ 0 ][];
+	private int[][] blockCounts = new int[ 0 ][];
+	private byte[][] flags = new byte[ 0 ][];
+	/** Extents of every page not released yet. A page is dropped when it is full and all its extents are released */
+	private int[] liveCounts = new int[ 0 ];
+	private int size;
+
+	/** @return index of the first added segment */
+	synchronized int add( List< FileSegment > segments ) {
+		int first = size;
+		for ( FileSegment segment : segments ) {
+			int page = size >>> PAGE_BITS;
+			if ( page == logicalOffsets.length ) {
+				logicalOffsets = Arrays.copyOf( logicalOffsets, page + 1 );
+				physicalOffsets = Arrays.copyOf( physicalOffsets, page + 1 );
+				blockCounts = Arrays.copyOf( blockCounts, page + 1 );
+				flags = Arrays.copyOf( flags, page + 1 );
+				liveCounts = Arrays.copyOf( liveCounts, page + 1 );
+				logicalOffsets[ page ] = new long[ PAGE_SIZE ];
+				physicalOffsets[ page ] = new long[ PAGE_SIZE ];
+				blockCounts[ page ] = new int[ PAGE_SIZE ];
+				flags[ page ] = new byte[ PAGE_SIZE ];
+				liveCounts[ page ] = PAGE_SIZE;
+			}
+			int offset = size & PAGE_MASK;
+			logicalOffsets[ page ][ offset ] = segment.logicalOffset;
+			physicalOffsets[ page ][ offset ] = segment.physicalOffset;
+			blockCounts[ page ][ offset ] = segment.blockCount;
+			flags[ page ][ offset ] = (byte) segment.flags;
+			++ size;
+		}
+		return first;
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	/** Releases the extents of the file or directory which aren't read any more */
+	synchronized void release( int first, int count ) {
+		for ( int i = first; i < first + count; ++ i ) {
+			int page = i >>> PAGE_BITS;
+			if ( -- liveCounts[ page ] == 0 ) {
+				logicalOffsets[ page ] = null;
+				physicalOffsets[ page ] = null;
+				blockCounts[ page ] = null;
+				flags[ page ] = null;
+			}
+		}
+	}
+
+	long getLogicalOffset( int index ) {
+		return logicalOffsets[ index >>> PAGE_BITS ][ index & PAGE_MASK ];
+	}
+
+	long getPhysicalOffset( int index ) {
+		return physicalOffsets[ index >>> PAGE_BITS ][ index & PAGE_MASK ];
+	}
+
+	int getBlockCount( int index ) {
+		return blockCounts[ index >>> PAGE_BITS ][ index & PAGE_MASK ];
+	}
+
+	int getFlags( int index ) {
+		return flags[ index >>> PAGE_BITS ][ index & PAGE_MASK ];
+	}
+}
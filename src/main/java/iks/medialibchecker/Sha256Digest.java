@@ -0,0 +1,35 @@
+package iks.medialibchecker;
+
+import java.nio.ByteBuffer;
+import java.security.*;
+
+/** SHA-256 of the JDK provider. It takes direct buffers as they are, so the mirror buffer isn't used */
+class Sha256Digest extends Digest {
+	static final String NAME = "sha256";
+
+	@Override
+	String getName() {
+		return NAME;
+	}
+
+	@Override
+	Computation start() {
+		MessageDigest messageDigest;
+		try {
+			messageDigest = MessageDigest.getInstance( "SHA-256" );
+		} catch ( NoSuchAlgorithmException nsae ) {
+			throw new IllegalStateException( "SHA-256 isn't available", nsae );
+		}
+		return new Computation() {
+			@Override
+			public void update( ByteBuffer buffer, byte[] mirrorBuffer ) {
+				messageDigest.update( buffer.duplicate() );
+			}
+
+			@Override
+			public byte[] getValue() {
+				return messageDigest.digest();
+			}
+		};
+	}
+}
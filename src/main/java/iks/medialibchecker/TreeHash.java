@@ -0,0 +1,220 @@
+package iks.medialibchecker;
+
+import net.jpountz.xxhash.*;
+
+import java.io.IOException;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Order independent file hash.
+ *
+ * File content is split into fixed size chunks by logical offset. Every chunk is hashed by XXH64 on its own and
+ * the file hash is XXH64 of the chunk hashes (in logical order) followed by the file size. So file extents may be
+ * hashed in any order (in a single physical order sweep) and pieces of a huge file may be hashed in parallel
+ * ({@link ParallelScanner} does it on devices without seek penalty).
+ * The result doesn't depend on the file fragmentation as chunks are aligned to logical offsets rather than extents.
+ * Chunks split between extents are hashed as their start arrives. The pieces read ahead of the chunk start are held
+ * till it comes, but no more than {@link #MAX_HELD_BYTES} of all the files: past that, the rest of the chunk is read
+ * right from the file.
+ */
+class TreeHash {
+	/** Chunk size is a part of hash definition. Changing it changes all the hashes */
+	static final int CHUNK_SIZE = 1 << 20;
+	private static final long CHUNK_SEED = 0x9747b2842093420L;
+	private static final long ROOT_SEED = 0x2093420_9747b284L;
+	private static final XXHashFactory factory = XXHashFactory.fastestInstance();
+	private static final XXHash64 xxHash64 = factory.hash64();
+	/** Bytes of the pieces held by all the files till their chunk start is hashed */
+	static final long MAX_HELD_BYTES = 256L << 20;
+	private static final AtomicLong heldBytes = new AtomicLong();
+	/** Streaming hash takes byte arrays only */
+	private static final ThreadLocal< byte[] > mirrorBuffers = ThreadLocal.withInitial( () -> new byte[ 64 * 1024 ] );
+
+	/** Reads the file content right from the file */
+	interface ContentSource {
+		/** Reads the buffer full */
+		void read( long position, ByteBuffer buffer ) throws IOException;
+	}
+
+	private static class PartialChunk {
+		final StreamingXXHash64 hash = factory.newStreamingHash64( CHUNK_SEED );
+		/** Bytes from the chunk start hashed so far */
+		int hashedLength;
+		/** Pieces past the hashed length by their offset within the chunk */
+		final TreeMap< Integer, byte[] > heldPieces = new TreeMap<>();
+
+		void update( ByteBuffer buffer ) {
+			byte[] mirror = mirrorBuffers.get();
+			ByteBuffer source = buffer.duplicate();
+			while ( source.hasRemaining() ) {
+				int length = Math.min( source.remaining(), mirror.length );
+				source.get( mirror, 0, length );
+				hash.update( mirror, 0, length );
+				hashedLength += length;
+			}
+		}
+	}
+
+	final long size;
+	private final ContentSource contentSource;
+	private final long maxHeldBytes;
+	private final long[] chunkHashes;
+	private int chunksRemain;
+	private HashMap< Integer, PartialChunk > partialChunks;
+	/** Chunks read right from the file. The rest of their pieces is skipped */
+	private BitSet readChunks;
+	/** Bytes held by this file */
+	private long fileHeldBytes;
+	/** The file failed, so the pieces are not held any more */
+	private boolean discarded;
+
+	/** @param contentSource reads of the file for the chunks which pieces can't be held */
+	TreeHash( long size, ContentSource contentSource ) {
+		this( size, contentSource, MAX_HELD_BYTES );
+	}
+
+	/** @param maxHeldBytes bound of the bytes held by all the files the pieces of this one are held within */
+	TreeHash( long size, ContentSource contentSource, long maxHeldBytes ) {
+		this.size = size;
+		this.contentSource = contentSource;
+		this.maxHeldBytes = maxHeldBytes;
+		long chunkCount = ( size + CHUNK_SIZE - 1 ) / CHUNK_SIZE;
+		if ( chunkCount > Integer.MAX_VALUE ) {
+			throw new IllegalArgumentException( "File is too large for tree hash: " + size );
+		}
+		chunkHashes = new long[ (int) chunkCount ];
+		chunksRemain = chunkHashes.length;
+	}
+
+	/** @return the chunk hashes in logical order. All the chunks should be hashed already */
+	synchronized long[] getChunkHashes() {
+		if ( chunksRemain != 0 ) {
+			throw new IllegalStateException( chunksRemain + " chunks are not hashed yet" );
+		}
+		return chunkHashes.clone();
+	}
+
+	/** Hashes the whole chunk content to be compared with the one of {@link #getChunkHashes} */
+	static long hashChunk( ByteBuffer buffer, int offset, int length ) {
+		return xxHash64.hash( buffer, offset, length, CHUNK_SEED );
+	}
+
+	/**
+	 * Hashes a piece of file content.
+	 * It's safe to call the method from several threads for different pieces of the same file.
+	 * @param position file position of the buffer content
+	 * @param buffer content from its position to its limit. The buffer position isn't changed
+	 * @throws IOException if the rest of a chunk couldn't be read from the file
+	 */
+	void update( long position, ByteBuffer buffer ) throws IOException {
+		int bufferStart = buffer.position();
+		long end = Math.min( position + buffer.remaining(), size );
+		for ( long chunkStart = position / CHUNK_SIZE * CHUNK_SIZE; chunkStart < end; chunkStart += CHUNK_SIZE ) {
+			int chunkIndex = (int) ( chunkStart / CHUNK_SIZE );
+			int chunkLength = (int) Math.min( CHUNK_SIZE, size - chunkStart );
+			long pieceStart = Math.max( position, chunkStart );
+			int pieceLength = (int) ( Math.min( end, chunkStart + chunkLength ) - pieceStart );
+			int pieceOffset = bufferStart + (int) ( pieceStart - position );
+			if ( pieceLength == chunkLength ) {
+				setChunkHash( chunkIndex, xxHash64.hash( buffer, pieceOffset, pieceLength, CHUNK_SEED ) );
+			} else {
+				updatePartialChunk( chunkIndex, chunkLength, (int) ( pieceStart - chunkStart ), buffer, pieceOffset, pieceLength );
+			}
+		}
+	}
+
+	private synchronized void setChunkHash( int chunkIndex, long hash ) {
+		chunkHashes[ chunkIndex ] = hash;
+		-- chunksRemain;
+	}
+
+	private synchronized void updatePartialChunk(
+			int chunkIndex, int chunkLength, int offsetInChunk, ByteBuffer buffer, int offset, int length
+	) throws IOException {
+		if ( discarded || readChunks != null && readChunks.get( chunkIndex ) ) {
+			return;
+		}
+		if ( partialChunks == null ) {
+			partialChunks = new HashMap<>();
+		}
+		PartialChunk chunk = partialChunks.computeIfAbsent( chunkIndex, index -> new PartialChunk() );
+		ByteBuffer source = buffer.duplicate();
+		source.limit( offset + length ).position( offset );
+		if ( offsetInChunk == chunk.hashedLength ) {
+			chunk.update( source );
+			// the held pieces which follow
+			for ( Map.Entry< Integer, byte[] > piece = chunk.heldPieces.firstEntry();
+					piece != null && piece.getKey() == chunk.hashedLength; piece = chunk.heldPieces.firstEntry() ) {
+				chunk.heldPieces.pollFirstEntry();
+				chunk.update( ByteBuffer.wrap( piece.getValue() ) );
+				release( piece.getValue().length );
+			}
+		} else if ( heldBytes.addAndGet( length ) <= maxHeldBytes ) {
+			byte[] piece = new byte[ length ];
+			source.get( piece );
+			chunk.heldPieces.put( offsetInChunk, piece );
+			fileHeldBytes += length;
+		} else {
+			heldBytes.addAndGet( - length );
+			readChunk( chunkIndex, chunk, chunkLength );
+		}
+		if ( chunk.hashedLength == chunkLength ) {
+			partialChunks.remove( chunkIndex );
+			setChunkHash( chunkIndex, chunk.hash.getValue() );
+		}
+	}
+
+	/** Reads the rest of the chunk from the file instead of holding its pieces */
+	private void readChunk( int chunkIndex, PartialChunk chunk, int chunkLength ) throws IOException {
+		for ( byte[] piece : chunk.heldPieces.values() ) {
+			release( piece.length );
+		}
+		chunk.heldPieces.clear();
+		ByteBuffer rest = ByteBuffer.allocate( chunkLength - chunk.hashedLength );
+		try {
+			contentSource.read( (long) chunkIndex * CHUNK_SIZE + chunk.hashedLength, rest );
+		} catch ( IOException ioe ) {
+			discard();
+			throw ioe;
+		}
+		rest.flip();
+		chunk.update( rest );
+		if ( readChunks == null ) {
+			readChunks = new BitSet( chunkHashes.length );
+		}
+		readChunks.set( chunkIndex );
+	}
+
+	private void release( int length ) {
+		heldBytes.addAndGet( - length );
+		fileHeldBytes -= length;
+	}
+
+	/** Drops the held pieces of the failed file. The following pieces are skipped */
+	synchronized void discard() {
+		heldBytes.addAndGet( - fileHeldBytes );
+		fileHeldBytes = 0;
+		partialChunks = null;
+		discarded = true;
+	}
+
+	/** @return bytes of the pieces held by all the files */
+	static long getHeldBytes() {
+		return heldBytes.get();
+	}
+
+	/** @return file hash combined of the chunk hashes. All the chunks should be hashed already */
+	synchronized long getValue() {
+		if ( chunksRemain != 0 ) {
+			throw new IllegalStateException( chunksRemain + " chunks are not hashed yet" );
+		}
+		ByteBuffer combined = ByteBuffer.allocate( ( chunkHashes.length + 1 ) * 8 ).order( ByteOrder.LITTLE_ENDIAN );
+		for ( long chunkHash : chunkHashes ) {
+			combined.putLong( chunkHash );
+		}
+		combined.putLong( size );
+		return xxHash64.hash( combined.array(), 0, combined.capacity(), ROOT_SEED );
+	}
+}
@@ -1,5 +1,6 @@
 package iks.medialibchecker;
 
+import java.nio.file.Path;
 import java.util.*;
 import static java.util.Calendar.DAY_OF_YEAR;
 import static java.util.Calendar.HOUR_OF_DAY;
@@ -100,6 +101,19 @@ public class Utils {
 		return (System.nanoTime() - fromTimeNs) / 1000000L;
 	}
 
+	/**
+	 * Makes path relative to the root it belongs to, for shorter logs.
+	 * Root itself and paths out of the roots are returned as is.
+	 */
+	public static Path relativize( List< Path > rootPaths, Path path ) {
+		for ( Path rootPath : rootPaths ) {
+			if ( path.startsWith( rootPath ) && ! path.equals( rootPath ) ) {
+				return rootPath.relativize( path );
+			}
+		}
+		return path;
+	}
+
 	private static final String[] unitNames = { "bytes", "KB", "MB", "GB", "TB" };
 	public static String getFileSizeNice( long sizeInBytes ) {
 		String theUnitName = null;
@@ -0,0 +1,38 @@
+package iks.medialibchecker;
+
+import java.util.*;
+
+/**
+ * Places the filesystems of the roots scanned together on the common position scale of their disk.
+ * Extent maps tell the offsets within the block device of the filesystem, so the offsets of different partitions
+ * can't be compared as is: they are moved by the partition start. Stacked volumes (device-mapper, md) map their
+ * blocks in a way unknown here, so each of them gets a range of its own past the disk end and the ascending sweep
+ * reads them one after another once the partitions are done.
+ *
+ * The extent maps are moved when they are placed by {@link ExtentMapScanner}. The reads from the block device of the
+ * filesystem and the extent cache move them back.
+ */
+class VolumeLayout {
+	/** Roots of a single filesystem: the offsets are taken as is */
+	static final VolumeLayout NONE = new VolumeLayout( Collections.emptyMap() );
+
+	/** Root path to the start of its filesystem on the disk scale in bytes */
+	private final Map< String, Long > rootStarts;
+
+	VolumeLayout( Map< String, Long > rootStarts ) {
+		this.rootStarts = rootStarts;
+	}
+
+	/** @return start of the filesystem of the file in its blocks. Offsets of the file extents are moved by it */
+	long getStartBlock( FileInfo fileInfo, int blockSize ) {
+		if ( rootStarts.isEmpty() || blockSize == 0 ) {
+			return 0;
+		}
+		FileInfo root = fileInfo;
+		while ( root.parent != null ) {
+			root = root.parent;
+		}
+		Long start = rootStarts.get( root.getName() );
+		return start == null ? 0 : start / blockSize;
+	}
+}
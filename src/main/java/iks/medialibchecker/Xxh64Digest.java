@@ -0,0 +1,45 @@
+package iks.medialibchecker;
+
+import net.jpountz.xxhash.*;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Plain XXH64 with zero seed as xxhsum prints it (big endian). Unlike the file hash it doesn't use the catalog seed,
+ * so it matches the manifests made by the other tools.
+ */
+class Xxh64Digest extends Digest {
+	static final String NAME = "xxh64";
+	private static final XXHashFactory factory = XXHashFactory.fastestInstance();
+
+	@Override
+	String getName() {
+		return NAME;
+	}
+
+	@Override
+	Computation start() {
+		StreamingXXHash64 hash64 = factory.newStreamingHash64( 0 );
+		return new Computation() {
+			@Override
+			public void update( ByteBuffer buffer, byte[] mirrorBuffer ) {
+				// the streaming hash takes byte arrays only
+				if ( buffer.hasArray() ) {
+					hash64.update( buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining() );
+					return;
+				}
+				ByteBuffer source = buffer.duplicate();
+				while ( source.hasRemaining() ) {
+					int length = Math.min( source.remaining(), mirrorBuffer.length );
+					source.get( mirrorBuffer, 0, length );
+					hash64.update( mirrorBuffer, 0, length );
+				}
+			}
+
+			@Override
+			public byte[] getValue() {
+				return ByteBuffer.allocate( Long.BYTES ).putLong( hash64.getValue() ).array();
+			}
+		};
+	}
+}
@@ -0,0 +1,156 @@
+package iks.medialibchecker;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/** Resolves the disk of a library folder through a fake sysfs tree its device is linked into */
+public class BlockDevicesTest {
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private Path library;
+	private Path sysfsRoot;
+	private Path disks;
+	private Path volumes;
+
+	@Before
+	public void createSysfs() throws IOException {
+		library = folder.newFolder( "library" ).toPath();
+		sysfsRoot = folder.newFolder( "sys" ).toPath();
+		disks = Files.createDirectories( sysfsRoot.resolve( "devices/pci0000:00/block" ) );
+		volumes = Files.createDirectories( sysfsRoot.resolve( "devices/virtual/block" ) );
+		for ( String disk : new String[] { "sda", "sdb" } ) {
+			Files.createDirectories( disks.resolve( disk ) );
+			Files.write( disks.resolve( disk ).resolve( "size" ), "1000000\n".getBytes() );
+			// /sys/block has the disks only
+			Files.createDirectories( sysfsRoot.resolve( "block" ) );
+			Files.createSymbolicLink( sysfsRoot.resolve( "block" ).resolve( disk ), disks.resolve( disk ) );
+			for ( int partition = 1; partition <= 2; ++ partition ) {
+				Path partitionPath = Files.createDirectories( disks.resolve( disk ).resolve( disk + partition ) );
+				Files.write( partitionPath.resolve( "partition" ), Integer.toString( partition ).getBytes() );
+				Files.write( partitionPath.resolve( "start" ), ( partition * 2048 + "\n" ).getBytes() );
+				Files.write( partitionPath.resolve( "size" ), "2048\n".getBytes() );
+			}
+		}
+	}
+
+	@Test
+	public void partitionIsOnItsDisk() throws IOException {
+		linkLibraryDevice( disks.resolve( "sda/sda2" ) );
+		assertEquals( "sda", getDiskName() );
+	}
+
+	@Test
+	public void logicalVolumeIsOnTheDiskOfItsPartition() throws IOException {
+		linkLibraryDevice( volume( "dm-0", disks.resolve( "sdb/sdb1" ) ) );
+		assertEquals( "sdb", getDiskName() );
+	}
+
+	@Test
+	public void stackedVolumesAreFollowedDownToTheDisk() throws IOException {
+		// dm-crypt over LVM over two partitions of the same disk
+		Path logicalVolume = volume( "dm-0", disks.resolve( "sda/sda1" ), disks.resolve( "sda/sda2" ) );
+		linkLibraryDevice( volume( "dm-1", logicalVolume ) );
+		assertEquals( "sda", getDiskName() );
+	}
+
+	@Test
+	public void volumeSpanningDisksKeepsItsName() throws IOException {
+		linkLibraryDevice( volume( "md0", disks.resolve( "sda/sda1" ), disks.resolve( "sdb/sdb1" ) ) );
+		assertEquals( "md0", getDiskName() );
+	}
+
+	@Test
+	public void unknownDeviceIsNamedByNumbers() throws IOException {
+		long deviceId = BlockDevices.getDeviceId( library );
+		String expected = "dev-" + BlockDevices.major( deviceId ) + ":" + BlockDevices.minor( deviceId );
+		assertEquals( expected, getDiskName() );
+	}
+
+	@Test
+	public void partitionsAreMovedByTheirStart() throws IOException {
+		LinkedHashMap< Path, Long > roots = new LinkedHashMap<>();
+		roots.put( Paths.get( "/music" ), linkDevice( 8, 1, disks.resolve( "sda/sda1" ) ) );
+		roots.put( Paths.get( "/video" ), linkDevice( 8, 2, disks.resolve( "sda/sda2" ) ) );
+		roots.put( Paths.get( "/music/old" ), makeDevice( 8, 1 ) );
+		VolumeLayout layout = new BlockDevices( sysfsRoot ).getVolumeLayout( "sda", roots );
+		assertEquals( 2048, getStartSector( layout, "/music" ) );
+		assertEquals( 4096, getStartSector( layout, "/video" ) );
+		assertEquals( 2048, getStartSector( layout, "/music/old" ) );
+		// 4 KiB blocks
+		assertEquals( 2048 * 512 / 4096, layout.getStartBlock( file( "/music" ), 4096 ) );
+	}
+
+	@Test
+	public void stackedVolumesAreSweptAfterTheDiskOneByOne() throws IOException {
+		Path logicalVolume = volume( "dm-0", disks.resolve( "sda/sda2" ) );
+		Files.write( logicalVolume.resolve( "size" ), "1024\n".getBytes() );
+		Path cryptVolume = volume( "dm-1", logicalVolume );
+		Files.write( cryptVolume.resolve( "size" ), "1000\n".getBytes() );
+		LinkedHashMap< Path, Long > roots = new LinkedHashMap<>();
+		roots.put( Paths.get( "/photo" ), linkDevice( 253, 1, cryptVolume ) );
+		roots.put( Paths.get( "/music" ), linkDevice( 8, 1, disks.resolve( "sda/sda1" ) ) );
+		roots.put( Paths.get( "/video" ), linkDevice( 253, 0, logicalVolume ) );
+		VolumeLayout layout = new BlockDevices( sysfsRoot ).getVolumeLayout( "sda", roots );
+		assertEquals( 2048, getStartSector( layout, "/music" ) );
+		// past the disk end one after another
+		assertEquals( 1000000, getStartSector( layout, "/video" ) );
+		assertEquals( 1001024, getStartSector( layout, "/photo" ) );
+	}
+
+	@Test
+	public void singleFilesystemIsNotMoved() throws IOException {
+		LinkedHashMap< Path, Long > roots = new LinkedHashMap<>();
+		roots.put( Paths.get( "/music" ), linkDevice( 8, 2, disks.resolve( "sda/sda2" ) ) );
+		roots.put( Paths.get( "/video" ), makeDevice( 8, 2 ) );
+		assertSame( VolumeLayout.NONE, new BlockDevices( sysfsRoot ).getVolumeLayout( "sda", roots ) );
+	}
+
+	private static long getStartSector( VolumeLayout layout, String root ) {
+		return layout.getStartBlock( file( root ), 512 );
+	}
+
+	/** @return file placed under the root */
+	private static FileInfo file( String root ) {
+		return new FileInfo( new DirectoryInfo( new DirectoryInfo( null, root ), "album" ), "track" );
+	}
+
+	/** @return device id of glibc's makedev */
+	private static long makeDevice( int major, int minor ) {
+		return ( ( major & 0xfffL ) << 8 ) | ( ( major & ~0xfffL ) << 32 ) | ( minor & 0xffL ) | ( ( minor & ~0xffL ) << 12 );
+	}
+
+	/** Links the device like /sys/dev/block/MAJOR:MINOR does */
+	private long linkDevice( int major, int minor, Path devicePath ) throws IOException {
+		Path link = sysfsRoot.resolve( "dev/block" ).resolve( major + ":" + minor );
+		Files.createDirectories( link.getParent() );
+		Files.createSymbolicLink( link, devicePath );
+		return makeDevice( major, minor );
+	}
+
+	private Path volume( String name, Path... slaves ) throws IOException {
+		Path volume = Files.createDirectories( volumes.resolve( name ).resolve( "slaves" ) ).getParent();
+		for ( Path slave : slaves ) {
+			Files.createSymbolicLink( volume.resolve( "slaves" ).resolve( slave.getFileName() ), slave );
+		}
+		return volume;
+	}
+
+	/** Links the device of the library folder like /sys/dev/block/MAJOR:MINOR does */
+	private void linkLibraryDevice( Path devicePath ) throws IOException {
+		long deviceId = BlockDevices.getDeviceId( library );
+		Path link = sysfsRoot.resolve( "dev/block" ).resolve( BlockDevices.major( deviceId ) + ":" + BlockDevices.minor( deviceId ) );
+		Files.createDirectories( link.getParent() );
+		Files.createSymbolicLink( link, devicePath );
+	}
+
+	private String getDiskName() throws IOException {
+		return new BlockDevices( sysfsRoot ).getDiskName( library );
+	}
+}
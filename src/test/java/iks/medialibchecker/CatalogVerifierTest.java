@@ -0,0 +1,136 @@
+package iks.medialibchecker;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CatalogVerifierTest {
+	private static final String SCAN_ID = "stream full /library";
+	/** Files of the catalog. Their outcomes take more than 64 KB while nothing is written to the catalog */
+	private static final int KNOWN_FILE_COUNT = 1900;
+	private static final int FILE_COUNT = 2000;
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private Path catalogDirectory;
+	private Path checkpointPath;
+
+	@Before
+	public void createCatalogDirectory() throws IOException {
+		catalogDirectory = folder.newFolder( "catalog" ).toPath();
+		checkpointPath = catalogDirectory.resolve( ScanCheckpoint.FILE_NAME );
+	}
+
+	@Test
+	public void killBeforeFlushLeavesNoCheckpointAheadOfCatalog() throws IOException {
+		try ( HashCatalog catalog = new HashCatalog( catalogDirectory, HashMode.STREAM ) ) {
+			CatalogVerifier verifier = new CatalogVerifier( catalog, false, null, null );
+			for ( int inode = 1; inode <= KNOWN_FILE_COUNT; ++ inode ) {
+				hash( verifier, inode );
+			}
+		}
+		HashCatalog catalog = new HashCatalog( catalogDirectory, HashMode.STREAM );
+		// the checkpoint interval doesn't come while the files are hashed
+		ScanCheckpoint checkpoint = new ScanCheckpoint( checkpointPath, SCAN_ID, 3600 );
+		CatalogVerifier verifier = new CatalogVerifier( catalog, false, checkpoint, null );
+		for ( int inode = 1; inode <= FILE_COUNT; ++ inode ) {
+			hash( verifier, inode );
+		}
+		// killed: neither catalog nor checkpoint is flushed or closed
+
+		assertEquals( 0, assertResumable() );
+	}
+
+	@Test
+	public void killBetweenCatalogAndCheckpointFlushLosesNoHash() throws IOException {
+		HashCatalog catalog = new HashCatalog( catalogDirectory, HashMode.STREAM );
+		ScanCheckpoint checkpoint = new ScanCheckpoint( checkpointPath, SCAN_ID, 3600 );
+		CatalogVerifier verifier = new CatalogVerifier( catalog, false, checkpoint, null );
+		for ( int inode = 1; inode <= FILE_COUNT / 2; ++ inode ) {
+			hash( verifier, inode );
+		}
+		catalog.flush();
+		checkpoint.flush();
+		for ( int inode = FILE_COUNT / 2 + 1; inode <= FILE_COUNT; ++ inode ) {
+			hash( verifier, inode );
+		}
+		catalog.flush();
+		// killed before the checkpoint flush
+
+		assertEquals( FILE_COUNT / 2, assertResumable() );
+	}
+
+	@Test
+	public void flushedScanResumesWithCompletedFiles() throws IOException {
+		HashCatalog catalog = new HashCatalog( catalogDirectory, HashMode.STREAM );
+		// every outcome is flushed
+		ScanCheckpoint checkpoint = new ScanCheckpoint( checkpointPath, SCAN_ID, 0 );
+		CatalogVerifier verifier = new CatalogVerifier( catalog, false, checkpoint, null );
+		for ( int inode = 1; inode <= 100; ++ inode ) {
+			hash( verifier, inode );
+		}
+		// killed after the last flush
+
+		assertEquals( 100, assertResumable() );
+	}
+
+	/**
+	 * Reopens the catalog and the checkpoint like the next run does
+	 * @return count of the files the next run skips
+	 */
+	private int assertResumable() throws IOException {
+		int completedCount = 0;
+		try (
+				HashCatalog catalog = new HashCatalog( catalogDirectory, HashMode.STREAM );
+				ScanCheckpoint checkpoint = new ScanCheckpoint( checkpointPath, SCAN_ID, 3600 )
+		) {
+			for ( int inode = 1; inode <= FILE_COUNT; ++ inode ) {
+				if ( checkpoint.getCompletedOutcome( file( inode ) ) < 0 ) {
+					continue;
+				}
+				++ completedCount;
+				HashCatalog.Entry entry = catalog.lookup( 1, inode );
+				assertNotNull( "Catalog entry of completed file " + inode, entry );
+				assertEquals( hashOf( inode ), entry.hash );
+			}
+		}
+		return completedCount;
+	}
+
+	private static void hash( CatalogVerifier verifier, int inode ) throws IOException {
+		FileInfo fileInfo = file( inode );
+		FileInfo.HashState state = fileInfo.startHashing( HashMode.STREAM, Collections.emptyList(), fileInfo.size, 0 );
+		assertTrue( fileInfo.hashChunk( state, 0, ByteBuffer.wrap( content( inode ) ), new byte[ 0 ] ) );
+		verifier.fileHashed( fileInfo, state );
+	}
+
+	private static long hashOf( int inode ) throws IOException {
+		FileInfo fileInfo = file( inode );
+		FileInfo.HashState state = fileInfo.startHashing( HashMode.STREAM, Collections.emptyList(), fileInfo.size, 0 );
+		fileInfo.hashChunk( state, 0, ByteBuffer.wrap( content( inode ) ), new byte[ 0 ] );
+		return fileInfo.getHash();
+	}
+
+	private static FileInfo file( int inode ) {
+		FileInfo fileInfo = new FileInfo( null, "/library/file" + inode );
+		Map< String, Object > attributes = new HashMap<>();
+		attributes.put( "dev", 1L );
+		attributes.put( "ino", (long) inode );
+		attributes.put( "size", (long) content( inode ).length );
+		attributes.put( "lastModifiedTime", FileTime.fromMillis( 1_500_000_000_000L + inode ) );
+		fileInfo.setAttributes( attributes );
+		return fileInfo;
+	}
+
+	private static byte[] content( int inode ) {
+		return ( "content of file " + inode ).getBytes();
+	}
+}
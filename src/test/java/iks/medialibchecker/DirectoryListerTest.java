@@ -0,0 +1,103 @@
+package iks.medialibchecker;
+
+import com.sun.jna.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class DirectoryListerTest {
+	/** Makes the names the JVM can't */
+	interface CLibrary extends Library {
+		int mkdir( byte[] path, int mode );
+	}
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private Path directory;
+
+	@Before
+	public void createDirectory() throws IOException {
+		directory = folder.newFolder( "library" ).toPath();
+	}
+
+	@Test
+	public void entriesHaveTheirTypesAndInodes() throws IOException {
+		Files.createFile( directory.resolve( "track.flac" ) );
+		Files.createDirectory( directory.resolve( "album" ) );
+		Files.createSymbolicLink( directory.resolve( "link" ), directory.resolve( "track.flac" ) );
+		Map< String, DirectoryLister.Entry > entries = list();
+		assertEquals( new HashSet<>( Arrays.asList( "track.flac", "album", "link" ) ), entries.keySet() );
+		if ( DirectoryLister.isNative() ) {
+			assertEquals( DirectoryLister.TYPE_FILE, entries.get( "track.flac" ).type );
+			assertEquals( DirectoryLister.TYPE_DIRECTORY, entries.get( "album" ).type );
+			for ( String name : entries.keySet() ) {
+				Object inode = Files.getAttribute( directory.resolve( name ), "unix:ino", LinkOption.NOFOLLOW_LINKS );
+				assertEquals( name, inode, entries.get( name ).inode );
+			}
+		}
+		// the target type matters
+		assertEquals( DirectoryLister.TYPE_UNKNOWN, entries.get( "link" ).type );
+	}
+
+	@Test
+	public void entriesOfSeveralReadsAreListed() throws IOException {
+		Set< String > names = new HashSet<>();
+		for ( int i = 0; i < 3000; ++ i ) {
+			String name = String.format( "%04d - a track name long enough to fill the buffer.flac", i );
+			Files.createFile( directory.resolve( name ) );
+			names.add( name );
+		}
+		assertEquals( names, list().keySet() );
+	}
+
+	@Test
+	public void emptyDirectoryHasNoEntries() throws IOException {
+		assertTrue( list().isEmpty() );
+	}
+
+	@Test( expected = IOException.class )
+	public void missingDirectoryFails() throws IOException {
+		DirectoryLister.list( directory.resolve( "missing" ) );
+	}
+
+	@Test( expected = IOException.class )
+	public void fileFails() throws IOException {
+		DirectoryLister.list( Files.createFile( directory.resolve( "track.flac" ) ) );
+	}
+
+	@Test
+	public void nameNotInTheFileNameCharsetIsSkipped() throws IOException {
+		Assume.assumeTrue( DirectoryLister.isNative() );
+		// ISO-8859-1 "Café", which isn't valid UTF-8 or ASCII
+		byte[] name = { 'C', 'a', 'f', (byte) 0xe9 };
+		Assume.assumeFalse( FileInfo.isNameDecodable( name ) );
+		byte[] parent = directory.toString().getBytes( FileInfo.NAME_CHARSET );
+		byte[] path = Arrays.copyOf( parent, parent.length + 1 + name.length + 1 );
+		path[ parent.length ] = '/';
+		System.arraycopy( name, 0, path, parent.length + 1, name.length );
+		CLibrary libc = (CLibrary) Native.loadLibrary( "c", CLibrary.class );
+		assertEquals( 0, libc.mkdir( path, 0755 ) );
+		Files.createDirectory( directory.resolve( "Jazz" ) );
+
+		List< DirectoryLister.Entry > entries = DirectoryLister.list( directory );
+		assertEquals( 2, entries.size() );
+		DirectoryInfo directoryInfo = new DirectoryInfo( null, directory.toString() );
+		directoryInfo.readContent( null );
+		assertEquals( 1, directoryInfo.containingFiles.size() );
+		assertEquals( "Jazz", directoryInfo.containingFiles.get( 0 ).getName() );
+	}
+
+	private Map< String, DirectoryLister.Entry > list() throws IOException {
+		Map< String, DirectoryLister.Entry > entries = new HashMap<>();
+		for ( DirectoryLister.Entry entry : DirectoryLister.list( directory ) ) {
+			assertNull( entries.put( new String( entry.name, FileInfo.NAME_CHARSET ), entry ) );
+		}
+		return entries;
+	}
+}
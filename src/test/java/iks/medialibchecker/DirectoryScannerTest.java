@@ -0,0 +1,148 @@
+package iks.medialibchecker;
+
+import org.junit.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+/** Sweeps over files placed in a simulated extent layout with reads failing at some device blocks */
+public class DirectoryScannerTest {
+	private static final int BLOCK_SIZE = 4096;
+
+	/** Reads zeros, fails at the blocks of the bad sectors */
+	private static class FailingReadEngine implements ReadEngine {
+		/** File path to logical blocks which read fails */
+		final Map< String, Set< Long > > badBlocks = new HashMap<>();
+
+		@Override
+		public ReadFile open( Path path ) {
+			Set< Long > fileBadBlocks = badBlocks.getOrDefault( path.toString(), Collections.emptySet() );
+			return new ReadFile() {
+				@Override
+				public long size() {
+					return Long.MAX_VALUE;
+				}
+
+				@Override
+				public ByteBuffer read( long position, int length, ByteBuffer buffer ) throws IOException {
+					for ( long block = position / BLOCK_SIZE; block * BLOCK_SIZE < position + length; ++ block ) {
+						if ( fileBadBlocks.contains( block ) ) {
+							throw new IOException( "Input/output error" );
+						}
+					}
+					buffer.clear();
+					buffer.limit( length );
+					return buffer;
+				}
+
+				@Override
+				public void close() {
+				}
+			};
+		}
+
+		@Override
+		public ByteBuffer allocateBuffer( int size ) {
+			return ByteBuffer.allocate( size );
+		}
+
+		@Override
+		public String getName() {
+			return "failing";
+		}
+	}
+
+	private final FailingReadEngine readEngine = new FailingReadEngine();
+	private final Set< String > hashed = ConcurrentHashMap.newKeySet();
+	private final Set< String > failed = ConcurrentHashMap.newKeySet();
+	/** Times the reader finished every file */
+	private final Map< String, Integer > finished = new HashMap<>();
+
+	@Test( timeout = 10_000 )
+	public void failedLargeExtentDropsTheRestOfTheFile() throws InterruptedException {
+		// extents larger than the read size are read one by one
+		assertScanCompletes( HashMode.STREAM, 4 );
+	}
+
+	@Test( timeout = 10_000 )
+	public void failedExtentOfTheRunDropsTheRestOfTheFile() throws InterruptedException {
+		// single block extents are collected into runs
+		assertScanCompletes( HashMode.STREAM, 1 );
+	}
+
+	@Test( timeout = 10_000 )
+	public void failedTreeHashedFileDropsTheRestOfTheFile() throws InterruptedException {
+		assertScanCompletes( HashMode.TREE, 4 );
+	}
+
+	/**
+	 * The fragmented file has its extents placed backwards, so stream hash takes a pass per extent. Its second
+	 * extent fails
+	 */
+	private void assertScanCompletes( HashMode hashMode, int extentBlocks ) throws InterruptedException {
+		HashPipeline pipeline = new HashPipeline( hashMode, Collections.emptyList(), 2, new HashPipeline.Listener() {
+			@Override
+			public void fileHashed( FileInfo fileInfo, FileInfo.HashState state ) {
+				hashed.add( fileInfo.getPath() );
+			}
+
+			@Override
+			public void fileFailed( FileInfo fileInfo, FileInfo.HashState state ) {
+				failed.add( fileInfo.getPath() );
+			}
+		}, new Metrics() );
+		DeviceMetrics metrics = new DeviceMetrics( "sda" );
+		ExtentReader extentReader = new ExtentReader(
+				pipeline, readEngine, 2 * BLOCK_SIZE, null, VolumeLayout.NONE, metrics, null
+		);
+		DirectoryScanner scanner = new DirectoryScanner(
+				"sda", Collections.singletonList( Paths.get( "/library" ) ), null, 1, extentReader, null, null,
+				null, null, 0, 0
+		);
+		extentReader.setFinishedListener( fileInfo -> finished.merge( fileInfo.getPath(), 1, Integer::sum ) );
+		SegmentTable segments = scanner.getSegmentTable();
+		List< FileInfo > files = new ArrayList<>();
+		files.add( file( segments, "fragmented", extentBlocks, 400, 300, 200, 100 ) );
+		files.add( file( segments, "before", extentBlocks, 50 ) );
+		files.add( file( segments, "between", extentBlocks, 250 ) );
+		files.add( file( segments, "after", extentBlocks, 500 ) );
+		readEngine.badBlocks.put( "/library/fragmented", Collections.singleton( (long) extentBlocks ) );
+		try {
+			scanner.hashFiles( files );
+		} finally {
+			scanner.close();
+			pipeline.close();
+		}
+
+		assertEquals( new HashSet<>( Arrays.asList( "/library/before", "/library/between", "/library/after" ) ), hashed );
+		assertEquals( Collections.singleton( "/library/fragmented" ), failed );
+		assertTrue( files.get( 0 ).isExtentsRead() );
+		// failed file is finished too, so the streaming scan releases it
+		for ( FileInfo fileInfo : files ) {
+			assertEquals( fileInfo.getPath(), Integer.valueOf( 1 ), finished.get( fileInfo.getPath() ) );
+		}
+	}
+
+	/** @param physicalBlocks device blocks of the extents in logical order */
+	private static FileInfo file( SegmentTable segments, String name, int extentBlocks, long... physicalBlocks ) {
+		List< FileSegment > fileSegments = new ArrayList<>();
+		for ( int i = 0; i < physicalBlocks.length; ++ i ) {
+			fileSegments.add( new FileSegment( (long) i * extentBlocks, physicalBlocks[ i ], extentBlocks ) );
+		}
+		FileInfo fileInfo = new FileInfo( new DirectoryInfo( null, "/library" ), name );
+		fileInfo.setExtentMap( BLOCK_SIZE, segments.add( fileSegments ), fileSegments.size() );
+		Map< String, Object > attributes = new HashMap<>();
+		attributes.put( "dev", 1L );
+		attributes.put( "ino", (long) name.hashCode() );
+		attributes.put( "size", (long) physicalBlocks.length * extentBlocks * BLOCK_SIZE );
+		attributes.put( "lastModifiedTime", FileTime.fromMillis( 1_500_000_000_000L ) );
+		fileInfo.setAttributes( attributes );
+		return fileInfo;
+	}
+}
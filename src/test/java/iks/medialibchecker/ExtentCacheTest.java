@@ -0,0 +1,84 @@
+package iks.medialibchecker;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ExtentCacheTest {
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private Path library;
+	private Path cachePath;
+	/** Names of the files the extent provider was asked to map */
+	private final Set< String > mapped = new HashSet<>();
+
+	private final ExtentProvider provider = new ExtentProvider() {
+		@Override
+		public void mapExtents( DirectoryInfo directory, ExtentConsumer consumer ) {
+			for ( FileInfo fileInfo : directory.containingFiles ) {
+				mapped.add( fileInfo.getName() );
+				consumer.accept( fileInfo, 4096, Collections.singletonList( new FileSegment( 0, 1000 + fileInfo.inode, 1 ) ) );
+			}
+		}
+
+		@Override
+		public String getName() {
+			return "test";
+		}
+	};
+
+	@Before
+	public void createLibrary() throws IOException {
+		library = folder.newFolder( "library" ).toPath();
+		cachePath = folder.getRoot().toPath().resolve( "library" + ExtentCache.FILE_SUFFIX );
+		Files.write( library.resolve( "01.flac" ), new byte[ 100 ] );
+		Files.write( library.resolve( "02.flac" ), new byte[ 200 ] );
+	}
+
+	@Test
+	public void unchangedFilesAreNotMappedAgain() throws IOException {
+		scan( true );
+		assertEquals( new HashSet<>( Arrays.asList( "01.flac", "02.flac" ) ), mapped );
+		mapped.clear();
+		scan( true );
+		assertTrue( mapped.isEmpty() );
+	}
+
+	@Test
+	public void fileOfTheSameModificationTimeIsMappedAgainWhenItsInodeChanged() throws IOException {
+		scan( true );
+		mapped.clear();
+		// as defragmentation does: the blocks move, the modification time stays
+		Path moved = library.resolve( "01.flac" );
+		Files.setLastModifiedTime( moved, Files.getLastModifiedTime( moved ) );
+		scan( true );
+		assertEquals( Collections.singleton( "01.flac" ), mapped );
+	}
+
+	@Test
+	public void filesReadFromTheRawDeviceAreMappedAfresh() throws IOException {
+		scan( true );
+		mapped.clear();
+		scan( false );
+		assertEquals( new HashSet<>( Arrays.asList( "01.flac", "02.flac" ) ), mapped );
+	}
+
+	private void scan( boolean reuseFileMaps ) throws IOException {
+		ExtentCache cache = ExtentCache.open( cachePath, reuseFileMaps );
+		DirectoryInfo root = new DirectoryInfo( null, library.toString() );
+		cache.readContent( root, null );
+		assertEquals( 2, root.containingFiles.size() );
+		SegmentTable segmentTable = new SegmentTable();
+		cache.wrap( provider ).mapExtents( root, ( fileInfo, blockSize, segments ) -> {
+			assertEquals( 1000 + fileInfo.inode, segments.get( 0 ).physicalOffset );
+			fileInfo.setExtentMap( blockSize, segmentTable.add( segments ), segments.size() );
+		} );
+		cache.save( Collections.singletonList( root ), segmentTable, VolumeLayout.NONE );
+	}
+}
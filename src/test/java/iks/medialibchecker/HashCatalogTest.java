@@ -0,0 +1,153 @@
+package iks.medialibchecker;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+import static org.junit.Assert.*;
+
+public class HashCatalogTest {
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private Path catalogDirectory;
+	private Path journalPath;
+
+	@Before
+	public void createCatalogDirectory() throws IOException {
+		catalogDirectory = folder.newFolder( "catalog" ).toPath();
+		journalPath = catalogDirectory.resolve( "catalog.journal" );
+	}
+
+	@Test
+	public void cutOffLastEntryIsDroppedBeforeAppending() throws IOException {
+		try ( HashCatalog catalog = open() ) {
+			catalog.store( entry( 1 ) );
+			catalog.store( entry( 2 ) );
+			catalog.flush();
+		}
+		long completeLength = Files.size( journalPath );
+		try ( HashCatalog catalog = open() ) {
+			catalog.store( entry( 3 ) );
+		}
+		// killed in the middle of the third entry
+		truncateJournal( completeLength + 30 );
+
+		try ( HashCatalog catalog = open() ) {
+			assertEquals( completeLength, Files.size( journalPath ) );
+			assertNull( catalog.lookup( 1, 3 ) );
+			catalog.store( entry( 4 ) );
+			catalog.store( entry( 5 ) );
+		}
+		try ( HashCatalog catalog = open() ) {
+			for ( int inode : new int[] { 1, 2, 4, 5 } ) {
+				assertEntry( inode, catalog.lookup( 1, inode ) );
+			}
+			assertNull( catalog.lookup( 1, 3 ) );
+		}
+	}
+
+	@Test
+	public void journalCutOffInMagicIsStartedAgain() throws IOException {
+		try ( HashCatalog catalog = open() ) {
+			catalog.store( entry( 1 ) );
+		}
+		truncateJournal( 5 );
+
+		try ( HashCatalog catalog = open() ) {
+			assertNull( catalog.lookup( 1, 1 ) );
+			catalog.store( entry( 2 ) );
+		}
+		try ( HashCatalog catalog = open() ) {
+			assertEntry( 2, catalog.lookup( 1, 2 ) );
+		}
+	}
+
+	@Test
+	public void treeEntryKeepsChunkHashesAcrossCutOff() throws IOException {
+		try ( HashCatalog catalog = open() ) {
+			catalog.store( new HashCatalog.Entry( 1, 1, 100, 10, 11, "/a", new long[] { 21, 22, 23 } ) );
+		}
+		long completeLength = Files.size( journalPath );
+		try ( HashCatalog catalog = open() ) {
+			catalog.store( new HashCatalog.Entry( 1, 2, 100, 10, 12, "/b", new long[] { 31, 32, 33 } ) );
+		}
+		// killed within the chunk hashes of the second entry
+		truncateJournal( Files.size( journalPath ) - 4 );
+
+		try ( HashCatalog catalog = open() ) {
+			assertEquals( completeLength, Files.size( journalPath ) );
+			catalog.store( new HashCatalog.Entry( 1, 3, 100, 10, 13, "/c", new long[] { 41, 42 } ) );
+		}
+		try ( HashCatalog catalog = open() ) {
+			assertNull( catalog.lookup( 1, 2 ) );
+			HashCatalog.Entry entry = catalog.lookup( 1, 3 );
+			assertEquals( 13, entry.hash );
+			assertEquals( 2, entry.chunkCount );
+			assertEquals( 42, catalog.getChunkHash( entry, 1 ) );
+			assertEquals( 23, catalog.getChunkHash( catalog.lookup( 1, 1 ), 2 ) );
+		}
+	}
+
+	@Test
+	public void longJournalIsCompactedByFlush() throws IOException {
+		// a few dozen entries per compaction
+		long maxJournalLength = 2048;
+		HashCatalog catalog = new HashCatalog( catalogDirectory, HashMode.TREE, maxJournalLength );
+		for ( int inode = 1; inode <= 1000; ++ inode ) {
+			catalog.store( new HashCatalog.Entry( 1, inode, 100, 10, inode, "/f" + inode, new long[] { inode, - inode } ) );
+			assertTrue( Files.size( journalPath ) <= maxJournalLength + 100 );
+		}
+		HashCatalog.Entry indexed = catalog.lookup( 1, 1 );
+		catalog.store( new HashCatalog.Entry( 1, 2, 200, 20, 2000, "/f2", null ) );
+		catalog.flush();
+		assertTrue( Files.exists( catalogDirectory.resolve( "catalog.idx" ) ) );
+		for ( int inode = 1001; inode <= 1100; ++ inode ) {
+			catalog.store( new HashCatalog.Entry( 1, inode, 100, 10, inode, "/f" + inode, null ) );
+		}
+		// the entry got before the following compactions still reads its chunks
+		assertEquals( -1, catalog.getChunkHash( indexed, 1 ) );
+		catalog.flush();
+
+		// killed without close
+		try ( HashCatalog reopened = new HashCatalog( catalogDirectory, HashMode.TREE, maxJournalLength ) ) {
+			for ( int inode = 1; inode <= 1100; ++ inode ) {
+				HashCatalog.Entry entry = reopened.lookup( 1, inode );
+				assertNotNull( "Entry of inode " + inode, entry );
+				assertEquals( "/f" + inode, entry.path );
+				if ( inode == 2 ) {
+					assertEquals( 2000, entry.hash );
+					assertEquals( 0, entry.chunkCount );
+				} else if ( inode <= 1000 ) {
+					assertEquals( inode, entry.hash );
+					assertEquals( - inode, reopened.getChunkHash( entry, 1 ) );
+				}
+			}
+		}
+	}
+
+	private HashCatalog open() throws IOException {
+		return new HashCatalog( catalogDirectory, HashMode.STREAM );
+	}
+
+	private void truncateJournal( long length ) throws IOException {
+		try ( FileChannel channel = FileChannel.open( journalPath, StandardOpenOption.WRITE ) ) {
+			channel.truncate( length );
+		}
+	}
+
+	private static HashCatalog.Entry entry( int inode ) {
+		return new HashCatalog.Entry( 1, inode, 1000 + inode, 2000 + inode, 3000 + inode, "/library/file" + inode );
+	}
+
+	private static void assertEntry( int inode, HashCatalog.Entry entry ) {
+		assertNotNull( "Entry of inode " + inode, entry );
+		assertEquals( 1000 + inode, entry.size );
+		assertEquals( 2000 + inode, entry.modifiedTime );
+		assertEquals( 3000 + inode, entry.hash );
+		assertEquals( "/library/file" + inode, entry.path );
+	}
+}
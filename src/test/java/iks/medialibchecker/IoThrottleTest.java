@@ -0,0 +1,156 @@
+package iks.medialibchecker;
+
+import org.junit.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class IoThrottleTest {
+	private static final long MIB = 1 << 20;
+	private static final long SECOND = TimeUnit.SECONDS.toNanos( 1 );
+
+	/** Disk serving the reads of the throttle in simulated time */
+	private static class SimulatedDisk implements IoThrottle.Clock, IoThrottle.LoadSource {
+		long now = SECOND;
+		/** Latency of a read besides the transfer */
+		final long accessNanos = TimeUnit.MILLISECONDS.toNanos( 2 );
+		final double bytesPerSecond = 150 * MIB;
+		/** Read ahead of the own reads, which the device transfers before they are done */
+		final long readaheadBytes = 512 << 10;
+		/** Slowdown of the reads by the foreground I/O */
+		double slowdown = 1;
+		double foregroundBytesPerSecond;
+		/** Bytes transferred by the device for the own reads and the foreground I/O */
+		double transferredBytes;
+
+		@Override
+		public long nanoTime() {
+			return now;
+		}
+
+		@Override
+		public void sleep( long nanos ) {
+			advance( nanos );
+		}
+
+		@Override
+		public long getTransferredSectors() {
+			return (long) transferredBytes / 512;
+		}
+
+		private void advance( long nanos ) {
+			now += nanos;
+			transferredBytes += foregroundBytesPerSecond * nanos / 1e9;
+		}
+
+		/** @return throughput of the reads the throttle allows within the simulated time, bytes/sec */
+		long read( IoThrottle throttle, long nanos ) throws InterruptedException {
+			long start = now;
+			long bytes = 0;
+			while ( now - start < nanos ) {
+				int length = throttle.getReadLength();
+				throttle.acquire( length );
+				long latency = (long) ( ( accessNanos + length * 1e9 / bytesPerSecond ) * slowdown );
+				if ( transferredBytes == 0 ) {
+					transferredBytes = readaheadBytes;
+				}
+				transferredBytes += length;
+				advance( latency );
+				throttle.readDone( length, latency );
+				bytes += length;
+			}
+			return (long) ( bytes * 1e9 / ( now - start ) );
+		}
+	}
+
+	private final SimulatedDisk disk = new SimulatedDisk();
+
+	@Test
+	public void rateCapHolds() throws InterruptedException {
+		long maxRate = 20 * MIB;
+		IoThrottle throttle = new IoThrottle( "sda", maxRate, 1 << 20, false, null, disk );
+		long throughput = disk.read( throttle, 20 * SECOND );
+		// the burst allowance is spread over the whole run
+		assertTrue( "Throughput " + throughput + " exceeds the cap", throughput <= maxRate * 1.01 );
+		assertTrue( "Throughput " + throughput + " is far below the cap", throughput >= maxRate * 0.95 );
+	}
+
+	@Test
+	public void rateCapHoldsOnCalmDiskInAdaptiveMode() throws InterruptedException {
+		long maxRate = 20 * MIB;
+		IoThrottle throttle = new IoThrottle( "sda", maxRate, 1 << 20, true, disk, disk );
+		long throughput = disk.read( throttle, 20 * SECOND );
+		assertTrue( "Throughput " + throughput + " exceeds the cap", throughput <= maxRate * 1.01 );
+		assertEquals( maxRate, throttle.getRate() );
+		assertEquals( 1 << 20, throttle.getReadLength() );
+	}
+
+	@Test
+	public void backsOffWhenLatencyRisesAndRecovers() throws InterruptedException {
+		long maxRate = 100 * MIB;
+		int maxReadLength = 4 << 20;
+		IoThrottle throttle = new IoThrottle( "sda", maxRate, maxReadLength, true, null, disk );
+		long calmThroughput = disk.read( throttle, 10 * SECOND );
+		assertEquals( maxRate, throttle.getRate() );
+
+		disk.slowdown = 4;
+		long minRate = Long.MAX_VALUE;
+		int minReadLength = Integer.MAX_VALUE;
+		long congestedBytes = 0;
+		for ( int i = 0; i < 20; ++ i ) {
+			congestedBytes += disk.read( throttle, SECOND / 2 ) / 2;
+			minRate = Math.min( minRate, throttle.getRate() );
+			minReadLength = Math.min( minReadLength, throttle.getReadLength() );
+		}
+		long congestedThroughput = congestedBytes / 10;
+		assertTrue( "Rate " + minRate + " isn't backed off", minRate <= maxRate / 4 );
+		assertTrue( "Read length " + minReadLength + " isn't backed off", minReadLength < maxReadLength );
+		// the slowed down disk alone would give a quarter of the calm throughput
+		assertTrue(
+				"Throughput " + congestedThroughput + " of the congested disk isn't backed off from " + calmThroughput,
+				congestedThroughput < calmThroughput / 6
+		);
+
+		disk.slowdown = 1;
+		disk.read( throttle, 30 * SECOND );
+		assertEquals( maxRate, throttle.getRate() );
+		assertEquals( maxReadLength, throttle.getReadLength() );
+	}
+
+	@Test
+	public void ownReadsAreNotTakenForForegroundIo() throws InterruptedException {
+		int maxReadLength = 4 << 20;
+		IoThrottle throttle = new IoThrottle( "sda", IoThrottle.UNLIMITED, maxReadLength, true, disk, disk );
+		disk.read( throttle, 10 * SECOND );
+		assertEquals( IoThrottle.UNLIMITED, throttle.getRate() );
+		assertEquals( maxReadLength, throttle.getReadLength() );
+	}
+
+	@Test
+	public void backsOffWhileForegroundIoTransfersAndRecovers() throws InterruptedException {
+		long maxRate = 50 * MIB;
+		int maxReadLength = 4 << 20;
+		IoThrottle throttle = new IoThrottle( "sda", maxRate, maxReadLength, true, disk, disk );
+		disk.read( throttle, 5 * SECOND );
+		assertEquals( maxRate, throttle.getRate() );
+
+		// a video stream
+		disk.foregroundBytesPerSecond = 5 * MIB;
+		disk.read( throttle, 20 * SECOND );
+		assertEquals( IoThrottle.MIN_RATE, throttle.getRate() );
+		assertEquals( IoThrottle.MIN_READ_LENGTH, throttle.getReadLength() );
+		long busyThroughput = disk.read( throttle, 10 * SECOND );
+		assertTrue( "Throughput " + busyThroughput + " exceeds the minimum rate", busyThroughput <= IoThrottle.MIN_RATE * 1.05 );
+
+		disk.foregroundBytesPerSecond = 0;
+		disk.read( throttle, 30 * SECOND );
+		assertEquals( maxRate, throttle.getRate() );
+		assertEquals( maxReadLength, throttle.getReadLength() );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void rateBelowMinimumIsRejected() {
+		new IoThrottle( "sda", IoThrottle.MIN_RATE - 1, 1 << 20, false, null, disk );
+	}
+}
@@ -0,0 +1,90 @@
+package iks.medialibchecker;
+
+import org.junit.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TreeHashTest {
+	private static final int PIECE_SIZE = 384 << 10;
+
+	private final byte[] content = new byte[ 5 * TreeHash.CHUNK_SIZE + 12345 ];
+	/** Positions the content source was read at */
+	private final List< Long > directReads = new ArrayList<>();
+
+	@Before
+	public void fillContent() {
+		new Random( 42 ).nextBytes( content );
+	}
+
+	@Test
+	public void piecesInAnyOrderMakeTheSameHash() throws IOException {
+		long expected = hashInOrder();
+		TreeHash hash = newHash( Long.MAX_VALUE );
+		// backwards, so every split chunk gets its start last
+		for ( int position = lastPiecePosition(); position >= 0; position -= PIECE_SIZE ) {
+			update( hash, position );
+		}
+		assertEquals( expected, hash.getValue() );
+		assertTrue( directReads.isEmpty() );
+		assertEquals( 0, TreeHash.getHeldBytes() );
+	}
+
+	@Test
+	public void chunksPastTheBoundAreReadFromTheFile() throws IOException {
+		long expected = hashInOrder();
+		TreeHash hash = newHash( PIECE_SIZE );
+		for ( int position = lastPiecePosition(); position >= 0; position -= PIECE_SIZE ) {
+			update( hash, position );
+			assertTrue( TreeHash.getHeldBytes() <= PIECE_SIZE );
+		}
+		assertEquals( expected, hash.getValue() );
+		assertFalse( directReads.isEmpty() );
+		assertEquals( 0, TreeHash.getHeldBytes() );
+	}
+
+	@Test
+	public void discardedFileReleasesItsPieces() throws IOException {
+		TreeHash hash = newHash( Long.MAX_VALUE );
+		update( hash, lastPiecePosition() );
+		update( hash, lastPiecePosition() - PIECE_SIZE );
+		assertTrue( TreeHash.getHeldBytes() > 0 );
+		hash.discard();
+		assertEquals( 0, TreeHash.getHeldBytes() );
+		update( hash, lastPiecePosition() - 2 * PIECE_SIZE );
+		assertEquals( 0, TreeHash.getHeldBytes() );
+	}
+
+	private TreeHash newHash( long maxHeldBytes ) {
+		return new TreeHash( content.length, ( position, buffer ) -> {
+			directReads.add( position );
+			buffer.put( content, (int) position, buffer.remaining() );
+		}, maxHeldBytes );
+	}
+
+	private long hashInOrder() throws IOException {
+		TreeHash hash = newHash( 0 );
+		for ( int position = 0; position < content.length; position += PIECE_SIZE ) {
+			update( hash, position );
+		}
+		return hash.getValue();
+	}
+
+	private int lastPiecePosition() {
+		return ( content.length - 1 ) / PIECE_SIZE * PIECE_SIZE;
+	}
+
+	private void update( TreeHash hash, int position ) throws IOException {
+		int length = Math.min( PIECE_SIZE, content.length - position );
+		// direct buffers are hashed by the workers
+		ByteBuffer buffer = ByteBuffer.allocateDirect( length + 16 );
+		buffer.position( 16 );
+		buffer.put( content, position, length );
+		buffer.position( 16 );
+		hash.update( position, buffer );
+		assertEquals( 16, buffer.position() );
+	}
+}